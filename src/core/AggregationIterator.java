@@ -194,6 +194,17 @@ public class AggregationIterator implements SeekableView, DataPoint,
   /** The index in {@link #values} of the current value being aggregated. */
   private int pos;
 
+  /** Checked every {@link #CANCELLATION_CHECK_INTERVAL} data points, may be
+   * null */
+  private CancellationToken cancellation;
+
+  /** How many data points are returned between two cancellation checks,
+   * must be a power of 2 */
+  private static final int CANCELLATION_CHECK_INTERVAL = 1024;
+
+  /** Data points returned so far, for the cancellation checks */
+  private int returned;
+
   /**
    * Creates a new iterator for a {@link SpanGroup}.
    * @param spans Spans in a group.
@@ -400,6 +411,16 @@ public class AggregationIterator implements SeekableView, DataPoint,
     }
   }
 
+  /**
+   * Stops the aggregation once the query is cancelled, checked every few
+   * data points.
+   * @param cancellation The token of the query, may be null
+   * @since 2.3
+   */
+  void setCancellation(final CancellationToken cancellation) {
+    this.cancellation = cancellation;
+  }
+
   /**
    * Indicates that an iterator in {@link #iterators} has reached the end.
    * @param i The index in {@link #iterators} of the iterator.
@@ -416,6 +437,15 @@ public class AggregationIterator implements SeekableView, DataPoint,
    * @param dp The last data point returned by that iterator.
    */
   private void putDataPoint(final int i, final DataPoint dp) {
+    if (dp instanceof ColumnarDataPoints.Iterator) {
+      // Decoded spans already store floats as raw bits, copy them as is.
+      final ColumnarDataPoints.Iterator column =
+          (ColumnarDataPoints.Iterator) dp;
+      timestamps[i] = column.isInteger() ? column.timestamp() :
+        column.timestamp() | FLAG_FLOAT;
+      values[i] = column.rawValue();
+      return;
+    }
     timestamps[i] = dp.timestamp();
     if (dp.isInteger()) {
       //LOG.debug("Putting #" + i + " (long) " + dp.longValue()
@@ -448,6 +478,10 @@ public class AggregationIterator implements SeekableView, DataPoint,
   }
 
   public DataPoint next() {
+    if (cancellation != null &&
+        (++returned & (CANCELLATION_CHECK_INTERVAL - 1)) == 0) {
+      cancellation.check();
+    }
     final int size = iterators.length;
     long min_ts = Long.MAX_VALUE;
 
@@ -102,7 +102,19 @@ final class BatchedDataPoints implements WritableDataPoints {
   public void setSeries(final String metric, final Map<String, String> tags) {
     IncomingDataPoints.checkMetricAndTags(metric, tags);
     try {
-      row_key = IncomingDataPoints.rowKeyTemplate(tsdb, metric, tags);
+      final RowKeyCache cache = tsdb.rowKeyCache();
+      if (cache != null) {
+        final RowKeyCache.Key cache_key = RowKeyCache.cacheKey(metric, tags);
+        final RowKeyCache.Entry entry = cache.get(cache_key);
+        if (entry != null) {
+          row_key = entry.newRowKey();
+        } else {
+          row_key = IncomingDataPoints.rowKeyTemplate(tsdb, metric, tags);
+          cache.put(cache_key.copy(), row_key);
+        }
+      } else {
+        row_key = IncomingDataPoints.rowKeyTemplate(tsdb, metric, tags);
+      }
       RowKey.prefixKeyWithSalt(row_key);
       reset();
     }
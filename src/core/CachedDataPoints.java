@@ -0,0 +1,302 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.hbase.async.Bytes.ByteMap;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.meta.Annotation;
+
+/**
+ * A materialized, read-only copy of the results of a query with the names
+ * already resolved so it can be kept in the {@link QueryResultCache} and
+ * served again without touching storage or the UID caches.
+ * @since 2.3
+ */
+final class CachedDataPoints implements DataPoints {
+
+  /** Rough number of bytes used by the names, UIDs and the object itself */
+  private static final int OVERHEAD = 512;
+
+  private final String metric;
+  private final byte[] metric_uid;
+  private final Map<String, String> tags;
+  private final ByteMap<byte[]> tag_uids;
+  private final List<String> aggregated_tags;
+  private final List<byte[]> aggregated_tag_uids;
+  private final List<String> tsuids;
+  private final List<Annotation> annotations;
+  private final int query_index;
+  private final ColumnarDataPoints columns;
+
+  /** Copy constructor replacing the data points, annotations and index */
+  private CachedDataPoints(final CachedDataPoints names,
+      final List<String> tsuids, final List<Annotation> annotations,
+      final int query_index, final ColumnarDataPoints columns) {
+    metric = names.metric;
+    metric_uid = names.metric_uid;
+    tags = names.tags;
+    tag_uids = names.tag_uids;
+    aggregated_tags = names.aggregated_tags;
+    aggregated_tag_uids = names.aggregated_tag_uids;
+    this.tsuids = tsuids;
+    this.annotations = annotations;
+    this.query_index = query_index;
+    this.columns = columns;
+  }
+
+  /** Constructor for {@link #copyOf} once the names have been resolved */
+  private CachedDataPoints(final DataPoints dps, final String metric,
+      final Map<String, String> tags, final List<String> aggregated_tags) {
+    this.metric = metric;
+    metric_uid = dps.metricUID();
+    this.tags = Collections.unmodifiableMap(new TreeMap<String, String>(tags));
+    tag_uids = dps.getTagUids();
+    this.aggregated_tags = Collections.unmodifiableList(
+        new ArrayList<String>(aggregated_tags));
+    aggregated_tag_uids = dps.getAggregatedTagUids();
+    tsuids = dps.getTSUIDs() == null ? Collections.<String>emptyList() :
+      Collections.unmodifiableList(new ArrayList<String>(dps.getTSUIDs()));
+    annotations = dps.getAnnotations() == null ?
+        Collections.<Annotation>emptyList() :
+          Collections.unmodifiableList(
+              new ArrayList<Annotation>(dps.getAnnotations()));
+    query_index = dps.getQueryIndex();
+    columns = ColumnarDataPoints.copyOf(dps.iterator());
+  }
+
+  /**
+   * Resolves the names of a query result and copies its data points. This
+   * iterates over the result so it should only be called once per result.
+   * @param dps The results of a query
+   * @return A deferred resolving to the copy
+   */
+  static Deferred<CachedDataPoints> copyOf(final DataPoints dps) {
+    final Object[] names = new Object[3];
+
+    class NameCB<T> implements Callback<Object, T> {
+      private final int index;
+      NameCB(final int index) {
+        this.index = index;
+      }
+      public Object call(final T name) throws Exception {
+        names[index] = name;
+        return null;
+      }
+    }
+
+    class CopyCB implements Callback<CachedDataPoints, ArrayList<Object>> {
+      @SuppressWarnings("unchecked")
+      public CachedDataPoints call(final ArrayList<Object> ignored)
+          throws Exception {
+        return new CachedDataPoints(dps, (String) names[0],
+            (Map<String, String>) names[1], (List<String>) names[2]);
+      }
+    }
+
+    final List<Deferred<Object>> deferreds = new ArrayList<Deferred<Object>>(3);
+    deferreds.add(dps.metricNameAsync().addCallback(new NameCB<String>(0)));
+    deferreds.add(dps.getTagsAsync().addCallback(
+        new NameCB<Map<String, String>>(1)));
+    deferreds.add(dps.getAggregatedTagsAsync().addCallback(
+        new NameCB<List<String>>(2)));
+    return Deferred.group(deferreds).addCallback(new CopyCB());
+  }
+
+  /**
+   * Copies the data points and annotations in a time range.
+   * @param start The start of the range, inclusive, in milliseconds
+   * @param end The end of the range, exclusive, in milliseconds
+   * @param query_index The index of the sub query to report
+   * @return The copy
+   */
+  CachedDataPoints slice(final long start, final long end,
+      final int query_index) {
+    return new CachedDataPoints(this, tsuids,
+        annotationsBetween(annotations, start, end), query_index,
+        columns.slice(start, end));
+  }
+
+  /**
+   * Appends the results of a query that starts where this one ends.
+   * @param tail The later results, may be null if the later query didn't
+   * return this series
+   * @param start Data points and annotations before this timestamp in
+   * milliseconds are dropped
+   * @param query_index The index of the sub query to report
+   * @return The combined results
+   */
+  CachedDataPoints append(final CachedDataPoints tail, final long start,
+      final int query_index) {
+    if (tail == null) {
+      return slice(start, Long.MAX_VALUE, query_index);
+    }
+    final LinkedHashSet<String> merged_tsuids =
+        new LinkedHashSet<String>(tsuids);
+    merged_tsuids.addAll(tail.tsuids);
+    final List<Annotation> merged_annotations = new ArrayList<Annotation>(
+        annotationsBetween(annotations, start, Long.MAX_VALUE));
+    merged_annotations.addAll(tail.annotations);
+    return new CachedDataPoints(this,
+        Collections.unmodifiableList(new ArrayList<String>(merged_tsuids)),
+        Collections.unmodifiableList(merged_annotations), query_index,
+        columns.slice(start, Long.MAX_VALUE).concat(tail.columns));
+  }
+
+  /** @return the tags and aggregated tags identifying the series within the
+   * results of a query */
+  String groupKey() {
+    return tags.toString() + aggregated_tags;
+  }
+
+  /** @return the approximate number of bytes used by this instance */
+  long sizeInBytes() {
+    return OVERHEAD + columns.sizeInBytes() + tsuids.size() * 64L
+        + annotations.size() * 128L;
+  }
+
+  @Override
+  public String metricName() {
+    return metric;
+  }
+
+  @Override
+  public Deferred<String> metricNameAsync() {
+    return Deferred.fromResult(metric);
+  }
+
+  @Override
+  public byte[] metricUID() {
+    return metric_uid;
+  }
+
+  @Override
+  public Map<String, String> getTags() {
+    return tags;
+  }
+
+  @Override
+  public Deferred<Map<String, String>> getTagsAsync() {
+    return Deferred.fromResult(tags);
+  }
+
+  @Override
+  public ByteMap<byte[]> getTagUids() {
+    return tag_uids;
+  }
+
+  @Override
+  public List<String> getAggregatedTags() {
+    return aggregated_tags;
+  }
+
+  @Override
+  public Deferred<List<String>> getAggregatedTagsAsync() {
+    return Deferred.fromResult(aggregated_tags);
+  }
+
+  @Override
+  public List<byte[]> getAggregatedTagUids() {
+    return aggregated_tag_uids;
+  }
+
+  @Override
+  public List<String> getTSUIDs() {
+    return tsuids;
+  }
+
+  @Override
+  public List<Annotation> getAnnotations() {
+    return annotations;
+  }
+
+  @Override
+  public int size() {
+    return columns.size();
+  }
+
+  @Override
+  public int aggregatedSize() {
+    return columns.size();
+  }
+
+  @Override
+  public SeekableView iterator() {
+    return columns.iterator();
+  }
+
+  @Override
+  public long timestamp(final int i) {
+    return columns.timestamp(i);
+  }
+
+  @Override
+  public boolean isInteger(final int i) {
+    return columns.isInteger(i);
+  }
+
+  @Override
+  public long longValue(final int i) {
+    return columns.longValue(i);
+  }
+
+  @Override
+  public double doubleValue(final int i) {
+    return columns.doubleValue(i);
+  }
+
+  @Override
+  public int getQueryIndex() {
+    return query_index;
+  }
+
+  @Override
+  public String toString() {
+    return "CachedDataPoints(metric=" + metric + ", tags=" + tags
+        + ", aggregated_tags=" + aggregated_tags + ", query_index="
+        + query_index + ", columns=" + columns + ')';
+  }
+
+  /**
+   * @param annotations The annotations to filter
+   * @param start The start of the range, inclusive, in milliseconds
+   * @param end The end of the range, exclusive, in milliseconds
+   * @return the annotations starting within the range
+   */
+  private static List<Annotation> annotationsBetween(
+      final List<Annotation> annotations, final long start, final long end) {
+    if (annotations.isEmpty()) {
+      return annotations;
+    }
+    final List<Annotation> filtered = new ArrayList<Annotation>();
+    for (final Annotation note : annotations) {
+      long timestamp = note.getStartTime();
+      if ((timestamp & Const.SECOND_MASK) == 0) {
+        timestamp *= 1000;
+      }
+      if (timestamp >= start && timestamp < end) {
+        filtered.add(note);
+      }
+    }
+    return Collections.unmodifiableList(filtered);
+  }
+}
@@ -0,0 +1,316 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hbase.async.Bytes;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Lets a running query be stopped once nobody waits for its results, e.g.
+ * when it timed out, the client disconnected or an administrator killed it.
+ * <p>
+ * Each {@link TSQuery} carries a token. Cancelling it runs the listeners
+ * registered by the scanners of the query, which close their HBase scanners
+ * right away, and the scanner callbacks and {@link AggregationIterator}s
+ * check it so that no more rows are fetched nor data points aggregated. The
+ * query then fails with a {@link QueryException} carrying the reason.
+ * <p>
+ * Cancelling is cooperative and only the first call has an effect. The token
+ * must be completed once the query is done to drop the listeners and the
+ * timeout.
+ * <p>
+ * Several requesters may wait on the same query when identical queries are
+ * coalesced. Each of them but the first {@link #join}s the token and the query
+ * is only cancelled once all of them {@link #abandon}ed it.
+ * @since 2.3
+ */
+public final class CancellationToken {
+  private static final Logger LOG =
+      LoggerFactory.getLogger(CancellationToken.class);
+
+  /** Why a query was cancelled */
+  public enum Reason {
+    TIMEOUT (HttpResponseStatus.REQUEST_TIMEOUT, "timeout",
+        "the query ran longer than allowed"),
+    DISCONNECT (new HttpResponseStatus(499, "Client Closed Request"),
+        "disconnect", "the client disconnected"),
+    ADMIN (HttpResponseStatus.SERVICE_UNAVAILABLE, "admin",
+        "the query was cancelled by an administrator");
+
+    /** The status to report the cancellation with */
+    private final HttpResponseStatus status;
+    /** The name of the reason in the stats */
+    private final String name;
+    /** A description for the exception */
+    private final String description;
+    /** How many queries were cancelled for this reason */
+    private final AtomicLong count = new AtomicLong();
+
+    private Reason(final HttpResponseStatus status, final String name,
+        final String description) {
+      this.status = status;
+      this.name = name;
+      this.description = description;
+    }
+
+    @Override
+    public String toString() {
+      return name;
+    }
+  }
+
+  /** How many scanners were closed before they ran out of rows */
+  private static final AtomicLong scanners_closed = new AtomicLong();
+
+  /** An estimate of the rows the closed scanners didn't have to fetch */
+  private static final AtomicLong rows_avoided = new AtomicLong();
+
+  /** Why the query was cancelled, null while it's running */
+  private volatile Reason reason;
+
+  /** Whether or not the query completed, guarded by this */
+  private boolean completed;
+
+  /** Run once when cancelled, guarded by this */
+  private List<Runnable> listeners;
+
+  /** The pending timeout, may be null, guarded by this */
+  private Timeout timeout;
+
+  /** How many requesters wait on the query, guarded by this */
+  private int waiters = 1;
+
+  /**
+   * Cancels the query and runs the listeners. Has no effect if the query was
+   * already cancelled or completed.
+   * @param reason Why the query is cancelled
+   * @return True if the query was cancelled by this call
+   */
+  public boolean cancel(final Reason reason) {
+    final List<Runnable> to_run;
+    synchronized (this) {
+      if (this.reason != null || completed) {
+        return false;
+      }
+      this.reason = reason;
+      to_run = listeners;
+      listeners = null;
+      if (timeout != null) {
+        timeout.cancel();
+        timeout = null;
+      }
+    }
+    reason.count.incrementAndGet();
+    if (to_run != null) {
+      for (final Runnable listener : to_run) {
+        try {
+          listener.run();
+        } catch (RuntimeException e) {
+          LOG.error("Cancellation listener " + listener + " failed", e);
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Registers another requester waiting on the query.
+   * @return True if the requester joined, false if the query was already
+   * cancelled or completed
+   */
+  public synchronized boolean join() {
+    if (reason != null || completed) {
+      return false;
+    }
+    ++waiters;
+    return true;
+  }
+
+  /**
+   * Called when a requester stops waiting on the query, e.g. when its client
+   * disconnected. Cancels the query once no requester waits on it anymore.
+   * @param reason Why the requester stopped waiting
+   * @return True if the query was cancelled by this call
+   */
+  public boolean abandon(final Reason reason) {
+    synchronized (this) {
+      if (--waiters > 0) {
+        return false;
+      }
+    }
+    return cancel(reason);
+  }
+
+  /** @return True if the query was cancelled */
+  public boolean isCancelled() {
+    return reason != null;
+  }
+
+  /** @return Why the query was cancelled, null if it wasn't */
+  public Reason reason() {
+    return reason;
+  }
+
+  /**
+   * Throws if the query was cancelled. Meant to be called between units of
+   * work, e.g. before fetching the next rows.
+   * @throws QueryException if the query was cancelled
+   */
+  public void check() {
+    final Reason cancelled = reason;
+    if (cancelled != null) {
+      throw exception(cancelled);
+    }
+  }
+
+  /**
+   * @return The exception to fail the query with, null if it wasn't
+   * cancelled
+   */
+  public QueryException exception() {
+    final Reason cancelled = reason;
+    return cancelled == null ? null : exception(cancelled);
+  }
+
+  /**
+   * Registers a listener to run once the query is cancelled, e.g. to close a
+   * scanner. It runs right away, on this thread, if the query was already
+   * cancelled. Listeners run on the thread cancelling the query and must not
+   * block.
+   * @param listener The listener to run
+   */
+  public void addListener(final Runnable listener) {
+    synchronized (this) {
+      if (reason == null) {
+        if (!completed) {
+          if (listeners == null) {
+            listeners = new ArrayList<Runnable>(2);
+          }
+          listeners.add(listener);
+        }
+        return;
+      }
+    }
+    listener.run();
+  }
+
+  /**
+   * Cancels the query with {@link Reason#TIMEOUT} after the given time unless
+   * it's completed or cancelled before.
+   * @param timer The timer to schedule the timeout on
+   * @param timeout_ms The timeout in milliseconds, ignored if 0 or less
+   */
+  public void cancelAfter(final Timer timer, final long timeout_ms) {
+    if (timeout_ms <= 0) {
+      return;
+    }
+
+    /** Cancels the query when it fires */
+    class TimeoutTask implements TimerTask {
+      @Override
+      public void run(final Timeout ignored) {
+        cancel(Reason.TIMEOUT);
+      }
+    }
+
+    synchronized (this) {
+      if (reason != null || completed) {
+        return;
+      }
+      if (timeout != null) {
+        timeout.cancel();
+      }
+      timeout = timer.newTimeout(new TimeoutTask(), timeout_ms,
+          TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Marks the query as done, dropping the listeners and the timeout. It can't
+   * be cancelled afterwards.
+   */
+  public void complete() {
+    synchronized (this) {
+      completed = true;
+      listeners = null;
+      if (timeout != null) {
+        timeout.cancel();
+        timeout = null;
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "CancellationToken(reason=" + reason + ')';
+  }
+
+  /**
+   * Collects the cancellation stats of every query
+   * @param collector The collector to use
+   */
+  public static void collectStats(final StatsCollector collector) {
+    for (final Reason reason : Reason.values()) {
+      collector.record("query.cancelled", reason.count, "reason=" + reason);
+    }
+    collector.record("query.cancelled.scanners_closed", scanners_closed);
+    collector.record("query.cancelled.rows_avoided", rows_avoided);
+  }
+
+  /**
+   * Records a scanner closed because its query was cancelled and estimates
+   * the rows it didn't fetch from the rate of rows per hour it had fetched so
+   * far and the hours left in its range.
+   * @param first_key The key of the first row fetched, null if none
+   * @param last_key The key of the last row fetched, null if none
+   * @param rows The number of rows fetched
+   * @param scan_end The end of the scan range in seconds
+   * @return The estimated number of rows avoided
+   */
+  static long scannerClosed(final byte[] first_key, final byte[] last_key,
+      final long rows, final long scan_end) {
+    scanners_closed.incrementAndGet();
+    if (first_key == null || last_key == null || rows < 1) {
+      return 0;
+    }
+    final int offset = Const.SALT_WIDTH() + TSDB.metrics_width();
+    final long first = Bytes.getUnsignedInt(first_key, offset);
+    final long last = Bytes.getUnsignedInt(last_key, offset);
+    final long hours_left = (scan_end - last) / Const.MAX_TIMESPAN;
+    if (hours_left < 1) {
+      return 0;
+    }
+    final long hours_scanned = (last - first) / Const.MAX_TIMESPAN + 1;
+    final long avoided = rows * hours_left / hours_scanned;
+    rows_avoided.addAndGet(avoided);
+    return avoided;
+  }
+
+  /** @return the exception to fail the query with */
+  private static QueryException exception(final Reason reason) {
+    return new QueryException(reason.status, "Sorry, the query was cancelled"
+        + " as " + reason.description + ".");
+  }
+}
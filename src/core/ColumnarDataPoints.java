@@ -0,0 +1,370 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Decoded, columnar copy of the data points of a {@link Span}.
+ * <p>
+ * {@link RowSeq} keeps the raw qualifiers and values of the HBase rows and
+ * re-parses the flags and value widths every time an iterator steps over a
+ * data point. Once a scan is complete we can decode every data point once
+ * into primitive arrays so iterating becomes a plain array walk:
+ * <ul>
+ * <li>{@code timestamps}: the timestamps in milliseconds</li>
+ * <li>{@code values}: integers as is and floating point values as the raw
+ * bits of the double, the same encoding {@link AggregationIterator} uses</li>
+ * <li>{@code floats}: a bitmap with a bit set for each floating point value
+ * </li>
+ * </ul>
+ * This takes 16 bytes per data point, more than the 3 to 12 bytes of the
+ * compacted form, so it's a trade of memory for speed.
+ * <p>
+ * Instances are read-only.
+ * @since 2.3
+ */
+final class ColumnarDataPoints {
+
+  /** Timestamps in milliseconds, sorted. */
+  private final long[] timestamps;
+
+  /** Integer values or the raw bits of floating point values. */
+  private final long[] values;
+
+  /** Bit {@code i} is set if the value at {@code i} is a floating point. */
+  private final long[] floats;
+
+  /**
+   * Private constructor, use {@link #fromRows}.
+   * @param size The number of data points
+   */
+  private ColumnarDataPoints(final int size) {
+    timestamps = new long[size];
+    values = new long[size];
+    floats = new long[(size + 63) >>> 6];
+  }
+
+  /**
+   * Decodes the data points of sorted row sequences.
+   * @param rows A non-empty list of rows, sorted by time
+   * @return The decoded data points
+   * @throws IllegalDataException if a row contains malformed data
+   */
+  static ColumnarDataPoints fromRows(final List<RowSeq> rows) {
+    int size = 0;
+    for (final RowSeq row : rows) {
+      size += row.size();
+    }
+    final ColumnarDataPoints columns = new ColumnarDataPoints(size);
+    int i = 0;
+    for (final RowSeq row : rows) {
+      final RowSeq.Iterator it = row.internalIterator();
+      while (it.hasNext()) {
+        final DataPoint dp = it.next();
+        columns.timestamps[i] = dp.timestamp();
+        if (dp.isInteger()) {
+          columns.values[i] = dp.longValue();
+        } else {
+          columns.values[i] = Double.doubleToRawLongBits(dp.doubleValue());
+          columns.floats[i >>> 6] |= 1L << i;
+        }
+        i++;
+      }
+    }
+    return columns;
+  }
+
+  /**
+   * Copies the data points of an iterator, for instance the results of a
+   * query.
+   * @param it An iterator over data points sorted by time
+   * @return The copied data points
+   */
+  static ColumnarDataPoints copyOf(final SeekableView it) {
+    long[] timestamps = new long[64];
+    long[] values = new long[64];
+    boolean[] floats = new boolean[64];
+    int size = 0;
+    while (it.hasNext()) {
+      final DataPoint dp = it.next();
+      if (size == timestamps.length) {
+        timestamps = Arrays.copyOf(timestamps, size * 2);
+        values = Arrays.copyOf(values, size * 2);
+        floats = Arrays.copyOf(floats, size * 2);
+      }
+      timestamps[size] = dp.timestamp();
+      if (dp.isInteger()) {
+        values[size] = dp.longValue();
+      } else {
+        values[size] = Double.doubleToRawLongBits(dp.doubleValue());
+        floats[size] = true;
+      }
+      size++;
+    }
+    final ColumnarDataPoints columns = new ColumnarDataPoints(size);
+    System.arraycopy(timestamps, 0, columns.timestamps, 0, size);
+    System.arraycopy(values, 0, columns.values, 0, size);
+    for (int i = 0; i < size; i++) {
+      if (floats[i]) {
+        columns.floats[i >>> 6] |= 1L << i;
+      }
+    }
+    return columns;
+  }
+
+  /**
+   * Copies the data points in a time range.
+   * @param start The first timestamp to copy, inclusive, in milliseconds
+   * @param end The last timestamp to copy, exclusive, in milliseconds
+   * @return The copied data points, this instance if they're all in range
+   */
+  ColumnarDataPoints slice(final long start, final long end) {
+    final int from = indexOf(start);
+    final int to = Math.max(from, indexOf(end));
+    if (from == 0 && to == timestamps.length) {
+      return this;
+    }
+    final ColumnarDataPoints columns = new ColumnarDataPoints(to - from);
+    copyTo(from, to, columns, 0);
+    return columns;
+  }
+
+  /**
+   * Appends data points after the ones of this instance.
+   * @param other Data points that are all after the last one of this instance
+   * @return A new instance with the data points of both
+   */
+  ColumnarDataPoints concat(final ColumnarDataPoints other) {
+    final ColumnarDataPoints columns =
+        new ColumnarDataPoints(timestamps.length + other.timestamps.length);
+    copyTo(0, timestamps.length, columns, 0);
+    other.copyTo(0, other.timestamps.length, columns, timestamps.length);
+    return columns;
+  }
+
+  /**
+   * Copies a range of data points into another instance.
+   * @param from The first index to copy, inclusive
+   * @param to The last index to copy, exclusive
+   * @param dest Where to copy
+   * @param offset The index in {@code dest} of the first copied data point
+   */
+  private void copyTo(final int from, final int to,
+      final ColumnarDataPoints dest, final int offset) {
+    System.arraycopy(timestamps, from, dest.timestamps, offset, to - from);
+    System.arraycopy(values, from, dest.values, offset, to - from);
+    for (int i = from; i < to; i++) {
+      if ((floats[i >>> 6] & (1L << i)) != 0) {
+        final int j = offset + i - from;
+        dest.floats[j >>> 6] |= 1L << j;
+      }
+    }
+  }
+
+  /** @return the number of data points */
+  int size() {
+    return timestamps.length;
+  }
+
+  /**
+   * @param i A 0 based index
+   * @return the timestamp of the data point in milliseconds
+   * @throws IndexOutOfBoundsException if the index is out of bounds
+   */
+  long timestamp(final int i) {
+    return timestamps[i];
+  }
+
+  /**
+   * @param i A 0 based index
+   * @return true if the value is an integer, false if it's a floating point
+   * @throws IndexOutOfBoundsException if the index is out of bounds
+   */
+  boolean isInteger(final int i) {
+    checkIndex(i);
+    return (floats[i >>> 6] & (1L << i)) == 0;
+  }
+
+  /**
+   * @param i A 0 based index
+   * @return the value as a long
+   * @throws IndexOutOfBoundsException if the index is out of bounds
+   * @throws ClassCastException if the value is a float
+   */
+  long longValue(final int i) {
+    if (!isInteger(i)) {
+      throw new ClassCastException("value #" + i + " is not a long in "
+          + this);
+    }
+    return values[i];
+  }
+
+  /**
+   * @param i A 0 based index
+   * @return the value as a double
+   * @throws IndexOutOfBoundsException if the index is out of bounds
+   * @throws ClassCastException if the value is an integer
+   */
+  double doubleValue(final int i) {
+    if (isInteger(i)) {
+      throw new ClassCastException("value #" + i + " is not a float in "
+          + this);
+    }
+    return Double.longBitsToDouble(values[i]);
+  }
+
+  /**
+   * @param i A 0 based index
+   * @return the integer value or the raw bits of the floating point value
+   * @throws IndexOutOfBoundsException if the index is out of bounds
+   */
+  long rawValue(final int i) {
+    return values[i];
+  }
+
+  /**
+   * Finds the first data point at or after the given time.
+   * @param timestamp A timestamp in milliseconds
+   * @return The index of the data point, {@link #size} if all the data points
+   * are before the timestamp
+   */
+  int indexOf(final long timestamp) {
+    int low = 0;
+    int high = timestamps.length;
+    while (low < high) {
+      final int mid = (low + high) >>> 1;
+      if (timestamps[mid] < timestamp) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /** @return the approximate number of bytes used by the arrays */
+  long sizeInBytes() {
+    // 16 bytes for each array header
+    return 48 + (timestamps.length + values.length + floats.length) * 8L;
+  }
+
+  /** @return an iterator over the data points */
+  Iterator iterator() {
+    return new Iterator();
+  }
+
+  @Override
+  public String toString() {
+    return "ColumnarDataPoints(size=" + timestamps.length
+        + (timestamps.length > 0 ? ", start=" + timestamps[0] + ", end="
+            + timestamps[timestamps.length - 1] : "") + ')';
+  }
+
+  /**
+   * @throws IndexOutOfBoundsException if the index is out of bounds
+   */
+  private void checkIndex(final int i) {
+    if (i < 0 || i >= timestamps.length) {
+      throw new IndexOutOfBoundsException("index " + i + " >= "
+          + timestamps.length + " for this=" + this);
+    }
+  }
+
+  /** Iterator over the decoded data points. */
+  final class Iterator implements SeekableView, DataPoint {
+
+    /** Index of the next data point. */
+    private int index;
+
+    // ------------------ //
+    // Iterator interface //
+    // ------------------ //
+
+    @Override
+    public boolean hasNext() {
+      return index < timestamps.length;
+    }
+
+    @Override
+    public DataPoint next() {
+      if (index >= timestamps.length) {
+        throw new NoSuchElementException("no more elements");
+      }
+      index++;
+      return this;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    // ---------------------- //
+    // SeekableView interface //
+    // ---------------------- //
+
+    @Override
+    public void seek(final long timestamp) {
+      if ((timestamp & Const.MILLISECOND_MASK) != 0) {  // negative or not 48 bits
+        throw new IllegalArgumentException("invalid timestamp: " + timestamp);
+      }
+      index = indexOf(timestamp);
+    }
+
+    // ------------------- //
+    // DataPoint interface //
+    // ------------------- //
+
+    @Override
+    public long timestamp() {
+      assert index > 0: "not initialized: " + this;
+      return timestamps[index - 1];
+    }
+
+    @Override
+    public boolean isInteger() {
+      assert index > 0: "not initialized: " + this;
+      return ColumnarDataPoints.this.isInteger(index - 1);
+    }
+
+    @Override
+    public long longValue() {
+      return ColumnarDataPoints.this.longValue(index - 1);
+    }
+
+    @Override
+    public double doubleValue() {
+      return ColumnarDataPoints.this.doubleValue(index - 1);
+    }
+
+    @Override
+    public double toDouble() {
+      return isInteger() ? longValue() : doubleValue();
+    }
+
+    /** @return the integer value or the raw bits of the floating point
+     * value, saves a conversion for {@link AggregationIterator} */
+    long rawValue() {
+      return values[index - 1];
+    }
+
+    @Override
+    public String toString() {
+      return "ColumnarDataPoints.Iterator(index=" + index + ", columns="
+          + ColumnarDataPoints.this + ')';
+    }
+  }
+}
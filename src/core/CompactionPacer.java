@@ -0,0 +1,213 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Paces the compaction thread based on how fast HBase responds and on how
+ * many rows are waiting to be compacted.
+ * <p>
+ * Without pacing, every row of the previous hour becomes eligible for
+ * compaction at the top of the hour and the compaction thread kicks off up to
+ * {@code tsd.storage.compaction.max_concurrent_flushes} compactions at once,
+ * which competes with the writes of the new hour. With pacing:
+ * <ul>
+ * <li>When new rows become eligible, the pacer sets a deadline of
+ * {@code MAX_TIMESPAN / flush_speed} seconds to compact them and each run of
+ * the compaction thread only compacts its share of the backlog to meet that
+ * deadline, spreading the work over the hour.</li>
+ * <li>The number of concurrent compactions is adjusted after every run,
+ * additive increase and multiplicative decrease style, based on a moving
+ * average of the time it takes to compact a row. Each compaction reads a row,
+ * writes a cell and deletes cells, so it's a good proxy for the load on
+ * HBase.</li>
+ * </ul>
+ * The pacer is thread safe.
+ * @since 2.3
+ */
+final class CompactionPacer {
+  /** Weight of the latest sample in the moving average of the latency. */
+  static final double EWMA_WEIGHT = 0.1;
+
+  /** Maximum number of concurrent compactions. */
+  private final int max_concurrency;
+
+  /** Minimum number of rows to compact per run. */
+  private final int min_flush_threshold;
+
+  /** How frequently the compaction thread runs, in seconds. */
+  private final int flush_interval;
+
+  /** How long to take to compact a backlog, in seconds. */
+  private final int window;
+
+  /** Moving average of the compaction latency above which we slow down. */
+  private final int target_latency;  // ms
+
+  /** Current number of concurrent compactions allowed. */
+  private volatile int concurrency;
+
+  /** Moving average of the compaction latency in milliseconds. */
+  private volatile double latency = -1;
+
+  /** When the current backlog should be compacted, in seconds. */
+  private long deadline;
+
+  /** The eligible backlog seen during the last run. */
+  private long last_backlog;
+
+  /** When the last run happened, in milliseconds. */
+  private long last_run;
+
+  /** The rate at which rows were compacted between the last two runs. */
+  private volatile double rate;
+
+  /** Rows compacted since the last run. */
+  private final AtomicLong completed = new AtomicLong();
+
+  /**
+   * Constructor.
+   * @param max_concurrency Maximum number of concurrent compactions
+   * @param min_flush_threshold Minimum number of rows to compact per run
+   * @param flush_interval How frequently the compaction thread runs, in
+   * seconds
+   * @param flush_speed How much faster than {@code MAX_TIMESPAN} to compact a
+   * backlog
+   * @param target_latency Compaction latency, in milliseconds, above which
+   * the pacer reduces concurrency
+   * @throws IllegalArgumentException if the max concurrency, flush interval,
+   * flush speed or target latency is less than 1
+   */
+  CompactionPacer(final int max_concurrency, final int min_flush_threshold,
+      final int flush_interval, final int flush_speed, 
+      final int target_latency) {
+    if (max_concurrency < 1) {
+      throw new IllegalArgumentException(
+          "Max concurrency must be greater than 0");
+    }
+    if (flush_interval < 1) {
+      throw new IllegalArgumentException(
+          "Flush interval must be greater than 0");
+    }
+    if (flush_speed < 1) {
+      throw new IllegalArgumentException("Flush speed must be greater than 0");
+    }
+    if (target_latency < 1) {
+      throw new IllegalArgumentException(
+          "Target latency must be greater than 0");
+    }
+    this.max_concurrency = max_concurrency;
+    this.min_flush_threshold = min_flush_threshold;
+    this.flush_interval = flush_interval;
+    this.target_latency = target_latency;
+    window = Math.max(1, Const.MAX_TIMESPAN / flush_speed);
+    concurrency = 1;
+  }
+
+  /**
+   * Computes how many rows to compact during this run of the compaction
+   * thread and adjusts the concurrency from the latency observed since the
+   * last run.
+   * @param backlog The number of rows old enough to be compacted
+   * @param now The current time in milliseconds
+   * @return The number of rows to compact, 0 if there's nothing to do
+   */
+  synchronized int maxFlushes(final long backlog, final long now) {
+    final long now_s = now / 1000;
+    if (last_run > 0 && now > last_run) {
+      rate = completed.getAndSet(0) * 1000.0 / (now - last_run);
+    }
+    last_run = now;
+    adjustConcurrency();
+
+    if (backlog <= 0) {
+      last_backlog = 0;
+      return 0;
+    }
+    if (backlog > last_backlog || now_s >= deadline) {
+      // New rows became eligible, e.g. a new hour started, or we missed the
+      // deadline. Give ourselves a full window for what's there.
+      deadline = now_s + window;
+    }
+    last_backlog = backlog;
+    // How many more runs we have until the deadline, at least one.
+    final long runs = Math.max(1, (deadline - now_s) / flush_interval);
+    final long share = (backlog + runs - 1) / runs;
+    return (int) Math.min(Integer.MAX_VALUE,
+        Math.max(Math.min(backlog, min_flush_threshold), share));
+  }
+
+  /**
+   * Records how long it took to compact a row. Synchronized as the callbacks
+   * of concurrent compactions would otherwise lose updates to the average.
+   * @param latency_ms The latency in milliseconds
+   */
+  synchronized void record(final long latency_ms) {
+    completed.incrementAndGet();
+    final double previous = latency;
+    latency = previous < 0 ? latency_ms :
+      previous + EWMA_WEIGHT * (latency_ms - previous);
+  }
+
+  /** @return The number of concurrent compactions currently allowed */
+  int concurrency() {
+    return concurrency;
+  }
+
+  /** @return The moving average of the compaction latency in ms, -1 if no
+   * compaction completed yet */
+  double latency() {
+    return latency;
+  }
+
+  /**
+   * Collects the stats for the pacer
+   * @param collector The collector to use
+   */
+  void collectStats(final StatsCollector collector) {
+    final double current_rate = rate;
+    final long backlog;
+    synchronized (this) {
+      backlog = last_backlog;
+    }
+    collector.record("compaction.pacer.concurrency", concurrency);
+    collector.record("compaction.pacer.latency", (long) Math.max(0, latency));
+    collector.record("compaction.pacer.rate", (long) current_rate);
+    collector.record("compaction.pacer.backlog", backlog);
+    collector.record("compaction.pacer.eta", current_rate > 0 ?
+        (long) (backlog / current_rate) : backlog > 0 ? -1 : 0);
+  }
+
+  /**
+   * Increases concurrency while HBase keeps up and halves it when the moving
+   * average of the latency goes over the target.
+   */
+  private void adjustConcurrency() {
+    final double current = latency;
+    if (current < 0) {
+      return;  // no data yet
+    }
+    int next = concurrency;
+    if (current > target_latency) {
+      next = Math.max(1, next / 2);
+    } else if (current < target_latency / 2.0) {
+      next = next * 2;
+    } else {
+      next++;
+    }
+    concurrency = Math.min(max_concurrency, next);
+  }
+}
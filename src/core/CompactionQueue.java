@@ -14,7 +14,6 @@ package net.opentsdb.core;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.PriorityQueue;
@@ -28,22 +27,27 @@ import com.stumbleupon.async.Deferred;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.hbase.async.Bytes;
+import org.hbase.async.Bytes.ByteMap;
 import org.hbase.async.HBaseRpc;
 import org.hbase.async.KeyValue;
 import org.hbase.async.PleaseThrottleException;
 
 import net.opentsdb.meta.Annotation;
 import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.utils.DateTime;
 import net.opentsdb.utils.JSON;
 
 /**
  * "Queue" of rows to compact.
  * <p>
  * Whenever we write a data point to HBase, the row key we write to is added
- * to this queue, which is effectively a sorted set.  There is a separate
- * thread that periodically goes through the queue and look for "old rows" to
- * compact.  A row is considered "old" if the timestamp in the row key is
- * older than a certain threshold.
+ * to this queue, which is effectively a set of rows bucketed by the base time
+ * in their row key.  Each bucket is split in stripes on the hash of the row
+ * key so that concurrent writers rarely contend on the same lock.  There is a
+ * separate thread that periodically goes through the queue and look for "old
+ * rows" to compact.  A row is considered "old" if the timestamp in the row key
+ * is older than a certain threshold, so flushing simply drains the buckets
+ * that are old enough without looking at rows that aren't ready yet.
  * <p>
  * The compaction process consists in reading all the cells within a given row
  * and writing them back out as a single big cell.  Once that writes succeeds,
@@ -52,22 +56,48 @@ import net.opentsdb.utils.JSON;
  * This process is effective because in HBase the row key is repeated for
  * every single cell.  And because there is no way to efficiently append bytes
  * at the end of a cell, we have to do this instead.
+ * <p>
+ * When {@code tsd.storage.compaction.precompact} is enabled, the cells written
+ * by this TSD through {@link #add(byte[], byte[], byte[], Deferred)} are also
+ * kept in memory until their row is compacted.  If we know we wrote every cell
+ * of a row, the compacted cell is built from memory and only the cells we
+ * wrote are deleted, saving the read of the row.  A row falls back to the read
+ * and merge path whenever it may contain cells we don't know about, e.g. if
+ * its hour started before this TSD, if a point was written for it once the
+ * hour was over, if a put failed, if it was written through another path or if
+ * we ran out of room to track cells.  Since other TSDs can't be accounted
+ * for, this mode should only be enabled when a series is always written by
+ * the same TSD.
  */
-final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
+final class CompactionQueue {
 
   private static final Logger LOG = LoggerFactory.getLogger(CompactionQueue.class);
 
+  /** Number of stripes in each bucket, must be a power of 2.  */
+  private static final int STRIPES = 16;
+
   /**
    * How many items are currently in the queue.
-   * Because {@link ConcurrentSkipListMap#size} has O(N) complexity.
+   * Because counting the rows in every bucket would be O(N).
    */
   private final AtomicInteger size = new AtomicInteger();
 
+  /** The rows to compact, bucketed by base time.  */
+  private final ConcurrentSkipListMap<Long, Bucket> buckets =
+    new ConcurrentSkipListMap<Long, Bucket>();
+
+  /** The bucket we last added a row to, most writes go to the current hour. */
+  private volatile Bucket last_bucket;
+
   private final AtomicLong duplicates_different = new AtomicLong();
   private final AtomicLong duplicates_same = new AtomicLong();
   private final AtomicLong compaction_count = new AtomicLong();
   private final AtomicLong written_cells = new AtomicLong();
   private final AtomicLong deleted_cells = new AtomicLong();
+  private final AtomicLong precompacted_rows = new AtomicLong();
+  private final AtomicLong precompact_fallbacks = new AtomicLong();
+  private final AtomicLong compressed_cells = new AtomicLong();
+  private final AtomicLong compressed_bytes_saved = new AtomicLong();
 
   /** The {@code TSDB} instance we belong to. */
   private final TSDB tsdb;
@@ -87,31 +117,265 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
   /** If this is X then we'll flush X times faster than we really need.  */
   private final int flush_speed;  // multiplicative factor
 
+  /** Rows for which we track the cells written, null if pre-compaction is
+   * disabled.  */
+  private final ConcurrentSkipListMap<byte[], TrackedRow> tracked;
+
+  /** Maximum number of cells to keep in memory for pre-compaction.  */
+  private final int precompact_max_cells;
+
+  /** How many cells are currently kept in memory.  */
+  private final AtomicInteger tracked_cells = new AtomicInteger();
+
+  /** Rows with a base time before this may have cells written before we
+   * started, so they can't be pre-compacted.  */
+  private final long precompact_start;  // seconds
+
+  /** Used as the HBase timestamp of tracked cells so that the last value
+   * written wins when a data point is overwritten.  */
+  private final AtomicLong tracked_sequence = new AtomicLong();
+
+  /** Whether or not to write compacted columns in the compressed format.  */
+  private final boolean compress;
+
+  /** Adjusts how many rows we compact based on the HBase latency and the
+   * backlog, null if adaptive compaction is disabled.  */
+  private final CompactionPacer pacer;
+
   /**
    * Constructor.
    * @param tsdb The TSDB we belong to.
    */
   public CompactionQueue(final TSDB tsdb) {
-    super(new Cmp(tsdb));
     this.tsdb = tsdb;
     metric_width = tsdb.metrics.width();
     flush_interval = tsdb.config.getInt("tsd.storage.compaction.flush_interval");
     min_flush_threshold = tsdb.config.getInt("tsd.storage.compaction.min_flush_threshold");
     max_concurrent_flushes = tsdb.config.getInt("tsd.storage.compaction.max_concurrent_flushes");
     flush_speed = tsdb.config.getInt("tsd.storage.compaction.flush_speed");
+    compress = tsdb.config.getBoolean("tsd.storage.compaction.compress");
+    if (tsdb.config.getBoolean("tsd.storage.compaction.precompact") && 
+        !tsdb.config.enable_appends()) {
+      tracked = new ConcurrentSkipListMap<byte[], TrackedRow>(Bytes.MEMCMP);
+      precompact_max_cells = 
+          tsdb.config.getInt("tsd.storage.compaction.precompact.max_cells");
+      // The first hour that started after us.
+      final long now = DateTime.currentTimeMillis() / 1000;
+      precompact_start = now - (now % Const.MAX_TIMESPAN) + 
+          (now % Const.MAX_TIMESPAN == 0 ? 0 : Const.MAX_TIMESPAN);
+    } else {
+      tracked = null;
+      precompact_max_cells = 0;
+      precompact_start = 0;
+    }
+    if (tsdb.config.getBoolean("tsd.storage.compaction.adaptive")) {
+      pacer = new CompactionPacer(max_concurrent_flushes, min_flush_threshold,
+          flush_interval, flush_speed, tsdb.config.getInt(
+              "tsd.storage.compaction.adaptive.target_latency"));
+    } else {
+      pacer = null;
+    }
     if (tsdb.config.enable_compactions()) {
       startCompactionThread();
     }
   }
 
-  @Override
+  /** @return The number of rows in the queue.  */
   public int size() {
     return size.get();
   }
 
   public void add(final byte[] row) {
-    if (super.put(row, Boolean.TRUE) == null) {
-      size.incrementAndGet();  // We added a new entry, count it.
+    queue(row);
+    if (tracked != null) {
+      // We don't know what was written to this row.
+      untrack(row);
+    }
+  }
+
+  /**
+   * Schedules a row for compaction after writing a single cell to it. If
+   * pre-compaction is enabled, the cell is also kept in memory so that the
+   * row can be compacted without reading it back.
+   * @param row The row key written to.  Will not be modified.
+   * @param qualifier The qualifier of the cell written.
+   * @param value The value of the cell written.
+   * @param put The deferred of the write.
+   * @return The deferred of the write.  If pre-compaction is enabled, the row
+   * is no longer tracked if the write fails.
+   * @since 2.3
+   */
+  Deferred<Object> add(final byte[] row, final byte[] qualifier, 
+      final byte[] value, final Deferred<Object> put) {
+    queue(row);
+    if (tracked == null) {
+      return put;
+    }
+    if (!track(row, qualifier, value)) {
+      return put;
+    }
+
+    final class UntrackCB implements Callback<Object, Exception> {
+      @Override
+      public Object call(final Exception e) {
+        untrack(row);
+        return e;
+      }
+      @Override
+      public String toString() {
+        return "untrack row after a failed write";
+      }
+    }
+    return put.addErrback(new UntrackCB());
+  }
+
+  /**
+   * Adds a row to the queue.
+   * @param row The row key to compact later.
+   */
+  private void queue(final byte[] row) {
+    final long base_time = Bytes.getUnsignedInt(row, 
+        Const.SALT_WIDTH() + metric_width);
+    final int stripe = stripe(row);
+    Bucket bucket = last_bucket;
+    while (true) {
+      if (bucket == null || bucket.base_time != base_time) {
+        bucket = buckets.get(base_time);
+        if (bucket == null) {
+          bucket = new Bucket(base_time);
+          final Bucket existing = buckets.putIfAbsent(base_time, bucket);
+          if (existing != null) {
+            bucket = existing;
+          }
+        }
+        last_bucket = bucket;
+      }
+      final ByteMap<Boolean> rows = bucket.stripes[stripe];
+      synchronized (rows) {
+        if (bucket.closed) {
+          // Lost a race with a flush, or a late row for a drained hour.
+          // Make sure neither the cache nor the map hand it out again.
+          buckets.remove(base_time, bucket);
+          if (last_bucket == bucket) {
+            last_bucket = null;
+          }
+          bucket = null;
+          continue;
+        }
+        if (rows.put(row, Boolean.TRUE) == null) {
+          size.incrementAndGet();  // We added a new entry, count it.
+          bucket.size.incrementAndGet();
+        }
+        return;
+      }
+    }
+  }
+
+  /**
+   * Picks the stripe of a row from the hash of its key.
+   * @param row The row key.
+   * @return An index in {@link Bucket#stripes}.
+   */
+  private static int stripe(final byte[] row) {
+    final int hash = Arrays.hashCode(row);
+    return (hash ^ (hash >>> 16)) & (STRIPES - 1);
+  }
+
+  /**
+   * Keeps a cell written to a row in memory if the row can be pre-compacted.
+   * @param row The row key written to.
+   * @param qualifier The qualifier of the cell written.
+   * @param value The value of the cell written.
+   * @return True if the cell is tracked, false if the row will go through
+   * the read and merge path.
+   */
+  private boolean track(final byte[] row, final byte[] qualifier, 
+      final byte[] value) {
+    final long base_time = Bytes.getUnsignedInt(row, 
+        Const.SALT_WIDTH() + metric_width);
+    final long now = DateTime.currentTimeMillis() / 1000;
+    // Either the hour started before us, or it's over and the row may
+    // already have been compacted.
+    final boolean trackable = base_time >= precompact_start && 
+        base_time + Const.MAX_TIMESPAN > now;
+    final KeyValue kv = new KeyValue(row, TSDB.FAMILY, qualifier, 
+        tracked_sequence.incrementAndGet(), value);
+    while (true) {
+      TrackedRow tracked_row = tracked.get(row);
+      if (tracked_row == null) {
+        tracked_row = new TrackedRow(!trackable);
+        final TrackedRow existing = tracked.putIfAbsent(row, tracked_row);
+        if (existing != null) {
+          tracked_row = existing;
+        }
+      }
+      synchronized (tracked_row) {
+        if (tracked_row.closed) {
+          continue;  // Lost a race with a flush, start over.
+        }
+        if (tracked_row.cells == null) {
+          return false;
+        }
+        if (!trackable || tracked_cells.get() >= precompact_max_cells) {
+          tracked_cells.addAndGet(-tracked_row.cells.size());
+          tracked_row.cells = null;
+          return false;
+        }
+        tracked_row.cells.add(kv);
+        tracked_cells.incrementAndGet();
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Stops tracking the cells of a row so that it goes through the read and
+   * merge path when compacted.
+   * @param row The row key.
+   */
+  private void untrack(final byte[] row) {
+    while (true) {
+      TrackedRow tracked_row = tracked.get(row);
+      if (tracked_row == null) {
+        tracked_row = new TrackedRow(true);
+        final TrackedRow existing = tracked.putIfAbsent(row, tracked_row);
+        if (existing == null) {
+          return;
+        }
+        tracked_row = existing;
+      }
+      synchronized (tracked_row) {
+        if (tracked_row.closed) {
+          continue;  // Lost a race with a flush, start over.
+        }
+        if (tracked_row.cells != null) {
+          tracked_cells.addAndGet(-tracked_row.cells.size());
+          tracked_row.cells = null;
+        }
+        return;
+      }
+    }
+  }
+
+  /**
+   * Removes a row from the tracked rows.
+   * @param row The row key about to be compacted.
+   * @return The cells written to the row if we know all of them, null if the
+   * row has to be read back.
+   */
+  private ArrayList<KeyValue> untrackForCompaction(final byte[] row) {
+    final TrackedRow tracked_row = tracked.remove(row);
+    if (tracked_row == null) {
+      return null;
+    }
+    synchronized (tracked_row) {
+      tracked_row.closed = true;
+      if (tracked_row.cells == null) {
+        precompact_fallbacks.incrementAndGet();
+        return null;
+      }
+      tracked_cells.addAndGet(-tracked_row.cells.size());
+      return tracked_row.cells;
     }
   }
 
@@ -150,6 +414,20 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
                      "rpc=delete");
     collector.record("compaction.writes", written_cells);
     collector.record("compaction.deletes", deleted_cells);
+    if (tracked != null) {
+      collector.record("compaction.precompact.rows", precompacted_rows);
+      collector.record("compaction.precompact.fallbacks", 
+          precompact_fallbacks);
+      collector.record("compaction.precompact.cells", tracked_cells);
+    }
+    if (compress) {
+      collector.record("compaction.compressed.cells", compressed_cells);
+      collector.record("compaction.compressed.bytes_saved", 
+          compressed_bytes_saved);
+    }
+    if (pacer != null) {
+      pacer.collectStats(collector);
+    }
   }
 
   /**
@@ -167,40 +445,53 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
     if (maxflushes == 0) {  // Because size() might be 0.
       return Deferred.fromResult(new ArrayList<Object>(0));
     }
+    // Re-read every time so that the pacer can adjust it between batches.
+    final int max_concurrent = pacer != null ? 
+        pacer.concurrency() : max_concurrent_flushes;
     final ArrayList<Deferred<Object>> ds =
-      new ArrayList<Deferred<Object>>(Math.min(maxflushes, max_concurrent_flushes));
+      new ArrayList<Deferred<Object>>(Math.min(maxflushes, max_concurrent));
     int nflushes = 0;
-    int seed = (int) (System.nanoTime() % 3);
-    for (final byte[] row : this.keySet()) {
-      if (maxflushes == 0) {
-        break;
-      }
-      if (seed == row.hashCode() % 3) {
-        continue;
+    // Start from a random stripe so that several TSDs sharing the same rows
+    // don't all try to compact them in the same order.
+    final int seed = (int) (System.nanoTime() & (STRIPES - 1));
+    final ArrayList<byte[]> batch = new ArrayList<byte[]>();
+    for (final Bucket bucket : buckets.headMap(cut_off, true).values()) {
+      for (int i = 0; i < STRIPES; i++) {
+        if (maxflushes == 0 || nflushes == max_concurrent) {
+          // Either we're done, or we kicked off the compaction of too many 
+          // rows already, let's wait until they're done before kicking off
+          // more.
+          break;
+        }
+        final ByteMap<Boolean> rows = bucket.stripes[(seed + i) & (STRIPES - 1)];
+        batch.clear();
+        synchronized (rows) {
+          int n = Math.min(maxflushes, max_concurrent - nflushes);
+          while (n-- > 0 && !rows.isEmpty()) {
+            batch.add(rows.pollFirstEntry().getKey());
+          }
+        }
+        for (final byte[] row : batch) {
+          nflushes++;
+          maxflushes--;
+          size.decrementAndGet();
+          bucket.size.decrementAndGet();
+          ds.add(compactRow(row));
+        }
       }
-      final long base_time = Bytes.getUnsignedInt(row, 
-          Const.SALT_WIDTH() + metric_width);
-      if (base_time > cut_off) {
-        break;
-      } else if (nflushes == max_concurrent_flushes) {
-        // We kicked off the compaction of too many rows already, let's wait
-        // until they're done before kicking off more.
+      if (maxflushes == 0 || nflushes == max_concurrent) {
         break;
       }
-      // You'd think that it would be faster to grab an iterator on the map
-      // and then call remove() on the iterator to "unlink" the element
-      // directly from where the iterator is at, but no, the JDK implements
-      // it by calling remove(key) so it has to lookup the key again anyway.
-      if (super.remove(row) == null) {  // We didn't remove anything.
-        continue;  // So someone else already took care of this entry.
+      // We drained the whole bucket.
+      if (bucket.closeIfEmpty(0)) {
+        buckets.remove(bucket.base_time, bucket);
+        if (last_bucket == bucket) {
+          last_bucket = null;
+        }
       }
-      nflushes++;
-      maxflushes--;
-      size.decrementAndGet();
-      ds.add(tsdb.get(row).addCallbacks(compactcb, handle_read_error));
     }
     final Deferred<ArrayList<Object>> group = Deferred.group(ds);
-    if (nflushes == max_concurrent_flushes && maxflushes > 0) {
+    if (nflushes == max_concurrent && maxflushes > 0) {
       // We're not done yet.  Once this group of flushes completes, we need
       // to kick off more.
       tsdb.getClient().flush();  // Speed up this batch by telling the client to flush.
@@ -222,6 +513,70 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
     return group;
   }
 
+  /**
+   * Compacts a row that was removed from the queue.
+   * @param row The row key.
+   * @return A deferred called back once the row has been compacted.
+   */
+  private Deferred<Object> compactRow(final byte[] row) {
+    final ArrayList<KeyValue> cells = 
+        tracked != null ? untrackForCompaction(row) : null;
+    final Deferred<Object> deferred;
+    final long start = pacer != null ? System.currentTimeMillis() : 0;
+    if (cells != null) {
+      // We wrote every cell of this row, no need to read it back.
+      precompacted_rows.incrementAndGet();
+      deferred = compactTracked(cells);
+    } else {
+      deferred = tsdb.get(row).addCallbacks(compactcb, handle_read_error);
+    }
+    if (pacer == null) {
+      return deferred;
+    }
+
+    /** Feeds the time it took to compact the row to the pacer.  */
+    final class PacerCB implements Callback<Object, Object> {
+      @Override
+      public Object call(final Object arg) {
+        pacer.record(System.currentTimeMillis() - start);
+        return arg;
+      }
+      @Override
+      public String toString() {
+        return "record compaction latency";
+      }
+    }
+    return deferred.addBoth(new PacerCB());
+  }
+
+  /**
+   * Counts the rows old enough to be compacted.
+   * @param cut_off A UNIX timestamp in seconds (unsigned 32-bit integer).
+   * @return The number of rows in the buckets up to the cutoff time.
+   */
+  private long eligible(final long cut_off) {
+    long eligible = 0;
+    for (final Bucket bucket : buckets.headMap(cut_off, true).values()) {
+      eligible += bucket.size.get();
+    }
+    return eligible;
+  }
+
+  /**
+   * Compacts a row from the cells kept in memory.
+   * @param cells The cells written to the row.
+   * @return A deferred called back once the compacted cell has been written
+   * and the cells deleted, if there was anything to do.
+   */
+  private Deferred<Object> compactTracked(final ArrayList<KeyValue> cells) {
+    try {
+      final Deferred<Object> deferred = compact(cells, null, null);
+      return deferred != null ? deferred : Deferred.fromResult(null);
+    } catch (RuntimeException e) {
+      return Deferred.fromError(e);
+    }
+  }
+
   private final CompactCB compactcb = new CompactCB();
 
   /**
@@ -290,6 +645,9 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
     // and if we only had a single column with a single value, we return this.
     private KeyValue last_append_column;
 
+    // true if any compressed column was seen, we then have to decode it.
+    private boolean compressed_in_row;
+
     public Compaction(ArrayList<KeyValue> row, KeyValue[] compacted, List<Annotation> annotations) {
       nkvs = row.size();
       this.row = row;
@@ -316,7 +674,8 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
           // only one column, check to see if it needs fixups
           ColumnDatapointIterator col = heap.peek();
           // either a 2-byte qualifier or one 4-byte ms qualifier, and no fixups required
-          return (col.qualifier.length == 2 || (col.qualifier.length == 4
+          return !compressed_in_row && (col.qualifier.length == 2 
+              || (col.qualifier.length == 4 
               && Internal.inMilliseconds(col.qualifier))) && !col.needsFixup();
         default:
           // more than one column, need to merge
@@ -362,8 +721,10 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
 
       // build the compacted columns
       final KeyValue compact = buildCompactedColumn(compacted_qual, compacted_val);
+      // callers get the regular format, we may store the compressed one
+      final KeyValue stored = compress ? compressColumn(compact) : compact;
 
-      final boolean write = updateDeletesCheckForWrite(compact);
+      final boolean write = updateDeletesCheckForWrite(stored);
 
       if (compacted != null) {  // Caller is interested in the compacted form.
         compacted[0] = compact;
@@ -385,7 +746,13 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
       deleted_cells.addAndGet(to_delete.size());  // We're going to delete this.
       if (write) {
         written_cells.incrementAndGet();
-        Deferred<Object> deferred = tsdb.put(key, compact.qualifier(), compact.value());
+        if (stored != compact) {
+          compressed_cells.incrementAndGet();
+          compressed_bytes_saved.addAndGet(compact.qualifier().length 
+              + compact.value().length - stored.value().length 
+              - stored.qualifier().length);
+        }
+        Deferred<Object> deferred = tsdb.put(key, stored.qualifier(), stored.value());
         if (!to_delete.isEmpty()) {
           deferred = deferred.addCallbacks(new DeleteCompactedCB(to_delete), handle_write_error);
         }
@@ -433,6 +800,18 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
           // process annotations and other extended formats
           if (qual[0] == Annotation.PREFIX()) {
             annotations.add(JSON.parseToObject(kv.value(), Annotation.class));
+          } else if (qual[0] == 
+              CompressedDataPoints.COMPRESSED_COLUMN_PREFIX) {
+            compressed_in_row = true;
+            final KeyValue decoded = CompressedDataPoints.decode(kv);
+            tot_values += decoded.qualifier().length / 2;
+            final ColumnDatapointIterator col = 
+                new ColumnDatapointIterator(decoded);
+            if (col.hasMoreData()) {
+              heap.add(col);
+            }
+            // deleted unless it's the same as the result of the compaction
+            to_delete.add(kv);
           } else if (qual[0] == AppendDataPoints.APPEND_COLUMN_PREFIX){
             final AppendDataPoints adp = new AppendDataPoints();
             tot_values += adp.parseKeyValue(tsdb, kv).size();
@@ -542,6 +921,26 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
       return new KeyValue(first.key(), first.family(), cq, cv);
     }
 
+    /**
+     * Converts a compacted column to the compressed format if it holds more
+     * than one data point and can be compressed.
+     * @param compact the compacted column in the regular format
+     * @return the compressed column or {@code compact} if it can't be
+     * compressed
+     */
+    private KeyValue compressColumn(final KeyValue compact) {
+      final byte[] qual = compact.qualifier();
+      if (qual.length == 2 || (qual.length == 4 && Internal.inMilliseconds(qual))) {
+        return compact;  // a single data point, can't do better
+      }
+      final byte[] value = CompressedDataPoints.encode(qual, compact.value());
+      if (value == null) {
+        return compact;
+      }
+      return new KeyValue(compact.key(), compact.family(), 
+          CompressedDataPoints.COMPRESSED_COLUMN_QUALIFIER, value);
+    }
+
     /**
      * Make sure we don't delete the row that is the result of the compaction, so we
      * remove the compacted value from the list of values to delete if it is there.
@@ -559,8 +958,10 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
       }
       
       // if the longest entry isn't as long as the compacted one, obviously the compacted
-      // one can't have already existed
-      if (longest != null && longest.qualifier().length >= compact.qualifier().length) {
+      // one can't have already existed. Compressed columns all share the same
+      // qualifier though.
+      if (compressed_in_row || (longest != null 
+          && longest.qualifier().length >= compact.qualifier().length)) {
         final Iterator<KeyValue> deleteIterator = to_delete.iterator();
         while (deleteIterator.hasNext()) {
           final KeyValue cur = deleteIterator.next();
@@ -689,7 +1090,78 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
     }
   }
 
-  static final long serialVersionUID = 1307386642;
+  /**
+   * The cells written to a row that is being tracked for pre-compaction.
+   * Access must be synchronized on the instance.
+   */
+  private static final class TrackedRow {
+    /** The cells written, null if the row has to be read back.  */
+    ArrayList<KeyValue> cells;
+
+    /** Set once the row has been removed from the tracked rows.  */
+    boolean closed;
+
+    /**
+     * Constructor.
+     * @param untracked Whether or not the row has to be read back.
+     */
+    TrackedRow(final boolean untracked) {
+      cells = untracked ? null : new ArrayList<KeyValue>();
+    }
+  }
+
+  /**
+   * The rows sharing the same base time, striped on the hash of their key.
+   * Each stripe is a sorted set of row keys that must be accessed while
+   * synchronized on it.
+   */
+  private static final class Bucket {
+    /** The base time of the rows in this bucket.  */
+    final long base_time;
+
+    /** The rows, striped on their hash.  */
+    final ByteMap<Boolean>[] stripes;
+
+    /** How many rows are in this bucket.  */
+    final AtomicInteger size = new AtomicInteger();
+
+    /** Set once the bucket is empty and has been removed from the queue.
+     * Only changed while holding the lock of every stripe.  */
+    boolean closed;
+
+    /**
+     * Constructor.
+     * @param base_time The base time of the rows in this bucket.
+     */
+    @SuppressWarnings("unchecked")
+    Bucket(final long base_time) {
+      this.base_time = base_time;
+      stripes = new ByteMap[STRIPES];
+      for (int i = 0; i < STRIPES; i++) {
+        stripes[i] = new ByteMap<Boolean>();
+      }
+    }
+
+    /**
+     * Closes the bucket if all of its stripes are empty.  Locks the stripes
+     * one after the other, starting at the given index, so that no row can be
+     * added while we check.
+     * @param stripe The index of the first stripe to check.
+     * @return True if the bucket was closed, false if a row was found.
+     */
+    boolean closeIfEmpty(final int stripe) {
+      if (stripe == STRIPES) {
+        closed = true;
+        return true;
+      }
+      synchronized (stripes[stripe]) {
+        if (!stripes[stripe].isEmpty()) {
+          return false;
+        }
+        return closeIfEmpty(stripe + 1);
+      }
+    }
+  }
 
   /** Starts a compaction thread.  Only one such thread is needed.  */
   private void startCompactionThread() {
@@ -735,10 +1207,17 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
             // FLUSH_SPEED is 2, then instead of taking 1h to flush what we have
             // for the previous hour, we'll take only 30m.  This is desirable so
             // that we evict old entries from the queue a bit faster.
-            final int maxflushes = Math.max(min_flush_threshold,
-              size * flush_interval * flush_speed / Const.MAX_TIMESPAN);
+            // With adaptive compaction, the pacer only counts the rows that
+            // are old enough and spreads them evenly over the time we have.
             final long now = System.currentTimeMillis();
-            flush(now / 1000 - Const.MAX_TIMESPAN - 1, maxflushes);
+            final long cut_off = now / 1000 - Const.MAX_TIMESPAN - 1;
+            final int maxflushes = pacer != null ? 
+                pacer.maxFlushes(eligible(cut_off), now) :
+                Math.max(min_flush_threshold,
+                  size * flush_interval * flush_speed / Const.MAX_TIMESPAN);
+            if (maxflushes > 0) {
+              flush(cut_off, maxflushes);
+            }
             if (LOG.isDebugEnabled()) {
               final int newsize = size();
               LOG.debug("flush() took " + (System.currentTimeMillis() - now)
@@ -751,8 +1230,13 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
         } catch (OutOfMemoryError e) {
           // Let's free up some memory by throwing away the compaction queue.
           final int sz = size.get();
-          CompactionQueue.super.clear();
+          buckets.clear();
+          last_bucket = null;
           size.set(0);
+          if (tracked != null) {
+            tracked.clear();
+            tracked_cells.set(0);
+          }
           LOG.error("Discarded the compaction queue, size=" + sz, e);
         } catch (Throwable e) {
           LOG.error("Uncaught *Throwable* in compaction thread", e);
@@ -784,26 +1268,4 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
     }
   }
 
-  /**
-   * Helper to sort the byte arrays in the compaction queue.
-   * <p>
-   * This comparator sorts things by timestamp first, this way we can find
-   * all rows of the same age at once.
-   */
-  private static final class Cmp implements Comparator<byte[]> {
-
-    /** The position with which the timestamp of metric starts.  */
-    private final short timestamp_pos;
-
-    public Cmp(final TSDB tsdb) {
-      timestamp_pos = (short) (Const.SALT_WIDTH() + tsdb.metrics.width());
-    }
-
-    @Override
-    public int compare(final byte[] a, final byte[] b) {
-      final int c = Bytes.memcmp(a, b, timestamp_pos, Const.TIMESTAMP_BYTES);
-      // If the timestamps are equal, sort according to the entire row key.
-      return c != 0 ? c : Bytes.memcmp(a, b);
-    }
-  }
 }
@@ -0,0 +1,343 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.Arrays;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.KeyValue;
+
+/**
+ * Encodes and decodes compressed compacted columns.
+ * <p>
+ * A regular compacted column stores a 2 or 4 byte qualifier and a 1 to 8 byte
+ * value per data point. A compressed column stores the same data points in a
+ * single column with the qualifier {@link #COMPRESSED_COLUMN_QUALIFIER}, using
+ * a byte aligned variant of the Gorilla encoding in the value:
+ * <ul>
+ * <li>Timestamps are stored as the delta of the delta in milliseconds from the
+ * previous data point, as a zig-zag varint. Data points written at a regular
+ * interval take a single byte.</li>
+ * <li>Integers are stored as the difference with the previous integer, as a
+ * zig-zag varint.</li>
+ * <li>Floating point values are XOR'd with the previous floating point value
+ * and only the bytes between the leading and trailing zero bytes of the
+ * result are stored, after a header byte.</li>
+ * <li>The flags of each data point, i.e. the precision of the timestamp and
+ * the type and length of the value, are only stored when they change.</li>
+ * </ul>
+ * Decoding a compressed column gives back the exact qualifier and value of the
+ * regular compacted column, so every reader can convert compressed columns
+ * with {@link #decode} and carry on with the regular format. Rows may contain
+ * both formats while migrating.
+ * @since 2.3
+ */
+public final class CompressedDataPoints {
+  /** The prefix ID of compressed columns */
+  public static final byte COMPRESSED_COLUMN_PREFIX = 0x07;
+
+  /** The full column qualifier for compressed columns */
+  public static final byte[] COMPRESSED_COLUMN_QUALIFIER = new byte[] {
+    COMPRESSED_COLUMN_PREFIX, 0x00, 0x00};
+
+  /** The version of the encoding, first byte of the value */
+  static final byte VERSION = 1;
+
+  /** Set in the flags of a data point with a millisecond timestamp */
+  private static final int MS_FLAG = 0x10;
+
+  /** Max bytes needed to encode a data point: flags and two varints */
+  private static final int MAX_POINT_BYTES = 1 + 10 + 10;
+
+  /** Static helpers only */
+  private CompressedDataPoints() {
+  }
+
+  /** @return whether or not the qualifier is a compressed column */
+  public static boolean isCompressedDataPoints(final byte[] qualifier) {
+    return qualifier != null && qualifier.length == 3 &&
+        qualifier[0] == COMPRESSED_COLUMN_PREFIX;
+  }
+
+  /**
+   * Compresses data points in the regular compacted format.
+   * @param qualifier The concatenated qualifiers of the data points
+   * @param value The concatenated values, with or without the trailing
+   * meta data byte
+   * @return The value of a compressed column, or null if the data points
+   * can't be compressed, e.g. a floating point value that is not on 4 or 8
+   * bytes. Such columns should be written in the regular format.
+   * @throws IllegalArgumentException if the qualifier is empty
+   */
+  public static byte[] encode(final byte[] qualifier, final byte[] value) {
+    if (qualifier == null || qualifier.length < 2) {
+      throw new IllegalArgumentException("Qualifier cannot be null or empty");
+    }
+    int num_points = 0;
+    for (int i = 0; i < qualifier.length;
+        i += Internal.getQualifierLength(qualifier, i)) {
+      num_points++;
+    }
+    final byte[] buf = new byte[1 + 5 + num_points * MAX_POINT_BYTES];
+    int idx = 0;
+    buf[idx++] = VERSION;
+    idx = writeVarint(buf, idx, num_points);
+
+    int val_idx = 0;
+    int last_flags = -1;
+    long last_offset = 0;
+    long last_delta = 0;
+    long last_integer = 0;
+    long last_float = 0;
+    for (int i = 0; i < qualifier.length; ) {
+      final int qlen = Internal.getQualifierLength(qualifier, i);
+      if (qlen == 4 && (qualifier[i + 3] & 0x30) != 0) {
+        return null;  // reserved bits we wouldn't be able to restore
+      }
+      final long offset = Internal.getOffsetFromQualifier(qualifier, i);
+      final int flags = Internal.getFlagsFromQualifier(qualifier, i) |
+          (qlen == 4 ? MS_FLAG : 0);
+      final int vlen = Internal.getValueLengthFromQualifier(qualifier, i);
+      final boolean is_float = Internal.isFloat(qualifier, i);
+      if (val_idx + vlen > value.length ||
+          (is_float && vlen != 4 && vlen != 8)) {
+        return null;
+      }
+      i += qlen;
+
+      if (last_flags < 0) {
+        buf[idx++] = (byte) flags;
+        idx = writeVarint(buf, idx, offset);
+      } else {
+        final long delta = offset - last_offset;
+        final long dod = zigZag(delta - last_delta) << 1;
+        if (flags != last_flags) {
+          idx = writeVarint(buf, idx, dod | 1);
+          buf[idx++] = (byte) flags;
+        } else {
+          idx = writeVarint(buf, idx, dod);
+        }
+        last_delta = delta;
+      }
+      last_flags = flags;
+      last_offset = offset;
+
+      if (is_float) {
+        final long bits = vlen == 4 ?
+            Bytes.getUnsignedInt(value, val_idx) : Bytes.getLong(value, val_idx);
+        idx = writeXor(buf, idx, bits ^ last_float);
+        last_float = bits;
+      } else {
+        final long integer = Internal.extractIntegerValue(value, val_idx,
+            (byte) (flags & Const.FLAGS_MASK));
+        idx = writeVarint(buf, idx, zigZag(integer - last_integer));
+        last_integer = integer;
+      }
+      val_idx += vlen;
+    }
+    return Arrays.copyOf(buf, idx);
+  }
+
+  /**
+   * Converts a compressed column to the regular compacted format.
+   * @param kv The compressed column
+   * @return A column with the same key, family and timestamp and the data
+   * points in the regular compacted format, including the trailing meta data
+   * byte if there is more than one data point.
+   * @throws IllegalArgumentException if the column is not a compressed column
+   * @throws IllegalDataException if the value can't be decoded
+   */
+  public static KeyValue decode(final KeyValue kv) {
+    if (!isCompressedDataPoints(kv.qualifier())) {
+      throw new IllegalArgumentException("Can not decode cell, it is not " +
+          "a compressed cell. It has a different qualifier " +
+          Bytes.pretty(kv.qualifier()) + ", row key " + Bytes.pretty(kv.key()));
+    }
+    final byte[] buf = kv.value();
+    final int[] idx = { 0 };
+    try {
+      if (buf[idx[0]++] != VERSION) {
+        throw new IllegalDataException("Unknown version " + buf[0] +
+            " for compressed column: " + kv);
+      }
+      final long num_points = readVarint(buf, idx);
+      if (num_points < 1 || num_points > buf.length) {
+        throw new IllegalDataException("Invalid number of data points " +
+            num_points + " in compressed column: " + kv);
+      }
+      final byte[] qualifier = new byte[(int) num_points * 4];
+      final byte[] value = new byte[(int) num_points * 8 + 1];
+      int q_idx = 0;
+      int v_idx = 0;
+      int flags = 0;
+      long offset = 0;
+      long delta = 0;
+      long integer = 0;
+      long last_float = 0;
+      boolean has_seconds = false;
+      boolean has_ms = false;
+      for (int n = 0; n < num_points; n++) {
+        if (n == 0) {
+          flags = buf[idx[0]++] & 0xFF;
+          offset = readVarint(buf, idx);
+        } else {
+          final long encoded = readVarint(buf, idx);
+          if ((encoded & 1) != 0) {
+            flags = buf[idx[0]++] & 0xFF;
+          }
+          delta += unZigZag(encoded >>> 1);
+          offset += delta;
+        }
+        if (offset < 0 || offset >= Const.MAX_TIMESPAN * 1000L ||
+            (flags & ~(MS_FLAG | Const.FLAGS_MASK)) != 0) {
+          throw new IllegalDataException("Invalid data point #" + n +
+              " in compressed column: " + kv);
+        }
+
+        final short qflags = (short) (flags & Const.FLAGS_MASK);
+        if ((flags & MS_FLAG) != 0) {
+          has_ms = true;
+          Bytes.setInt(qualifier, Const.MS_FLAG |
+              ((int) offset << Const.MS_FLAG_BITS) | qflags, q_idx);
+          q_idx += 4;
+        } else {
+          has_seconds = true;
+          Bytes.setShort(qualifier,
+              (short) ((offset / 1000) << Const.FLAG_BITS | qflags), q_idx);
+          q_idx += 2;
+        }
+
+        final int vlen = (qflags & Const.LENGTH_MASK) + 1;
+        if ((qflags & Const.FLAG_FLOAT) != 0) {
+          final long bits = readXor(buf, idx) ^ last_float;
+          last_float = bits;
+          if (vlen == 4) {
+            Bytes.setInt(value, (int) bits, v_idx);
+          } else {
+            Bytes.setLong(value, bits, v_idx);
+          }
+        } else {
+          integer += unZigZag(readVarint(buf, idx));
+          switch (vlen) {
+            case 8: Bytes.setLong(value, integer, v_idx); break;
+            case 4: Bytes.setInt(value, (int) integer, v_idx); break;
+            case 2: Bytes.setShort(value, (short) integer, v_idx); break;
+            default: value[v_idx] = (byte) integer;
+          }
+        }
+        v_idx += vlen;
+      }
+      if (idx[0] != buf.length) {
+        throw new IllegalDataException("Corrupted value: consumed " + idx[0]
+            + " bytes, but was expecting to consume " + buf.length + ": " + kv);
+      }
+      if (num_points > 1) {
+        value[v_idx++] = has_seconds && has_ms ? Const.MS_MIXED_COMPACT : 0;
+      }
+      return new KeyValue(kv.key(), kv.family(),
+          Arrays.copyOf(qualifier, q_idx), kv.timestamp(),
+          Arrays.copyOf(value, v_idx));
+    } catch (ArrayIndexOutOfBoundsException e) {
+      throw new IllegalDataException("Corrupted value: couldn't decode the "
+          + "compressed column (consumed " + idx[0] + " bytes, but was"
+          + " expecting to consume " + buf.length + "): " + kv, e);
+    }
+  }
+
+  /**
+   * Returns the number of data points in a compressed column without
+   * decoding it.
+   * @param value The value of a compressed column
+   * @return The number of data points, 0 if the value is invalid
+   */
+  public static int numDataPoints(final byte[] value) {
+    if (value.length < 2 || value[0] != VERSION) {
+      return 0;
+    }
+    try {
+      return (int) readVarint(value, new int[] { 1 });
+    } catch (ArrayIndexOutOfBoundsException e) {
+      return 0;
+    }
+  }
+
+  /** Writes an unsigned varint, 7 bits at a time, low order bits first. */
+  private static int writeVarint(final byte[] buf, int idx, long value) {
+    while ((value & ~0x7FL) != 0) {
+      buf[idx++] = (byte) ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    buf[idx++] = (byte) value;
+    return idx;
+  }
+
+  /** Reads an unsigned varint and advances {@code idx[0]}. */
+  private static long readVarint(final byte[] buf, final int[] idx) {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      final byte b = buf[idx[0]++];
+      value |= (long) (b & 0x7F) << shift;
+      if (b >= 0) {
+        return value;
+      }
+    }
+    throw new IllegalDataException("Varint is too long");
+  }
+
+  /**
+   * Writes the XOR of two floating point values: a 0 byte if they are equal,
+   * otherwise a header byte with the number of leading zero bytes in the high
+   * nibble and the number of meaningful bytes in the low nibble, followed by
+   * the meaningful bytes.
+   */
+  private static int writeXor(final byte[] buf, int idx, final long xor) {
+    if (xor == 0) {
+      buf[idx++] = 0;
+      return idx;
+    }
+    final int leading = Long.numberOfLeadingZeros(xor) / 8;
+    final int trailing = Long.numberOfTrailingZeros(xor) / 8;
+    final int meaningful = 8 - leading - trailing;
+    buf[idx++] = (byte) (leading << 4 | meaningful);
+    for (int i = meaningful - 1; i >= 0; i--) {
+      buf[idx++] = (byte) (xor >>> (8 * (trailing + i)));
+    }
+    return idx;
+  }
+
+  /** Reads a value written by {@link #writeXor} and advances {@code idx[0]}. */
+  private static long readXor(final byte[] buf, final int[] idx) {
+    final int header = buf[idx[0]++] & 0xFF;
+    if (header == 0) {
+      return 0;
+    }
+    final int leading = header >>> 4;
+    final int meaningful = header & 0x0F;
+    if (meaningful == 0 || leading + meaningful > 8) {
+      throw new IllegalDataException("Invalid XOR header " + header);
+    }
+    long xor = 0;
+    for (int i = 0; i < meaningful; i++) {
+      xor = (xor << 8) | (buf[idx[0]++] & 0xFF);
+    }
+    return xor << (8 * (8 - leading - meaningful));
+  }
+
+  private static long zigZag(final long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  private static long unZigZag(final long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+}
@@ -0,0 +1,440 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * Downsamples the data points of a single time series as they are scanned.
+ * <p>
+ * Instead of keeping every raw data point in memory until the query is
+ * aggregated, the scanner callbacks feed each row to a {@link Span} that
+ * folds its data points into one partial per downsampling interval. Only
+ * functions that can be computed from a running partial are supported, i.e.
+ * sum, zimsum, min, mimmin, max, mimmax, avg, count, first and last, and only
+ * with fixed intervals (no calendar or "all" downsampling). See
+ * {@link #supports}.
+ * <p>
+ * The result of each interval matches what {@link Downsampler} would have
+ * computed from the raw data points: values are converted to doubles and
+ * NaNs are skipped the same way. The timestamp of an interval is its start.
+ * <p>
+ * Rows may be added in any order, e.g. when filters resolve UIDs
+ * asynchronously, though appending in chronological order is the cheapest.
+ * <p>
+ * This class is not thread safe.
+ * @since 2.3
+ */
+final class DownsampleBuckets {
+
+  /** Initial number of intervals to allocate. */
+  private static final int INITIAL_CAPACITY = 16;
+
+  /** The downsampling interval in milliseconds. */
+  private final long interval;
+
+  /** The downsampling function, one of the supported aggregators. */
+  private final Aggregator function;
+
+  /** Start timestamps of the intervals in milliseconds, sorted. */
+  private long[] timestamps;
+
+  /** The running partial for each interval, e.g. the sum or the minimum. */
+  private double[] values;
+
+  /** The number of non-NaN values seen for each interval. */
+  private int[] counts;
+
+  /** For first and last, the timestamp of the data point kept for each
+   * interval so the result doesn't depend on the order of the rows. Null
+   * for the other functions. */
+  private long[] kept;
+
+  /** The number of intervals in use. */
+  private int size;
+
+  /**
+   * Default ctor.
+   * @param specification The downsampling specification to apply
+   * @throws IllegalArgumentException if the specification is not supported
+   */
+  DownsampleBuckets(final DownsamplingSpecification specification) {
+    if (!supports(specification)) {
+      throw new IllegalArgumentException("Downsampling specification can't "
+          + "be computed while scanning: " + specification);
+    }
+    interval = specification.getInterval();
+    function = specification.getFunction();
+    timestamps = new long[INITIAL_CAPACITY];
+    values = new double[INITIAL_CAPACITY];
+    counts = new int[INITIAL_CAPACITY];
+    if (function == Aggregators.FIRST || function == Aggregators.LAST) {
+      kept = new long[INITIAL_CAPACITY];
+    }
+  }
+
+  /**
+   * Whether or not the given downsampling specification can be computed
+   * while scanning.
+   * @param specification The specification to check, may be null
+   * @return True if the intervals are fixed and the function can be computed
+   * from a running partial
+   */
+  static boolean supports(final DownsamplingSpecification specification) {
+    if (specification == null ||
+        specification == DownsamplingSpecification.NO_DOWNSAMPLER ||
+        specification.getInterval() <= 0 ||
+        specification.useCalendar()) {
+      return false;
+    }
+    final String string_interval = specification.getStringInterval();
+    if (string_interval != null &&
+        string_interval.toLowerCase().contains("all")) {
+      return false;
+    }
+    final Aggregator function = specification.getFunction();
+    return function == Aggregators.SUM ||
+        function == Aggregators.ZIMSUM ||
+        function == Aggregators.MIN ||
+        function == Aggregators.MIMMIN ||
+        function == Aggregators.MAX ||
+        function == Aggregators.MIMMAX ||
+        function == Aggregators.AVG ||
+        function == Aggregators.COUNT ||
+        function == Aggregators.FIRST ||
+        function == Aggregators.LAST;
+  }
+
+  /**
+   * Adds a data point to the interval it belongs to.
+   * @param timestamp The timestamp of the data point in milliseconds
+   * @param value The value of the data point
+   */
+  void add(final long timestamp, final double value) {
+    int i = locate(timestamp - (timestamp % interval));
+    final boolean inserted = i < 0;
+    if (inserted) {
+      i = -i - 1;
+    }
+    if (kept != null) {
+      keep(i, inserted, value, timestamp);
+    } else if (!Double.isNaN(value)) {
+      combine(i, value, 1);
+    }
+  }
+
+  /**
+   * Adds the partial of a finer interval, e.g. from a cached
+   * {@link FragmentCache.Fragment}. Not supported for first and last.
+   * @param start The start of the finer interval in milliseconds, it must not
+   * straddle two of this instance's intervals
+   * @param sum The sum of the non-NaN values
+   * @param min The minimum of the non-NaN values
+   * @param max The maximum of the non-NaN values
+   * @param count The number of non-NaN values, may be 0 if they all were NaN
+   * @throws UnsupportedOperationException if the function is first or last
+   */
+  void addPartial(final long start, final double sum, final double min,
+      final double max, final int count) {
+    if (kept != null) {
+      throw new UnsupportedOperationException("Partials can't be added to "
+          + this);
+    }
+    int i = locate(start - (start % interval));
+    if (i < 0) {
+      i = -i - 1;
+    }
+    if (count < 1) {
+      return;
+    }
+    if (function == Aggregators.MIN || function == Aggregators.MIMMIN) {
+      combine(i, min, count);
+    } else if (function == Aggregators.MAX || function == Aggregators.MIMMAX) {
+      combine(i, max, count);
+    } else {
+      combine(i, sum, count);
+    }
+  }
+
+  /**
+   * Merges the partials of another set of buckets into this one, e.g. when
+   * the same series was scanned by two scanners.
+   * @param other The buckets to merge, must use the same specification
+   * @throws IllegalArgumentException if the interval or function differ
+   */
+  void merge(final DownsampleBuckets other) {
+    if (other.interval != interval || other.function != function) {
+      throw new IllegalArgumentException("Can't merge " + other 
+          + " into " + this);
+    }
+    for (int j = 0; j < other.size; j++) {
+      int i = locate(other.timestamps[j]);
+      final boolean inserted = i < 0;
+      if (inserted) {
+        i = -i - 1;
+      }
+      if (kept != null) {
+        keep(i, inserted, other.values[j], other.kept[j]);
+      } else if (other.counts[j] > 0) {
+        combine(i, other.values[j], other.counts[j]);
+      }
+    }
+  }
+
+  /** @return the downsampling interval in milliseconds */
+  long interval() {
+    return interval;
+  }
+
+  /** @return the downsampling function */
+  Aggregator function() {
+    return function;
+  }
+
+  /** @return the number of intervals with data */
+  int size() {
+    return size;
+  }
+
+  /**
+   * @param i A 0 based index
+   * @return the start of the interval in milliseconds
+   * @throws IndexOutOfBoundsException if the index is out of bounds
+   */
+  long timestamp(final int i) {
+    checkIndex(i);
+    return timestamps[i];
+  }
+
+  /**
+   * @param i A 0 based index
+   * @return the downsampled value for the interval
+   * @throws IndexOutOfBoundsException if the index is out of bounds
+   */
+  double value(final int i) {
+    checkIndex(i);
+    if (function == Aggregators.FIRST || function == Aggregators.LAST) {
+      return values[i];
+    }
+    if (function == Aggregators.COUNT) {
+      return counts[i];
+    }
+    if (counts[i] == 0) {
+      return Double.NaN;
+    }
+    if (function == Aggregators.AVG) {
+      return values[i] / counts[i];
+    }
+    return values[i];
+  }
+
+  /**
+   * Finds the first interval starting at or after the given time.
+   * @param timestamp A timestamp in milliseconds
+   * @return The index of the interval, {@link #size} if all the intervals
+   * start before the timestamp
+   */
+  int indexOf(final long timestamp) {
+    final int idx = Arrays.binarySearch(timestamps, 0, size, timestamp);
+    return idx >= 0 ? idx : -idx - 1;
+  }
+
+  /** @return an iterator over the downsampled data points */
+  SeekableView iterator() {
+    return new Iterator();
+  }
+
+  @Override
+  public String toString() {
+    return "DownsampleBuckets(interval=" + interval + ", function="
+        + function + ", size=" + size + ')';
+  }
+
+  /**
+   * Finds the interval with the given start, inserting it if needed.
+   * @param start The start timestamp of the interval
+   * @return The index of the interval or {@code -(index + 1)} if the
+   * interval was just inserted
+   */
+  private int locate(final long start) {
+    if (size > 0 && timestamps[size - 1] == start) {
+      return size - 1;  // the common case, rows are scanned in order
+    }
+    int i = size;
+    if (size > 0 && timestamps[size - 1] > start) {
+      i = Arrays.binarySearch(timestamps, 0, size, start);
+      if (i >= 0) {
+        return i;
+      }
+      i = -i - 1;
+    }
+    insert(i, start);
+    return -i - 1;
+  }
+
+  /**
+   * Folds a partial into an interval for functions other than first and last.
+   * @param i The index of the interval
+   * @param value A value or a partial that isn't NaN
+   * @param count The number of values behind the partial
+   */
+  private void combine(final int i, final double value, final int count) {
+    if (counts[i] == 0) {
+      values[i] = value;
+    } else if (function == Aggregators.MIN || function == Aggregators.MIMMIN) {
+      if (value < values[i]) {
+        values[i] = value;
+      }
+    } else if (function == Aggregators.MAX || function == Aggregators.MIMMAX) {
+      if (value > values[i]) {
+        values[i] = value;
+      }
+    } else if (function != Aggregators.COUNT) {
+      values[i] += value;  // sum, zimsum and avg
+    }
+    counts[i] += count;
+  }
+
+  /**
+   * Keeps the earliest value for first or the latest for last.
+   * @param i The index of the interval
+   * @param inserted Whether or not the interval was just inserted
+   * @param value The value, may be NaN
+   * @param timestamp The timestamp of the value
+   */
+  private void keep(final int i, final boolean inserted, final double value,
+      final long timestamp) {
+    if (inserted || (function == Aggregators.FIRST ? 
+        timestamp < kept[i] : timestamp >= kept[i])) {
+      values[i] = value;
+      kept[i] = timestamp;
+    }
+  }
+
+  /**
+   * Inserts an empty interval, growing the arrays if needed.
+   * @param i Where to insert the interval
+   * @param start The start timestamp of the interval
+   */
+  private void insert(final int i, final long start) {
+    if (size == timestamps.length) {
+      final int capacity = timestamps.length * 2;
+      timestamps = Arrays.copyOf(timestamps, capacity);
+      values = Arrays.copyOf(values, capacity);
+      counts = Arrays.copyOf(counts, capacity);
+      if (kept != null) {
+        kept = Arrays.copyOf(kept, capacity);
+      }
+    }
+    if (i < size) {
+      System.arraycopy(timestamps, i, timestamps, i + 1, size - i);
+      System.arraycopy(values, i, values, i + 1, size - i);
+      System.arraycopy(counts, i, counts, i + 1, size - i);
+      if (kept != null) {
+        System.arraycopy(kept, i, kept, i + 1, size - i);
+      }
+    }
+    timestamps[i] = start;
+    values[i] = 0;
+    counts[i] = 0;
+    size++;
+  }
+
+  /**
+   * @throws IndexOutOfBoundsException if the index is out of bounds
+   */
+  private void checkIndex(final int i) {
+    if (i < 0 || i >= size) {
+      throw new IndexOutOfBoundsException("index " + i + " >= " + size
+          + " for this=" + this);
+    }
+  }
+
+  /** Iterator over the downsampled data points. */
+  final class Iterator implements SeekableView, DataPoint {
+
+    /** Index of the next interval. */
+    private int index;
+
+    // ------------------ //
+    // Iterator interface //
+    // ------------------ //
+
+    @Override
+    public boolean hasNext() {
+      return index < size;
+    }
+
+    @Override
+    public DataPoint next() {
+      if (index >= size) {
+        throw new NoSuchElementException("no more elements");
+      }
+      index++;
+      return this;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    // ---------------------- //
+    // SeekableView interface //
+    // ---------------------- //
+
+    @Override
+    public void seek(final long timestamp) {
+      if ((timestamp & Const.MILLISECOND_MASK) != 0) {  // negative or not 48 bits
+        throw new IllegalArgumentException("invalid timestamp: " + timestamp);
+      }
+      index = indexOf(timestamp);
+    }
+
+    // ------------------- //
+    // DataPoint interface //
+    // ------------------- //
+
+    @Override
+    public long timestamp() {
+      return DownsampleBuckets.this.timestamp(index - 1);
+    }
+
+    @Override
+    public boolean isInteger() {
+      return false;
+    }
+
+    @Override
+    public long longValue() {
+      throw new ClassCastException("Downsampled values are doubles");
+    }
+
+    @Override
+    public double doubleValue() {
+      return value(index - 1);
+    }
+
+    @Override
+    public double toDouble() {
+      return value(index - 1);
+    }
+
+    @Override
+    public String toString() {
+      return "DownsampleBuckets.Iterator(index=" + index + ", buckets="
+          + DownsampleBuckets.this + ')';
+    }
+  }
+}
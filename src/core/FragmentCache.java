@@ -0,0 +1,376 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.hbase.async.Bytes;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.utils.DateTime;
+
+/**
+ * A memory bounded cache of downsampled partials shared by every query, i.e.
+ * a fold cache: it saves the CPU spent decoding and downsampling rows, not
+ * the I/O of fetching them.
+ * <p>
+ * When a {@link Span} downsamples rows as they are scanned, each row, i.e.
+ * one hour of one time series, is folded into one {@link Fragment} holding
+ * the sum, count, minimum and maximum of each interval. Fragments of hours
+ * that are over are cached by row key so that later queries on the same
+ * series, with the same interval or a multiple of it, fold the cached
+ * partials instead of decoding every data point of the row again. The cache
+ * is checked as soon as a row was fetched and compacted, before it's decoded.
+ * Rows are still fetched from storage as the set of series in an hour is only
+ * known once it has been scanned.
+ * <p>
+ * Hours that are over don't change unless data arrives late so
+ * {@link TSDB} invalidates the fragment of a row once a data point written to
+ * a past hour has been stored, which may be a while after it was received
+ * when the write buffer is enabled. A scan may have read a row before such a
+ * write landed and cache its fragment after the invalidation, so every
+ * invalidation bumps a generation and a fragment is only cached if its row
+ * wasn't invalidated since the {@link #generation} its scan started at.
+ * @since 2.3
+ */
+final class FragmentCache {
+
+  /** Rough number of bytes used by a key, an entry and the arrays' headers */
+  private static final int OVERHEAD = 160;
+
+  /** How many slots track the last invalidation of the rows hashed to them,
+   * must be a power of 2 */
+  private static final int INVALIDATION_SLOTS = 4096;
+
+  /** The underlying cache, keyed on the salt-less row key */
+  private final Cache<Key, Fragment> cache;
+
+  /** Lookups that returned a usable fragment */
+  private final AtomicLong hits = new AtomicLong();
+
+  /** Lookups that didn't find a fragment or found one for another interval */
+  private final AtomicLong misses = new AtomicLong();
+
+  /** How many fragments were dropped because of late data */
+  private final AtomicLong invalidations = new AtomicLong();
+
+  /** Bumped on every invalidation */
+  private final AtomicLong generation = new AtomicLong();
+
+  /** The generation of the last invalidation of the rows hashed to each slot.
+   * Rows sharing a slot may only skip caching a fragment more often. */
+  private final AtomicLongArray invalidated =
+      new AtomicLongArray(INVALIDATION_SLOTS);
+
+  /**
+   * Default ctor
+   * @param max_bytes The approximate amount of memory the fragments may use
+   * @throws IllegalArgumentException if the max bytes is less than 1
+   */
+  FragmentCache(final long max_bytes) {
+    if (max_bytes < 1) {
+      throw new IllegalArgumentException("Max bytes must be greater than 0");
+    }
+
+    class FragmentWeigher implements Weigher<Key, Fragment> {
+      @Override
+      public int weigh(final Key key, final Fragment fragment) {
+        return OVERHEAD + key.key.length + fragment.sizeInBytes();
+      }
+    }
+
+    cache = CacheBuilder.newBuilder()
+        .maximumWeight(max_bytes)
+        .weigher(new FragmentWeigher())
+        .recordStats()
+        .build();
+  }
+
+  /**
+   * Whether or not fragments can be used to compute the given downsampling
+   * function, i.e. whether it can be derived from the sum, count, minimum
+   * and maximum of an interval.
+   * @param function The downsampling function
+   * @return True if fragments can be used
+   */
+  static boolean supports(final Aggregator function) {
+    return function == Aggregators.SUM ||
+        function == Aggregators.ZIMSUM ||
+        function == Aggregators.MIN ||
+        function == Aggregators.MIMMIN ||
+        function == Aggregators.MAX ||
+        function == Aggregators.MIMMAX ||
+        function == Aggregators.AVG ||
+        function == Aggregators.COUNT;
+  }
+
+  /**
+   * Returns the cached fragment of a row if it can be used for the interval.
+   * @param row_key The row key, with the salt if enabled
+   * @param interval The downsampling interval of the query in milliseconds
+   * @return The fragment if found and its interval divides the given one,
+   * null if not
+   */
+  Fragment get(final byte[] row_key, final long interval) {
+    final Fragment fragment = cache.getIfPresent(new Key(row_key));
+    if (fragment == null || interval % fragment.interval != 0) {
+      misses.incrementAndGet();
+      return null;
+    }
+    hits.incrementAndGet();
+    return fragment;
+  }
+
+  /**
+   * Caches the fragment of a row if its hour is over and the row wasn't
+   * invalidated since the scan that read it started. Rows of the current
+   * hour are still being written to so they are ignored.
+   * @param row_key The row key, with the salt if enabled
+   * @param fragment The fragment computed from the row
+   * @param since The {@link #generation} when the scan started
+   */
+  void put(final byte[] row_key, final Fragment fragment, final long since) {
+    if (!isOver(baseTime(row_key))) {
+      return;
+    }
+    final Key key = new Key(row_key);
+    if (invalidatedSince(key, since)) {
+      return;
+    }
+    cache.put(key, fragment);
+    // the generation is bumped before the fragment is removed so either the
+    // invalidation removes what we put or we see it here
+    if (invalidatedSince(key, since)) {
+      cache.asMap().remove(key, fragment);
+    }
+  }
+
+  /**
+   * Drops the fragment of a row, called once a data point was written.
+   * @param row_key The row key, with the salt if enabled
+   * @param base_time The base time of the row in seconds
+   */
+  void invalidate(final byte[] row_key, final long base_time) {
+    if (!isOver(base_time)) {
+      return;
+    }
+    final Key key = new Key(row_key);
+    final int slot = key.hash & (INVALIDATION_SLOTS - 1);
+    final long current = generation.incrementAndGet();
+    long last;
+    do {
+      last = invalidated.get(slot);
+    } while (last < current && !invalidated.compareAndSet(slot, last, current));
+    if (cache.asMap().remove(key) != null) {
+      invalidations.incrementAndGet();
+    }
+  }
+
+  /**
+   * @return The current generation, to be read before a scan starts and
+   * passed to {@link #put}
+   */
+  long generation() {
+    return generation.get();
+  }
+
+  /** Drops every fragment from the cache */
+  void invalidateAll() {
+    cache.invalidateAll();
+  }
+
+  /** @return The approximate number of fragments in the cache */
+  long size() {
+    return cache.size();
+  }
+
+  /** @return The number of lookups that returned a usable fragment */
+  long hits() {
+    return hits.get();
+  }
+
+  /** @return The number of lookups that didn't return a usable fragment */
+  long misses() {
+    return misses.get();
+  }
+
+  /**
+   * Collects the stats for this cache
+   * @param collector The collector to use
+   */
+  void collectStats(final StatsCollector collector) {
+    collector.record("fragment.cache-hit", hits.get());
+    collector.record("fragment.cache-miss", misses.get());
+    collector.record("fragment.cache-evictions", cache.stats().evictionCount());
+    collector.record("fragment.cache-invalidations", invalidations.get());
+    collector.record("fragment.cache-size", cache.size());
+  }
+
+  /** @return whether or not the row may have been invalidated after the
+   * given generation */
+  private boolean invalidatedSince(final Key key, final long since) {
+    return invalidated.get(key.hash & (INVALIDATION_SLOTS - 1)) > since;
+  }
+
+  /**
+   * @param base_time The base time of a row in seconds
+   * @return whether or not the hour of the row is over
+   */
+  private static boolean isOver(final long base_time) {
+    return base_time + Const.MAX_TIMESPAN <= DateTime.currentTimeMillis() / 1000;
+  }
+
+  /** @return the base time of a row key in seconds */
+  private static long baseTime(final byte[] row_key) {
+    return Bytes.getUnsignedInt(row_key,
+        Const.SALT_WIDTH() + TSDB.metrics_width());
+  }
+
+  /** The salt-less row key, i.e. the TSUID and the hour */
+  private static final class Key {
+    private final byte[] key;
+    private final int hash;
+
+    Key(final byte[] row_key) {
+      key = Arrays.copyOfRange(row_key, Const.SALT_WIDTH(), row_key.length);
+      hash = Arrays.hashCode(key);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+      return obj instanceof Key && Arrays.equals(key, ((Key) obj).key);
+    }
+  }
+
+  /**
+   * The downsampled partials of one row, see {@link DownsampleBuckets}.
+   * Instances are read-only once built.
+   */
+  static final class Fragment {
+    /** The downsampling interval in milliseconds */
+    private final long interval;
+    /** Start timestamps of the intervals in milliseconds, sorted */
+    private final long[] timestamps;
+    /** The sum of the non-NaN values of each interval */
+    private final double[] sums;
+    /** The minimum of the non-NaN values of each interval */
+    private final double[] mins;
+    /** The maximum of the non-NaN values of each interval */
+    private final double[] maxs;
+    /** The number of non-NaN values of each interval */
+    private final int[] counts;
+
+    private Fragment(final long interval, final int size) {
+      this.interval = interval;
+      timestamps = new long[size];
+      sums = new double[size];
+      mins = new double[size];
+      maxs = new double[size];
+      counts = new int[size];
+    }
+
+    /**
+     * Downsamples the data points of a row.
+     * @param row A row of a single series
+     * @param interval The downsampling interval in milliseconds
+     * @return The fragment for the row
+     * @throws IllegalDataException if the row contains malformed data
+     */
+    static Fragment fromRow(final RowSeq row, final long interval) {
+      // count the intervals first so the arrays are allocated once
+      int size = 0;
+      long last = -1;
+      RowSeq.Iterator it = row.internalIterator();
+      while (it.hasNext()) {
+        final long timestamp = it.next().timestamp();
+        final long start = timestamp - (timestamp % interval);
+        if (start != last) {
+          size++;
+          last = start;
+        }
+      }
+
+      final Fragment fragment = new Fragment(interval, size);
+      int i = -1;
+      last = -1;
+      it = row.internalIterator();
+      while (it.hasNext()) {
+        final DataPoint dp = it.next();
+        final long start = dp.timestamp() - (dp.timestamp() % interval);
+        if (start != last) {
+          i++;
+          fragment.timestamps[i] = start;
+          last = start;
+        }
+        final double value = dp.toDouble();
+        if (Double.isNaN(value)) {
+          continue;
+        }
+        if (fragment.counts[i] == 0) {
+          fragment.sums[i] = value;
+          fragment.mins[i] = value;
+          fragment.maxs[i] = value;
+        } else {
+          fragment.sums[i] += value;
+          if (value < fragment.mins[i]) {
+            fragment.mins[i] = value;
+          }
+          if (value > fragment.maxs[i]) {
+            fragment.maxs[i] = value;
+          }
+        }
+        fragment.counts[i]++;
+      }
+      return fragment;
+    }
+
+    /**
+     * Folds the partials into downsampling buckets.
+     * @param buckets The buckets to fold into, their interval must be a
+     * multiple of this fragment's
+     */
+    void addTo(final DownsampleBuckets buckets) {
+      for (int i = 0; i < timestamps.length; i++) {
+        buckets.addPartial(timestamps[i], sums[i], mins[i], maxs[i],
+            counts[i]);
+      }
+    }
+
+    /** @return the number of intervals */
+    int size() {
+      return timestamps.length;
+    }
+
+    /** @return the approximate number of bytes used by the arrays */
+    int sizeInBytes() {
+      return timestamps.length * 36;
+    }
+
+    @Override
+    public String toString() {
+      return "Fragment(interval=" + interval + ", size=" + timestamps.length
+          + ')';
+    }
+  }
+}
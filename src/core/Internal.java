@@ -223,7 +223,11 @@ public final class Internal {
   public static ArrayList<Cell> extractDataPoints(final ArrayList<KeyValue> row,
       final int estimated_nvalues) {
     final ArrayList<Cell> cells = new ArrayList<Cell>(estimated_nvalues);
-    for (final KeyValue kv : row) {
+    for (final KeyValue column : row) {
+      // compressed columns are broken down like a regular compacted column
+      final KeyValue kv = 
+          CompressedDataPoints.isCompressedDataPoints(column.qualifier()) ?
+              CompressedDataPoints.decode(column) : column;
       final byte[] qual = kv.qualifier();
       final int len = qual.length;
       final byte[] val = kv.value();
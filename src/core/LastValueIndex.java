@@ -0,0 +1,342 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.uid.UniqueId;
+
+/**
+ * An in-memory index of the last data point written to each series through
+ * this TSD, keyed on the TSUID. It lets the last data point queries answer
+ * without reading the meta counters and scanning back in time through the
+ * data table for every series.
+ * <p>
+ * The index is a set of open addressing hash tables made of primitive arrays
+ * so that each series only costs its TSUID bytes plus a timestamp and a value
+ * slot. It's split in segments, each with its own lock, so writers to
+ * different series rarely contend. The tables grow until the configured
+ * memory cap is reached, after which new series aren't indexed anymore and
+ * their queries fall back to storage. Points older than the one indexed for a
+ * series are ignored.
+ * <p>
+ * The index only knows about the points written since the TSD started, so a
+ * miss doesn't mean the series has no data.
+ * @since 2.3
+ */
+public final class LastValueIndex {
+  /** How many segments the index is split into, a power of 2 */
+  static final int SEGMENTS = 16;
+
+  /** The bytes used by each slot of a segment: the key offset, the timestamp
+   * and the value */
+  static final int SLOT_BYTES = 4 + 8 + 8;
+
+  /** The initial number of slots of a segment, a power of 2 */
+  private static final int INITIAL_SLOTS = 64;
+
+  /** The initial size of the key arena of a segment */
+  private static final int INITIAL_ARENA_BYTES = 1024;
+
+  /** Set on the stored timestamp when the value is a floating point */
+  private static final long FLOAT_FLAG = 1L << 62;
+
+  /** The segments of the index */
+  private final Segment[] segments;
+
+  /** Counters for the stats */
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+
+  /**
+   * Default ctor
+   * @param max_bytes The memory cap of the index in bytes
+   * @throws IllegalArgumentException if the cap is too small to hold the
+   * initial tables
+   */
+  public LastValueIndex(final long max_bytes) {
+    final long segment_bytes = max_bytes / SEGMENTS;
+    if (segment_bytes < INITIAL_SLOTS * SLOT_BYTES + INITIAL_ARENA_BYTES) {
+      throw new IllegalArgumentException("The max bytes must be at least "
+          + (INITIAL_SLOTS * SLOT_BYTES + INITIAL_ARENA_BYTES) * SEGMENTS);
+    }
+    segments = new Segment[SEGMENTS];
+    for (int i = 0; i < SEGMENTS; i++) {
+      segments[i] = new Segment(segment_bytes);
+    }
+  }
+
+  /**
+   * Records a data point for the series unless a more recent one was
+   * recorded already.
+   * @param tsuid The TSUID of the series
+   * @param timestamp The timestamp in seconds or milliseconds
+   * @param value The encoded value
+   * @param flags The flags of the value
+   */
+  public void update(final byte[] tsuid, final long timestamp,
+      final byte[] value, final short flags) {
+    final long ms = (timestamp & Const.SECOND_MASK) != 0 ?
+        timestamp : timestamp * 1000;
+    final long stored_value;
+    final long stored_timestamp;
+    if ((flags & Const.FLAG_FLOAT) != 0) {
+      stored_value = Double.doubleToRawLongBits(
+          Internal.extractFloatingPointValue(value, 0, (byte) flags));
+      stored_timestamp = ms | FLOAT_FLAG;
+    } else {
+      stored_value = Internal.extractIntegerValue(value, 0, (byte) flags);
+      stored_timestamp = ms;
+    }
+    final int hash = hash(tsuid);
+    if (!segment(hash).update(tsuid, hash, stored_timestamp, stored_value)) {
+      rejected.incrementAndGet();
+    }
+  }
+
+  /**
+   * Returns the last data point recorded for the series.
+   * @param tsuid The TSUID of the series
+   * @return The data point with the TSUID, timestamp in milliseconds and
+   * value set, null if the series isn't indexed
+   */
+  public IncomingDataPoint getLastPoint(final byte[] tsuid) {
+    final long[] slot = new long[2];
+    final int hash = hash(tsuid);
+    if (!segment(hash).get(tsuid, hash, slot)) {
+      misses.incrementAndGet();
+      return null;
+    }
+    hits.incrementAndGet();
+    final long timestamp = slot[0] & ~FLOAT_FLAG;
+    final String value = (slot[0] & FLOAT_FLAG) != 0 ?
+        Double.toString(Double.longBitsToDouble(slot[1])) :
+        Long.toString(slot[1]);
+    return new IncomingDataPoint(UniqueId.uidToString(tsuid), timestamp,
+        value);
+  }
+
+  /** @return The number of series in the index */
+  public long size() {
+    long size = 0;
+    for (final Segment segment : segments) {
+      synchronized (segment) {
+        size += segment.size;
+      }
+    }
+    return size;
+  }
+
+  /** @return The memory used by the index in bytes */
+  public long bytes() {
+    long bytes = 0;
+    for (final Segment segment : segments) {
+      synchronized (segment) {
+        bytes += segment.bytes();
+      }
+    }
+    return bytes;
+  }
+
+  /**
+   * Collects the stats of the index
+   * @param collector The collector to use
+   */
+  public void collectStats(final StatsCollector collector) {
+    collector.record("last_value.index-hit", hits.get());
+    collector.record("last_value.index-miss", misses.get());
+    collector.record("last_value.index-rejected", rejected.get());
+    collector.record("last_value.index-size", size());
+    collector.record("last_value.index-bytes", bytes());
+  }
+
+  /** @return The segment of the hash */
+  private Segment segment(final int hash) {
+    return segments[(hash >>> 28) & (SEGMENTS - 1)];
+  }
+
+  /** @return A well mixed hash of the TSUID */
+  static int hash(final byte[] tsuid) {
+    int hash = Arrays.hashCode(tsuid);
+    // spread the bits as both the segment and the slot come from the hash
+    hash ^= (hash >>> 16);
+    hash *= 0x85ebca6b;
+    hash ^= (hash >>> 13);
+    hash *= 0xc2b2ae35;
+    hash ^= (hash >>> 16);
+    return hash;
+  }
+
+  /**
+   * An open addressing table with linear probing. The keys are copied into
+   * a byte arena, each prefixed with its length, and the slots refer to them
+   * by offset. Keys are never removed.
+   */
+  private static final class Segment {
+    /** The memory cap of the segment */
+    private final long max_bytes;
+
+    /** The offset of the key of each slot in the arena plus 1, 0 if empty */
+    private int[] offsets = new int[INITIAL_SLOTS];
+
+    /** The timestamp of each slot in milliseconds with the float flag */
+    private long[] timestamps = new long[INITIAL_SLOTS];
+
+    /** The value of each slot, the raw bits of floating point values */
+    private long[] values = new long[INITIAL_SLOTS];
+
+    /** The keys of the slots */
+    private byte[] arena = new byte[INITIAL_ARENA_BYTES];
+
+    /** The bytes used in the arena */
+    private int arena_used;
+
+    /** The number of keys in the segment */
+    private int size;
+
+    Segment(final long max_bytes) {
+      this.max_bytes = max_bytes;
+    }
+
+    /**
+     * Looks up the slot of the key
+     * @param tsuid The key
+     * @param hash The hash of the key
+     * @param slot Filled with the timestamp and the value if found
+     * @return True if the key was found
+     */
+    synchronized boolean get(final byte[] tsuid, final int hash,
+        final long[] slot) {
+      final int index = find(tsuid, hash);
+      if (offsets[index] == 0) {
+        return false;
+      }
+      slot[0] = timestamps[index];
+      slot[1] = values[index];
+      return true;
+    }
+
+    /**
+     * Stores the timestamp and the value of the key unless it's older than
+     * the stored one.
+     * @return False if the key was new and the segment is full
+     */
+    synchronized boolean update(final byte[] tsuid, final int hash,
+        final long timestamp, final long value) {
+      int index = find(tsuid, hash);
+      if (offsets[index] != 0) {
+        if ((timestamps[index] & ~FLOAT_FLAG) <= (timestamp & ~FLOAT_FLAG)) {
+          timestamps[index] = timestamp;
+          values[index] = value;
+        }
+        return true;
+      }
+
+      if (tsuid.length > 255) {
+        return false;
+      }
+      if ((size + 1) * 4 > offsets.length * 3) {
+        if (!resize(offsets.length * 2, arena.length)) {
+          return false;
+        }
+        index = find(tsuid, hash);
+      }
+      if (arena_used + 1 + tsuid.length > arena.length) {
+        final int needed = arena_used + 1 + tsuid.length;
+        int length = arena.length * 2;
+        while (length < needed) {
+          length *= 2;
+        }
+        if (!resize(offsets.length, length)) {
+          return false;
+        }
+      }
+      arena[arena_used] = (byte) tsuid.length;
+      System.arraycopy(tsuid, 0, arena, arena_used + 1, tsuid.length);
+      offsets[index] = arena_used + 1;
+      timestamps[index] = timestamp;
+      values[index] = value;
+      arena_used += 1 + tsuid.length;
+      ++size;
+      return true;
+    }
+
+    /** @return The memory used by the segment */
+    long bytes() {
+      return (long) offsets.length * SLOT_BYTES + arena.length;
+    }
+
+    /**
+     * @return The slot holding the key or the empty slot where it belongs
+     */
+    private int find(final byte[] tsuid, final int hash) {
+      final int mask = offsets.length - 1;
+      int index = hash & mask;
+      while (offsets[index] != 0 && !matches(offsets[index] - 1, tsuid)) {
+        index = (index + 1) & mask;
+      }
+      return index;
+    }
+
+    /** @return True if the key stored at the offset equals the TSUID */
+    private boolean matches(final int offset, final byte[] tsuid) {
+      if ((arena[offset] & 0xFF) != tsuid.length) {
+        return false;
+      }
+      for (int i = 0; i < tsuid.length; i++) {
+        if (arena[offset + 1 + i] != tsuid[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Grows the table and the arena if the memory cap allows it
+     * @return False if the segment would exceed its memory cap
+     */
+    private boolean resize(final int slots, final int arena_bytes) {
+      if ((long) slots * SLOT_BYTES + arena_bytes > max_bytes) {
+        return false;
+      }
+      if (arena_bytes != arena.length) {
+        arena = Arrays.copyOf(arena, arena_bytes);
+      }
+      if (slots == offsets.length) {
+        return true;
+      }
+      final int[] old_offsets = offsets;
+      final long[] old_timestamps = timestamps;
+      final long[] old_values = values;
+      offsets = new int[slots];
+      timestamps = new long[slots];
+      values = new long[slots];
+      for (int i = 0; i < old_offsets.length; i++) {
+        if (old_offsets[i] == 0) {
+          continue;
+        }
+        final int offset = old_offsets[i] - 1;
+        final byte[] key = Arrays.copyOfRange(arena, offset + 1,
+            offset + 1 + (arena[offset] & 0xFF));
+        final int index = find(key, hash(key));
+        offsets[index] = old_offsets[i];
+        timestamps[index] = old_timestamps[i];
+        values[index] = old_values[i];
+      }
+      return true;
+    }
+  }
+}
@@ -0,0 +1,472 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hbase.async.Bytes.ByteMap;
+import org.hbase.async.KeyValue;
+import org.hbase.async.Scanner;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.meta.TSMeta;
+import net.opentsdb.stats.QueryStats;
+import net.opentsdb.stats.QueryStats.QueryStat;
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.uid.UniqueId;
+
+/**
+ * Predicts how many rows a query will scan before it runs so that expensive
+ * queries can be rejected or queued instead of scanning for minutes.
+ * <p>
+ * The estimate relies on the time series tracked in the meta table, i.e. the
+ * TSUIDs with a counter column written by
+ * {@link TSMeta#incrementAndGetCounter}, so it requires
+ * {@code tsd.core.meta.enable_tsuid_tracking} or
+ * {@code tsd.core.meta.enable_realtime_ts}. For each metric the TSUIDs are
+ * scanned once, then cached for {@code tsd.query.cost.stats_ttl} seconds,
+ * to count the series, the series carrying each tag key and the distinct
+ * values of each tag key. A query's series are then estimated from the
+ * resolved tag value UIDs of its filters, assuming the values are evenly
+ * spread, and multiplied by the number of hourly rows in its scan range.
+ * Salting spreads the rows over the buckets but doesn't change their count.
+ * Metrics without tracked series are estimated at 0 rows.
+ * <p>
+ * Queries estimated above {@code tsd.query.cost.max_rows} are rejected and
+ * those above {@code tsd.query.cost.expensive_rows} are queued so that at
+ * most {@code tsd.query.cost.expensive_concurrency} of them run at once.
+ * The estimate of each sub query is recorded in its {@link QueryStats} to
+ * compare with the rows actually scanned.
+ * @since 2.3
+ */
+public final class QueryCostEstimator {
+  private static final Logger LOG =
+      LoggerFactory.getLogger(QueryCostEstimator.class);
+
+  /** The TSDB to scan the meta table with */
+  private final TSDB tsdb;
+
+  /** The series statistics of each metric, keyed on the metric UID */
+  private final Cache<String, MetricStats> metric_stats;
+
+  /** Queries estimated above this many rows are rejected, 0 to disable */
+  private final long max_rows;
+
+  /** Queries estimated above this many rows are queued, 0 to disable */
+  private final long expensive_rows;
+
+  /** How many expensive queries may run at once */
+  private final int expensive_concurrency;
+
+  /** Expensive queries waiting for a slot, guarded by this */
+  private final ArrayDeque<Deferred<Object>> waiting =
+      new ArrayDeque<Deferred<Object>>();
+
+  /** Expensive queries running, guarded by this */
+  private int running;
+
+  /** Various counters for reporting stats */
+  private final AtomicLong estimates = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+  private final AtomicLong queued = new AtomicLong();
+
+  /**
+   * Default ctor reading the limits from the TSDB config
+   * @param tsdb The TSDB to use for scanning the meta table
+   * @throws IllegalArgumentException if the expensive concurrency is less
+   * than 1
+   */
+  public QueryCostEstimator(final TSDB tsdb) {
+    this.tsdb = tsdb;
+    max_rows = tsdb.getConfig().getLong("tsd.query.cost.max_rows");
+    expensive_rows = tsdb.getConfig().getLong("tsd.query.cost.expensive_rows");
+    expensive_concurrency =
+        tsdb.getConfig().getInt("tsd.query.cost.expensive_concurrency");
+    if (expensive_concurrency < 1) {
+      throw new IllegalArgumentException(
+          "The expensive query concurrency must be greater than 0");
+    }
+    metric_stats = CacheBuilder.newBuilder()
+        .expireAfterWrite(tsdb.getConfig().getLong("tsd.query.cost.stats_ttl"),
+            TimeUnit.SECONDS)
+        .build();
+  }
+
+  /**
+   * Estimates the rows each sub query will scan and decides whether the
+   * query may run. The estimates are recorded in the query stats.
+   * @param data_query The validated query
+   * @param queries The compiled sub queries
+   * @return A deferred resolving to true if the query is expensive and holds
+   * a slot that must be returned with {@link #release} once it completes,
+   * false if it may run right away. The deferred is called back once a slot
+   * is free if the query had to be queued.
+   * @throws QueryException, through the deferred, if the query is estimated
+   * to scan more than the maximum number of rows or if it was cancelled while
+   * queued
+   */
+  public Deferred<Boolean> admit(final TSQuery data_query,
+      final Query[] queries) {
+
+    /** Admits the query once estimated */
+    class AdmitCB implements Callback<Deferred<Boolean>, Long> {
+      @Override
+      public Deferred<Boolean> call(final Long rows) {
+        return admit(rows, data_query.getCancellation());
+      }
+    }
+
+    return estimateRows(data_query, queries)
+        .addCallbackDeferring(new AdmitCB());
+  }
+
+  /**
+   * Decides whether a query with the given estimate may run.
+   * @param rows The total number of rows the query is estimated to scan
+   * @return A deferred resolving to true if the query is expensive and holds
+   * a slot that must be returned with {@link #release} once it completes,
+   * false if it may run right away. The deferred is called back once a slot
+   * is free if the query had to be queued.
+   * @throws QueryException if the query is estimated to scan more than the
+   * maximum number of rows
+   */
+  public Deferred<Boolean> admit(final long rows) {
+    return admit(rows, null);
+  }
+
+  /**
+   * Decides whether a query with the given estimate may run. If the query is
+   * queued and cancelled before it gets a slot, it leaves the queue and the
+   * deferred fails with the cancellation exception.
+   * @param rows The total number of rows the query is estimated to scan
+   * @param cancellation The token of the query, may be null
+   * @return A deferred resolving to true if the query is expensive and holds
+   * a slot that must be returned with {@link #release} once it completes,
+   * false if it may run right away. The deferred is called back once a slot
+   * is free if the query had to be queued.
+   * @throws QueryException if the query is estimated to scan more than the
+   * maximum number of rows
+   */
+  public Deferred<Boolean> admit(final long rows,
+      final CancellationToken cancellation) {
+    if (max_rows > 0 && rows > max_rows) {
+      rejected.incrementAndGet();
+      throw new QueryException(HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE,
+          "Sorry, the query is estimated to scan " + rows + " rows, more"
+          + " than the maximum of " + max_rows + " allowed. Please try"
+          + " narrowing the time range or filtering on more tags.");
+    }
+    if (expensive_rows > 0 && rows > expensive_rows) {
+
+      /** Flags the query as holding a slot once it gets one */
+      class SlotCB implements Callback<Boolean, Object> {
+        @Override
+        public Boolean call(final Object ignored) {
+          return true;
+        }
+      }
+
+      return acquire(cancellation).addCallback(new SlotCB());
+    }
+    return Deferred.fromResult(false);
+  }
+
+  /**
+   * Estimates the rows each sub query will scan and records the estimates in
+   * the query stats.
+   * @param data_query The validated query
+   * @param queries The compiled sub queries
+   * @return A deferred resolving to the total number of rows the sub queries
+   * are estimated to scan
+   */
+  public Deferred<Long> estimateRows(final TSQuery data_query,
+      final Query[] queries) {
+    final List<Deferred<Long>> deferreds =
+        new ArrayList<Deferred<Long>>(queries.length);
+    for (final Query query : queries) {
+      deferreds.add(estimateRows(query));
+    }
+
+    /** Sums the estimates */
+    class SumCB implements Callback<Long, ArrayList<Long>> {
+      @Override
+      public Long call(final ArrayList<Long> rows) {
+        long total = 0;
+        for (int i = 0; i < rows.size(); i++) {
+          total += rows.get(i);
+          if (data_query.getQueryStats() != null) {
+            data_query.getQueryStats().addStat(i, QueryStat.ESTIMATED_ROWS,
+                rows.get(i));
+          }
+        }
+        return total;
+      }
+    }
+
+    return Deferred.groupInOrder(deferreds).addCallback(new SumCB());
+  }
+
+  /**
+   * Returns the slot of an expensive query to the next one waiting, if any.
+   * Must be called once for each query admitted with true.
+   */
+  public void release() {
+    final Deferred<Object> next;
+    synchronized (this) {
+      next = waiting.poll();
+      if (next == null) {
+        running--;
+      }
+    }
+    if (next != null) {
+      // the slot is handed over, the next query runs on this thread
+      next.callback(null);
+    }
+  }
+
+  /**
+   * Estimates the number of rows a query will scan.
+   * @param query The compiled query
+   * @return A deferred resolving to the estimated number of rows, 0 if the
+   * query can't be estimated
+   */
+  public Deferred<Long> estimateRows(final Query query) {
+    if (!(query instanceof TsdbQuery)) {
+      return Deferred.fromResult(0L);
+    }
+    estimates.incrementAndGet();
+    final TsdbQuery tsdb_query = (TsdbQuery) query;
+    final long hours = tsdb_query.scanHours();
+    if (tsdb_query.tsuids() != null && !tsdb_query.tsuids().isEmpty()) {
+      return Deferred.fromResult(tsdb_query.tsuids().size() * hours);
+    }
+
+    class EstimateCB implements Callback<Long, MetricStats> {
+      @Override
+      public Long call(final MetricStats stats) {
+        return (long) Math.ceil(
+            stats.series(tsdb_query.rowKeyLiterals()) * hours);
+      }
+    }
+
+    return getMetricStats(tsdb_query.metric()).addCallback(new EstimateCB());
+  }
+
+  /** @return The approximate number of metrics with cached statistics */
+  public long size() {
+    return metric_stats.size();
+  }
+
+  /** Drops the cached statistics of every metric */
+  public void invalidateAll() {
+    metric_stats.invalidateAll();
+  }
+
+  /**
+   * Collects the stats for the estimator
+   * @param collector The collector to use
+   */
+  public void collectStats(final StatsCollector collector) {
+    collector.record("query.cost.estimates", estimates);
+    collector.record("query.cost.rejected", rejected);
+    collector.record("query.cost.queued", queued);
+    synchronized (this) {
+      collector.record("query.cost.expensive_running", running);
+      collector.record("query.cost.expensive_waiting", waiting.size());
+    }
+  }
+
+  /**
+   * @param cancellation The token of the query, may be null
+   * @return a deferred called back once an expensive query may run
+   */
+  private Deferred<Object> acquire(final CancellationToken cancellation) {
+    final Deferred<Object> slot;
+    synchronized (this) {
+      if (running < expensive_concurrency) {
+        running++;
+        return Deferred.fromResult(null);
+      }
+      slot = new Deferred<Object>();
+      waiting.add(slot);
+      queued.incrementAndGet();
+    }
+    if (cancellation == null) {
+      return slot;
+    }
+
+    /** Leaves the queue if the query is cancelled while waiting. Once it got
+     * its slot the query fails as it starts and returns the slot then. */
+    class CancelCB implements Runnable {
+      @Override
+      public void run() {
+        synchronized (QueryCostEstimator.this) {
+          if (!waiting.remove(slot)) {
+            return;
+          }
+        }
+        slot.callback(cancellation.exception());
+      }
+    }
+
+    cancellation.addListener(new CancelCB());
+    return slot;
+  }
+
+  /**
+   * Fetches the statistics of a metric from the cache or the meta table.
+   * Concurrent misses may scan the meta table more than once.
+   * @param metric The metric UID
+   * @return A deferred resolving to the statistics
+   */
+  private Deferred<MetricStats> getMetricStats(final byte[] metric) {
+    final String key = UniqueId.uidToString(metric);
+    final MetricStats cached = metric_stats.getIfPresent(key);
+    if (cached != null) {
+      return Deferred.fromResult(cached);
+    }
+
+    final Scanner scanner = tsdb.getClient().newScanner(tsdb.metaTable());
+    scanner.setStartKey(metric);
+    final long stop = UniqueId.uidToLong(metric, TSDB.metrics_width()) + 1;
+    scanner.setStopKey(UniqueId.longToUID(stop, TSDB.metrics_width()));
+    scanner.setFamily(TSMeta.FAMILY());
+    scanner.setQualifier(TSMeta.COUNTER_QUALIFIER());
+
+    final MetricStats stats = new MetricStats();
+    final Deferred<MetricStats> result = new Deferred<MetricStats>();
+
+    /** Estimates nothing if the meta table can't be scanned */
+    final class ErrorCB implements Callback<Object, Exception> {
+      @Override
+      public Object call(final Exception e) {
+        LOG.warn("Failed to scan the series of metric " + key
+            + ", skipping the estimate", e);
+        scanner.close();
+        result.callback(new MetricStats());
+        return null;
+      }
+    }
+
+    /** Counts the tracked series of the metric */
+    final class ScannerCB implements Callback<Object,
+        ArrayList<ArrayList<KeyValue>>> {
+
+      Object scan() {
+        return scanner.nextRows().addCallback(this).addErrback(new ErrorCB());
+      }
+
+      @Override
+      public Object call(final ArrayList<ArrayList<KeyValue>> rows) {
+        if (rows == null) {
+          scanner.close();
+          stats.complete();
+          metric_stats.put(key, stats);
+          result.callback(stats);
+          return null;
+        }
+        for (final ArrayList<KeyValue> row : rows) {
+          stats.add(row.get(0).key());
+        }
+        return scan();
+      }
+    }
+
+    new ScannerCB().scan();
+    return result;
+  }
+
+  /** The tracked series of a metric */
+  private static final class MetricStats {
+    /** The number of series */
+    private long series;
+    /** The statistics of each tag key of the series */
+    private final ByteMap<TagKeyStats> tag_keys = new ByteMap<TagKeyStats>();
+
+    /** @param tsuid The TSUID of a series of the metric */
+    void add(final byte[] tsuid) {
+      series++;
+      final short tagk_width = TSDB.tagk_width();
+      for (final byte[] pair : UniqueId.getTagPairsFromTSUID(tsuid)) {
+        final byte[] tagk = Arrays.copyOf(pair, tagk_width);
+        TagKeyStats tag_key = tag_keys.get(tagk);
+        if (tag_key == null) {
+          tag_key = new TagKeyStats();
+          tag_keys.put(tagk, tag_key);
+        }
+        tag_key.series++;
+        tag_key.values.add(UniqueId.uidToLong(
+            Arrays.copyOfRange(pair, tagk_width, pair.length),
+            TSDB.tagv_width()));
+      }
+    }
+
+    /** Keeps the cardinality of each tag key and drops the values */
+    void complete() {
+      for (final TagKeyStats tag_key : tag_keys.values()) {
+        tag_key.cardinality = tag_key.values.size();
+        tag_key.values = null;
+      }
+    }
+
+    /**
+     * @param literals The tag keys of the query mapped to their resolved
+     * values, null to match any value. May be null.
+     * @return the estimated number of series matching the tags
+     */
+    double series(final ByteMap<byte[][]> literals) {
+      double matched = series;
+      if (literals == null || series < 1) {
+        return matched;
+      }
+      for (final Map.Entry<byte[], byte[][]> entry : literals.entrySet()) {
+        final TagKeyStats tag_key = tag_keys.get(entry.getKey());
+        if (tag_key == null) {
+          return 0;
+        }
+        // the share of series with the tag key, then of the values matched
+        matched *= (double) tag_key.series / series;
+        if (entry.getValue() != null) {
+          matched *= Math.min(1,
+              (double) entry.getValue().length / tag_key.cardinality);
+        }
+      }
+      return matched;
+    }
+  }
+
+  /** The series of a metric carrying a tag key */
+  private static final class TagKeyStats {
+    /** The number of series with the tag key */
+    private long series;
+    /** The number of distinct values of the tag key */
+    private long cardinality;
+    /** The distinct values while scanning, null once complete */
+    private Set<Long> values = new HashSet<Long>();
+  }
+}
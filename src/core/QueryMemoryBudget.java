@@ -0,0 +1,170 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hbase.async.KeyValue;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+
+/**
+ * Accounts for the memory retained by the scanners of a single query and
+ * enforces the per query and global budgets, see
+ * {@code tsd.query.memory.max_bytes} and
+ * {@code tsd.query.memory.global_max_bytes}. A budget of 0 is unlimited.
+ * <p>
+ * The bytes of every row kept by the query are reserved before the row is
+ * compacted into its {@link Span}, which is an upper bound of what the spans
+ * retain. When downsampling while scanning, only the first row of each
+ * series is kept, the others are folded into buckets and aren't reserved.
+ * Reserving more than either budget throws a {@link QueryException} so that
+ * the scanner closes and the query fails instead of running the TSD out of
+ * memory.
+ * <p>
+ * The reservation is released, in full, once {@link TsdbQuery#runAsync}
+ * returned its results unless the {@link TSQuery} holds it, see
+ * {@link TSQuery#holdMemory}. The HTTP query RPCs hold it until the response
+ * was sent since the results reference the spans until they're serialized.
+ * <p>
+ * Rows are reserved from the callbacks of every salt scanner so the methods
+ * are synchronized.
+ * @since 2.3
+ */
+final class QueryMemoryBudget {
+
+  /** Rough number of bytes used by a KeyValue object and its arrays */
+  static final int KEY_VALUE_OVERHEAD = 96;
+
+  /** The bytes reserved by every running query of the TSD */
+  private final AtomicLong in_flight;
+
+  /** The number of queries that went over a budget */
+  private final AtomicLong rejections;
+
+  /** The maximum number of bytes this query may reserve, 0 for unlimited */
+  private final long max_bytes;
+
+  /** The maximum number of bytes all queries may reserve, 0 for unlimited */
+  private final long global_max_bytes;
+
+  /** The bytes currently reserved by this query */
+  private long reserved;
+
+  /** The most bytes reserved by this query at any time */
+  private long peak;
+
+  /** Whether or not the reservation was released */
+  private boolean released;
+
+  /** Whether or not the query went over a budget, only counted once */
+  private boolean rejected;
+
+  /**
+   * Default ctor, reads the budgets from the TSDB config
+   * @param tsdb The TSDB the query runs on
+   */
+  QueryMemoryBudget(final TSDB tsdb) {
+    in_flight = tsdb.query_bytes_in_flight;
+    rejections = tsdb.query_memory_rejections;
+    max_bytes = tsdb.getConfig().getLong("tsd.query.memory.max_bytes");
+    global_max_bytes =
+        tsdb.getConfig().getLong("tsd.query.memory.global_max_bytes");
+  }
+
+  /**
+   * Reserves the memory for a row delivered by a scanner.
+   * @param row The columns of the row
+   * @throws QueryException if the query or all the running queries went over
+   * their budget
+   */
+  void reserve(final List<KeyValue> row) {
+    reserve(sizeOf(row));
+  }
+
+  /**
+   * Reserves memory for the query.
+   * @param bytes The number of bytes to reserve
+   * @throws QueryException if the query or all the running queries went over
+   * their budget
+   */
+  synchronized void reserve(final long bytes) {
+    if (released) {
+      // a salt scanner still delivering rows after the query failed
+      return;
+    }
+    reserved += bytes;
+    final long global = in_flight.addAndGet(bytes);
+    if (reserved > peak) {
+      peak = reserved;
+    }
+
+    if (max_bytes > 0 && reserved > max_bytes) {
+      reject();
+      throw new QueryException(HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE,
+          "Sorry, the query fetched more than the maximum of " + max_bytes
+          + " bytes allowed per query. Please try narrowing the time range,"
+          + " filtering on more tags or downsampling.");
+    }
+    if (global_max_bytes > 0 && global > global_max_bytes) {
+      reject();
+      throw new QueryException(HttpResponseStatus.SERVICE_UNAVAILABLE,
+          "Sorry, the running queries fetched more than the maximum of "
+          + global_max_bytes + " bytes allowed at once. Please try again"
+          + " later.");
+    }
+  }
+
+  /**
+   * Releases everything reserved by this query. Only the first call has an
+   * effect.
+   */
+  synchronized void release() {
+    if (!released) {
+      released = true;
+      in_flight.addAndGet(-reserved);
+      reserved = 0;
+    }
+  }
+
+  /** @return the bytes currently reserved by this query */
+  synchronized long reserved() {
+    return reserved;
+  }
+
+  /** @return the most bytes reserved by this query at any time */
+  synchronized long peak() {
+    return peak;
+  }
+
+  /**
+   * @param row The columns of a row
+   * @return the approximate number of bytes used by the row
+   */
+  static long sizeOf(final List<KeyValue> row) {
+    long size = 0;
+    for (final KeyValue kv : row) {
+      size += KEY_VALUE_OVERHEAD + kv.key().length + kv.qualifier().length
+          + kv.value().length;
+    }
+    return size;
+  }
+
+  /** Counts the rejection once per query */
+  private void reject() {
+    if (!rejected) {
+      rejected = true;
+      rejections.incrementAndGet();
+    }
+  }
+}
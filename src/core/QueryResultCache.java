@@ -0,0 +1,387 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.utils.DateTime;
+
+/**
+ * A memory bounded cache of downsampled query results. Dashboards tend to
+ * send the same query over and over with a relative start time such as
+ * {@code 1h-ago}, re-scanning the whole range each time even though only the
+ * last few buckets changed.
+ * <p>
+ * Entries are keyed on the sub query, i.e. the metric, filters, aggregator
+ * and downsampler, and hold the results from the start of the query aligned
+ * down to the downsampling interval up to the last complete bucket that ended
+ * at least a grace period ago. The grace period is at least one interval so
+ * that points arriving a little late for the latest buckets aren't missed.
+ * When the same sub query is run again with a start within a cached range,
+ * only the tail from the end of the cached range is scanned and its buckets
+ * are appended to the cached ones for each series. Series without data in
+ * the range of the query are dropped from the results.
+ * <p>
+ * Only queries whose buckets don't depend on the range being queried can be
+ * cached: they must be downsampled with a fixed interval and not be rates,
+ * and series must either be filled or interpolated without looking at the
+ * neighbouring buckets. Data written further in the past than the grace
+ * period for a cached range, e.g. by a collector catching up, won't show up
+ * until the entry is evicted or the caches are dropped.
+ * @since 2.3
+ */
+public final class QueryResultCache {
+
+  /** Rough number of bytes used by a key and an entry */
+  private static final int OVERHEAD = 1024;
+
+  /** Various counters and metrics for reporting cache stats */
+  private static final AtomicLong hits = new AtomicLong();
+  private static final AtomicLong misses = new AtomicLong();
+  private static final AtomicLong bypassed = new AtomicLong();
+  private static final AtomicLong evictions = new AtomicLong();
+
+  /** The underlying cache */
+  private final Cache<Key, Entry> cache;
+
+  /** Buckets ending less than this long ago aren't cached, in milliseconds */
+  private final long grace_period;
+
+  /**
+   * Default ctor reading the limits from the TSDB config, i.e.
+   * {@code tsd.query.cache.max_bytes}, the approximate amount of memory the
+   * cached results may use, and {@code tsd.query.cache.grace_period}, how
+   * long after a bucket ended, in milliseconds, it may be cached. The grace
+   * period is raised to the downsampling interval if shorter.
+   * @param tsdb The TSDB to read the config from
+   * @throws IllegalArgumentException if the max bytes is less than 1 or the
+   * grace period is negative
+   */
+  public QueryResultCache(final TSDB tsdb) {
+    final long max_bytes =
+        tsdb.getConfig().getLong("tsd.query.cache.max_bytes");
+    final long grace_period =
+        tsdb.getConfig().getLong("tsd.query.cache.grace_period");
+    if (max_bytes < 1) {
+      throw new IllegalArgumentException("Max bytes must be greater than 0");
+    }
+    if (grace_period < 0) {
+      throw new IllegalArgumentException("Grace period must not be negative");
+    }
+    this.grace_period = grace_period;
+
+    class EntryWeigher implements Weigher<Key, Entry> {
+      @Override
+      public int weigh(final Key key, final Entry entry) {
+        return (int) Math.min(Integer.MAX_VALUE, entry.size_in_bytes);
+      }
+    }
+
+    class EvictionListener implements RemovalListener<Key, Entry> {
+      @Override
+      public void onRemoval(final RemovalNotification<Key, Entry> removal) {
+        if (removal.wasEvicted()) {
+          evictions.incrementAndGet();
+        }
+      }
+    }
+
+    cache = CacheBuilder.newBuilder()
+        .maximumWeight(max_bytes)
+        .weigher(new EntryWeigher())
+        .removalListener(new EvictionListener())
+        .build();
+  }
+
+  /**
+   * Determines whether or not the results of a sub query can be cached.
+   * @param data_query The validated query
+   * @param index The index of the sub query
+   * @return True if the buckets of the sub query don't depend on the time
+   * range of the query
+   */
+  public static boolean isCacheable(final TSQuery data_query,
+      final int index) {
+    final TSSubQuery sub = data_query.getQueries().get(index);
+    final DownsamplingSpecification downsampler =
+        sub.downsamplingSpecification();
+    if (data_query.getDelete() || sub.getRate() || downsampler == null ||
+        downsampler == DownsamplingSpecification.NO_DOWNSAMPLER ||
+        downsampler.getInterval() <= 0 || downsampler.useCalendar()) {
+      return false;
+    }
+    // interpolating a missing bucket would look at buckets that may be after
+    // the end of the cached range
+    return downsampler.getFillPolicy() != FillPolicy.NONE ||
+        sub.aggregator().interpolationMethod() != Aggregators.Interpolation.LERP;
+  }
+
+  /**
+   * Runs a sub query, serving what it can from the cache and caching the
+   * complete buckets of the results.
+   * @param data_query The validated query
+   * @param index The index of the sub query
+   * @param query The compiled sub query, its start time may be moved to the
+   * end of a cached range
+   * @return A deferred resolving to the results of the sub query
+   */
+  public Deferred<DataPoints[]> runAsync(final TSQuery data_query,
+      final int index, final Query query) {
+    if (!isCacheable(data_query, index)) {
+      bypassed.incrementAndGet();
+      return query.runAsync();
+    }
+
+    final long interval = data_query.getQueries().get(index)
+        .downsamplingSpecification().getInterval();
+    final long start = data_query.startTime()
+        - (data_query.startTime() % interval);
+    // leave the latest buckets out until late points had a chance to arrive
+    final long settled = Math.min(data_query.endTime(),
+        DateTime.currentTimeMillis() - Math.max(grace_period, interval));
+    final long end = settled - (settled % interval);
+    if (end <= start) {
+      // not a single complete bucket
+      bypassed.incrementAndGet();
+      return query.runAsync();
+    }
+
+    final Key key = new Key(data_query, index);
+    final Entry entry = cache.getIfPresent(key);
+    if (entry != null && entry.start <= start && start < entry.end &&
+        entry.end < data_query.endTime()) {
+      hits.incrementAndGet();
+      query.setStartTime(entry.end);
+      return query.runAsync()
+          .addCallbackDeferring(new CopyCB())
+          .addCallback(new AppendCB(key, entry, start, end, index));
+    }
+
+    misses.incrementAndGet();
+    return query.runAsync()
+        .addCallbackDeferring(new CopyCB())
+        .addCallback(new StoreCB(key, start, end));
+  }
+
+  /** Drops every entry from the cache */
+  public void invalidateAll() {
+    cache.invalidateAll();
+  }
+
+  /** @return The approximate number of entries in the cache */
+  public long size() {
+    return cache.size();
+  }
+
+  /**
+   * Collects the stats for the query result caches
+   * @param collector The collector to use
+   */
+  public static void collectStats(final StatsCollector collector) {
+    collector.record("http.query.cache.hits", hits);
+    collector.record("http.query.cache.misses", misses);
+    collector.record("http.query.cache.bypassed", bypassed);
+    collector.record("http.query.cache.evictions", evictions);
+  }
+
+  /** Materializes the results of a query */
+  private static final class CopyCB implements
+      Callback<Deferred<CachedDataPoints[]>, DataPoints[]> {
+    @Override
+    public Deferred<CachedDataPoints[]> call(final DataPoints[] results) {
+      final List<Deferred<CachedDataPoints>> deferreds =
+          new ArrayList<Deferred<CachedDataPoints>>(results.length);
+      for (final DataPoints dps : results) {
+        deferreds.add(CachedDataPoints.copyOf(dps));
+      }
+
+      class GroupCB implements
+          Callback<CachedDataPoints[], ArrayList<CachedDataPoints>> {
+        @Override
+        public CachedDataPoints[] call(final ArrayList<CachedDataPoints> copies) {
+          return copies.toArray(new CachedDataPoints[copies.size()]);
+        }
+      }
+      return Deferred.groupInOrder(deferreds).addCallback(new GroupCB());
+    }
+  }
+
+  /** Caches the complete buckets of the results of a miss */
+  private final class StoreCB implements
+      Callback<DataPoints[], CachedDataPoints[]> {
+    private final Key key;
+    private final long start;
+    private final long end;
+
+    StoreCB(final Key key, final long start, final long end) {
+      this.key = key;
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    public DataPoints[] call(final CachedDataPoints[] results) {
+      store(key, start, end, results);
+      return results;
+    }
+  }
+
+  /** Appends the results of the tail to the cached buckets of a hit */
+  private final class AppendCB implements
+      Callback<DataPoints[], CachedDataPoints[]> {
+    private final Key key;
+    private final Entry entry;
+    private final long start;
+    private final long end;
+    private final int index;
+
+    AppendCB(final Key key, final Entry entry, final long start,
+        final long end, final int index) {
+      this.key = key;
+      this.entry = entry;
+      this.start = start;
+      this.end = end;
+      this.index = index;
+    }
+
+    @Override
+    public DataPoints[] call(final CachedDataPoints[] tail) {
+      final Map<String, CachedDataPoints> tail_series =
+          new LinkedHashMap<String, CachedDataPoints>(tail.length);
+      for (final CachedDataPoints dps : tail) {
+        // the scan starts on the hour, drop the buckets already cached
+        final CachedDataPoints slice =
+            dps.slice(entry.end, Long.MAX_VALUE, dps.getQueryIndex());
+        if (!isEmpty(slice)) {
+          tail_series.put(slice.groupKey(), slice);
+        }
+      }
+      final List<CachedDataPoints> results =
+          new ArrayList<CachedDataPoints>(entry.series.length + tail.length);
+      for (final CachedDataPoints dps : entry.series) {
+        final CachedDataPoints merged = dps.append(
+            tail_series.remove(dps.groupKey()), start, index);
+        // the series may only have had data before the start of this query
+        if (!isEmpty(merged)) {
+          results.add(merged);
+        }
+      }
+      // series that only have data in the tail
+      results.addAll(tail_series.values());
+
+      final CachedDataPoints[] merged =
+          results.toArray(new CachedDataPoints[results.size()]);
+      if (end > entry.end) {
+        store(key, start, end, merged);
+      }
+      return merged;
+    }
+  }
+
+  /**
+   * Caches the buckets of results in a time range.
+   * @param key The key of the sub query
+   * @param start The start of the range, inclusive, in milliseconds
+   * @param end The end of the range, exclusive, in milliseconds
+   * @param results The results of the sub query
+   */
+  private void store(final Key key, final long start, final long end,
+      final CachedDataPoints[] results) {
+    final List<CachedDataPoints> series =
+        new ArrayList<CachedDataPoints>(results.length);
+    for (final CachedDataPoints dps : results) {
+      final CachedDataPoints slice =
+          dps.slice(start, end, dps.getQueryIndex());
+      if (!isEmpty(slice)) {
+        series.add(slice);
+      }
+    }
+    cache.put(key, new Entry(start, end,
+        series.toArray(new CachedDataPoints[series.size()])));
+  }
+
+  /** @return true if the series has neither data points nor annotations */
+  private static boolean isEmpty(final CachedDataPoints dps) {
+    return dps.size() == 0 && dps.getAnnotations().isEmpty();
+  }
+
+  /**
+   * The normalized sub query, ignoring the time range. The sub query
+   * compares the fields given by the user so queries parsed from different
+   * requests match.
+   */
+  private static final class Key {
+    private final TSSubQuery sub_query;
+    private final boolean no_annotations;
+
+    Key(final TSQuery data_query, final int index) {
+      sub_query = data_query.getQueries().get(index);
+      no_annotations = data_query.getNoAnnotations();
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(sub_query, no_annotations);
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+      if (obj == this) {
+        return true;
+      }
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      final Key key = (Key) obj;
+      return Objects.equal(sub_query, key.sub_query)
+          && no_annotations == key.no_annotations;
+    }
+  }
+
+  /** The cached buckets of a sub query */
+  private static final class Entry {
+    /** The start of the cached range, inclusive, in milliseconds */
+    private final long start;
+    /** The end of the cached range, exclusive, in milliseconds */
+    private final long end;
+    /** The buckets of each series within the range */
+    private final CachedDataPoints[] series;
+    /** The approximate size of the entry */
+    private final long size_in_bytes;
+
+    Entry(final long start, final long end, final CachedDataPoints[] series) {
+      this.start = start;
+      this.end = end;
+      this.series = series;
+      long size = OVERHEAD;
+      for (final CachedDataPoints dps : series) {
+        size += dps.sizeInBytes();
+      }
+      size_in_bytes = size;
+    }
+  }
+}
@@ -0,0 +1,523 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.stats.QueryStats;
+import net.opentsdb.stats.QueryStats.QueryStat;
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.utils.DateTime;
+
+/**
+ * Schedules the data queries of the TSD so that a burst of ad-hoc or
+ * expensive queries can't starve the others.
+ * <p>
+ * Queries are sorted into the classes of {@code tsd.query.scheduler.classes},
+ * a comma separated list of {@code name:concurrency} pairs, and at most
+ * {@code concurrency} queries of a class run at once. A query is assigned,
+ * in order of precedence:
+ * <ul>
+ * <li>{@code tsd.query.scheduler.expensive_class} if it's estimated to scan
+ * more than {@code tsd.query.scheduler.expensive_rows}, which requires the
+ * {@link QueryCostEstimator}</li>
+ * <li>The class named by the {@code tsd.query.scheduler.class_header} header
+ * of the request, if any</li>
+ * <li>The class of its user in {@code tsd.query.scheduler.user_classes}, a
+ * comma separated list of {@code user:class} pairs. The user is read from
+ * the {@code tsd.query.scheduler.user_header} header.</li>
+ * <li>{@code tsd.query.scheduler.default_class} otherwise</li>
+ * </ul>
+ * Queries waiting for a slot of a class are queued per user, or per client
+ * host if the user isn't known, and the queues are served round robin so
+ * that one client submitting many queries only delays its own. The time a
+ * query waited is recorded in its {@link QueryStats}. Queries cancelled while
+ * waiting, e.g. as they timed out, leave their queue right away.
+ * <p>
+ * When the estimator is enabled its own admission is applied first, i.e. a
+ * query may be rejected or wait for an expensive slot before it's queued in
+ * its class.
+ * @since 2.3
+ */
+public final class QueryScheduler {
+
+  /** The TSDB to fetch the estimator from */
+  private final TSDB tsdb;
+
+  /** The classes keyed on their name */
+  private final Map<String, QueryClass> classes;
+
+  /** The class of queries that don't match another one */
+  private final QueryClass default_class;
+
+  /** The class of queries estimated above the expensive rows, may be null */
+  private final QueryClass expensive_class;
+
+  /** Queries estimated above this many rows are expensive, 0 to disable */
+  private final long expensive_rows;
+
+  /** The header naming the class of a query, may be null */
+  private final String class_header;
+
+  /** The header naming the user of a query, may be null */
+  private final String user_header;
+
+  /** The classes of the users */
+  private final Map<String, QueryClass> user_classes;
+
+  /**
+   * Default ctor reading the classes from the TSDB config
+   * @param tsdb The TSDB the queries run on
+   * @throws IllegalArgumentException if a class or user mapping is malformed
+   * or refers to an unknown class
+   */
+  public QueryScheduler(final TSDB tsdb) {
+    this.tsdb = tsdb;
+    classes = new LinkedHashMap<String, QueryClass>();
+    for (final String pair : split(
+        tsdb.getConfig().getString("tsd.query.scheduler.classes"))) {
+      final String[] parts = splitPair(pair);
+      final int concurrency;
+      try {
+        concurrency = Integer.parseInt(parts[1]);
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("Invalid concurrency for the query"
+            + " class: " + pair);
+      }
+      if (concurrency < 1) {
+        throw new IllegalArgumentException("The concurrency of the query"
+            + " class must be greater than 0: " + pair);
+      }
+      classes.put(parts[0], new QueryClass(parts[0], concurrency));
+    }
+    if (classes.isEmpty()) {
+      throw new IllegalArgumentException("At least one query class must be"
+          + " configured");
+    }
+
+    default_class = getQueryClass(
+        tsdb.getConfig().getString("tsd.query.scheduler.default_class"));
+    final String expensive =
+        tsdb.getConfig().getString("tsd.query.scheduler.expensive_class");
+    expensive_class = expensive == null || expensive.isEmpty() ?
+        null : getQueryClass(expensive);
+    expensive_rows =
+        tsdb.getConfig().getLong("tsd.query.scheduler.expensive_rows");
+
+    user_classes = new HashMap<String, QueryClass>();
+    for (final String pair : split(
+        tsdb.getConfig().getString("tsd.query.scheduler.user_classes"))) {
+      final String[] parts = splitPair(pair);
+      user_classes.put(parts[0], getQueryClass(parts[1]));
+    }
+
+    class_header = emptyToNull(
+        tsdb.getConfig().getString("tsd.query.scheduler.class_header"));
+    user_header = emptyToNull(
+        tsdb.getConfig().getString("tsd.query.scheduler.user_header"));
+  }
+
+  /**
+   * Classifies the query, applies the admission of the cost estimator if
+   * enabled, then waits for a slot in the class of the query. The user, if
+   * found in the headers, and the queue time are recorded in the query stats.
+   * @param data_query The validated query
+   * @param queries The compiled sub queries
+   * @param remote_address The address of the client
+   * @param headers The headers of the request, may be null
+   * @return A deferred resolving to the ticket of the query once it may run.
+   * The ticket must be released once the query completed or failed.
+   * @throws QueryException, through the deferred, if the estimator rejected
+   * the query or if the query was cancelled while queued
+   */
+  public Deferred<Ticket> schedule(final TSQuery data_query,
+      final Query[] queries, final String remote_address,
+      final Map<String, String> headers) {
+    final String user = user_header == null ?
+        null : getHeader(headers, user_header);
+    if (user != null && data_query.getQueryStats() != null) {
+      data_query.getQueryStats().setUser(user);
+    }
+    final String tenant = user != null ? user : host(remote_address);
+    final QueryCostEstimator estimator = tsdb.getQueryCostEstimator();
+    if (estimator == null) {
+      return acquire(getQueryClass(classify(headers, user, 0)), tenant,
+          data_query.getQueryStats(), null, data_query.getCancellation());
+    }
+
+    /** Waits for a slot of the class once the estimator admitted the query */
+    class AdmitCB implements Callback<Deferred<Ticket>, Boolean> {
+      private final long rows;
+
+      AdmitCB(final long rows) {
+        this.rows = rows;
+      }
+
+      @Override
+      public Deferred<Ticket> call(final Boolean holds_slot) {
+        return acquire(getQueryClass(classify(headers, user, rows)), tenant,
+            data_query.getQueryStats(), holds_slot ? estimator : null,
+            data_query.getCancellation());
+      }
+    }
+
+    /** Applies the admission of the estimator */
+    class EstimateCB implements Callback<Deferred<Ticket>, Long> {
+      @Override
+      public Deferred<Ticket> call(final Long rows) {
+        return estimator.admit(rows, data_query.getCancellation())
+            .addCallbackDeferring(new AdmitCB(rows));
+      }
+    }
+
+    return estimator.estimateRows(data_query, queries)
+        .addCallbackDeferring(new EstimateCB());
+  }
+
+  /**
+   * Picks the class of a query.
+   * @param headers The headers of the request, may be null
+   * @param user The user of the query, may be null
+   * @param rows The number of rows the query is estimated to scan, 0 if
+   * unknown
+   * @return The name of the class
+   */
+  public String classify(final Map<String, String> headers, final String user,
+      final long rows) {
+    if (expensive_class != null && expensive_rows > 0 &&
+        rows > expensive_rows) {
+      return expensive_class.name;
+    }
+    if (class_header != null) {
+      final String name = getHeader(headers, class_header);
+      if (name != null && classes.containsKey(name)) {
+        return name;
+      }
+    }
+    if (user != null) {
+      final QueryClass user_class = user_classes.get(user);
+      if (user_class != null) {
+        return user_class.name;
+      }
+    }
+    return default_class.name;
+  }
+
+  /**
+   * Waits for a slot of a class.
+   * @param class_name The name of the class
+   * @param tenant The user or client host to queue the query for
+   * @param stats The stats of the query to record the queue time in, may be
+   * null
+   * @return A deferred resolving to the ticket of the query once it may run
+   * @throws IllegalArgumentException if the class doesn't exist
+   */
+  public Deferred<Ticket> acquire(final String class_name, final String tenant,
+      final QueryStats stats) {
+    return acquire(getQueryClass(class_name), tenant, stats, null, null);
+  }
+
+  /** @return the names of the classes in the configured order */
+  public Iterable<String> classes() {
+    return classes.keySet();
+  }
+
+  /**
+   * @param class_name The name of a class
+   * @return The number of queries of the class running
+   * @throws IllegalArgumentException if the class doesn't exist
+   */
+  public int running(final String class_name) {
+    final QueryClass query_class = getQueryClass(class_name);
+    synchronized (query_class) {
+      return query_class.running;
+    }
+  }
+
+  /**
+   * @param class_name The name of a class
+   * @return The number of queries of the class waiting for a slot
+   * @throws IllegalArgumentException if the class doesn't exist
+   */
+  public int waiting(final String class_name) {
+    final QueryClass query_class = getQueryClass(class_name);
+    synchronized (query_class) {
+      return query_class.waiting;
+    }
+  }
+
+  /**
+   * Collects the stats for the scheduler, tagged with the query class
+   * @param collector The collector to use
+   */
+  public void collectStats(final StatsCollector collector) {
+    for (final QueryClass query_class : classes.values()) {
+      final String tag = "query_class=" + query_class.name;
+      collector.record("query.scheduler.scheduled", query_class.scheduled, tag);
+      collector.record("query.scheduler.queued", query_class.queued, tag);
+      collector.record("query.scheduler.queue_time",
+          query_class.queue_time_ms, tag);
+      synchronized (query_class) {
+        collector.record("query.scheduler.running", query_class.running, tag);
+        collector.record("query.scheduler.waiting", query_class.waiting, tag);
+      }
+    }
+  }
+
+  /**
+   * Takes a slot of the class right away if one is free or queues the query
+   * @param query_class The class of the query
+   * @param tenant The user or client host to queue the query for
+   * @param stats The stats of the query, may be null
+   * @param estimator The estimator the query holds an expensive slot of, may
+   * be null
+   * @param cancellation The token of the query, may be null. A query
+   * cancelled while queued leaves the queue, returns its expensive slot and
+   * its deferred fails with the cancellation exception.
+   * @return A deferred resolving to the ticket once the query may run
+   */
+  private Deferred<Ticket> acquire(final QueryClass query_class,
+      final String tenant, final QueryStats stats,
+      final QueryCostEstimator estimator,
+      final CancellationToken cancellation) {
+    final Ticket ticket = new Ticket(query_class, stats, estimator);
+    query_class.scheduled.incrementAndGet();
+    synchronized (query_class) {
+      if (query_class.running < query_class.concurrency) {
+        query_class.running++;
+        ticket.start();
+        return Deferred.fromResult(ticket);
+      }
+      ArrayDeque<Ticket> queue = query_class.queues.get(tenant);
+      if (queue == null) {
+        queue = new ArrayDeque<Ticket>();
+        query_class.queues.put(tenant, queue);
+      }
+      queue.add(ticket);
+      query_class.waiting++;
+    }
+    query_class.queued.incrementAndGet();
+    if (cancellation == null) {
+      return ticket.deferred;
+    }
+
+    /** Leaves the queue if the query is cancelled while waiting. Once it got
+     * its slot the query fails as it starts and releases the ticket with its
+     * error response. */
+    class CancelCB implements Runnable {
+      @Override
+      public void run() {
+        synchronized (query_class) {
+          final ArrayDeque<Ticket> queue = query_class.queues.get(tenant);
+          if (queue == null || !queue.remove(ticket)) {
+            return;
+          }
+          if (queue.isEmpty()) {
+            query_class.queues.remove(tenant);
+          }
+          query_class.waiting--;
+        }
+        if (estimator != null) {
+          estimator.release();
+        }
+        ticket.deferred.callback(cancellation.exception());
+      }
+    }
+
+    cancellation.addListener(new CancelCB());
+    return ticket.deferred;
+  }
+
+  /**
+   * Hands the slot of a finished query to the next tenant in line, if any.
+   * @param query_class The class of the query
+   */
+  private static void release(final QueryClass query_class) {
+    final Ticket next;
+    synchronized (query_class) {
+      final Iterator<Entry<String, ArrayDeque<Ticket>>> it =
+          query_class.queues.entrySet().iterator();
+      if (!it.hasNext()) {
+        query_class.running--;
+        return;
+      }
+      // round robin, the tenant goes to the back of the line if it has more
+      final Entry<String, ArrayDeque<Ticket>> entry = it.next();
+      next = entry.getValue().poll();
+      it.remove();
+      if (!entry.getValue().isEmpty()) {
+        query_class.queues.put(entry.getKey(), entry.getValue());
+      }
+      query_class.waiting--;
+    }
+    next.start();
+    // the slot is handed over, the next query runs on this thread
+    next.deferred.callback(next);
+  }
+
+  /** @return the class with the given name */
+  private QueryClass getQueryClass(final String name) {
+    final QueryClass query_class = classes.get(name);
+    if (query_class == null) {
+      throw new IllegalArgumentException("No such query class: " + name);
+    }
+    return query_class;
+  }
+
+  /**
+   * @return the value of a header, matching its name regardless of case, or
+   * null if missing or empty
+   */
+  private static String getHeader(final Map<String, String> headers,
+      final String name) {
+    if (headers == null) {
+      return null;
+    }
+    for (final Entry<String, String> header : headers.entrySet()) {
+      if (header.getKey().equalsIgnoreCase(name)) {
+        return emptyToNull(header.getValue());
+      }
+    }
+    return null;
+  }
+
+  /** @return the host of an address such as "/127.0.0.1:4242" */
+  private static String host(final String remote_address) {
+    if (remote_address == null) {
+      return "";
+    }
+    final int port = remote_address.lastIndexOf(':');
+    return port > 0 ? remote_address.substring(0, port) : remote_address;
+  }
+
+  /** @return the non-empty, trimmed values of a comma separated list */
+  private static List<String> split(final String list) {
+    final List<String> values = new ArrayList<String>();
+    if (list == null) {
+      return values;
+    }
+    for (final String value : list.split(",")) {
+      if (!value.trim().isEmpty()) {
+        values.add(value.trim());
+      }
+    }
+    return values;
+  }
+
+  /** @return the two sides of a "key:value" pair */
+  private static String[] splitPair(final String pair) {
+    final int colon = pair.indexOf(':');
+    if (colon < 1 || colon == pair.length() - 1) {
+      throw new IllegalArgumentException("Invalid query scheduler pair: "
+          + pair);
+    }
+    return new String[] { pair.substring(0, colon).trim(),
+        pair.substring(colon + 1).trim() };
+  }
+
+  /** @return null if the string is null or empty, the string otherwise */
+  private static String emptyToNull(final String value) {
+    return value == null || value.isEmpty() ? null : value;
+  }
+
+  /** A class of queries with its slots and queues */
+  private static final class QueryClass {
+    private final String name;
+    private final int concurrency;
+
+    /** The queues of each tenant in the order they are served, guarded by
+     * this */
+    private final LinkedHashMap<String, ArrayDeque<Ticket>> queues =
+        new LinkedHashMap<String, ArrayDeque<Ticket>>();
+
+    /** Queries running and waiting, guarded by this */
+    private int running;
+    private int waiting;
+
+    /** Various counters for reporting stats */
+    private final AtomicLong scheduled = new AtomicLong();
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong queue_time_ms = new AtomicLong();
+
+    QueryClass(final String name, final int concurrency) {
+      this.name = name;
+      this.concurrency = concurrency;
+    }
+  }
+
+  /**
+   * The slot of a scheduled query. It must be released once the query
+   * completed or failed, releasing it more than once has no effect.
+   */
+  public static final class Ticket {
+    private final QueryClass query_class;
+    private final QueryStats stats;
+    private final QueryCostEstimator estimator;
+    private final long enqueued_ns;
+    private final Deferred<Ticket> deferred = new Deferred<Ticket>();
+    private long queue_time_ns;
+    private boolean released;
+
+    private Ticket(final QueryClass query_class, final QueryStats stats,
+        final QueryCostEstimator estimator) {
+      this.query_class = query_class;
+      this.stats = stats;
+      this.estimator = estimator;
+      enqueued_ns = DateTime.nanoTime();
+    }
+
+    /** @return the name of the class the query runs in */
+    public String queryClass() {
+      return query_class.name;
+    }
+
+    /** @return how long the query waited for its slot in nanoseconds */
+    public long queueTime() {
+      return queue_time_ns;
+    }
+
+    /** Returns the slot of the query, and its expensive slot if it held one */
+    public void release() {
+      synchronized (this) {
+        if (released) {
+          return;
+        }
+        released = true;
+      }
+      if (estimator != null) {
+        estimator.release();
+      }
+      QueryScheduler.release(query_class);
+    }
+
+    /** Records the queue time once the query got its slot */
+    private void start() {
+      queue_time_ns = DateTime.nanoTime() - enqueued_ns;
+      query_class.queue_time_ms.addAndGet(queue_time_ns / 1000000);
+      if (stats != null) {
+        stats.addStat(QueryStat.QUEUE_TIME, queue_time_ns);
+      }
+    }
+  }
+}
@@ -0,0 +1,202 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.uid.UniqueId;
+
+/**
+ * A bounded, thread-safe cache of row key templates for series that are
+ * written often. Each entry maps the identity of a series, i.e. the metric
+ * and its tags compared as a map, to the salt-less row key template returned
+ * by {@link IncomingDataPoints#rowKeyTemplate} and to the series' TSUID. A
+ * hit saves resolving every tag through the UID caches, allocating the tag
+ * arrays and sorting them on each data point. Looking up a series only
+ * allocates a small {@link Key} around the caller's map, whose hash code is
+ * derived from the cached hash codes of the names.
+ * <p>
+ * Since UIDs never change once assigned, entries only need to be dropped when
+ * a UID is renamed or deleted, or when the UID caches are dropped.
+ * @since 2.3
+ */
+final class RowKeyCache {
+  /** The underlying cache, keyed on {@link #cacheKey} */
+  private final Cache<Key, Entry> cache;
+
+  /**
+   * Default ctor
+   * @param max_entries The maximum number of series to keep in the cache
+   * @throws IllegalArgumentException if the max entries is less than 1
+   */
+  RowKeyCache(final long max_entries) {
+    if (max_entries < 1) {
+      throw new IllegalArgumentException("Max entries must be greater than 0");
+    }
+    cache = CacheBuilder.newBuilder()
+        .maximumSize(max_entries)
+        .recordStats()
+        .build();
+  }
+
+  /**
+   * Builds the identity of a series to look it up. The key wraps the caller's
+   * map without copying it, so it must not be modified while the key is in
+   * use. Store a {@link Key#copy} of it instead.
+   * @param metric The metric name
+   * @param tags The tags for the series
+   * @return A key for the series
+   */
+  static Key cacheKey(final String metric, final Map<String, String> tags) {
+    return new Key(metric, tags);
+  }
+
+  /**
+   * Returns the cached entry for the given series.
+   * @param key The key built with {@link #cacheKey}
+   * @return The entry if found, null if not
+   */
+  Entry get(final Key key) {
+    return cache.getIfPresent(key);
+  }
+
+  /**
+   * Stores the row key template for a series. The template is copied so the
+   * caller is free to modify its array afterwards.
+   * @param key A {@link Key#copy} of the key built with {@link #cacheKey}, as
+   * the key is stored as is
+   * @param row_key_template A salt-less row key template with the metric and
+   * tag UIDs filled in
+   * @return The entry stored in the cache
+   */
+  Entry put(final Key key, final byte[] row_key_template) {
+    final Entry entry = new Entry(
+        Arrays.copyOf(row_key_template, row_key_template.length));
+    cache.put(key, entry);
+    return entry;
+  }
+
+  /** Drops every entry from the cache */
+  void invalidateAll() {
+    cache.invalidateAll();
+  }
+
+  /** @return The approximate number of entries in the cache */
+  long size() {
+    return cache.size();
+  }
+
+  /** @return The hit, miss and eviction counts of the cache */
+  CacheStats stats() {
+    return cache.stats();
+  }
+
+  /**
+   * Collects the stats for this cache
+   * @param collector The collector to use
+   */
+  void collectStats(final StatsCollector collector) {
+    final CacheStats stats = cache.stats();
+    collector.record("rowkey.cache-hit", stats.hitCount());
+    collector.record("rowkey.cache-miss", stats.missCount());
+    collector.record("rowkey.cache-evictions", stats.evictionCount());
+    collector.record("rowkey.cache-size", cache.size());
+  }
+
+  /**
+   * The identity of a series: its metric and its tags, in any order.
+   */
+  static final class Key {
+    /** The metric name */
+    private final String metric;
+
+    /** The tags of the series */
+    private final Map<String, String> tags;
+
+    /** Cached since the key is hashed on every lookup */
+    private final int hash;
+
+    /**
+     * Default ctor
+     * @param metric The metric name
+     * @param tags The tags for the series
+     */
+    private Key(final String metric, final Map<String, String> tags) {
+      this.metric = metric;
+      this.tags = tags;
+      // Map.hashCode() sums the entries so it doesn't depend on their order
+      hash = metric.hashCode() * 31 + tags.hashCode();
+    }
+
+    /** @return A key with its own copy of the tags, safe to store */
+    Key copy() {
+      return new Key(metric, new HashMap<String, String>(tags));
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      final Key key = (Key) obj;
+      return hash == key.hash && metric.equals(key.metric) && 
+          tags.equals(key.tags);
+    }
+  }
+
+  /**
+   * A cached row key template and the TSUID derived from it.
+   */
+  static final class Entry {
+    /** The salt-less row key template, must not be modified */
+    private final byte[] row_key_template;
+
+    /** The TSUID of the series, must not be modified */
+    private final byte[] tsuid;
+
+    /**
+     * Default ctor
+     * @param row_key_template The template to store
+     */
+    Entry(final byte[] row_key_template) {
+      this.row_key_template = row_key_template;
+      tsuid = UniqueId.getTSUIDFromKey(row_key_template, TSDB.metrics_width(),
+          Const.TIMESTAMP_BYTES);
+    }
+
+    /** @return A copy of the row key template that the caller can modify */
+    byte[] newRowKey() {
+      return Arrays.copyOf(row_key_template, row_key_template.length);
+    }
+
+    /** @return The TSUID of the series. Callers must not modify it. */
+    byte[] tsuid() {
+      return tsuid;
+    }
+  }
+}
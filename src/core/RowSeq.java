@@ -67,13 +67,16 @@ final class RowSeq implements DataPoints {
 
   /**
    * Sets the row this instance holds in RAM using a row from a scanner.
-   * @param row The compacted HBase row to set.
+   * @param row The compacted HBase row to set. May be a compressed column.
    * @throws IllegalStateException if this method was already called.
    */
-  void setRow(final KeyValue row) {
+  void setRow(KeyValue row) {
     if (this.key != null) {
       throw new IllegalStateException("setRow was already called on " + this);
     }
+    if (CompressedDataPoints.isCompressedDataPoints(row.qualifier())) {
+      row = CompressedDataPoints.decode(row);
+    }
 
     this.key = row.key();
     this.qualifiers = row.qualifier();
@@ -86,15 +89,19 @@ final class RowSeq implements DataPoints {
    * this method with data sets that are out of order. This may ONLY be called 
    * after setRow() has initiated the rowseq. It also allows for rows with 
    * different salt bucket IDs to be merged into the same sequence.
-   * @param row The compacted HBase row to merge into this instance.
+   * @param row The compacted HBase row to merge into this instance. May be a
+   * compressed column.
    * @throws IllegalStateException if {@link #setRow} wasn't called first.
    * @throws IllegalArgumentException if the data points in the argument
    * do not belong to the same row as this RowSeq
    */
-  void addRow(final KeyValue row) {
+  void addRow(KeyValue row) {
     if (this.key == null) {
       throw new IllegalStateException("setRow was never called on " + this);
     }
+    if (CompressedDataPoints.isCompressedDataPoints(row.qualifier())) {
+      row = CompressedDataPoints.decode(row);
+    }
 
     final byte[] key = row.key();
     if (Bytes.memcmp(this.key, key, Const.SALT_WIDTH(), 
@@ -224,6 +231,21 @@ final class RowSeq implements DataPoints {
     values[values.length - 1] = meta;
   }
 
+  /**
+   * Merges the data points of another sequence for the same HBase row, e.g.
+   * when the row was fetched by two salt scanners.
+   * See {@link #addRow(KeyValue)}.
+   * @param other The sequence to merge into this instance
+   * @throws IllegalStateException if {@link #setRow} wasn't called first.
+   * @throws IllegalDataException if the other sequence is for a different
+   * row
+   * @since 2.3
+   */
+  void addRow(final RowSeq other) {
+    addRow(new KeyValue(other.key, TSDB.FAMILY, other.qualifiers, 
+        other.values));
+  }
+
   /**
    * Extracts the value of a cell containing a data point.
    * @param value The contents of a cell in HBase.
@@ -66,11 +66,6 @@ public class SaltScanner {
    * salt bucket. */
   private final List<Scanner> scanners;
   
-  /** Stores the compacted columns from each scanner as it completes. After all
-   * scanners are done, we process this into the span map above. */
-  private final Map<Integer, List<KeyValue>> kv_map = 
-          new ConcurrentHashMap<Integer, List<KeyValue>>();
-  
   /** Stores annotations from each scanner as it completes */
   private final Map<byte[], List<Annotation>> annotation_map = 
           Collections.synchronizedMap(
@@ -101,12 +96,28 @@ public class SaltScanner {
    * are done.*/
   private long start_time; // milliseconds.
 
+  /** The generation of the fragment cache when the scan started */
+  private long fragment_generation;
+
   /** Whether or not to delete the queried data */
   private final boolean delete;
   
   /** A list of filters to iterate over when processing rows */
   private final List<TagVFilter> filters;
   
+  /** The downsampling to apply to the rows as they are scanned, null to keep
+   * the raw data points */
+  private final DownsamplingSpecification downsampler;
+  
+  /** Accounts for the memory retained by the rows, may be null */
+  private final QueryMemoryBudget memory_budget;
+  
+  /** Cancels the scan once nobody waits for the results, may be null */
+  private final CancellationToken cancellation;
+  
+  /** The end of the scan range in seconds */
+  private final long scan_end;
+  
   /** A holder for storing the first exception thrown by a scanner if something
    * goes pear shaped. Make sure to synchronize on this object when checking
    * for null or assigning from a scanner's callback. */
@@ -151,6 +162,76 @@ public class SaltScanner {
                                       final boolean delete,
                                       final QueryStats query_stats,
                                       final int query_index) {
+    this(tsdb, metric, scanners, spans, filters, delete, query_stats, 
+        query_index, null);
+  }
+  
+  /**
+   * Default ctor that performs some validation. Call {@link scan} after 
+   * construction to actually start fetching data.
+   * @param tsdb The TSDB to which we belong
+   * @param metric The metric we're expecting to fetch
+   * @param scanners A list of HBase scanners, one for each bucket
+   * @param spans The span map to store results in
+   * @param delete Whether or not to delete the queried data
+   * @param filters A list of filters for processing
+   * @param query_stats A stats object for tracking timing
+   * @param query_index The index of the sub query in the main query list
+   * @param downsampler An optional downsampling specification to apply to
+   * the rows as they are scanned, see {@link DownsampleBuckets}. May be null
+   * to keep the raw data points.
+   * @throws IllegalArgumentException if any required data was missing or
+   * we had invalid parameters.
+   * @since 2.3
+   */
+  public SaltScanner(final TSDB tsdb, final byte[] metric, 
+                                      final List<Scanner> scanners, 
+                                      final TreeMap<byte[], Span> spans,
+                                      final List<TagVFilter> filters,
+                                      final boolean delete,
+                                      final QueryStats query_stats,
+                                      final int query_index,
+                                      final DownsamplingSpecification downsampler) {
+    this(tsdb, metric, scanners, spans, filters, delete, query_stats, 
+        query_index, downsampler, null, null, 0);
+  }
+  
+  /**
+   * Default ctor that performs some validation. Call {@link scan} after 
+   * construction to actually start fetching data.
+   * @param tsdb The TSDB to which we belong
+   * @param metric The metric we're expecting to fetch
+   * @param scanners A list of HBase scanners, one for each bucket
+   * @param spans The span map to store results in
+   * @param delete Whether or not to delete the queried data
+   * @param filters A list of filters for processing
+   * @param query_stats A stats object for tracking timing
+   * @param query_index The index of the sub query in the main query list
+   * @param downsampler An optional downsampling specification to apply to
+   * the rows as they are scanned, see {@link DownsampleBuckets}. May be null
+   * to keep the raw data points.
+   * @param memory_budget An optional budget to reserve the memory of each
+   * row from. The scanners are closed and the scan fails if it runs out.
+   * May be null to skip the accounting.
+   * @param cancellation An optional token of the query. The scanners are
+   * closed and the scan fails as soon as it's cancelled. May be null.
+   * @param scan_end The end of the scan range in seconds, used to estimate
+   * the rows avoided when the query is cancelled
+   * @throws IllegalArgumentException if any required data was missing or
+   * we had invalid parameters.
+   * @since 2.3
+   */
+  SaltScanner(final TSDB tsdb, final byte[] metric, 
+                               final List<Scanner> scanners, 
+                               final TreeMap<byte[], Span> spans,
+                               final List<TagVFilter> filters,
+                               final boolean delete,
+                               final QueryStats query_stats,
+                               final int query_index,
+                               final DownsamplingSpecification downsampler,
+                               final QueryMemoryBudget memory_budget,
+                               final CancellationToken cancellation,
+                               final long scan_end) {
     if (Const.SALT_WIDTH() < 1) {
       throw new IllegalArgumentException(
           "Salting is disabled. Use the regular scanner");
@@ -180,6 +261,10 @@ public class SaltScanner {
       throw new IllegalArgumentException("The metric was too short. It must be " 
           + TSDB.metrics_width() + "bytes wide.");
     }
+    if (downsampler != null && !DownsampleBuckets.supports(downsampler)) {
+      throw new IllegalArgumentException("The downsampling specification "
+          + "can't be applied while scanning: " + downsampler);
+    }
     
     this.scanners = scanners;
     this.spans = spans;
@@ -189,6 +274,10 @@ public class SaltScanner {
     this.delete = delete;
     this.query_stats = query_stats;
     this.query_index = query_index;
+    this.downsampler = downsampler;
+    this.memory_budget = memory_budget;
+    this.cancellation = cancellation;
+    this.scan_end = scan_end;
   }
 
   /**
@@ -200,22 +289,42 @@ public class SaltScanner {
    */
   public Deferred<TreeMap<byte[], Span>> scan() {
     start_time = System.currentTimeMillis();
+    fragment_generation = tsdb.fragmentCache() == null ?
+        0 : tsdb.fragmentCache().generation();
+    final List<ScannerCB> scanner_cbs = 
+        new ArrayList<ScannerCB>(scanners.size());
     int i = 0;
     for (final Scanner scanner: scanners) {
-      new ScannerCB(scanner, i++).scan();
+      scanner_cbs.add(new ScannerCB(scanner, i++));
+    }
+    if (cancellation != null) {
+      
+      /** Closes every scanner as soon as the query is cancelled */
+      final class CancelCB implements Runnable {
+        @Override
+        public void run() {
+          for (final ScannerCB scanner_cb : scanner_cbs) {
+            scanner_cb.cancel();
+          }
+        }
+      }
+      cancellation.addListener(new CancelCB());
+    }
+    for (final ScannerCB scanner_cb : scanner_cbs) {
+      scanner_cb.scan();
     }
     return results; 
   }
 
   /**
    * Called once all of the scanners have reported back in to record our
-   * latency and merge the results into the spans map. If there was an exception
-   * stored then we'll return that instead.
+   * latency and attach the annotations to the spans. The spans themselves
+   * were merged as each scanner completed, see {@link #mergeSpans}. If there
+   * was an exception stored then we'll return that instead.
    */
   private void mergeAndReturnResults() {
     final long hbase_time = System.currentTimeMillis();
     TsdbQuery.scanlatency.add((int)(hbase_time - start_time));
-    long rows = 0;
 
     if (exception != null) {
       LOG.error("After all of the scanners finished, at "
@@ -224,52 +333,12 @@ public class SaltScanner {
       return;
     }
     
-    // Merge sorted spans together
     final long merge_start = DateTime.nanoTime();
-    for (final List<KeyValue> kvs : kv_map.values()) {
-      if (kvs == null || kvs.isEmpty()) {
-        LOG.warn("Found a key value list that was null or empty");
-        continue;
-      }
-      
-      for (final KeyValue kv : kvs) {
-        if (kv == null) {
-          LOG.warn("Found a key value item that was null");
-          continue;
-        }
-        if (kv.key() == null) {
-          LOG.warn("A key for a kv was null");
-          continue;
-        }
-
-        Span datapoints = spans.get(kv.key());
-        if (datapoints == null) {
-          datapoints = new Span(tsdb);
-          spans.put(kv.key(), datapoints);
-        }
-
-        if (annotation_map.containsKey(kv.key())) {
-          for (final Annotation note: annotation_map.get(kv.key())) {
-            datapoints.getAnnotations().add(note);
-          }
-          annotation_map.remove(kv.key());
-        }
-        try {  
-          datapoints.addRow(kv);
-          rows++;
-        } catch (RuntimeException e) {
-          LOG.error("Exception adding row to span", e);
-          throw e;
-        }
-      }
-    }
-     
-    kv_map.clear();
-
     for (final byte[] key : annotation_map.keySet()) {
       Span datapoints = spans.get(key);
       if (datapoints == null) {
-        datapoints = new Span(tsdb);
+        datapoints = downsampler == null ? new Span(tsdb) : 
+          new Span(tsdb, downsampler, fragment_generation);
         spans.put(key, datapoints);
       }
 
@@ -283,15 +352,44 @@ public class SaltScanner {
           (DateTime.nanoTime() - merge_start));
     }
     if (LOG.isDebugEnabled()) {
-      LOG.debug("Scanning completed in " + (hbase_time - start_time) + " ms, " +
-            rows + " rows, and stored in " + spans.size() + " spans");
+      LOG.debug("Scanning completed in " + (hbase_time - start_time) + " ms, " 
+            + "and stored in " + spans.size() + " spans");
       LOG.debug("It took " + (System.currentTimeMillis() - hbase_time) + " ms, "
-            + " to merge and sort the rows into a tree map");
+            + " to attach the annotations");
     }
 
     results.callback(spans);
   }
 
+  /**
+   * Merges the spans of a completed scanner into the results. The scanners
+   * complete at different times so each one merges its own sorted spans as
+   * soon as it's done instead of leaving the whole merge to the last one.
+   * A series usually lives in a single salt bucket, if not its spans are
+   * merged.
+   * @param scanner_spans The spans built by the scanner
+   */
+  private void mergeSpans(final TreeMap<byte[], Span> scanner_spans) {
+    if (scanner_spans.isEmpty()) {
+      return;
+    }
+    synchronized (spans) {
+      if (spans.isEmpty()) {
+        // linear time since both maps are sorted with the same comparator
+        spans.putAll(scanner_spans);
+        return;
+      }
+      for (final Map.Entry<byte[], Span> entry : scanner_spans.entrySet()) {
+        final Span datapoints = spans.get(entry.getKey());
+        if (datapoints == null) {
+          spans.put(entry.getKey(), entry.getValue());
+        } else {
+          datapoints.merge(entry.getValue());
+        }
+      }
+    }
+  }
+
   /**
   * Scanner callback executed recursively each time we get a set of data
   * from storage. This is responsible for determining what columns are
@@ -303,7 +401,9 @@ public class SaltScanner {
     ArrayList<ArrayList<KeyValue>>> {
     private final Scanner scanner;
     private final int index;
-    private final List<KeyValue> kvs = new ArrayList<KeyValue>();
+    /** The spans of this salt bucket, built as the rows come in */
+    private final TreeMap<byte[], Span> scanner_spans = 
+        new TreeMap<byte[], Span>(spans.comparator());
     private final ByteMap<List<Annotation>> annotations = 
             new ByteMap<List<Annotation>>();
     private final Set<String> skips = Collections.newSetFromMap(
@@ -322,6 +422,11 @@ public class SaltScanner {
     private long rows_pre_filter = 0;
     private long dps_post_filter = 0;
     private long rows_post_filter = 0;
+    /** The first and last row keys fetched, to estimate the rows avoided */
+    private byte[] first_key;
+    private byte[] last_key;
+    /** Set once the scanner was closed, e.g. when a row failed */
+    private volatile boolean closed = false;
     
     public ScannerCB(final Scanner scanner, final int index) {
       this.scanner = scanner;
@@ -351,6 +456,9 @@ public class SaltScanner {
     * found
     */
     public Object scan() {
+      if (closed) {
+        return null;
+      }
       if (scanner_start < 0) {
         scanner_start = DateTime.nanoTime();
       }
@@ -368,9 +476,15 @@ public class SaltScanner {
             throws Exception {
       try {
         fetch_time += DateTime.nanoTime() - fetch_start;
-        if (rows == null) {
+        if (closed) {
+          // cancelled while the rows were in flight
+          return null;
+        } else if (rows == null) {
           close(true);
           return null;
+        } else if (cancellation != null && cancellation.isCancelled()) {
+          cancel();
+          return null;
         } else if (exception != null) {
           close(false);
           // don't need to handleException here as it's already taken care of
@@ -388,7 +502,16 @@ public class SaltScanner {
         
         rows_pre_filter += rows.size();
         for (final ArrayList<KeyValue> row : rows) {
+          if (closed) {
+            // a row failed, e.g. the query ran out of memory, or the query
+            // was cancelled
+            return null;
+          }
           final byte[] key = row.get(0).key();
+          if (first_key == null) {
+            first_key = key;
+          }
+          last_key = key;
           if (RowKey.rowKeyContainsMetric(metric, key) != 0) {
             close(false);
             handleException(new IllegalDataException(
@@ -425,6 +548,9 @@ public class SaltScanner {
                 idx += qlength + Internal.getValueLengthFromQualifier(kv.value(), idx);
                 ++dps_pre_filter;
               }
+            } else if (kv.qualifier()[0] == 
+                CompressedDataPoints.COMPRESSED_COLUMN_PREFIX) {
+              dps_pre_filter += CompressedDataPoints.numDataPoints(kv.value());
             }
           }
           
@@ -499,12 +625,12 @@ public class SaltScanner {
           class GroupCB implements Callback<Object, ArrayList<Object>> {
             @Override
             public Object call(final ArrayList<Object> group) throws Exception {
-              return scan();
+              return closed ? null : scan();
             }
           }
           return Deferred.group(lookups).addCallback(new GroupCB());
         } else {
-          return scan();
+          return closed ? null : scan();
         }
       } catch (final RuntimeException e) {
         LOG.error("Unexpected exception on scanner " + this, e);
@@ -521,7 +647,19 @@ public class SaltScanner {
      * @param row The row to add
      */
     void processRow(final byte[] key, final ArrayList<KeyValue> row) {
+      if (closed) {
+        return;
+      }
       ++rows_post_filter;
+      if (memory_budget != null && isRetained(key)) {
+        try {
+          memory_budget.reserve(row);
+        } catch (QueryException e) {
+          close(false);
+          handleException(e);
+          return;
+        }
+      }
       if (delete) {
         final DeleteRequest del = new DeleteRequest(tsdb.dataTable(), key);
         tsdb.getClient().delete(del);
@@ -554,6 +692,9 @@ public class SaltScanner {
             idx += qlength + Internal.getValueLengthFromQualifier(kv.value(), idx);
             ++dps_post_filter;
           }
+        } else if (kv.qualifier()[0] == 
+            CompressedDataPoints.COMPRESSED_COLUMN_PREFIX) {
+          dps_post_filter += CompressedDataPoints.numDataPoints(kv.value());
         }
       }
 
@@ -581,18 +722,72 @@ public class SaltScanner {
         return;
       }
       compaction_time += (DateTime.nanoTime() - compaction_start);
-      if (compacted != null) { // Can be null if we ignored all KVs.
-        kvs.add(compacted);
+      if (compacted == null) { // Can be null if we ignored all KVs.
+        return;
+      }
+      // add the row to its span right away, in parallel with the other
+      // scanners, and when downsampling only keep the partials
+      try {
+        synchronized (scanner_spans) {
+          Span datapoints = scanner_spans.get(key);
+          if (datapoints == null) {
+            datapoints = downsampler == null ? new Span(tsdb) : 
+              new Span(tsdb, downsampler, fragment_generation);
+            scanner_spans.put(key, datapoints);
+          }
+          datapoints.addRow(compacted);
+        }
+      } catch (RuntimeException e) {
+        LOG.error("Exception adding row to span", e);
+        close(false);
+        handleException(e);
       }
     }
   
+    /**
+     * Whether or not the span of a row will keep it. Rows folded into the
+     * buckets of a downsampling span aren't kept, only the first one of each
+     * series.
+     * @param key The row key
+     * @return True if the row should be reserved from the memory budget
+     */
+    private boolean isRetained(final byte[] key) {
+      if (downsampler == null) {
+        return true;
+      }
+      synchronized (scanner_spans) {
+        return !scanner_spans.containsKey(key);
+      }
+    }
+  
+    /** Closes the scanner right away and fails the scan */
+    void cancel() {
+      if (!close(false)) {
+        return;
+      }
+      final long rows_avoided = CancellationToken.scannerClosed(first_key, 
+          last_key, rows_pre_filter, scan_end);
+      if (query_stats != null) {
+        query_stats.addScannerStat(query_index, index, 
+            QueryStat.ROWS_AVOIDED, rows_avoided);
+      }
+      handleException(cancellation.exception());
+    }
+  
     /**
      * Closes the scanner and sets the various stats after filtering
      * @param ok Whether or not the scanner closed with an exception or 
      * closed due to natural causes (e.g. ran out of data or we wanted to stop
      * it early)
+     * @return True if the scanner was closed by this call
      */
-    void close(final boolean ok) {
+    boolean close(final boolean ok) {
+      synchronized (this) {
+        if (closed) {
+          return false;
+        }
+        closed = true;
+      }
       scanner.close();
       
       if (query_stats != null) {
@@ -630,24 +825,29 @@ public class SaltScanner {
       }
       
       if (ok && exception == null) {
-        validateAndTriggerCallback(kvs, annotations);
+        validateAndTriggerCallback(index, scanner_spans, annotations);
       } else {
         completed_tasks.incrementAndGet();
       }
+      return true;
     }
   }
   
   /**
    * Called each time a scanner completes with valid or empty data.
-   * @param kvs The compacted columns fetched by the scanner
+   * @param index The index of the scanner
+   * @param scanner_spans The spans built by the scanner
    * @param annotations The annotations fetched by the scanners
    */
-  private void validateAndTriggerCallback(final List<KeyValue> kvs, 
+  private void validateAndTriggerCallback(final int index, 
+          final TreeMap<byte[], Span> scanner_spans,
           final Map<byte[], List<Annotation>> annotations) {
 
-    final int tasks = completed_tasks.incrementAndGet();
-    if (kvs.size() > 0) {
-      kv_map.put(tasks, kvs);
+    final long merge_start = DateTime.nanoTime();
+    mergeSpans(scanner_spans);
+    if (query_stats != null) {
+      query_stats.addScannerStat(query_index, index, 
+          QueryStat.SPAN_MERGE_TIME, DateTime.nanoTime() - merge_start);
     }
     
     for (final byte[] key : annotations.keySet()) {
@@ -658,6 +858,9 @@ public class SaltScanner {
       }
     }
     
+    // only count the scanner once its spans are merged so the last one to
+    // complete sees all of the results
+    final int tasks = completed_tasks.incrementAndGet();
     if (tasks >= Const.SALT_BUCKETS()) {
       try {
         mergeAndReturnResults();
@@ -31,7 +31,13 @@ import com.stumbleupon.async.Deferred;
 /**
  * Represents a read-only sequence of continuous data points.
  * <p>
- * This class stores a continuous sequence of {@link RowSeq}s in memory.
+ * This class stores a continuous sequence of {@link RowSeq}s in memory. Once
+ * the scan is complete, the rows can be {@link #decode}d into a
+ * {@link ColumnarDataPoints} to speed up iteration.
+ * <p>
+ * When created with a downsampling specification, the span downsamples the
+ * rows as they are added and only keeps the {@link DownsampleBuckets} and
+ * the first row for its key.
  */
 final class Span implements DataPoints {
 
@@ -51,12 +57,55 @@ final class Span implements DataPoints {
    */
   private boolean sorted;
   
+  /** The decoded data points, null until {@link #decode} is called. */
+  private ColumnarDataPoints columns;
+  
+  /** The downsampled data points when rows are downsampled as they are
+   * added, null otherwise. */
+  private final DownsampleBuckets buckets;
+  
+  /** The generation of the fragment cache when the scan started */
+  private final long fragment_generation;
+  
   /**
    * Default constructor.
    * @param tsdb The TSDB to which we belong
    */
   Span(final TSDB tsdb) {
     this.tsdb = tsdb;
+    buckets = null;
+    fragment_generation = 0;
+  }
+
+  /**
+   * Constructor for a span that downsamples the rows as they are added.
+   * @param tsdb The TSDB to which we belong
+   * @param downsampler The downsampling specification to apply, must be
+   * supported by {@link DownsampleBuckets#supports}
+   * @throws IllegalArgumentException if the specification is not supported
+   * @since 2.3
+   */
+  Span(final TSDB tsdb, final DownsamplingSpecification downsampler) {
+    this(tsdb, downsampler, tsdb.fragmentCache() == null ?
+        0 : tsdb.fragmentCache().generation());
+  }
+
+  /**
+   * Constructor for a span that downsamples the rows as they are added.
+   * @param tsdb The TSDB to which we belong
+   * @param downsampler The downsampling specification to apply, must be
+   * supported by {@link DownsampleBuckets#supports}
+   * @param fragment_generation The {@link FragmentCache#generation} read
+   * before the scan started, so that fragments of rows invalidated since
+   * aren't cached
+   * @throws IllegalArgumentException if the specification is not supported
+   * @since 2.3
+   */
+  Span(final TSDB tsdb, final DownsamplingSpecification downsampler,
+      final long fragment_generation) {
+    this.tsdb = tsdb;
+    buckets = new DownsampleBuckets(downsampler);
+    this.fragment_generation = fragment_generation;
   }
 
   /** @throws IllegalStateException if the span doesn't have any rows */
@@ -137,6 +186,12 @@ final class Span implements DataPoints {
    * Unfortunately we must walk the entire array for every row as there may be a 
    * mix of second and millisecond timestamps */
   public int size() {
+    if (buckets != null) {
+      return buckets.size();
+    }
+    if (columns != null) {
+      return columns.size();
+    }
     int size = 0;
     for (final RowSeq row : rows) {
       size += row.size();
@@ -171,8 +226,13 @@ final class Span implements DataPoints {
    * @param row The compacted row to add to this span.
    * @throws IllegalArgumentException if the argument and this span are for
    * two different time series.
+   * @throws IllegalStateException if the span was already decoded.
    */
   void addRow(final KeyValue row) {
+    if (columns != null) {
+      throw new IllegalStateException("Can't add a row to a decoded span "
+          + this);
+    }
     long last_ts = 0;
     if (rows.size() != 0) {
       // Verify that we have the same metric id and tags.
@@ -197,9 +257,15 @@ final class Span implements DataPoints {
             + " whereas the row key being added is " + Arrays.toString(key)
             + " and metric_width=" + metric_width);
       }
-      last_ts = last.timestamp(last.size() - 1);  // O(n)
+      if (buckets == null) {
+        last_ts = last.timestamp(last.size() - 1);  // O(n)
+      }
     }
 
+    if (buckets != null) {
+      addDownsampled(row);
+      return;
+    }
     final RowSeq rowseq = new RowSeq(tsdb);
     rowseq.setRow(row);
     sorted = false;
@@ -217,6 +283,116 @@ final class Span implements DataPoints {
     rows.add(rowseq);
   }
 
+  /**
+   * Folds the data points of a row into the buckets, using the fragment cache
+   * when enabled. The cache is checked before the row is decoded, only the
+   * first row is decoded on a hit as it's kept for the key.
+   * @param row The compacted row to add
+   */
+  private void addDownsampled(final KeyValue row) {
+    final FragmentCache fragments = FragmentCache.supports(buckets.function())
+        ? tsdb.fragmentCache() : null;
+    final FragmentCache.Fragment cached = fragments == null ?
+        null : fragments.get(row.key(), buckets.interval());
+    if (cached != null && !rows.isEmpty()) {
+      cached.addTo(buckets);
+      return;
+    }
+
+    final RowSeq rowseq = new RowSeq(tsdb);
+    rowseq.setRow(row);
+    // only keep the first row for the key
+    if (rows.isEmpty()) {
+      rows.add(rowseq);
+    }
+    if (cached != null) {
+      cached.addTo(buckets);
+    } else if (fragments != null) {
+      final FragmentCache.Fragment fragment =
+          FragmentCache.Fragment.fromRow(rowseq, buckets.interval());
+      fragments.put(row.key(), fragment, fragment_generation);
+      fragment.addTo(buckets);
+    } else {
+      final RowSeq.Iterator it = rowseq.internalIterator();
+      while (it.hasNext()) {
+        final DataPoint dp = it.next();
+        buckets.add(dp.timestamp(), dp.toDouble());
+      }
+    }
+  }
+
+  /**
+   * Decodes all the data points of this span into primitive arrays, see
+   * {@link ColumnarDataPoints}. Call this once all the rows have been added.
+   * The rows are released except for the first one that we keep for the
+   * row key. Does nothing if the span is empty, was already decoded or is
+   * downsampled as rows are added.
+   * @throws IllegalDataException if a row contains malformed data
+   */
+  void decode() {
+    if (columns != null || buckets != null || rows.isEmpty()) {
+      return;
+    }
+    checkRowOrder();
+    columns = ColumnarDataPoints.fromRows(rows);
+    rows.subList(1, rows.size()).clear();
+    rows.trimToSize();
+  }
+
+  /** @return whether or not the span was decoded */
+  boolean isDecoded() {
+    return columns != null;
+  }
+
+  /** @return whether or not the rows are downsampled as they are added */
+  boolean isDownsampled() {
+    return buckets != null;
+  }
+
+  /**
+   * Merges the data points of another span of the same time series, e.g.
+   * when the series was fetched by more than one salt scanner. Rows for the
+   * same hour are merged like in {@link #addRow}. Downsampled spans must use
+   * the same specification.
+   * @param other The span to merge into this one
+   * @throws IllegalStateException if either span was decoded or if only one
+   * of them is downsampled
+   * @throws IllegalArgumentException if the downsampling specifications
+   * differ
+   * @since 2.3
+   */
+  void merge(final Span other) {
+    if (columns != null || other.columns != null || 
+        (buckets == null) != (other.buckets == null)) {
+      throw new IllegalStateException("Can't merge " + other + " into " 
+          + this);
+    }
+    annotations.addAll(other.annotations);
+    if (buckets != null) {
+      buckets.merge(other.buckets);
+      if (rows.isEmpty()) {
+        rows.addAll(other.rows);
+      }
+      return;
+    }
+    sorted = false;
+    for (final RowSeq row : other.rows) {
+      boolean merged = false;
+      for (final RowSeq rs : rows) {
+        if (rs.key.length == row.key.length && 
+            Bytes.memcmp(rs.key, row.key, Const.SALT_WIDTH(), 
+            (rs.key.length - Const.SALT_WIDTH())) == 0) {
+          rs.addRow(row);
+          merged = true;
+          break;
+        }
+      }
+      if (!merged) {
+        rows.add(row);
+      }
+    }
+  }
+
   /**
    * Package private helper to access the last timestamp in an HBase row.
    * @param metric_width The number of bytes on which metric IDs are stored.
@@ -227,7 +403,9 @@ final class Span implements DataPoints {
   static long lastTimestampInRow(final short metric_width,
                                  final KeyValue row) {
     final long base_time = Bytes.getUnsignedInt(row.key(), metric_width);
-    final byte[] qual = row.qualifier();
+    final byte[] qual = 
+        CompressedDataPoints.isCompressedDataPoints(row.qualifier()) ?
+            CompressedDataPoints.decode(row).qualifier() : row.qualifier();
     if (qual.length >= 4 && Internal.inMilliseconds(qual[qual.length - 4])) {
       return (base_time * 1000) + ((Bytes.getUnsignedInt(qual, qual.length - 4) & 
           0x0FFFFFC0) >>> (Const.MS_FLAG_BITS));
@@ -274,6 +452,12 @@ final class Span implements DataPoints {
    * @throws IndexOutOfBoundsException if the index would be out of bounds
    */
   public long timestamp(final int i) {
+    if (buckets != null) {
+      return buckets.timestamp(i);
+    }
+    if (columns != null) {
+      return columns.timestamp(i);
+    }
     checkRowOrder();
     final long idxoffset = getIdxOffsetFor(i);
     final int idx = (int) (idxoffset >>> 32);
@@ -289,6 +473,13 @@ final class Span implements DataPoints {
    * @throws IndexOutOfBoundsException if the index would be out of bounds
    */
   public boolean isInteger(final int i) {
+    if (buckets != null) {
+      buckets.timestamp(i);  // bounds check
+      return false;
+    }
+    if (columns != null) {
+      return columns.isInteger(i);
+    }
     checkRowOrder();
     final long idxoffset = getIdxOffsetFor(i);
     final int idx = (int) (idxoffset >>> 32);
@@ -307,6 +498,13 @@ final class Span implements DataPoints {
    * @throws IllegalDataException if the data is malformed
    */
   public long longValue(final int i) {
+    if (buckets != null) {
+      throw new ClassCastException("value #" + i + " is not a long in "
+          + this);
+    }
+    if (columns != null) {
+      return columns.longValue(i);
+    }
     checkRowOrder();
     final long idxoffset = getIdxOffsetFor(i);
     final int idx = (int) (idxoffset >>> 32);
@@ -325,6 +523,12 @@ final class Span implements DataPoints {
    * @throws IllegalDataException if the data is malformed
    */
   public double doubleValue(final int i) {
+    if (buckets != null) {
+      return buckets.value(i);
+    }
+    if (columns != null) {
+      return columns.doubleValue(i);
+    }
     checkRowOrder();
     final long idxoffset = getIdxOffsetFor(i);
     final int idx = (int) (idxoffset >>> 32);
@@ -336,6 +540,12 @@ final class Span implements DataPoints {
   @Override
   public String toString() {
     final StringBuilder buf = new StringBuilder();
+    if (buckets != null || columns != null) {
+      buf.append("Span(")
+         .append(buckets != null ? buckets : columns)
+         .append(')');
+      return buf.toString();
+    }
     buf.append("Span(")
        .append(rows.size())
        .append(" rows, [");
@@ -386,8 +596,16 @@ final class Span implements DataPoints {
     }
   }
   
-  /** Package private iterator method to access it as a Span.Iterator. */
-  Span.Iterator spanIterator() {
+  /** Package private iterator method to access it as a Span.Iterator or
+   * a ColumnarDataPoints.Iterator if the span was decoded or a
+   * DownsampleBuckets.Iterator if it was downsampled. */
+  SeekableView spanIterator() {
+    if (buckets != null) {
+      return buckets.iterator();
+    }
+    if (columns != null) {
+      return columns.iterator();
+    }
     if (!sorted) {
       Collections.sort(rows, new RowSeq.RowSeqComparator());
       sorted = true;
@@ -474,6 +692,11 @@ final class Span implements DataPoints {
                           final long interval_ms,
                           final Aggregator downsampler,
                           final FillPolicy fill_policy) {
+    if (buckets != null) {
+      // already downsampled, just align and fill the intervals
+      return downsampler(start_time, end_time, new DownsamplingSpecification(
+          interval_ms, downsampler, fill_policy), 0, 0);
+    }
     if (FillPolicy.NONE == fill_policy) {
       // The default downsampler simply skips missing intervals, causing the
       // span group to linearly interpolate.
@@ -503,6 +726,18 @@ final class Span implements DataPoints {
     if (downsampler == null) {
       return null;
     }
+    if (buckets != null) {
+      // already downsampled, each interval has a single value to pass along
+      final DownsamplingSpecification identity = new DownsamplingSpecification(
+          downsampler.getInterval(), Aggregators.LAST, 
+          downsampler.getFillPolicy());
+      if (FillPolicy.NONE == identity.getFillPolicy()) {
+        return new Downsampler(spanIterator(), identity, 
+            query_start, query_end);
+      }
+      return new FillingDownsampler(spanIterator(), start_time, end_time, 
+          identity, query_start, query_end);
+    }
     if (FillPolicy.NONE == downsampler.getFillPolicy()) {
       return new Downsampler(spanIterator(), downsampler, 
           query_start, query_end);  
@@ -106,6 +106,9 @@ final class SpanGroup implements DataPoints {
   /** The TSDB to which we belong, used for resolution */
   private final TSDB tsdb;
   
+  /** Stops the aggregation once the query is cancelled, may be null */
+  private CancellationToken cancellation;
+  
   /**
    * Ctor.
    * @param tsdb The TSDB we belong to.
@@ -246,6 +249,15 @@ final class SpanGroup implements DataPoints {
      this.tsdb = tsdb;
   }
   
+  /**
+   * @param cancellation The token of the query to stop the aggregation when 
+   * it's cancelled, may be null
+   * @since 2.3
+   */
+  void setCancellation(final CancellationToken cancellation) {
+    this.cancellation = cancellation;
+  }
+  
   /**
    * Adds a span to this group, provided that it's in the right time range.
    * <b>Must not</b> be called once {@link #getTags} or
@@ -484,10 +496,11 @@ final class SpanGroup implements DataPoints {
   }
 
   public SeekableView iterator() {
-    return AggregationIterator.create(spans, start_time, end_time, aggregator,
-                                  aggregator.interpolationMethod(),
-                                  downsampler, query_start, query_end,
-                                  rate, rate_options);
+    final AggregationIterator it = AggregationIterator.create(spans, 
+        start_time, end_time, aggregator, aggregator.interpolationMethod(),
+        downsampler, query_start, query_end, rate, rate_options);
+    it.setCancellation(cancellation);
+    return it;
   }
 
   /**
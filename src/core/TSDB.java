@@ -49,6 +49,7 @@ import net.opentsdb.uid.NoSuchUniqueId;
 import net.opentsdb.uid.NoSuchUniqueName;
 import net.opentsdb.uid.UniqueId;
 import net.opentsdb.uid.UniqueIdFilterPlugin;
+import net.opentsdb.uid.UniqueIdSnapshot;
 import net.opentsdb.uid.UniqueId.UniqueIdType;
 import net.opentsdb.utils.Config;
 import net.opentsdb.utils.DateTime;
@@ -120,6 +121,30 @@ public final class TSDB {
    */
   private final CompactionQueue compactionq;
 
+  /** Optional cache of row key templates for frequently written series */
+  private final RowKeyCache row_key_cache;
+
+  /** Optional cache of downsampled query results */
+  private final QueryResultCache query_cache;
+
+  /** Optional cache of the downsampled partials of past hours */
+  private final FragmentCache fragment_cache;
+
+  /** Optional estimator used to reject or queue expensive queries */
+  private final QueryCostEstimator query_cost_estimator;
+
+  /** Optional scheduler limiting the queries run at once by class */
+  private final QueryScheduler query_scheduler;
+
+  /** Optional index of the last data point written to each series */
+  private final LastValueIndex last_value_index;
+
+  /** Optional buffer coalescing data points into multi-column puts */
+  private final WriteBuffer write_buffer;
+
+  /** Optional on-disk snapshot of the UID caches */
+  private final UniqueIdSnapshot uid_snapshot;
+
   /** Search indexer to use if configure */
   private SearchPlugin search = null;
 
@@ -148,6 +173,12 @@ public final class TSDB {
   /** Datapoints Added */
   private static final AtomicLong datapoints_added = new AtomicLong();
 
+  /** Bytes retained by the scanners of the running queries */
+  final AtomicLong query_bytes_in_flight = new AtomicLong();
+
+  /** Queries aborted for going over a memory budget */
+  final AtomicLong query_memory_rejections = new AtomicLong();
+
   /**
    * Constructor
    * @param client An initialized HBase client object
@@ -204,14 +235,50 @@ public final class TSDB {
     treetable = config.getString("tsd.storage.hbase.tree_table").getBytes(CHARSET);
     meta_table = config.getString("tsd.storage.hbase.meta_table").getBytes(CHARSET);
 
-    if (config.getBoolean("tsd.core.uid.random_metrics")) {
-      metrics = new UniqueId(this, uidtable, METRICS_QUAL, METRICS_WIDTH, true);
+    metrics = new UniqueId(this, uidtable, METRICS_QUAL, METRICS_WIDTH, 
+        config.getBoolean("tsd.core.uid.random_metrics"), 
+        config.getLong("tsd.core.uid.cache.max_entries.metric"));
+    tag_names = new UniqueId(this, uidtable, TAG_NAME_QUAL, TAG_NAME_WIDTH, 
+        false, config.getLong("tsd.core.uid.cache.max_entries.tagk"));
+    tag_values = new UniqueId(this, uidtable, TAG_VALUE_QUAL, TAG_VALUE_WIDTH, 
+        false, config.getLong("tsd.core.uid.cache.max_entries.tagv"));
+    compactionq = new CompactionQueue(this);
+    
+    if (config.getBoolean("tsd.core.row_key_cache.enable")) {
+      row_key_cache = new RowKeyCache(
+          config.getLong("tsd.core.row_key_cache.max_entries"));
     } else {
-      metrics = new UniqueId(this, uidtable, METRICS_QUAL, METRICS_WIDTH, false);
+      row_key_cache = null;
+    }
+    
+    if (config.getBoolean("tsd.query.cache.enable")) {
+      query_cache = new QueryResultCache(this);
+    } else {
+      query_cache = null;
+    }
+    
+    if (config.getBoolean("tsd.query.fragment_cache.enable")) {
+      fragment_cache = new FragmentCache(
+          config.getLong("tsd.query.fragment_cache.max_bytes"));
+    } else {
+      fragment_cache = null;
+    }
+    if (config.getBoolean("tsd.query.cost.enable")) {
+      query_cost_estimator = new QueryCostEstimator(this);
+    } else {
+      query_cost_estimator = null;
+    }
+    if (config.getBoolean("tsd.query.scheduler.enable")) {
+      query_scheduler = new QueryScheduler(this);
+    } else {
+      query_scheduler = null;
+    }
+    if (config.getBoolean("tsd.query.last_value_index.enable")) {
+      last_value_index = new LastValueIndex(
+          config.getLong("tsd.query.last_value_index.max_bytes"));
+    } else {
+      last_value_index = null;
     }
-    tag_names = new UniqueId(this, uidtable, TAG_NAME_QUAL, TAG_NAME_WIDTH, false);
-    tag_values = new UniqueId(this, uidtable, TAG_VALUE_QUAL, TAG_VALUE_WIDTH, false);
-    compactionq = new CompactionQueue(this);
     
     if (config.hasProperty("tsd.core.timezone")) {
       DateTime.setDefaultTimezone(config.getString("tsd.core.timezone"));
@@ -219,16 +286,56 @@ public final class TSDB {
     
     timer = Threads.newTimer("TSDB Timer");
     
+    if (config.getBoolean("tsd.storage.write_buffer.enable") && 
+        !config.enable_appends()) {
+      write_buffer = new WriteBuffer(this);
+    } else {
+      write_buffer = null;
+    }
+    
     QueryStats.setEnableDuplicates(
         config.getBoolean("tsd.query.allow_simultaneous_duplicates"));
     
-    if (config.getBoolean("tsd.core.preload_uid_cache")) {
-      final ByteMap<UniqueId> uid_cache_map = new ByteMap<UniqueId>();
-      uid_cache_map.put(METRICS_QUAL.getBytes(CHARSET), metrics);
-      uid_cache_map.put(TAG_NAME_QUAL.getBytes(CHARSET), tag_names);
-      uid_cache_map.put(TAG_VALUE_QUAL.getBytes(CHARSET), tag_values);
+    final ByteMap<UniqueId> uid_cache_map = new ByteMap<UniqueId>();
+    uid_cache_map.put(METRICS_QUAL.getBytes(CHARSET), metrics);
+    uid_cache_map.put(TAG_NAME_QUAL.getBytes(CHARSET), tag_names);
+    uid_cache_map.put(TAG_VALUE_QUAL.getBytes(CHARSET), tag_values);
+    final boolean suggest_index = 
+        config.getBoolean("tsd.core.uid.suggest_index.enable");
+    final long negative_cache_ttl = 
+        config.getLong("tsd.core.uid.negative_cache.ttl");
+    if (negative_cache_ttl > 0) {
+      for (final UniqueId uid : uid_cache_map.values()) {
+        uid.enableNegativeCache(negative_cache_ttl, 
+            config.getInt("tsd.core.uid.negative_cache.max_entries"));
+      }
+    }
+    if (suggest_index) {
+      // before warming the caches so that the index tracks what they learn
+      for (final UniqueId uid : uid_cache_map.values()) {
+        uid.enableSuggestIndex();
+      }
+    }
+    if (config.getBoolean("tsd.core.uid_snapshot.enable")) {
+      uid_snapshot = new UniqueIdSnapshot(this, uid_cache_map, 
+          config.getString("tsd.core.uid_snapshot.path"));
+    } else {
+      uid_snapshot = null;
+    }
+    // the snapshot replaces the full scan of the preload when it's usable
+    if (uid_snapshot != null && uid_snapshot.load()) {
+      uid_snapshot.reconcile();
+    } else if (config.getBoolean("tsd.core.preload_uid_cache")) {
       UniqueId.preloadUidCache(this, uid_cache_map);
     }
+    if (uid_snapshot != null) {
+      uid_snapshot.start(config.getLong("tsd.core.uid_snapshot.interval"));
+    }
+    if (suggest_index) {
+      for (final UniqueId uid : uid_cache_map.values()) {
+        uid.buildSuggestIndex();
+      }
+    }
     
     if (config.getString("tsd.core.tag.allow_specialchars") != null) {
       Tags.setAllowSpecialChars(config.getString("tsd.core.tag.allow_specialchars"));
@@ -659,6 +766,9 @@ public final class TSDB {
     collector.record("uid.filter.rejected", rejected_dps.get(), "kind=raw");
     collector.record("uid.filter.rejected", rejected_aggregate_dps.get(), 
         "kind=aggregate");
+    if (uid_snapshot != null) {
+      uid_snapshot.collectStats(collector);
+    }
 
     {
       final Runtime runtime = Runtime.getRuntime();
@@ -676,6 +786,23 @@ public final class TSDB {
     collector.addExtraTag("class", "TSDB");
     try {
       collector.record("datapoints.added", datapoints_added, "type=all");
+      collector.record("query.memory.in_flight", query_bytes_in_flight);
+      collector.record("query.memory.rejected", query_memory_rejections);
+      if (row_key_cache != null) {
+        row_key_cache.collectStats(collector);
+      }
+      if (fragment_cache != null) {
+        fragment_cache.collectStats(collector);
+      }
+      if (query_cost_estimator != null) {
+        query_cost_estimator.collectStats(collector);
+      }
+      if (query_scheduler != null) {
+        query_scheduler.collectStats(collector);
+      }
+      if (last_value_index != null) {
+        last_value_index.collectStats(collector);
+      }
     } finally {
       collector.clearExtraTag("class");
     }
@@ -714,6 +841,9 @@ public final class TSDB {
         stats.idleConnectionsClosed());
 
     compactionq.collectStats(collector);
+    if (write_buffer != null) {
+      write_buffer.collectStats(collector);
+    }
     // Collect Stats from Plugins
     if (startup != null) {
       try {
@@ -765,6 +895,49 @@ public final class TSDB {
     }
   }
 
+  /** @return The row key template cache, null if it's disabled. */
+  RowKeyCache rowKeyCache() {
+    return row_key_cache;
+  }
+  
+  /** @return The downsampled fragment cache, null if it's disabled. */
+  FragmentCache fragmentCache() {
+    return fragment_cache;
+  }
+  
+  /**
+   * @return The query result cache, null if it's disabled.
+   * @since 2.3
+   */
+  public QueryResultCache getQueryResultCache() {
+    return query_cache;
+  }
+  
+  /**
+   * @return The query cost estimator, null if it's disabled.
+   * @since 2.3
+   */
+  public QueryCostEstimator getQueryCostEstimator() {
+    return query_cost_estimator;
+  }
+
+  /**
+   * @return The query scheduler, null if it's disabled.
+   * @since 2.3
+   */
+  public QueryScheduler getQueryScheduler() {
+    return query_scheduler;
+  }
+
+  /**
+   * @return The index of the last data point of each series, null if it's
+   * disabled.
+   * @since 2.3
+   */
+  public LastValueIndex getLastValueIndex() {
+    return last_value_index;
+  }
+  
   /** Returns a latency histogram for Put RPCs used to store data points. */
   public Histogram getPutLatencyHistogram() {
     return IncomingDataPoints.putlatency;
@@ -785,10 +958,16 @@ public final class TSDB {
     collector.record("uid.cache-hit", uid.cacheHits(), "kind=" + uid.kind());
     collector.record("uid.cache-miss", uid.cacheMisses(), "kind=" + uid.kind());
     collector.record("uid.cache-size", uid.cacheSize(), "kind=" + uid.kind());
+    collector.record("uid.cache-evictions", uid.cacheEvictions(), 
+        "kind=" + uid.kind());
     collector.record("uid.random-collisions", uid.randomIdCollisions(), 
         "kind=" + uid.kind());
     collector.record("uid.rejected-assignments", uid.rejectedAssignments(), 
         "kind=" + uid.kind());
+    collector.record("uid.lookups-coalesced", uid.lookupsCoalesced(), 
+        "kind=" + uid.kind());
+    collector.record("uid.negative-cache-hits", uid.negativeCacheHits(), 
+        "kind=" + uid.kind());
   }
 
   /** @return the width, in bytes, of metric UIDs */
@@ -858,6 +1037,28 @@ public final class TSDB {
                                    final long timestamp,
                                    final long value,
                                    final Map<String, String> tags) {
+    return addPoint(metric, timestamp, value, tags, null);
+  }
+
+  /**
+   * Adds a single integer value data point in the TSDB and tells the caller
+   * once the UIDs of its series are resolved, before the write completes.
+   * @param metric A non-empty string.
+   * @param timestamp The timestamp associated with the value.
+   * @param value The value of the data point.
+   * @param tags The tags on this series.  This map must be non-empty.
+   * @param resolved An optional deferred called back with null once the row
+   * key of the series is resolved, or with the exception if it couldn't be,
+   * e.g. a {@link NoSuchUniqueName}.  Not called if this method throws.
+   * @return A deferred object that indicates the completion of the request.
+   * @see #addPoint(String, long, long, Map)
+   * @since 2.3
+   */
+  public Deferred<Object> addPoint(final String metric,
+                                   final long timestamp,
+                                   final long value,
+                                   final Map<String, String> tags,
+                                   final Deferred<Object> resolved) {
     final byte[] v;
     if (Byte.MIN_VALUE <= value && value <= Byte.MAX_VALUE) {
       v = new byte[] { (byte) value };
@@ -870,7 +1071,7 @@ public final class TSDB {
     }
 
     final short flags = (short) (v.length - 1);  // Just the length.
-    return addPointInternal(metric, timestamp, v, tags, flags);
+    return addPointInternal(metric, timestamp, v, tags, flags, resolved);
   }
 
   /**
@@ -899,6 +1100,28 @@ public final class TSDB {
                                    final long timestamp,
                                    final double value,
                                    final Map<String, String> tags) {
+    return addPoint(metric, timestamp, value, tags, null);
+  }
+
+  /**
+   * Adds a double precision floating-point value data point in the TSDB and
+   * tells the caller once the UIDs of its series are resolved.
+   * @param metric A non-empty string.
+   * @param timestamp The timestamp associated with the value.
+   * @param value The value of the data point.
+   * @param tags The tags on this series.  This map must be non-empty.
+   * @param resolved An optional deferred called back with null once the row
+   * key of the series is resolved, or with the exception if it couldn't be.
+   * Not called if this method throws.
+   * @return A deferred object that indicates the completion of the request.
+   * @see #addPoint(String, long, double, Map)
+   * @since 2.3
+   */
+  public Deferred<Object> addPoint(final String metric,
+                                   final long timestamp,
+                                   final double value,
+                                   final Map<String, String> tags,
+                                   final Deferred<Object> resolved) {
     if (Double.isNaN(value) || Double.isInfinite(value)) {
       throw new IllegalArgumentException("value is NaN or Infinite: " + value
                                          + " for metric=" + metric
@@ -907,7 +1130,7 @@ public final class TSDB {
     final short flags = Const.FLAG_FLOAT | 0x7;  // A float stored on 8 bytes.
     return addPointInternal(metric, timestamp,
                             Bytes.fromLong(Double.doubleToRawLongBits(value)),
-                            tags, flags);
+                            tags, flags, resolved);
   }
 
   /**
@@ -935,6 +1158,28 @@ public final class TSDB {
                                    final long timestamp,
                                    final float value,
                                    final Map<String, String> tags) {
+    return addPoint(metric, timestamp, value, tags, null);
+  }
+
+  /**
+   * Adds a single floating-point value data point in the TSDB and tells the
+   * caller once the UIDs of its series are resolved.
+   * @param metric A non-empty string.
+   * @param timestamp The timestamp associated with the value.
+   * @param value The value of the data point.
+   * @param tags The tags on this series.  This map must be non-empty.
+   * @param resolved An optional deferred called back with null once the row
+   * key of the series is resolved, or with the exception if it couldn't be.
+   * Not called if this method throws.
+   * @return A deferred object that indicates the completion of the request.
+   * @see #addPoint(String, long, float, Map)
+   * @since 2.3
+   */
+  public Deferred<Object> addPoint(final String metric,
+                                   final long timestamp,
+                                   final float value,
+                                   final Map<String, String> tags,
+                                   final Deferred<Object> resolved) {
     if (Float.isNaN(value) || Float.isInfinite(value)) {
       throw new IllegalArgumentException("value is NaN or Infinite: " + value
                                          + " for metric=" + metric
@@ -943,14 +1188,15 @@ public final class TSDB {
     final short flags = Const.FLAG_FLOAT | 0x3;  // A float stored on 4 bytes.
     return addPointInternal(metric, timestamp,
                             Bytes.fromInt(Float.floatToRawIntBits(value)),
-                            tags, flags);
+                            tags, flags, resolved);
   }
 
   private Deferred<Object> addPointInternal(final String metric,
                                             final long timestamp,
                                             final byte[] value,
                                             final Map<String, String> tags,
-                                            final short flags) {
+                                            final short flags,
+                                            final Deferred<Object> resolved) {
     // we only accept positive unix epoch timestamps in seconds or milliseconds
     if (timestamp < 0 || ((timestamp & Const.SECOND_MASK) != 0 && 
         timestamp > 9999999999999L)) {
@@ -960,7 +1206,6 @@ public final class TSDB {
           + " to metric=" + metric + ", tags=" + tags);
     }
     IncomingDataPoints.checkMetricAndTags(metric, tags);
-    final byte[] row = IncomingDataPoints.rowKeyTemplate(this, metric, tags);
     final long base_time;
     final byte[] qualifier = Internal.buildQualifier(timestamp, flags);
     
@@ -972,9 +1217,59 @@ public final class TSDB {
       base_time = (timestamp - (timestamp % Const.MAX_TIMESPAN));
     }
     
+    /** Callback executed once the point was stored to index its value. Points
+     * that failed to be written must not be served as the last value. */
+    final class LastValueCB implements Callback<Object, Object> {
+      final byte[] tsuid;
+      
+      LastValueCB(final byte[] tsuid) {
+        this.tsuid = tsuid;
+      }
+      
+      @Override
+      public Object call(final Object result) {
+        last_value_index.update(tsuid, timestamp, value, flags);
+        return result;
+      }
+      @Override
+      public String toString() {
+        return "addPointInternal Last Value Callback";
+      }
+    }
+    
+    /** Callback executed once the point was written to drop the cached
+     * fragment of its row. Scans that read the row before the point landed
+     * then either lose their fragment here or skip caching it. Also called
+     * on errors as a failed RPC may still have been applied. */
+    final class InvalidateCB implements Callback<Object, Object> {
+      final byte[] row;
+      
+      InvalidateCB(final byte[] row) {
+        this.row = row;
+      }
+      
+      @Override
+      public Object call(final Object result) {
+        fragment_cache.invalidate(row, base_time);
+        return result;
+      }
+      @Override
+      public String toString() {
+        return "addPointInternal Fragment Invalidation Callback";
+      }
+    }
+    
     /** Callback executed for chaining filter calls to see if the value
      * should be written or not. */
     final class WriteCB implements Callback<Deferred<Object>, Boolean> {
+      final byte[] row;
+      final byte[] cached_tsuid;
+      
+      WriteCB(final byte[] row, final byte[] cached_tsuid) {
+        this.row = row;
+        this.cached_tsuid = cached_tsuid;
+      }
+      
       @Override
       public Deferred<Object> call(final Boolean allowed) throws Exception {
         if (!allowed) {
@@ -992,9 +1287,18 @@ public final class TSDB {
               AppendDataPoints.APPEND_COLUMN_QUALIFIER, kv.getBytes());
           result = client.append(point);
         } else {
-          scheduleForCompaction(row, (int) base_time);
-          final PutRequest point = new PutRequest(table, row, FAMILY, qualifier, value);
-          result = client.put(point);
+          if (write_buffer != null) {
+            result = write_buffer.add(row, qualifier, value);
+          } else {
+            final PutRequest point = new PutRequest(table, row, FAMILY, qualifier, value);
+            result = client.put(point);
+          }
+          result = scheduleForCompaction(row, (int) base_time, qualifier, value, 
+              result);
+        }
+        if (fragment_cache != null) {
+          // late data for an hour that may have been cached
+          result.addBoth(new InvalidateCB(row));
         }
 
         // Count all added datapoints, not just those that came in through PUT rpc
@@ -1004,13 +1308,24 @@ public final class TSDB {
         // TODO(tsuna): Add a callback to time the latency of HBase and store the
         // timing in a moving Histogram (once we have a class for this).
         
+        byte[] tsuid = cached_tsuid;
+        if (last_value_index != null) {
+          if (tsuid == null) {
+            tsuid = UniqueId.getTSUIDFromKey(row, METRICS_WIDTH, 
+                Const.TIMESTAMP_BYTES);
+          }
+          result.addCallback(new LastValueCB(tsuid));
+        }
+        
         if (!config.enable_realtime_ts() && !config.enable_tsuid_incrementing() && 
             !config.enable_tsuid_tracking() && rt_publisher == null) {
           return result;
         }
         
-        final byte[] tsuid = UniqueId.getTSUIDFromKey(row, METRICS_WIDTH, 
-            Const.TIMESTAMP_BYTES);
+        if (tsuid == null) {
+          tsuid = UniqueId.getTSUIDFromKey(row, METRICS_WIDTH, 
+              Const.TIMESTAMP_BYTES);
+        }
         
         // if the meta cache plugin is instantiated then tracking goes through it
         if (meta_cache != null) {
@@ -1042,11 +1357,98 @@ public final class TSDB {
       }
     }
     
-    if (ts_filter != null && ts_filter.filterDataPoints()) {
-      return ts_filter.allowDataPoint(metric, timestamp, value, tags, flags)
-          .addCallbackDeferring(new WriteCB());
+    /** Callback executed once the row key template has been resolved. UID
+     * lookups and assignments are chained asynchronously so that callers 
+     * running on I/O threads never block waiting on HBase. */
+    final class RowKeyCB implements Callback<Deferred<Object>, byte[]> {
+      final byte[] cached_tsuid;
+      
+      RowKeyCB(final byte[] cached_tsuid) {
+        this.cached_tsuid = cached_tsuid;
+      }
+      
+      @Override
+      public Deferred<Object> call(final byte[] row) throws Exception {
+        if (ts_filter != null && ts_filter.filterDataPoints()) {
+          return ts_filter.allowDataPoint(metric, timestamp, value, tags, flags)
+              .addCallbackDeferring(new WriteCB(row, cached_tsuid));
+        }
+        return new WriteCB(row, cached_tsuid).call(true);
+      }
+      @Override
+      public String toString() {
+        return "addPointInternal Row Key Callback";
+      }
+    }
+    
+    /** Tells the caller the row key was resolved */
+    final class ResolvedCB implements Callback<Object, byte[]> {
+      @Override
+      public Object call(final byte[] row) {
+        resolved.callback(null);
+        return row;
+      }
+      @Override
+      public String toString() {
+        return "addPointInternal Resolved Callback";
+      }
+    }
+    
+    /** Tells the caller why the row key couldn't be resolved */
+    final class UnresolvedCB implements Callback<Object, Exception> {
+      @Override
+      public Object call(final Exception e) {
+        resolved.callback(e);
+        return e;
+      }
+      @Override
+      public String toString() {
+        return "addPointInternal Unresolved Callback";
+      }
+    }
+    
+    if (row_key_cache == null) {
+      final Deferred<byte[]> row_key = 
+          IncomingDataPoints.rowKeyTemplateAsync(this, metric, tags);
+      if (resolved != null) {
+        row_key.addCallbacks(new ResolvedCB(), new UnresolvedCB());
+      }
+      return row_key.addCallbackDeferring(new RowKeyCB(null));
+    }
+    
+    final RowKeyCache.Key cache_key = RowKeyCache.cacheKey(metric, tags);
+    final RowKeyCache.Entry entry = row_key_cache.get(cache_key);
+    if (entry != null) {
+      if (resolved != null) {
+        resolved.callback(null);
+      }
+      return Deferred.fromResult(entry.newRowKey())
+          .addCallbackDeferring(new RowKeyCB(entry.tsuid()));
     }
-    return Deferred.fromResult(true).addCallbackDeferring(new WriteCB());
+    
+    // the caller may reuse its map once we return
+    final RowKeyCache.Key stored_key = cache_key.copy();
+    
+    /** Stores the resolved template before the write callback modifies it */
+    final class CacheRowKeyCB implements Callback<byte[], byte[]> {
+      @Override
+      public byte[] call(final byte[] row) throws Exception {
+        row_key_cache.put(stored_key, row);
+        return row;
+      }
+      @Override
+      public String toString() {
+        return "addPointInternal Cache Row Key Callback";
+      }
+    }
+    
+    final Deferred<byte[]> row_key = 
+        IncomingDataPoints.rowKeyTemplateAsync(this, metric, tags)
+        .addCallback(new CacheRowKeyCB());
+    if (resolved != null) {
+      row_key.addCallbacks(new ResolvedCB(), new UnresolvedCB());
+    }
+    return row_key.addCallbackDeferring(new RowKeyCB(null));
   }
 
   /**
@@ -1072,9 +1474,22 @@ public final class TSDB {
       }
     }
 
-    return config.enable_compactions() && compactionq != null
-      ? compactionq.flush().addCallback(new HClientFlush())
-      : client.flush();
+    final class CompactionFlush 
+      implements Callback<Deferred<Object>, ArrayList<Object>> {
+      public Deferred<Object> call(final ArrayList<Object> args) {
+        return config.enable_compactions() && compactionq != null
+          ? compactionq.flush().addCallback(new HClientFlush())
+          : client.flush();
+      }
+      public String toString() {
+        return "flush compaction queue";
+      }
+    }
+
+    if (write_buffer != null) {
+      return write_buffer.flush().addCallbackDeferring(new CompactionFlush());
+    }
+    return new CompactionFlush().call(null);
   }
 
   /**
@@ -1165,10 +1580,18 @@ public final class TSDB {
       }
     }
     
+    if (write_buffer != null) {
+      LOG.info("Flushing write buffer");
+      deferreds.add(write_buffer.flush().addCallback(new CompactCB()));
+    }
     if (config.enable_compactions()) {
       LOG.info("Flushing compaction queue");
       deferreds.add(compactionq.flush().addCallback(new CompactCB()));
     }
+    if (uid_snapshot != null) {
+      LOG.info("Writing the UID cache snapshot");
+      deferreds.add(uid_snapshot.shutdown());
+    }
     if (startup != null) {
       LOG.info("Shutting down startup plugin: " +
               startup.getClass().getCanonicalName());
@@ -1277,6 +1700,18 @@ public final class TSDB {
     metrics.dropCaches();
     tag_names.dropCaches();
     tag_values.dropCaches();
+    if (row_key_cache != null) {
+      row_key_cache.invalidateAll();
+    }
+    if (query_cache != null) {
+      query_cache.invalidateAll();
+    }
+    if (fragment_cache != null) {
+      fragment_cache.invalidateAll();
+    }
+    if (query_cost_estimator != null) {
+      query_cost_estimator.invalidateAll();
+    }
   }
 
   /**
@@ -1335,6 +1770,9 @@ public final class TSDB {
    */
   public Deferred<Object> deleteUidAsync(final String type, final String name) {
     final UniqueIdType uid_type = UniqueId.stringToUniqueIdType(type);
+    if (row_key_cache != null) {
+      row_key_cache.invalidateAll();
+    }
     switch (uid_type) {
     case METRIC:
       return metrics.deleteAsync(name);
@@ -1363,6 +1801,9 @@ public final class TSDB {
       final String newname) {
     Tags.validateString(type, oldname);
     Tags.validateString(type, newname);
+    if (row_key_cache != null) {
+      row_key_cache.invalidateAll();
+    }
     if (type.toLowerCase().equals("metric")) {
       try {
         this.metrics.getId(oldname);
@@ -1580,6 +2021,27 @@ public final class TSDB {
     }
   }
 
+  /**
+   * Schedules the given row key for later re-compaction after writing a single
+   * cell to it. If {@code tsd.storage.compaction.precompact} is enabled, the 
+   * cell is kept in memory so the row can be compacted without reading it back.
+   * @param row The row key to re-compact later.  Will not be modified.
+   * @param base_time The 32-bit unsigned UNIX timestamp.
+   * @param qualifier The qualifier of the cell written.
+   * @param value The value of the cell written.
+   * @param put The deferred of the write.
+   * @return The deferred of the write.
+   * @since 2.3
+   */
+  final Deferred<Object> scheduleForCompaction(final byte[] row, 
+      final int base_time, final byte[] qualifier, final byte[] value,
+      final Deferred<Object> put) {
+    if (config.enable_compactions()) {
+      return compactionq.add(row, qualifier, value, put);
+    }
+    return put;
+  }
+
   // ------------------------ //
   // HBase operations helpers //
   // ------------------------ //
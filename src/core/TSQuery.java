@@ -102,6 +102,16 @@ public final class TSQuery {
   /** The query status for tracking over all performance of this query */
   private QueryStats query_stats;
   
+  /** Cancels the query once nobody waits for its results */
+  private final CancellationToken cancellation = new CancellationToken();
+  
+  /** The memory budgets of the sub queries held until released, null if
+   * they're released as soon as each sub query returned. Guarded by this. */
+  private List<QueryMemoryBudget> held_budgets;
+  
+  /** Whether or not the held budgets were released. Guarded by this. */
+  private boolean budgets_released;
+  
   /**
    * Default constructor necessary for POJO de/serialization
    */
@@ -253,6 +263,53 @@ public final class TSQuery {
     return Deferred.group(deferreds).addCallback(new GroupFinished());
   }
   
+  /**
+   * Keeps the memory reserved by the scans of the sub queries until 
+   * {@link #releaseMemory} is called instead of releasing it as soon as each
+   * sub query returned its results. The memory budgets then also cover the
+   * results while they're aggregated and serialized. Callers must release 
+   * the memory once done with the results, e.g. once the response was sent.
+   * @since 2.3
+   */
+  public synchronized void holdMemory() {
+    if (held_budgets == null) {
+      held_budgets = new ArrayList<QueryMemoryBudget>();
+    }
+  }
+  
+  /**
+   * Releases the memory held for the sub queries, see {@link #holdMemory}.
+   * Sub queries returning afterwards release their memory right away.
+   * @since 2.3
+   */
+  public void releaseMemory() {
+    final List<QueryMemoryBudget> budgets;
+    synchronized (this) {
+      if (held_budgets == null || budgets_released) {
+        return;
+      }
+      budgets_released = true;
+      budgets = held_budgets;
+    }
+    for (final QueryMemoryBudget budget : budgets) {
+      budget.release();
+    }
+  }
+  
+  /**
+   * Holds the budget of a sub query that returned its results until 
+   * {@link #releaseMemory} is called.
+   * @param budget The budget of the sub query
+   * @return True if held, false if the caller must release it
+   */
+  synchronized boolean holdMemory(final QueryMemoryBudget budget) {
+    if (held_budgets == null || budgets_released) {
+      return false;
+    }
+    held_budgets.add(budget);
+    return true;
+  }
+  
   public String toString() {
     final StringBuilder buf = new StringBuilder();
     buf.append("TSQuery(start_time=")
@@ -395,6 +452,14 @@ public final class TSQuery {
     return query_stats;
   }
   
+  /** @return the token to cancel the query with. Ignored during JSON 
+   * serialization
+   * @since 2.3 */
+  @JsonIgnore
+  public CancellationToken getCancellation() {
+    return cancellation;
+  }
+  
   /**
    * Sets the start time for further parsing. This can be an absolute or 
    * relative value. See {@link DateTime#parseDateTimeString} for details.
@@ -667,10 +667,10 @@ public final class Tags {
 
     // For each tag, start resolving the tag name and the tag value.
     for (final Map.Entry<String, String> entry : tags.entrySet()) {
-      final Deferred<byte[]> name_id = create
+      final Deferred<byte[]> name_id = create && tsdb.getConfig().auto_tagk()
         ? tsdb.tag_names.getOrCreateIdAsync(entry.getKey(), metric, tags)
         : tsdb.tag_names.getIdAsync(entry.getKey());
-      final Deferred<byte[]> value_id = create
+      final Deferred<byte[]> value_id = create && tsdb.getConfig().auto_tagv()
         ? tsdb.tag_values.getOrCreateIdAsync(entry.getValue(), metric, tags)
         : tsdb.tag_values.getIdAsync(entry.getValue());
 
@@ -98,6 +98,12 @@ final class TsdbQuery implements Query {
   /** Whether or not to enable the fuzzy row filter for Hbase */
   private boolean enable_fuzzy_filter;
   
+  /** Whether or not to decode the spans into columns once the scan is done */
+  private final boolean columnar_spans;
+  
+  /** Whether or not to downsample the rows as they are scanned */
+  private final boolean downsample_pushdown;
+  
   /**
    * Tags by which we must group the results.
    * Each element is a tag ID.
@@ -137,11 +143,24 @@ final class TsdbQuery implements Query {
   /** Whether or not to match series with ONLY the given tags */
   private boolean explicit_tags;
   
+  /** Accounts for the memory retained while scanning, set when run */
+  private QueryMemoryBudget memory_budget;
+  
+  /** Cancels the query once nobody waits for its results, may be null */
+  private CancellationToken cancellation;
+  
+  /** The data query this query was configured from, may be null */
+  private TSQuery data_query;
+  
   /** Constructor. */
   public TsdbQuery(final TSDB tsdb) {
     this.tsdb = tsdb;
     enable_fuzzy_filter = tsdb.getConfig()
         .getBoolean("tsd.query.enable_fuzzy_filter");
+    columnar_spans = tsdb.getConfig()
+        .getBoolean("tsd.query.columnar_spans");
+    downsample_pushdown = tsdb.getConfig()
+        .getBoolean("tsd.query.downsample_pushdown");
   }
 
   /**
@@ -327,6 +346,8 @@ final class TsdbQuery implements Query {
     setDelete(query.getDelete());
     query_index = index;
     query_stats = query.getQueryStats();
+    cancellation = query.getCancellation();
+    data_query = query;
     
     // set common options
     aggregator = sub_query.aggregator();
@@ -512,7 +533,57 @@ final class TsdbQuery implements Query {
   
   @Override
   public Deferred<DataPoints[]> runAsync() throws HBaseException {
-    return findSpans().addCallback(new GroupByAndAggregateCB());
+    if (cancellation != null) {
+      cancellation.check();
+    }
+    memory_budget = new QueryMemoryBudget(tsdb);
+    
+    /** Records the peak and releases the memory reserved while scanning,
+     * unless the data query holds it until its results were serialized as
+     * they still reference the spans. */
+    final class ReleaseCB implements Callback<DataPoints[], DataPoints[]> {
+      @Override
+      public DataPoints[] call(final DataPoints[] results) {
+        if (data_query != null && data_query.holdMemory(memory_budget)) {
+          recordPeak();
+        } else {
+          release();
+        }
+        return results;
+      }
+    }
+    
+    /** Releases the memory reserved while scanning on failure */
+    final class ReleaseErrorCB implements Callback<Exception, Exception> {
+      @Override
+      public Exception call(final Exception e) {
+        release();
+        return e;
+      }
+    }
+    
+    final Deferred<DataPoints[]> results;
+    try {
+      results = findSpans().addCallback(new GroupByAndAggregateCB());
+    } catch (RuntimeException e) {
+      release();
+      throw e;
+    }
+    return results.addCallbacks(new ReleaseCB(), new ReleaseErrorCB());
+  }
+  
+  /** Releases the memory budget of the query and records its peak usage */
+  private void release() {
+    memory_budget.release();
+    recordPeak();
+  }
+  
+  /** Records the peak memory usage of the query */
+  private void recordPeak() {
+    if (query_stats != null) {
+      query_stats.addStat(query_index, QueryStat.PEAK_BYTES, 
+          memory_budget.peak());
+    }
   }
 
   /**
@@ -554,16 +625,20 @@ final class TsdbQuery implements Query {
       }
       scan_start_time = DateTime.nanoTime();
       return new SaltScanner(tsdb, metric, scanners, spans, scanner_filters,
-          delete, query_stats, query_index).scan();
+          delete, query_stats, query_index, scanDownsampler(), memory_budget,
+          cancellation, getScanEndTimeSeconds()).scan();
     }
     
     scan_start_time = DateTime.nanoTime();
+    final long fragment_generation = tsdb.fragmentCache() == null ?
+        0 : tsdb.fragmentCache().generation();
     final Scanner scanner = getScanner();
     if (query_stats != null) {
       query_stats.addScannerId(query_index, 0, scanner.toString());
     }
     final Deferred<TreeMap<byte[], Span>> results =
       new Deferred<TreeMap<byte[], Span>>();
+    final DownsamplingSpecification scan_downsampler = scanDownsampler();
     
     /**
     * Scanner callback executed recursively each time we get a set of data
@@ -592,6 +667,11 @@ final class TsdbQuery implements Query {
       private long rows_pre_filter = 0;
       private long dps_post_filter = 0;
       private long rows_post_filter = 0;
+      /** The first and last row keys fetched, to estimate the rows avoided */
+      private byte[] first_key;
+      private byte[] last_key;
+      /** Set once the scanner was closed, e.g. when the query was cancelled */
+      private volatile boolean closed = false;
       
       /** Error callback that will capture an exception from AsyncHBase and store
        * it so we can bubble it up to the caller.
@@ -612,6 +692,9 @@ final class TsdbQuery implements Query {
       * found
       */
        public Object scan() {
+         if (closed) {
+           return null;
+         }
          fetch_start = DateTime.nanoTime();
          return scanner.nextRows().addCallback(this).addErrback(new ErrorCB());
        }
@@ -625,6 +708,10 @@ final class TsdbQuery implements Query {
        public Object call(final ArrayList<ArrayList<KeyValue>> rows)
          throws Exception {
          fetch_time += DateTime.nanoTime() - fetch_start;
+         if (closed) {
+           // cancelled while the rows were in flight
+           return null;
+         }
          try {
            if (rows == null) {
              scanlatency.add((int)DateTime.msFromNano(fetch_time));
@@ -638,6 +725,9 @@ final class TsdbQuery implements Query {
                DateTime.nanoTime(), scanner_start) > timeout) {
              throw new InterruptedException("Query timeout exceeded!");
            }
+           if (cancellation != null) {
+             cancellation.check();
+           }
            
            rows_pre_filter += rows.size();
            
@@ -647,7 +737,14 @@ final class TsdbQuery implements Query {
                    new ArrayList<Deferred<Object>>(rows.size()) : null;
                
            for (final ArrayList<KeyValue> row : rows) {
+             if (closed) {
+               return null;
+             }
              final byte[] key = row.get(0).key();
+             if (first_key == null) {
+               first_key = key;
+             }
+             last_key = key;
              if (Bytes.memcmp(metric, key, 0, metric_width) != 0) {
                scanner.close();
                throw new IllegalDataException(
@@ -683,6 +780,9 @@ final class TsdbQuery implements Query {
                    idx += qlength + Internal.getValueLengthFromQualifier(kv.value(), idx);
                    ++dps_pre_filter;
                  }
+               } else if (kv.qualifier()[0] == 
+                   CompressedDataPoints.COMPRESSED_COLUMN_PREFIX) {
+                 dps_pre_filter += CompressedDataPoints.numDataPoints(kv.value());
                }
              }
              
@@ -757,7 +857,7 @@ final class TsdbQuery implements Query {
              class GroupCB implements Callback<Object, ArrayList<Object>> {
                @Override
                public Object call(final ArrayList<Object> group) throws Exception {
-                 return scan();
+                 return closed ? null : scan();
                }
              }
              return Deferred.group(lookups).addCallback(new GroupCB());
@@ -777,6 +877,13 @@ final class TsdbQuery implements Query {
         */
        void processRow(final byte[] key, final ArrayList<KeyValue> row) {
          ++rows_post_filter;
+         Span datapoints = spans.get(key);
+         // rows folded into the buckets of a downsampling span aren't kept,
+         // only the first one of each series. Throws and closes the scanner
+         // if the query is over its budget.
+         if (scan_downsampler == null || datapoints == null) {
+           memory_budget.reserve(row);
+         }
          if (delete) {
            final DeleteRequest del = new DeleteRequest(tsdb.dataTable(), key);
            tsdb.getClient().delete(del);
@@ -809,12 +916,15 @@ final class TsdbQuery implements Query {
                idx += qlength + Internal.getValueLengthFromQualifier(kv.value(), idx);
                ++dps_post_filter;
              }
+           } else if (kv.qualifier()[0] == 
+               CompressedDataPoints.COMPRESSED_COLUMN_PREFIX) {
+             dps_post_filter += CompressedDataPoints.numDataPoints(kv.value());
            }
          }
          
-         Span datapoints = spans.get(key);
          if (datapoints == null) {
-           datapoints = new Span(tsdb);
+           datapoints = scan_downsampler == null ? new Span(tsdb) : 
+             new Span(tsdb, scan_downsampler, fragment_generation);
            spans.put(key, datapoints);
          }
          final long compaction_start = DateTime.nanoTime();
@@ -828,8 +938,25 @@ final class TsdbQuery implements Query {
          }
        }
      
+       /** Closes the scanner right away and fails the query */
+       void cancel() {
+         if (!closed) {
+           close(cancellation.exception());
+         }
+       }
+     
        void close(final Exception e) {
+         synchronized (this) {
+           if (closed) {
+             return;
+           }
+           closed = true;
+         }
          scanner.close();
+         final long rows_avoided = e != null && cancellation != null && 
+             cancellation.isCancelled() ? 
+                 CancellationToken.scannerClosed(first_key, last_key, 
+                     rows_pre_filter, getScanEndTimeSeconds()) : 0;
          
          if (query_stats != null) {
            query_stats.addScannerStat(query_index, index, 
@@ -863,6 +990,8 @@ final class TsdbQuery implements Query {
                QueryStat.UID_PAIRS_RESOLVED, uids_resolved);
            query_stats.addScannerStat(query_index, index, 
                QueryStat.COMPACTION_TIME, compaction_time);
+           query_stats.addScannerStat(query_index, index, 
+               QueryStat.ROWS_AVOIDED, rows_avoided);
          }
          
          if (e != null) {
@@ -875,7 +1004,19 @@ final class TsdbQuery implements Query {
        }
     }
 
-     new ScannerCB().scan();
+     final ScannerCB scanner_cb = new ScannerCB();
+     if (cancellation != null) {
+       
+       /** Closes the scanner as soon as the query is cancelled */
+       final class CancelCB implements Runnable {
+         @Override
+         public void run() {
+           scanner_cb.cancel();
+         }
+       }
+       cancellation.addListener(new CancelCB());
+     }
+     scanner_cb.scan();
      return results;
   }
 
@@ -895,6 +1036,9 @@ final class TsdbQuery implements Query {
     */
     @Override
     public DataPoints[] call(final TreeMap<byte[], Span> spans) throws Exception {
+      if (cancellation != null) {
+        cancellation.check();
+      }
       if (query_stats != null) {
         query_stats.addStat(query_index, QueryStat.QUERY_SCAN_TIME, 
                 (System.nanoTime() - TsdbQuery.this.scan_start_time));
@@ -907,6 +1051,14 @@ final class TsdbQuery implements Query {
         return NO_RESULT;
       }
       
+      if (columnar_spans) {
+        // The scan is done so decode each span once instead of parsing the
+        // qualifiers every time an iterator walks over the data points.
+        for (final Span span : spans.values()) {
+          span.decode();
+        }
+      }
+      
       // The raw aggregator skips group bys and ignores downsampling
       if (aggregator == Aggregators.NONE) {
         final SpanGroup[] groups = new SpanGroup[spans.size()];
@@ -924,6 +1076,7 @@ final class TsdbQuery implements Query {
               getStartTime(), 
               getEndTime(),
               query_index);
+          group.setCancellation(cancellation);
           group.add(span);
           groups[i++] = group;
         }
@@ -943,6 +1096,7 @@ final class TsdbQuery implements Query {
                                               getStartTime(), 
                                               getEndTime(),
                                               query_index);
+        group.setCancellation(cancellation);
         if (query_stats != null) {
           query_stats.addStat(query_index, QueryStat.GROUP_BY_TIME, 0);
         }
@@ -993,6 +1147,7 @@ final class TsdbQuery implements Query {
                                    getStartTime(), 
                                    getEndTime(),
                                    query_index);
+          thegroup.setCancellation(cancellation);
           // Copy the array because we're going to keep `group' and overwrite
           // its contents. So we want the collection to have an immutable copy.
           final byte[] group_copy = new byte[group.length];
@@ -1011,6 +1166,23 @@ final class TsdbQuery implements Query {
     }
   }
 
+  /**
+   * Determines whether or not the rows can be downsampled as they are
+   * scanned so that the spans only keep one partial per interval instead of
+   * every data point. Requires {@code tsd.query.downsample_pushdown} and a
+   * downsampling specification supported by {@link DownsampleBuckets}. The
+   * raw aggregator is excluded as it ignores downsampling.
+   * @return The downsampling specification to apply while scanning or null
+   * to keep the raw data points
+   */
+  private DownsamplingSpecification scanDownsampler() {
+    if (!downsample_pushdown || aggregator == Aggregators.NONE ||
+        !DownsampleBuckets.supports(downsampler)) {
+      return null;
+    }
+    return downsampler;
+  }
+
   /**
    * Returns a scanner set for the given metric (from {@link #metric} or from
    * the first TSUID in the {@link #tsuids}s list. If one or more tags are 
@@ -1060,6 +1232,28 @@ final class TsdbQuery implements Query {
     return scanner;
   }
 
+  /** @return the metric UID, null until the query was configured */
+  byte[] metric() {
+    return metric;
+  }
+  
+  /** @return the TSUIDs to fetch instead of the metric, may be null */
+  List<String> tsuids() {
+    return tsuids;
+  }
+  
+  /** @return the tag keys of the filters mapped to the resolved values to
+   * match, null to match any value. Null until the query was configured */
+  ByteMap<byte[][]> rowKeyLiterals() {
+    return row_key_literals;
+  }
+  
+  /** @return the number of hourly rows of each series within the scan range */
+  long scanHours() {
+    return (getScanEndTimeSeconds() - getScanStartTimeSeconds()) 
+        / Const.MAX_TIMESPAN;
+  }
+  
   /** Returns the UNIX timestamp from which we must start scanning.  */
   private long getScanStartTimeSeconds() {
     // Begin with the raw query start time.
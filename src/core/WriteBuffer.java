@@ -0,0 +1,298 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.PutRequest;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.stats.Histogram;
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Buffers data points per row for a short window and writes each row out as
+ * a single {@link PutRequest} with one column per data point.
+ * <p>
+ * Without the buffer, every data point is sent to HBase as its own
+ * {@link PutRequest}, so a series written every second costs up to 3600 RPCs
+ * per row and hour. When the buffer is enabled, points for the same row
+ * that arrive within {@code tsd.storage.write_buffer.flush_interval}
+ * milliseconds are coalesced into one multi-column put. A row is also flushed
+ * as soon as it holds {@code tsd.storage.write_buffer.max_points_per_row}
+ * points.
+ * <p>
+ * Each buffered point still gets its own {@link Deferred} which is called back
+ * with the result, or the exception, of the put that carried it. If the same
+ * qualifier is written twice for a row within the window, the last value wins
+ * as it would have in HBase, and both deferreds are called back with the
+ * result of the put.
+ * <p>
+ * The buffer is only used for regular puts, not for appends.
+ * @since 2.3
+ */
+final class WriteBuffer {
+  private static final Logger LOG = LoggerFactory.getLogger(WriteBuffer.class);
+
+  /**
+   * Keep track of the latency between the first point buffered in a row and
+   * the response to the put that carried it. We want buckets up to 16s, with
+   * 2 ms interval between each bucket up to 100 ms after we which we switch
+   * to exponential buckets.
+   */
+  private final Histogram flush_latency = new Histogram(16000, (short) 2, 100);
+
+  /** Number of data points buffered. */
+  private final AtomicLong datapoints = new AtomicLong();
+  /** Number of puts sent to HBase. */
+  private final AtomicLong puts = new AtomicLong();
+  /** Number of points overwritten in the buffer by a point with the same
+   * qualifier. */
+  private final AtomicLong duplicates = new AtomicLong();
+  /** Number of puts that failed. */
+  private final AtomicLong put_errors = new AtomicLong();
+
+  /** The {@code TSDB} instance we belong to. */
+  private final TSDB tsdb;
+
+  /** How long to buffer points for in milliseconds. */
+  private final int flush_interval;
+
+  /** Maximum number of points to buffer for a single row. */
+  private final int max_points_per_row;
+
+  /** The rows being buffered. */
+  private final ConcurrentSkipListMap<byte[], Row> rows =
+      new ConcurrentSkipListMap<byte[], Row>(Bytes.MEMCMP);
+
+  /**
+   * Constructor. Schedules the periodic flush on the TSDB timer.
+   * @param tsdb The TSDB we belong to.
+   * @throws IllegalArgumentException if the flush interval or the maximum
+   * number of points per row is less than 1
+   */
+  WriteBuffer(final TSDB tsdb) {
+    this.tsdb = tsdb;
+    flush_interval = tsdb.config.getInt("tsd.storage.write_buffer.flush_interval");
+    max_points_per_row =
+        tsdb.config.getInt("tsd.storage.write_buffer.max_points_per_row");
+    if (flush_interval < 1) {
+      throw new IllegalArgumentException(
+          "tsd.storage.write_buffer.flush_interval must be greater than 0");
+    }
+    if (max_points_per_row < 1) {
+      throw new IllegalArgumentException(
+          "tsd.storage.write_buffer.max_points_per_row must be greater than 0");
+    }
+    scheduleFlush();
+  }
+
+  /**
+   * Buffers a data point.
+   * @param key The full row key, including the salt if enabled
+   * @param qualifier The column qualifier of the data point
+   * @param value The encoded value of the data point
+   * @return A deferred called back once the point has been written to HBase,
+   * with the result of the put that carried it.
+   */
+  Deferred<Object> add(final byte[] key, final byte[] qualifier,
+                       final byte[] value) {
+    datapoints.incrementAndGet();
+    while (true) {
+      Row row = rows.get(key);
+      if (row == null) {
+        row = new Row();
+        final Row existing = rows.putIfAbsent(key, row);
+        if (existing != null) {
+          row = existing;
+        }
+      }
+      final Deferred<Object> deferred;
+      boolean full = false;
+      synchronized (row) {
+        if (row.flushing) {
+          continue;  // Lost a race with a flush, start a new row.
+        }
+        deferred = row.add(qualifier, value);
+        if (row.values.size() >= max_points_per_row) {
+          full = true;
+          row.flushing = true;
+          rows.remove(key, row);
+        }
+      }
+      if (full) {
+        write(key, row);
+      }
+      return deferred;
+    }
+  }
+
+  /**
+   * Forces a flush of every row in the buffer.
+   * @return A deferred that will be called back once every put has completed
+   * successfully or not. The results are unspecified, failed puts are only
+   * reported to the deferreds of the points they carried.
+   */
+  Deferred<ArrayList<Object>> flush() {
+    final ArrayList<Deferred<Object>> deferreds =
+        new ArrayList<Deferred<Object>>();
+    for (final Map.Entry<byte[], Row> entry : rows.entrySet()) {
+      final Row row = entry.getValue();
+      synchronized (row) {
+        if (row.flushing) {
+          continue;
+        }
+        row.flushing = true;
+        rows.remove(entry.getKey(), row);
+      }
+      deferreds.add(write(entry.getKey(), row));
+    }
+    return Deferred.group(deferreds);
+  }
+
+  /** @return The number of rows currently buffered. */
+  int size() {
+    return rows.size();
+  }
+
+  /**
+   * Collects the stats and metrics tracked by this instance.
+   * @param collector The collector to use.
+   */
+  void collectStats(final StatsCollector collector) {
+    // stats are integers, the coalescing ratio is datapoints / puts
+    collector.record("write_buffer.datapoints", datapoints.get());
+    collector.record("write_buffer.puts", puts.get());
+    collector.record("write_buffer.duplicates", duplicates);
+    collector.record("write_buffer.errors", put_errors);
+    collector.record("write_buffer.rows", rows.size());
+    collector.record("write_buffer.flush_latency", flush_latency, null);
+  }
+
+  /**
+   * Sends the points of a row to HBase. The row must have been removed from
+   * the map and flagged as flushing.
+   * @param key The row key
+   * @param row The row to write
+   * @return A deferred called back with null once the put completed. The
+   * result of the put, or the exception, goes to the deferreds of the points.
+   */
+  private Deferred<Object> write(final byte[] key, final Row row) {
+    final int num_points = row.values.size();
+    final byte[][] qualifiers = new byte[num_points][];
+    final byte[][] values = new byte[num_points][];
+    int i = 0;
+    for (final Map.Entry<byte[], byte[]> entry : row.values.entrySet()) {
+      qualifiers[i] = entry.getKey();
+      values[i++] = entry.getValue();
+    }
+
+    final class PutCB implements Callback<Object, Object> {
+      @Override
+      public Object call(final Object result) {
+        flush_latency.add((int) (System.currentTimeMillis() - row.first_added));
+        if (result instanceof Exception) {
+          put_errors.incrementAndGet();
+        }
+        for (final Deferred<Object> deferred : row.deferreds) {
+          deferred.callback(result);
+        }
+        // don't fail flush() and everything chained to it for one bad row
+        return null;
+      }
+      @Override
+      public String toString() {
+        return "Write buffer put callback";
+      }
+    }
+
+    puts.incrementAndGet();
+    final PutRequest put = new PutRequest(tsdb.table, key, TSDB.FAMILY,
+        qualifiers, values);
+    try {
+      return tsdb.client.put(put).addBoth(new PutCB());
+    } catch (RuntimeException e) {
+      LOG.error("Failed to write buffered row " + Bytes.pretty(key), e);
+      return Deferred.fromResult((Object) new PutCB().call(e));
+    }
+  }
+
+  /** Schedules the next periodic flush on the TSDB timer. */
+  private void scheduleFlush() {
+    final class FlushTask implements TimerTask {
+      @Override
+      public void run(final Timeout timeout) {
+        try {
+          flush();
+        } catch (RuntimeException e) {
+          LOG.error("Unexpected exception flushing the write buffer", e);
+        }
+        scheduleFlush();
+      }
+    }
+    try {
+      tsdb.getTimer().newTimeout(new FlushTask(), flush_interval,
+          TimeUnit.MILLISECONDS);
+    } catch (IllegalStateException e) {
+      // the timer was stopped during shutdown, which flushes the buffer.
+      LOG.debug("Not scheduling a write buffer flush, the timer was stopped");
+    }
+  }
+
+  /**
+   * The points buffered for a single row. Access must be synchronized on the
+   * row.
+   */
+  private final class Row {
+    /** When the first point was added, in milliseconds. */
+    final long first_added = System.currentTimeMillis();
+
+    /** The values sorted on qualifier. */
+    final TreeMap<byte[], byte[]> values =
+        new TreeMap<byte[], byte[]>(Bytes.MEMCMP);
+
+    /** One deferred per point added. */
+    final ArrayList<Deferred<Object>> deferreds =
+        new ArrayList<Deferred<Object>>();
+
+    /** Set once the row has been removed from the buffer to be written. */
+    boolean flushing;
+
+    /**
+     * Adds a point to the row.
+     * @param qualifier The qualifier of the point
+     * @param value The value of the point
+     * @return The deferred for the point
+     */
+    Deferred<Object> add(final byte[] qualifier, final byte[] value) {
+      if (values.put(qualifier, value) != null) {
+        duplicates.incrementAndGet();
+      }
+      final Deferred<Object> deferred = new Deferred<Object>();
+      deferreds.add(deferred);
+      return deferred;
+    }
+  }
+}
@@ -22,6 +22,7 @@ import java.util.Map;
 
 import net.opentsdb.core.IncomingDataPoint;
 import net.opentsdb.core.Internal;
+import net.opentsdb.core.LastValueIndex;
 import net.opentsdb.core.RowKey;
 import net.opentsdb.core.TSDB;
 import net.opentsdb.core.Tags;
@@ -151,6 +152,10 @@ public class TSUIDQuery {
    * However if backscan is set, then we'll start with the current time and 
    * iterate back "back_scan" number of hours until we find a value.
    * <p>
+   * If the last value index is enabled and holds the series, the point is
+   * served from it without hitting storage, unless it is older than the
+   * "back_scan" hours would reach.
+   * <p>
    * @param resolve_names Whether or not to resolve the UIDs back to their
    * names when we find a value.
    * @param back_scan The number of hours back in time to scan
@@ -180,6 +185,17 @@ public class TSUIDQuery {
         } else if (incoming_tsuid != null) {
           setTSUID(incoming_tsuid);
         }
+        
+        // series written through this TSD don't need to hit storage, as long
+        // as the point is one the back scan would have found
+        final LastValueIndex index = tsdb.getLastValueIndex();
+        if (index != null) {
+          final IncomingDataPoint dp = index.getLastPoint(tsuid);
+          if (dp != null && (back_scan < 1 || inBackScan(dp.getTimestamp()))) {
+            return resolve_names ? resolveNames(dp) : Deferred.fromResult(dp);
+          }
+        }
+        
         if (back_scan < 1 && meta_enabled) {
           final GetRequest get = new GetRequest(tsdb.metaTable(), tsuid);
           get.family(TSMeta.FAMILY());
@@ -215,6 +231,18 @@ public class TSUIDQuery {
     }
   }
   
+  /**
+   * Whether or not a timestamp falls within the hours that would be scanned
+   * from the last timestamp, or the current time, back "back_scan" hours.
+   * @param timestamp The timestamp in seconds or milliseconds
+   * @return True if the timestamp is within the back scan window
+   */
+  private boolean inBackScan(final long timestamp) {
+    final long start = Internal.baseTime(last_timestamp > 0 ? last_timestamp 
+        : DateTime.currentTimeMillis());
+    return Internal.baseTime(timestamp) >= start - (back_scan * 3600L);
+  }
+  
   /**
    * Sets the query to perform
    * @param metric Name of the metric to search for
@@ -31,6 +31,7 @@ import com.google.common.base.Objects;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 
+import net.opentsdb.core.CancellationToken;
 import net.opentsdb.core.Const;
 import net.opentsdb.core.QueryException;
 import net.opentsdb.core.TSQuery;
@@ -132,23 +133,28 @@ public class QueryStats {
   public enum QueryStat {
     // Query Setup stats
     STRING_TO_UID_TIME ("stringToUidTime", true),
+    QUEUE_TIME ("queueTime", true),
     
     // Storage stats
     COLUMNS_FROM_STORAGE ("columnsFromStorage", false),
     ROWS_FROM_STORAGE ("rowsFromStorage", false),
     BYTES_FROM_STORAGE ("bytesFromStorage", false),
     SUCCESSFUL_SCAN ("successfulScan", false),
+    PEAK_BYTES ("peakBytes", false),
     
     // Single Scanner stats
     DPS_PRE_FILTER ("dpsPreFilter", false),
     ROWS_PRE_FILTER ("rowsPreFilter", false),
     DPS_POST_FILTER ("dpsPostFilter", false),
     ROWS_POST_FILTER ("rowsPostFilter", false),
+    ESTIMATED_ROWS ("estimatedRows", false),
+    ROWS_AVOIDED ("rowsAvoided", false),
     SCANNER_UID_TO_STRING_TIME ("scannerUidToStringTime", true),
     COMPACTION_TIME ("compactionTime", true),
     HBASE_TIME ("hbaseTime", true),
     UID_PAIRS_RESOLVED ("uidPairsResolved", false),
     SCANNER_TIME ("scannerTime", true),
+    SPAN_MERGE_TIME ("spanMergeTime", true),
     
     // Overall Salt Scanner stats
     SCANNER_MERGE_TIME ("saltScannerMergeTime", true),
@@ -181,6 +187,8 @@ public class QueryStats {
     AVG_SCANNER_UID_TO_STRING_TIME ("avgScannerUidToStringTime", true),
     MAX_SCANNER_MERGE_TIME ("maxSaltScannerMergeTime", true),
     AVG_SCANNER_MERGE_TIME ("avgSaltScannerMergeTime", true),
+    MAX_SPAN_MERGE_TIME ("maxSpanMergeTime", true),
+    AVG_SPAN_MERGE_TIME ("avgSpanMergeTime", true),
     MAX_SCAN_TIME ("maxQueryScanTime", true),
     AVG_SCAN_TIME ("avgQueryScanTime", true),
     MAX_AGGREGATION_TIME ("maxAggregationTime", true),
@@ -218,6 +226,8 @@ public class QueryStats {
     AGG_MAP.put(QueryStat.SCANNER_UID_TO_STRING_TIME, new Pair<QueryStat, QueryStat>(
         QueryStat.MAX_SCANNER_UID_TO_STRING_TIME, 
         QueryStat.AVG_SCANNER_UID_TO_STRING_TIME));
+    AGG_MAP.put(QueryStat.SPAN_MERGE_TIME, new Pair<QueryStat, QueryStat>(
+        QueryStat.AVG_SPAN_MERGE_TIME, QueryStat.MAX_SPAN_MERGE_TIME));
     AGG_MAP.put(QueryStat.QUERY_SCAN_TIME, new Pair<QueryStat, QueryStat>(
         QueryStat.MAX_SCAN_TIME, QueryStat.AVG_SCAN_TIME));
     AGG_MAP.put(QueryStat.AGGREGATION_TIME, new Pair<QueryStat, QueryStat>(
@@ -342,6 +352,8 @@ public class QueryStats {
       final Throwable exception) {
     this.exception = exception;
     this.response = response;
+    // nothing left to cancel
+    query.getCancellation().complete();
     
     query_completed_ts = DateTime.currentTimeMillis();
     overall_stats.put(QueryStat.PROCESSING_PRE_WRITE_TIME, DateTime.nanoTime() - query_start_ns);
@@ -390,6 +402,24 @@ public class QueryStats {
     QUERY_LOG.info(this.toString());
   }
   
+  /**
+   * Cancels a running query, e.g. on behalf of an administrator. Its scanners
+   * are closed and it fails with a {@link QueryException}.
+   * @param hash The hash of the running query as listed by 
+   * {@link #getRunningAndCompleteStats}
+   * @return True if the query was found and cancelled, false if it wasn't
+   * running or was already cancelled
+   * @since 2.3
+   */
+  public static boolean cancelRunningQuery(final int hash) {
+    final QueryStats stats = running_queries.get(hash);
+    if (stats == null) {
+      return false;
+    }
+    return stats.query.getCancellation().cancel(
+        CancellationToken.Reason.ADMIN);
+  }
+  
   /**
    * Builds a serializable map from the running and cached query maps to be
    * returned to a caller.
@@ -407,6 +437,7 @@ public class QueryStats {
       // don't need to lock the map beyond what the iterator will do implicitly
       for (final QueryStats stats : running_queries.values()) {
         final Map<String, Object> obj = new HashMap<String, Object>(10);
+        obj.put("hash", stats.hashCode());
         obj.put("query", stats.query);
         obj.put("remote", stats.remote_address);
         obj.put("user", stats.user);
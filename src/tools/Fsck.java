@@ -35,6 +35,7 @@ import org.hbase.async.Scanner;
 import com.stumbleupon.async.Deferred;
 
 import net.opentsdb.core.AppendDataPoints;
+import net.opentsdb.core.CompressedDataPoints;
 import net.opentsdb.core.Const;
 import net.opentsdb.core.IllegalDataException;
 import net.opentsdb.core.Internal;
@@ -95,6 +96,7 @@ final class Fsck {
   final AtomicLong annotations = new AtomicLong();
   final AtomicLong append_dps = new AtomicLong();
   final AtomicLong append_dps_fixed = new AtomicLong();
+  final AtomicLong compressed_columns = new AtomicLong();
   final AtomicLong bad_key = new AtomicLong();
   final AtomicLong bad_key_fixed = new AtomicLong();
   final AtomicLong duplicates = new AtomicLong();
@@ -397,6 +399,37 @@ final class Fsck {
               LOG.error("Unexpected exception processing append data point: " + kv, e);
             }
             continue;
+          } else if (qual[0] == CompressedDataPoints.COMPRESSED_COLUMN_PREFIX) {
+            compressed_columns.getAndIncrement();
+            // add every cell in the column to the data point tree so that we
+            // can scan for duplicate timestamps. The column was written by a 
+            // compaction so the values don't need fixing and we don't force
+            // a re-compaction, which would write the regular format.
+            try {
+              for (final Cell cell : Internal.extractDataPoints(kv)) {
+                final long ts = cell.timestamp(base_time);
+                ArrayList<DP> dps = datapoints.get(ts);
+                if (dps == null) {
+                  dps = new ArrayList<DP>(1);
+                  datapoints.put(ts, dps);
+                }
+                final DP dp = new DP(kv, cell);
+                dp.compressed = true;
+                dps.add(dp);
+                qualifier_bytes += cell.qualifier().length;
+                value_bytes += cell.value().length;
+              }
+            } catch (IllegalDataException e) {
+              bad_compacted_columns.getAndIncrement();
+              LOG.error(e.getMessage());
+              if (options.fix() && options.deleteBadCompacts()) {
+                final DeleteRequest delete = 
+                    new DeleteRequest(tsdb.dataTable(), kv);
+                tsdb.getClient().delete(delete);
+                bad_compacted_columns_deleted.getAndIncrement();
+              }
+            }
+            continue;
           }
           LOG.warn("Found an object possibly from a future version of OpenTSDB\n\t"
               + kv);
@@ -966,7 +999,9 @@ final class Fsck {
           value = Bytes.fromInt((int) decoded);
         } // else it needs 8 bytes, it's on 8 bytes, yipee
 
-        if (length != value.length && options.fix()) {
+        // a compressed column can only be re-written by compacting the row
+        if (length != value.length && options.fix() && 
+            (!dp.compressed || compact_row || options.compact())) {
           final byte[] new_qualifier = Arrays.copyOf(qual, qual.length);
           new_qualifier[new_qualifier.length - 1] &= 0xF0 | (value.length - 1);
           if (compact_row || options.compact()) {
@@ -1053,6 +1088,8 @@ final class Fsck {
       KeyValue kv;
       /** Whether or not the value was in a compacted column */
       boolean compacted;
+      /** Whether or not the value was in a compressed compacted column */
+      boolean compressed;
       /** The specific data point qualifier/value if the data point was compacted */
       Cell cell;
       
@@ -1157,6 +1194,7 @@ final class Fsck {
     LOG.info("Rows Processed: " + rows_processed.get());
     LOG.info("Valid Datapoints: " + valid_datapoints.get());
     LOG.info("Annotations: " + annotations.get());
+    LOG.info("Compressed Compacted Columns: " + compressed_columns.get());
     LOG.info("Invalid Row Keys Found: " + bad_key.get());
     LOG.info("Invalid Rows Deleted: " + bad_key_fixed.get());
     LOG.info("Duplicate Datapoints: " + duplicates.get());
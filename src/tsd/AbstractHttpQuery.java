@@ -26,7 +26,9 @@ import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.handler.codec.http.DefaultHttpChunk;
 import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpChunk;
 import org.jboss.netty.handler.codec.http.HttpHeaders;
 import org.jboss.netty.handler.codec.http.HttpMethod;
 import org.jboss.netty.handler.codec.http.HttpRequest;
@@ -76,6 +78,9 @@ public abstract class AbstractHttpQuery {
   /** Used for recording query statistics */
   protected QueryStats stats;
   
+  /** Whether or not the headers of a chunked response were sent */
+  private boolean chunked;
+  
   /**
    * Set up required internal state.  For subclasses.
    * 
@@ -389,6 +394,10 @@ public abstract class AbstractHttpQuery {
       done();
       return;
     }
+    if (chunked) {
+      abortChunked(status);
+      return;
+    }
 
     response.setStatus(status);
     final boolean keepalive = HttpHeaders.isKeepAlive(request);
@@ -417,6 +426,10 @@ public abstract class AbstractHttpQuery {
       done();
       return;
     }
+    if (chunked) {
+      abortChunked(status);
+      return;
+    }
     response.headers().set(HttpHeaders.Names.CONTENT_TYPE, contentType);
 
     // TODO(tsuna): Server, X-Backend, etc. headers.
@@ -438,6 +451,115 @@ public abstract class AbstractHttpQuery {
     done();
   }
   
+  /**
+   * Whether or not the response can be sent in chunks. Chunked transfer
+   * encoding requires HTTP/1.1.
+   * @return True if the client understands chunked responses
+   * @since 2.3
+   */
+  public boolean canSendChunked() {
+    return request.getProtocolVersion().equals(HttpVersion.HTTP_1_1);
+  }
+  
+  /**
+   * Starts a chunked HTTP reply by sending the status and headers without a
+   * body. The body must follow with {@link #sendChunk} and be closed with
+   * {@link #sendLastChunk}. Once started, the status can't be changed so any
+   * attempt to send another reply, e.g. an error, closes the connection.
+   * @param status The status of the request (e.g. 200 OK)
+   * @param contentType The content type of the body
+   * @throws IllegalStateException if the headers were already sent
+   * @since 2.3
+   */
+  public void sendChunkedHeader(final HttpResponseStatus status, 
+                                final String contentType) {
+    if (chunked) {
+      throw new IllegalStateException("The chunked headers were already sent");
+    }
+    chunked = true;
+    response.headers().set(HttpHeaders.Names.CONTENT_TYPE, contentType);
+    response.setStatus(status);
+    response.setChunked(true);
+    HttpHeaders.setTransferEncodingChunked(response);
+    chan.write(response);
+  }
+  
+  /**
+   * Sends part of the body of a chunked reply. If the channel's write buffer
+   * is full, the returned deferred only fires once the chunk has been
+   * written so that the caller stops producing data until the client has
+   * caught up.
+   * @param buf The content to send, nothing is sent if it's empty
+   * @return A deferred that resolves to null when more data can be written
+   * or to an exception if the write failed
+   * @throws IllegalStateException if the chunked headers weren't sent
+   * @since 2.3
+   */
+  public Deferred<Object> sendChunk(final ChannelBuffer buf) {
+    if (!chunked) {
+      throw new IllegalStateException("The chunked headers haven't been sent");
+    }
+    // an empty chunk would mark the end of the body
+    if (!buf.readable()) {
+      return Deferred.fromResult(null);
+    }
+    final ChannelFuture future = chan.write(new DefaultHttpChunk(buf));
+    if (chan.isWritable()) {
+      return Deferred.fromResult(null);
+    }
+    
+    final Deferred<Object> writable = new Deferred<Object>();
+    future.addListener(new ChannelFutureListener() {
+      @Override
+      public void operationComplete(final ChannelFuture future) 
+          throws Exception {
+        if (future.isSuccess()) {
+          writable.callback(null);
+        } else {
+          writable.callback(future.getCause() != null ? future.getCause() :
+            new IllegalStateException("Failed to write a chunk to " + chan));
+        }
+      }
+    });
+    return writable;
+  }
+  
+  /**
+   * Ends a chunked HTTP reply.
+   * @throws IllegalStateException if the chunked headers weren't sent
+   * @since 2.3
+   */
+  public void sendLastChunk() {
+    if (!chunked) {
+      throw new IllegalStateException("The chunked headers haven't been sent");
+    }
+    if (!chan.isConnected()) {
+      done();
+      return;
+    }
+    final ChannelFuture future = chan.write(HttpChunk.LAST_CHUNK);
+    if (stats != null) {
+      future.addListener(new SendSuccess());
+    }
+    if (!HttpHeaders.isKeepAlive(request)) {
+      future.addListener(ChannelFutureListener.CLOSE);
+    }
+    done();
+  }
+  
+  /**
+   * Closes the connection when a reply is sent after a chunked response was
+   * started. The status was already sent so the client only sees a truncated
+   * body.
+   * @param status The status that couldn't be sent
+   */
+  private void abortChunked(final HttpResponseStatus status) {
+    LOG.error("Closing " + chan + " as the chunked response can't be "
+        + "changed to " + status + " for " + this);
+    chan.close();
+    done();
+  }
+  
   /** A simple class that marks a query as complete when the stats are set */
   private class SendSuccess implements ChannelFutureListener {
     @Override
@@ -0,0 +1,367 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the query results written by the binary serializer, selected with
+ * {@code ?serializer=binary}. This class has no dependencies besides the JDK
+ * so that clients can copy it.
+ * <p>
+ * The format is columnar and big endian:
+ * <pre>
+ * response   := magic version series* 0x00
+ * magic      := "TSDB"
+ * version    := 0x01
+ * series     := 0x01 metric:string tags aggregated query_index:varint
+ *               count:varint types timestamps values
+ * tags       := varint (key:string value:string)*
+ * aggregated := varint (key:string)*
+ * string     := id:varint [length:varint UTF-8 bytes]
+ * types      := 0x00 all integers | 0x01 all floats
+ *             | 0x02 bitmap of (count + 7) / 8 bytes with a bit set for floats
+ * timestamps := first:varint (delta:zigzag varint){count - 1}
+ * values     := (8 bytes){count}
+ * </pre>
+ * Varints are unsigned LEB128. Strings are stored in a dictionary shared by
+ * the whole response: ids are assigned in order of first use, the bytes only
+ * follow the first time an id is used. Timestamps are in milliseconds and
+ * each one but the first is stored as the difference from the previous one.
+ * Values are either two's complement integers or IEEE 754 doubles.
+ * @since 2.3
+ */
+public final class BinaryQueryReader {
+
+  /** The content type of binary responses */
+  public static final String CONTENT_TYPE = "application/x-opentsdb-binary";
+
+  /** Magic bytes at the start of a response */
+  static final byte[] MAGIC = { 'T', 'S', 'D', 'B' };
+
+  /** The version of the format */
+  static final byte VERSION = 1;
+
+  /** Marks the start of a series */
+  static final byte SERIES = 1;
+
+  /** Marks the end of the response */
+  static final byte END = 0;
+
+  /** All of the values of a series are integers */
+  static final byte INTEGERS = 0;
+
+  /** All of the values of a series are floating point */
+  static final byte FLOATS = 1;
+
+  /** A series has both integer and floating point values */
+  static final byte MIXED = 2;
+
+  /** The charset of strings */
+  static final Charset CHARSET = Charset.forName("UTF-8");
+
+  /** No instances */
+  private BinaryQueryReader() { }
+
+  /**
+   * Reads a response.
+   * @param data The body of the response
+   * @return The series in the order they were written
+   * @throws IOException if the response is truncated
+   * @throws IllegalArgumentException if the data isn't a binary response or
+   * if the version isn't supported
+   */
+  public static List<Series> read(final byte[] data) throws IOException {
+    return read(new ByteArrayInputStream(data));
+  }
+
+  /**
+   * Reads a response.
+   * @param stream A stream with the body of the response
+   * @return The series in the order they were written
+   * @throws IOException if the response is truncated or reading failed
+   * @throws IllegalArgumentException if the data isn't a binary response or
+   * if the version isn't supported
+   */
+  public static List<Series> read(final InputStream stream)
+      throws IOException {
+    final DataInputStream in = new DataInputStream(stream);
+    final byte[] magic = new byte[MAGIC.length];
+    in.readFully(magic);
+    for (int i = 0; i < MAGIC.length; i++) {
+      if (magic[i] != MAGIC[i]) {
+        throw new IllegalArgumentException("Not a binary query response");
+      }
+    }
+    final byte version = in.readByte();
+    if (version != VERSION) {
+      throw new IllegalArgumentException("Unsupported version: " + version);
+    }
+
+    final List<String> dictionary = new ArrayList<String>();
+    final List<Series> series = new ArrayList<Series>();
+    while (true) {
+      final byte marker = in.readByte();
+      if (marker == END) {
+        return series;
+      }
+      if (marker != SERIES) {
+        throw new IllegalArgumentException("Unexpected marker: " + marker);
+      }
+      series.add(readSeries(in, dictionary));
+    }
+  }
+
+  /**
+   * Reads a series after its marker.
+   * @param in The input to read from
+   * @param dictionary The strings read so far
+   * @return The series
+   * @throws IOException if the response is truncated
+   */
+  private static Series readSeries(final DataInput in,
+      final List<String> dictionary) throws IOException {
+    final String metric = readString(in, dictionary);
+
+    final int num_tags = readLength(in);
+    final Map<String, String> tags = new HashMap<String, String>(num_tags);
+    for (int i = 0; i < num_tags; i++) {
+      tags.put(readString(in, dictionary), readString(in, dictionary));
+    }
+
+    final int num_aggregated = readLength(in);
+    final List<String> aggregated_tags = new ArrayList<String>(num_aggregated);
+    for (int i = 0; i < num_aggregated; i++) {
+      aggregated_tags.add(readString(in, dictionary));
+    }
+
+    final int query_index = readLength(in);
+    final int count = readLength(in);
+
+    final boolean[] floats = new boolean[count];
+    final byte types = in.readByte();
+    if (types == FLOATS) {
+      for (int i = 0; i < count; i++) {
+        floats[i] = true;
+      }
+    } else if (types == MIXED) {
+      final byte[] bitmap = new byte[(count + 7) / 8];
+      in.readFully(bitmap);
+      for (int i = 0; i < count; i++) {
+        floats[i] = (bitmap[i / 8] & (1 << (i % 8))) != 0;
+      }
+    } else if (types != INTEGERS) {
+      throw new IllegalArgumentException("Unexpected value types: " + types);
+    }
+
+    final long[] timestamps = new long[count];
+    for (int i = 0; i < count; i++) {
+      timestamps[i] = i == 0 ? readVarint(in) :
+        timestamps[i - 1] + unZigZag(readVarint(in));
+    }
+
+    final long[] values = new long[count];
+    for (int i = 0; i < count; i++) {
+      values[i] = in.readLong();
+    }
+    return new Series(metric, tags, aggregated_tags, query_index, timestamps,
+        values, floats);
+  }
+
+  /**
+   * Reads a string from the dictionary, adding it if it's new.
+   * @throws IOException if the response is truncated
+   * @throws IllegalArgumentException if the id is unknown
+   */
+  private static String readString(final DataInput in,
+      final List<String> dictionary) throws IOException {
+    final long id = readVarint(in);
+    if (id < dictionary.size()) {
+      return dictionary.get((int) id);
+    }
+    if (id != dictionary.size()) {
+      throw new IllegalArgumentException("Unknown string id: " + id);
+    }
+    final byte[] bytes = new byte[readLength(in)];
+    in.readFully(bytes);
+    final String string = new String(bytes, CHARSET);
+    dictionary.add(string);
+    return string;
+  }
+
+  /**
+   * Reads a varint that's used as a count or a length.
+   * @throws IOException if the response is truncated
+   * @throws IllegalArgumentException if the value doesn't fit in an int
+   */
+  private static int readLength(final DataInput in) throws IOException {
+    final long length = readVarint(in);
+    if (length > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Invalid length: " + length);
+    }
+    return (int) length;
+  }
+
+  /**
+   * Reads an unsigned LEB128 varint.
+   * @throws IOException if the response is truncated
+   */
+  static long readVarint(final DataInput in) throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      final byte b = in.readByte();
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IllegalArgumentException("Varint is too long");
+  }
+
+  /**
+   * Writes an unsigned LEB128 varint.
+   * @throws IOException if writing failed
+   */
+  static void writeVarint(final DataOutput out, long value)
+      throws IOException {
+    while ((value & ~0x7FL) != 0) {
+      out.writeByte((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    out.writeByte((int) value);
+  }
+
+  /** @return the value zigzag encoded so small negatives are small varints */
+  static long zigZag(final long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  /** @return the value decoded from zigzag */
+  static long unZigZag(final long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  /** A series read from a response */
+  public static final class Series {
+    private final String metric;
+    private final Map<String, String> tags;
+    private final List<String> aggregated_tags;
+    private final int query_index;
+    private final long[] timestamps;
+    private final long[] values;
+    private final boolean[] floats;
+
+    private Series(final String metric, final Map<String, String> tags,
+        final List<String> aggregated_tags, final int query_index,
+        final long[] timestamps, final long[] values, final boolean[] floats) {
+      this.metric = metric;
+      this.tags = Collections.unmodifiableMap(tags);
+      this.aggregated_tags = Collections.unmodifiableList(aggregated_tags);
+      this.query_index = query_index;
+      this.timestamps = timestamps;
+      this.values = values;
+      this.floats = floats;
+    }
+
+    /** @return the metric name */
+    public String getMetric() {
+      return metric;
+    }
+
+    /** @return the tags common to all of the series that were aggregated */
+    public Map<String, String> getTags() {
+      return tags;
+    }
+
+    /** @return the tag keys that were aggregated away */
+    public List<String> getAggregatedTags() {
+      return aggregated_tags;
+    }
+
+    /** @return the index of the sub query the series belongs to */
+    public int getQueryIndex() {
+      return query_index;
+    }
+
+    /** @return the number of data points */
+    public int size() {
+      return timestamps.length;
+    }
+
+    /**
+     * @param i A 0 based index
+     * @return the timestamp in milliseconds
+     */
+    public long timestamp(final int i) {
+      return timestamps[i];
+    }
+
+    /**
+     * @param i A 0 based index
+     * @return true if the value is an integer
+     */
+    public boolean isInteger(final int i) {
+      return !floats[i];
+    }
+
+    /**
+     * @param i A 0 based index
+     * @return the integer value
+     * @throws ClassCastException if the value is floating point
+     */
+    public long longValue(final int i) {
+      if (floats[i]) {
+        throw new ClassCastException("value #" + i + " is not a long");
+      }
+      return values[i];
+    }
+
+    /**
+     * @param i A 0 based index
+     * @return the floating point value
+     * @throws ClassCastException if the value is an integer
+     */
+    public double doubleValue(final int i) {
+      if (!floats[i]) {
+        throw new ClassCastException("value #" + i + " is not a double");
+      }
+      return Double.longBitsToDouble(values[i]);
+    }
+
+    /**
+     * @param i A 0 based index
+     * @return the value as a double whatever its type
+     */
+    public double toDouble(final int i) {
+      return floats[i] ? Double.longBitsToDouble(values[i]) : values[i];
+    }
+
+    @Override
+    public String toString() {
+      return "Series(metric=" + metric + ", tags=" + tags
+          + ", aggregated_tags=" + aggregated_tags + ", query_index="
+          + query_index + ", size=" + timestamps.length + ')';
+    }
+  }
+}
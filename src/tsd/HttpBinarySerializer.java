@@ -0,0 +1,310 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferOutputStream;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.core.DataPoint;
+import net.opentsdb.core.DataPoints;
+import net.opentsdb.core.TSQuery;
+import net.opentsdb.meta.Annotation;
+import net.opentsdb.stats.QueryStats.QueryStat;
+import net.opentsdb.utils.DateTime;
+
+/**
+ * Serializer that formats query results in a compact binary columnar format
+ * instead of JSON, see {@link BinaryQueryReader} for the format and a reader.
+ * Select it with {@code ?serializer=binary}. Timestamps are delta encoded and
+ * values are written as raw longs or doubles so the result is much smaller
+ * and cheaper to produce than JSON for large queries.
+ * <p>
+ * Only the data points, metric, tags and aggregated tags of each series are
+ * written: annotations, TSUIDs, the original query and stats are not. Every
+ * other request and response, including the query itself and errors, is
+ * handled as JSON.
+ * @since 2.3
+ */
+class HttpBinarySerializer extends HttpJsonSerializer {
+
+  /** Initial number of data points to allocate per series */
+  private static final int INITIAL_CAPACITY = 64;
+
+  /**
+   * Default constructor necessary for plugin implementation
+   */
+  public HttpBinarySerializer() {
+    this(null);
+  }
+
+  /**
+   * Constructor that sets the query object
+   * @param query Request/resposne object
+   */
+  public HttpBinarySerializer(final HttpQuery query) {
+    super(query);
+    // requests are JSON but the content type has to be unique
+    request_content_type = BinaryQueryReader.CONTENT_TYPE;
+  }
+
+  /** @return the version */
+  @Override
+  public String version() {
+    return "2.3.0";
+  }
+
+  /** @return the shortname */
+  @Override
+  public String shortName() {
+    return "binary";
+  }
+
+  /**
+   * Format the results from a timeseries data query and send them at once.
+   * @param data_query The TSQuery object used to fetch the results
+   * @param results The data fetched from storage
+   * @param globals An optional list of global annotation objects
+   * @return A deferred resolving to null once the response has been sent
+   * @throws IOException if serialization failed
+   */
+  @Override
+  public Deferred<Object> formatQueryStreamV1(final TSQuery data_query,
+      final List<DataPoints[]> results, final List<Annotation> globals)
+          throws IOException {
+    class SendIt implements Callback<Object, ChannelBuffer> {
+      public Object call(final ChannelBuffer buffer) throws Exception {
+        query.sendReply(buffer);
+        return null;
+      }
+    }
+    return formatQueryAsyncV1(data_query, results, globals)
+        .addCallback(new SendIt());
+  }
+
+  /**
+   * Format the results from a timeseries data query
+   * @param data_query The TSQuery object used to fetch the results
+   * @param results The data fetched from storage
+   * @param globals Ignored as annotations are not serialized
+   * @return A Deferred<ChannelBuffer> object to pass on to the caller
+   * @throws IOException if serialization failed
+   */
+  @Override
+  public Deferred<ChannelBuffer> formatQueryAsyncV1(final TSQuery data_query,
+      final List<DataPoints[]> results, final List<Annotation> globals)
+          throws IOException {
+    final List<SeriesNames> series = new ArrayList<SeriesNames>();
+    final List<Deferred<ArrayList<Object>>> deferreds = 
+        new ArrayList<Deferred<ArrayList<Object>>>();
+    for (final DataPoints[] separate_dps : results) {
+      for (final DataPoints dps : separate_dps) {
+        final SeriesNames names = new SeriesNames(dps);
+        series.add(names);
+        deferreds.add(names.resolve());
+      }
+    }
+
+    /** Writes the series once all of the names have been resolved */
+    class WriteCB implements 
+      Callback<ChannelBuffer, ArrayList<ArrayList<Object>>> {
+      public ChannelBuffer call(final ArrayList<ArrayList<Object>> ignored)
+          throws Exception {
+        final ChannelBuffer response = ChannelBuffers.dynamicBuffer();
+        final ChannelBufferOutputStream output =
+            new ChannelBufferOutputStream(response);
+        final Map<String, Integer> dictionary = new HashMap<String, Integer>();
+        output.write(BinaryQueryReader.MAGIC);
+        output.writeByte(BinaryQueryReader.VERSION);
+        for (final SeriesNames names : series) {
+          writeSeries(output, dictionary, data_query, names);
+        }
+        output.writeByte(BinaryQueryReader.END);
+        output.close();
+
+        data_query.getQueryStats().markSerializationSuccessful();
+        response_content_type = BinaryQueryReader.CONTENT_TYPE;
+        return response;
+      }
+    }
+    return Deferred.group(deferreds).addCallback(new WriteCB());
+  }
+
+  /**
+   * Writes the data points of a series within the query's time range.
+   * @param output Where to write
+   * @param dictionary The ids of the strings written so far
+   * @param data_query The query, used for the time range and stats
+   * @param names The resolved series
+   * @throws IOException if writing failed
+   */
+  private static void writeSeries(final DataOutput output,
+      final Map<String, Integer> dictionary, final TSQuery data_query,
+      final SeriesNames names) throws IOException {
+    final long serialization_start = DateTime.nanoTime();
+    final DataPoints dps = names.dps;
+    output.writeByte(BinaryQueryReader.SERIES);
+    writeString(output, dictionary, names.metric);
+    BinaryQueryReader.writeVarint(output, names.tags.size());
+    for (final Map.Entry<String, String> tag : names.tags.entrySet()) {
+      writeString(output, dictionary, tag.getKey());
+      writeString(output, dictionary, tag.getValue());
+    }
+    BinaryQueryReader.writeVarint(output, names.aggregated_tags.size());
+    for (final String tag : names.aggregated_tags) {
+      writeString(output, dictionary, tag);
+    }
+    BinaryQueryReader.writeVarint(output, dps.getQueryIndex());
+
+    // iterate once into columns as we need the count and the types first
+    final long dps_start = DateTime.nanoTime();
+    long[] timestamps = new long[INITIAL_CAPACITY];
+    long[] values = new long[INITIAL_CAPACITY];
+    boolean[] floats = new boolean[INITIAL_CAPACITY];
+    int count = 0;
+    int num_floats = 0;
+    for (final DataPoint dp : dps) {
+      if (dp.timestamp() < data_query.startTime() ||
+          dp.timestamp() > data_query.endTime()) {
+        continue;
+      }
+      if (count == timestamps.length) {
+        timestamps = Arrays.copyOf(timestamps, count * 2);
+        values = Arrays.copyOf(values, count * 2);
+        floats = Arrays.copyOf(floats, count * 2);
+      }
+      timestamps[count] = dp.timestamp();
+      if (dp.isInteger()) {
+        values[count] = dp.longValue();
+      } else {
+        values[count] = Double.doubleToRawLongBits(dp.doubleValue());
+        floats[count] = true;
+        num_floats++;
+      }
+      count++;
+    }
+    data_query.getQueryStats().addStat(dps.getQueryIndex(),
+        QueryStat.AGGREGATION_TIME, DateTime.nanoTime() - dps_start);
+    data_query.getQueryStats().addStat(dps.getQueryIndex(),
+        QueryStat.AGGREGATED_SIZE, count);
+
+    BinaryQueryReader.writeVarint(output, count);
+    if (num_floats == 0) {
+      output.writeByte(BinaryQueryReader.INTEGERS);
+    } else if (num_floats == count) {
+      output.writeByte(BinaryQueryReader.FLOATS);
+    } else {
+      output.writeByte(BinaryQueryReader.MIXED);
+      final byte[] bitmap = new byte[(count + 7) / 8];
+      for (int i = 0; i < count; i++) {
+        if (floats[i]) {
+          bitmap[i / 8] |= 1 << (i % 8);
+        }
+      }
+      output.write(bitmap);
+    }
+    for (int i = 0; i < count; i++) {
+      BinaryQueryReader.writeVarint(output, i == 0 ? timestamps[0] :
+        BinaryQueryReader.zigZag(timestamps[i] - timestamps[i - 1]));
+    }
+    for (int i = 0; i < count; i++) {
+      output.writeLong(values[i]);
+    }
+    data_query.getQueryStats().addStat(dps.getQueryIndex(),
+        QueryStat.SERIALIZATION_TIME, DateTime.nanoTime() - serialization_start);
+  }
+
+  /**
+   * Writes the id of a string, followed by the string if it's the first time
+   * it's written.
+   * @param output Where to write
+   * @param dictionary The ids of the strings written so far
+   * @param string The string to write
+   * @throws IOException if writing failed
+   */
+  private static void writeString(final DataOutput output,
+      final Map<String, Integer> dictionary, final String string)
+          throws IOException {
+    final Integer id = dictionary.get(string);
+    if (id != null) {
+      BinaryQueryReader.writeVarint(output, id);
+      return;
+    }
+    final int new_id = dictionary.size();
+    dictionary.put(string, new_id);
+    BinaryQueryReader.writeVarint(output, new_id);
+    final byte[] bytes = string.getBytes(BinaryQueryReader.CHARSET);
+    BinaryQueryReader.writeVarint(output, bytes.length);
+    output.write(bytes);
+  }
+
+  /** Resolves and holds the metric and tag names of a series */
+  private static final class SeriesNames {
+    /** The series */
+    final DataPoints dps;
+    /** The metric name */
+    String metric;
+    /** The tags, sorted so the output is deterministic */
+    final Map<String, String> tags = new TreeMap<String, String>();
+    /** The aggregated tag keys */
+    final List<String> aggregated_tags = new ArrayList<String>();
+
+    SeriesNames(final DataPoints dps) {
+      this.dps = dps;
+    }
+
+    /** @return A deferred resolving once all of the names are resolved */
+    Deferred<ArrayList<Object>> resolve() {
+      class MetricCB implements Callback<Object, String> {
+        public Object call(final String name) throws Exception {
+          metric = name;
+          return null;
+        }
+      }
+
+      class TagsCB implements Callback<Object, Map<String, String>> {
+        public Object call(final Map<String, String> names) throws Exception {
+          tags.putAll(names);
+          return null;
+        }
+      }
+
+      class AggregatedTagsCB implements Callback<Object, List<String>> {
+        public Object call(final List<String> names) throws Exception {
+          aggregated_tags.addAll(names);
+          return null;
+        }
+      }
+
+      final List<Deferred<Object>> deferreds =
+          new ArrayList<Deferred<Object>>(3);
+      deferreds.add(dps.metricNameAsync().addCallback(new MetricCB()));
+      deferreds.add(dps.getTagsAsync().addCallback(new TagsCB()));
+      deferreds.add(dps.getAggregatedTagsAsync()
+          .addCallback(new AggregatedTagsCB()));
+      return Deferred.group(deferreds);
+    }
+  }
+}
@@ -594,6 +594,56 @@ class HttpJsonSerializer extends HttpSerializer {
   public Deferred<ChannelBuffer> formatQueryAsyncV1(final TSQuery data_query, 
       final List<DataPoints[]> results, final List<Annotation> globals) 
           throws IOException {
+    return formatQuery(data_query, results, globals, false);
+  }
+  
+  /**
+   * Format the results from a timeseries data query and stream them to the
+   * client. Each series is sent in its own HTTP chunk as soon as it has been
+   * serialized so only one series is buffered at a time, and the next series
+   * isn't serialized until the channel can take more data. If there aren't 
+   * any results, or the client doesn't support chunked responses, the 
+   * response is sent at once.
+   * @param data_query The TSQuery object used to fetch the results
+   * @param results The data fetched from storage
+   * @param globals An optional list of global annotation objects
+   * @return A deferred resolving to null once the response has been sent
+   * @throws IOException if serialization failed
+   * @since 2.3
+   */
+  @Override
+  public Deferred<Object> formatQueryStreamV1(final TSQuery data_query, 
+      final List<DataPoints[]> results, final List<Annotation> globals) 
+          throws IOException {
+    
+    /** Sends the response if nothing was streamed */
+    class SendIt implements Callback<Object, ChannelBuffer> {
+      public Object call(final ChannelBuffer buffer) throws Exception {
+        if (buffer != null) {
+          query.sendReply(buffer);
+        }
+        return null;
+      }
+    }
+    
+    return formatQuery(data_query, results, globals, 
+        query.canSendChunked()).addCallback(new SendIt());
+  }
+  
+  /**
+   * Format the results from a timeseries data query
+   * @param data_query The TSQuery object used to fetch the results
+   * @param results The data fetched from storage
+   * @param globals An optional list of global annotation objects
+   * @param stream Whether or not to send each series to the client as soon as
+   * it's serialized
+   * @return A Deferred<ChannelBuffer> with the formatted results or with
+   * null if the results were streamed
+   * @throws IOException if serialization failed
+   */
+  private Deferred<ChannelBuffer> formatQuery(final TSQuery data_query, 
+      final List<DataPoints[]> results, final List<Annotation> globals,
+      final boolean stream) throws IOException {
     
     final long start = DateTime.currentTimeMillis();
     final boolean as_arrays = this.query.hasQueryStringParam("arrays");
@@ -605,6 +655,9 @@ class HttpJsonSerializer extends HttpSerializer {
     // too bad an inner class can't modify a primitive. This is a work around 
     final List<Boolean> timeout_flag = new ArrayList<Boolean>(1);
     timeout_flag.add(false);
+    // same here, set once the chunked response has been started
+    final List<Boolean> streaming = new ArrayList<Boolean>(1);
+    streaming.add(false);
     
     // start with JSONp if we're told to
     if (jsonp != null && !jsonp.isEmpty()) {
@@ -844,6 +897,25 @@ class HttpJsonSerializer extends HttpSerializer {
         }
       }
       
+      /**
+       * When streaming, sends what was written to the output buffer so far to
+       * the client. The deferred waits for the channel to be writable so 
+       * that we don't serialize faster than the client can read.
+       */
+      class FlushCB implements Callback<Deferred<Object>, Object> {
+        public Deferred<Object> call(final Object ignored) throws Exception {
+          json.flush();
+          if (!streaming.get(0)) {
+            query.sendChunkedHeader(HttpResponseStatus.OK, 
+                responseContentType());
+            streaming.set(0, true);
+          }
+          final ChannelBuffer chunk = response.copy();
+          response.clear();
+          return query.sendChunk(chunk);
+        }
+      }
+      
       /**
        * When called, initiates a resolution of metric and tag UIDs to names, 
        * then prints to the output buffer once they are completed.
@@ -857,8 +929,12 @@ class HttpJsonSerializer extends HttpSerializer {
             .addCallback(new TagResolver()));
         resolve_deferreds.add(dps.getAggregatedTagsAsync()
             .addCallback(new AggTagResolver()));
-        return Deferred.group(resolve_deferreds)
+        final Deferred<Object> write = Deferred.group(resolve_deferreds)
             .addCallback(new WriteToBuffer(dps));
+        if (stream) {
+          return write.addCallbackDeferring(new FlushCB());
+        }
+        return write;
       }
 
     }
@@ -905,6 +981,12 @@ class HttpJsonSerializer extends HttpSerializer {
         if (jsonp != null && !jsonp.isEmpty()) {
           output.write(")".getBytes());
         }
+        
+        if (streaming.get(0)) {
+          query.sendChunk(response);
+          query.sendLastChunk();
+          return null;
+        }
         return response;
       }
     }
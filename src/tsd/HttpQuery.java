@@ -798,6 +798,7 @@ final class HttpQuery extends AbstractHttpQuery {
     }
     final HttpSerializer default_serializer = new HttpJsonSerializer();
     serializers.add(default_serializer);
+    serializers.add(new HttpBinarySerializer());
 
     serializer_map_content_type =
       new HashMap<String, Constructor<? extends HttpSerializer>>();
@@ -26,6 +26,7 @@ import org.jboss.netty.handler.codec.http.HttpResponseStatus;
 import ch.qos.logback.classic.spi.ThrowableProxy;
 import ch.qos.logback.classic.spi.ThrowableProxyUtil;
 
+import com.stumbleupon.async.Callback;
 import com.stumbleupon.async.Deferred;
 
 import net.opentsdb.core.DataPoints;
@@ -502,6 +503,33 @@ public abstract class HttpSerializer {
         " has not implemented formatQueryV1");
   }
   
+  /**
+   * Format the results from a timeseries data query and send them to the 
+   * client. Serializers that can stream should send each series as soon as
+   * it's formatted with a chunked response, see 
+   * {@link HttpQuery#sendChunkedHeader}. The default implementation formats
+   * the whole response with {@link #formatQueryAsyncV1} and sends it at once.
+   * @param query The TSQuery object used to fetch the results
+   * @param results The data fetched from storage
+   * @param globals An optional list of global annotation objects
+   * @return A deferred resolving to null once the response has been sent
+   * @throws BadRequestException if the plugin has not implemented 
+   * {@link #formatQueryAsyncV1}
+   * @since 2.3
+   */
+  public Deferred<Object> formatQueryStreamV1(final TSQuery query, 
+      final List<DataPoints[]> results, final List<Annotation> globals) 
+      throws IOException {
+    class SendIt implements Callback<Object, ChannelBuffer> {
+      public Object call(final ChannelBuffer buffer) throws Exception {
+        HttpSerializer.this.query.sendReply(buffer);
+        return null;
+      }
+    }
+    return formatQueryAsyncV1(query, results, globals)
+        .addCallback(new SendIt());
+  }
+  
   /**
    * Format a list of last data points
    * @param data_points The results of the query
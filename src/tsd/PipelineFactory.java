@@ -61,6 +61,9 @@ public final class PipelineFactory implements ChannelPipelineFactory {
   /** The server side socket timeout. **/
   private final int socketTimeout;
   
+  /** Whether or not to parse telnet commands with the zero copy decoder */
+  private final boolean zero_copy_telnet;
+  
   /**
    * Constructor that initializes the RPC router and loads HTTP formatter 
    * plugins. This constructor creates its own {@link RpcManager}.
@@ -102,6 +105,8 @@ public final class PipelineFactory implements ChannelPipelineFactory {
       final int connections_limit) {
     this.tsdb = tsdb;
     socketTimeout = tsdb.getConfig().getInt("tsd.core.socket.timeout");
+    zero_copy_telnet = tsdb.getConfig().getBoolean(
+        "tsd.network.telnet.zero_copy_decoder");
     timer = tsdb.getTimer();
     timeoutHandler = new IdleStateHandler(timer, 0, 0, socketTimeout);
     rpchandler = new RpcHandler(tsdb, manager);
@@ -154,6 +159,9 @@ public final class PipelineFactory implements ChannelPipelineFactory {
         pipeline.addLast("inflater", new HttpContentDecompressor());
         pipeline.addLast("encoder", new HttpResponseEncoder());
         pipeline.addLast("deflater", new HttpContentCompressor());
+      } else if (zero_copy_telnet) {
+        pipeline.addLast("framer", new ZeroCopyWordSplitter(1024));
+        pipeline.addLast("encoder", ENCODER);
       } else {
         pipeline.addLast("framer", new LineBasedFrameDecoder(1024));
         pipeline.addLast("encoder", ENCODER);
@@ -22,6 +22,7 @@ import java.util.concurrent.atomic.AtomicLong;
 
 import com.stumbleupon.async.Callback;
 import com.stumbleupon.async.Deferred;
+import com.stumbleupon.async.DeferredGroupException;
 import com.stumbleupon.async.TimeoutException;
 
 import org.jboss.netty.channel.Channel;
@@ -37,12 +38,11 @@ import net.opentsdb.core.TSDB;
 import net.opentsdb.core.Tags;
 import net.opentsdb.stats.StatsCollector;
 import net.opentsdb.uid.NoSuchUniqueName;
+import net.opentsdb.utils.Exceptions;
 
 /** Implements the "put" telnet-style command. */
 final class PutDataPointRpc implements TelnetRpc, HttpRpc {
   private static final Logger LOG = LoggerFactory.getLogger(PutDataPointRpc.class);
-  private static final ArrayList<Boolean> EMPTY_DEFERREDS = 
-      new ArrayList<Boolean>(0);
   private static final AtomicLong requests = new AtomicLong();
   private static final AtomicLong hbase_errors = new AtomicLong();
   private static final AtomicLong invalid_values = new AtomicLong();
@@ -58,6 +58,22 @@ final class PutDataPointRpc implements TelnetRpc, HttpRpc {
     try {
       final class PutErrback implements Callback<Exception, Exception> {
         public Exception call(final Exception arg) {
+          // UIDs are resolved asynchronously so unknown names show up here
+          // instead of being thrown from importDataPoint().
+          final NoSuchUniqueName nsun = getNoSuchUniqueName(arg);
+          if (nsun != null) {
+            final String msg = "put: unknown metric: " + nsun.getMessage() + '\n';
+            LOG.debug(msg);
+            if (chan.isConnected()) {
+              if (chan.isWritable()) {
+                chan.write(msg);
+              } else {
+                writes_blocked.incrementAndGet();
+              }
+            }
+            unknown_metrics.incrementAndGet();
+            return null;
+          }
           // we handle the storage exceptions here so as to avoid creating yet
           // another callback object on every data point.
           handleStorageException(tsdb, getDataPointFromString(cmd), arg);
@@ -136,14 +152,24 @@ final class PutDataPointRpc implements TelnetRpc, HttpRpc {
     final ArrayList<HashMap<String, Object>> details = show_details
       ? new ArrayList<HashMap<String, Object>>() : null;
     int queued = 0;
-    final List<Deferred<Boolean>> deferreds = synchronous ? 
-        new ArrayList<Deferred<Boolean>>(dps.size()) : null;
+    // the writes if synchronous, otherwise the UID resolutions of the points
+    // as unknown names must be reported even if we don't wait for the writes
+    final List<Deferred<Boolean>> deferreds = 
+        new ArrayList<Deferred<Boolean>>(dps.size());
     for (final IncomingDataPoint dp : dps) {
 
       /** Handles passing a data point to the storage exception handler if 
        * we were unable to store it for any reason */
       final class PutErrback implements Callback<Boolean, Exception> {
         public Boolean call(final Exception arg) {
+          if (getNoSuchUniqueName(arg) != null) {
+            if (show_details) {
+              details.add(getHttpDetails("Unknown metric", dp));
+            }
+            LOG.warn("Unknown metric: " + dp);
+            unknown_metrics.incrementAndGet();
+            return false;
+          }
           handleStorageException(tsdb, dp, arg);
           hbase_errors.incrementAndGet();
           
@@ -158,6 +184,42 @@ final class PutDataPointRpc implements TelnetRpc, HttpRpc {
         }
       }
       
+      /** Handles a failed write once the UIDs resolved without a synchronous
+       * write. The reply may be gone so the details are left alone. */
+      final class WriteErrback implements Callback<Object, Exception> {
+        final AtomicBoolean resolved;
+        WriteErrback(final AtomicBoolean resolved) {
+          this.resolved = resolved;
+        }
+        public Object call(final Exception arg) {
+          // failed resolutions were already reported with the reply
+          if (resolved.get()) {
+            handleStorageException(tsdb, dp, arg);
+            hbase_errors.incrementAndGet();
+          }
+          return null;
+        }
+        public String toString() {
+          return "HTTP Put Write Exception CB";
+        }
+      }
+      
+      /** Marks the UIDs of the point as resolved */
+      final class ResolvedCB implements Callback<Boolean, Object> {
+        final AtomicBoolean resolved;
+        ResolvedCB(final AtomicBoolean resolved) {
+          this.resolved = resolved;
+        }
+        @Override
+        public Boolean call(final Object obj) {
+          resolved.set(true);
+          return true;
+        }
+        public String toString() {
+          return "HTTP Put resolved CB";
+        }
+      }
+      
       /** Simply marks the put as successful */
       final class SuccessCB implements Callback<Boolean, Object> {
         @Override
@@ -202,18 +264,25 @@ final class PutDataPointRpc implements TelnetRpc, HttpRpc {
           illegal_arguments.incrementAndGet();
           continue;
         }
+        final Deferred<Object> resolved = synchronous ? 
+            null : new Deferred<Object>();
         final Deferred<Object> deferred;
         if (Tags.looksLikeInteger(dp.getValue())) {
           deferred = tsdb.addPoint(dp.getMetric(), dp.getTimestamp(), 
-              Tags.parseLong(dp.getValue()), dp.getTags());
+              Tags.parseLong(dp.getValue()), dp.getTags(), resolved);
         } else {
           deferred = tsdb.addPoint(dp.getMetric(), dp.getTimestamp(), 
-              Float.parseFloat(dp.getValue()), dp.getTags());
+              Float.parseFloat(dp.getValue()), dp.getTags(), resolved);
         }
         if (synchronous) {
           deferreds.add(deferred.addCallback(new SuccessCB()));
+          deferred.addErrback(new PutErrback());
+        } else {
+          final AtomicBoolean resolved_ok = new AtomicBoolean();
+          deferreds.add(resolved.addCallback(new ResolvedCB(resolved_ok))
+              .addErrback(new PutErrback()));
+          deferred.addErrback(new WriteErrback(resolved_ok));
         }
-        deferred.addErrback(new PutErrback());
         ++queued;
       } catch (NumberFormatException x) {
         if (show_details) {
@@ -324,16 +393,19 @@ final class PutDataPointRpc implements TelnetRpc, HttpRpc {
           }
         }
         int good_writes = 0;
-        int failed_writes = 0;
+        int failed = 0;
         for (final boolean result : results) {
           if (result) {
             ++good_writes;
           } else {
-            ++failed_writes;
+            ++failed;
           }
         }
         
-        final int failures = dps.size() - queued;
+        // without a synchronous write the results only tell whether the UIDs
+        // resolved, the points that didn't are rejected like invalid ones
+        final int failures = dps.size() - queued + (synchronous ? 0 : failed);
+        final int failed_writes = synchronous ? failed : 0;
         if (!show_summary && !show_details) {
           if (failures + failed_writes > 0) {
             query.sendReply(HttpResponseStatus.BAD_REQUEST, 
@@ -349,7 +421,7 @@ final class PutDataPointRpc implements TelnetRpc, HttpRpc {
           if (sync_timeout > 0) {
             summary.put("timeouts", 0);
           }
-          summary.put("success", results.isEmpty() ? queued : good_writes);
+          summary.put("success", good_writes);
           summary.put("failed", failures + failed_writes);
           if (show_details) {
             summary.put("errors", details);
@@ -395,12 +467,8 @@ final class PutDataPointRpc implements TelnetRpc, HttpRpc {
       }
     }
     
-    if (synchronous) {
-      Deferred.groupInOrder(deferreds).addCallback(new GroupCB(queued))
-        .addErrback(new ErrCB());
-    } else {
-      new GroupCB(queued).call(EMPTY_DEFERREDS);
-    }
+    Deferred.groupInOrder(deferreds).addCallback(new GroupCB(queued))
+      .addErrback(new ErrCB());
   }
   
   /**
@@ -424,7 +492,7 @@ final class PutDataPointRpc implements TelnetRpc, HttpRpc {
    * @return A deferred object that indicates the completion of the request.
    * @throws NumberFormatException if the timestamp or value is invalid.
    * @throws IllegalArgumentException if any other argument is invalid.
-   * @throws NoSuchUniqueName if the metric isn't registered.
+   * @throws NoSuchUniqueName (deferred) if the metric isn't registered.
    */
   private Deferred<Object> importDataPoint(final TSDB tsdb, final String[] words) {
     words[0] = null; // Ditch the "put".
@@ -509,6 +577,19 @@ final class PutDataPointRpc implements TelnetRpc, HttpRpc {
     return map;
   }
   
+  /**
+   * Returns the {@link NoSuchUniqueName} that caused a put to fail, unwrapping
+   * a {@link DeferredGroupException} if the tags were resolved in a group.
+   * @param e The exception passed to an errback
+   * @return The unknown name exception or null if the failure was due to 
+   * something else.
+   */
+  static NoSuchUniqueName getNoSuchUniqueName(final Exception e) {
+    final Throwable ex = e instanceof DeferredGroupException ? 
+        Exceptions.getCause((DeferredGroupException) e) : e;
+    return ex instanceof NoSuchUniqueName ? (NoSuchUniqueName) ex : null;
+  }
+  
   /**
    * Passes a data point off to the storage handler plugin if it has been
    * configured. 
@@ -0,0 +1,282 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+
+import com.google.common.base.Objects;
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.core.CancellationToken;
+import net.opentsdb.core.TSQuery;
+import net.opentsdb.core.TSSubQuery;
+import net.opentsdb.query.filter.TagVFilter;
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Runs identical data queries arriving while one of them is in flight only
+ * once. The first requester leads the query and every requester arriving
+ * before it completes follows it, receiving a copy of the serialized response
+ * or the same exception.
+ * <p>
+ * Queries are identical when they have the same method and URI and their
+ * normalized {@link TSQuery}s are equal, so that the serializer options given
+ * in the query string match as well. As the query equality ignores whether
+ * the filters group by and whether the query is shown in the response, those
+ * are compared too. The shared query is only cancelled once all of its
+ * requesters stopped waiting on it.
+ * @since 2.3
+ */
+final class QueryCoalescer {
+
+  /** How many queries were served by another identical query */
+  private static final AtomicLong queries_coalesced = new AtomicLong();
+
+  /** The queries in flight, keyed by what makes them identical */
+  private final ConcurrentHashMap<Key, Flight> flights =
+      new ConcurrentHashMap<Key, Flight>();
+
+  /**
+   * Finds the query in flight that's identical to the given one or starts a
+   * new flight led by it.
+   * @param query The HTTP query
+   * @param data_query The validated data query
+   * @return The flight the query leads or follows
+   */
+  Flight join(final HttpQuery query, final TSQuery data_query) {
+    final Key key = new Key(query.method(), query.request().getUri(),
+        data_query);
+    final Flight flight = new Flight(key, data_query);
+    while (true) {
+      final Flight existing = flights.putIfAbsent(key, flight);
+      if (existing == null) {
+        return flight;
+      }
+      if (existing.attach(data_query)) {
+        queries_coalesced.incrementAndGet();
+        return existing;
+      }
+      // the query in flight was cancelled or completed in the mean time
+      flights.remove(key, existing);
+    }
+  }
+
+  /** @return The number of queries in flight */
+  int size() {
+    return flights.size();
+  }
+
+  /**
+   * Collects the stats of every coalescer
+   * @param collector The collector to use
+   */
+  static void collectStats(final StatsCollector collector) {
+    collector.record("http.query.coalesced", queries_coalesced);
+  }
+
+  /**
+   * A query in flight along with the requesters following it
+   */
+  final class Flight {
+    /** The key of the flight */
+    private final Key key;
+
+    /** The query that runs */
+    private final TSQuery leader;
+
+    /** The followers of the flight, guarded by this */
+    private final List<Follower> followers = new ArrayList<Follower>(1);
+
+    /** Set once the query completed, guarded by this */
+    private boolean done;
+
+    /**
+     * Default ctor
+     * @param key The key of the flight
+     * @param leader The query that runs
+     */
+    private Flight(final Key key, final TSQuery leader) {
+      this.key = key;
+      this.leader = leader;
+    }
+
+    /**
+     * @param data_query The data query joining the flight
+     * @return True if the data query runs and must complete the flight
+     */
+    boolean leads(final TSQuery data_query) {
+      return leader == data_query;
+    }
+
+    /**
+     * Returns the response of a follower.
+     * @param data_query The data query of the follower
+     * @return The deferred called back with a copy of the serialized
+     * response or with the exception the query failed with
+     * @throws IllegalArgumentException if the query doesn't follow the flight
+     */
+    Deferred<ChannelBuffer> response(final TSQuery data_query) {
+      synchronized (this) {
+        for (final Follower follower : followers) {
+          if (follower.query == data_query) {
+            return follower.response;
+          }
+        }
+      }
+      throw new IllegalArgumentException("Query " + data_query
+          + " doesn't follow " + leader);
+    }
+
+    /**
+     * Completes the flight, sending a copy of the buffer to every follower.
+     * Must be called by the leader before it sends the buffer itself.
+     * @param buffer The serialized response
+     */
+    void complete(final ChannelBuffer buffer) {
+      for (final Follower follower : finish()) {
+        follower.response.callback(buffer.duplicate());
+      }
+    }
+
+    /**
+     * Fails the flight, passing the exception to every follower
+     * @param e The exception the query failed with
+     */
+    void fail(final Exception e) {
+      for (final Follower follower : finish()) {
+        follower.response.callback(e);
+      }
+    }
+
+    /**
+     * Follows the flight unless it's already done
+     * @param data_query The data query of the follower
+     * @return True if the query follows the flight
+     */
+    private boolean attach(final TSQuery data_query) {
+      final Follower follower = new Follower(data_query);
+      synchronized (this) {
+        if (done || !leader.getCancellation().join()) {
+          return false;
+        }
+        followers.add(follower);
+      }
+
+      /** Stops following once the follower was cancelled */
+      final class DetachCB implements Runnable {
+        @Override
+        public void run() {
+          synchronized (Flight.this) {
+            if (done || follower.detached) {
+              return;
+            }
+            follower.detached = true;
+          }
+          final CancellationToken cancellation = data_query.getCancellation();
+          leader.getCancellation().abandon(cancellation.reason());
+          follower.response.callback(cancellation.exception());
+        }
+      }
+      data_query.getCancellation().addListener(new DetachCB());
+      return true;
+    }
+
+    /** @return The followers to respond to once the query completed */
+    private List<Follower> finish() {
+      flights.remove(key, this);
+      synchronized (this) {
+        if (done) {
+          return new ArrayList<Follower>(0);
+        }
+        done = true;
+        final List<Follower> to_respond = 
+            new ArrayList<Follower>(followers.size());
+        for (final Follower follower : followers) {
+          if (!follower.detached) {
+            to_respond.add(follower);
+          }
+        }
+        return to_respond;
+      }
+    }
+  }
+
+  /** A query waiting on the response of another one */
+  private static final class Follower {
+    /** The data query of the follower */
+    private final TSQuery query;
+
+    /** Called back with the response */
+    private final Deferred<ChannelBuffer> response =
+        new Deferred<ChannelBuffer>();
+
+    /** Set once the follower stopped waiting, guarded by the flight */
+    private boolean detached;
+
+    private Follower(final TSQuery query) {
+      this.query = query;
+    }
+  }
+
+  /** What makes two data queries identical */
+  private static final class Key {
+    private final HttpMethod method;
+    private final String uri;
+    private final TSQuery query;
+    private final boolean show_query;
+    /** Whether or not each filter of the sub queries groups by */
+    private final List<Boolean> group_bys = new ArrayList<Boolean>();
+
+    private Key(final HttpMethod method, final String uri,
+        final TSQuery query) {
+      this.method = method;
+      this.uri = uri;
+      this.query = query;
+      show_query = query.getShowQuery();
+      for (final TSSubQuery sub : query.getQueries()) {
+        if (sub.getFilters() != null) {
+          for (final TagVFilter filter : sub.getFilters()) {
+            group_bys.add(filter.isGroupBy());
+          }
+        }
+      }
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(method, uri, query);
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+      if (obj == this) {
+        return true;
+      }
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      final Key key = (Key) obj;
+      return Objects.equal(method, key.method)
+          && Objects.equal(uri, key.uri)
+          && Objects.equal(query, key.query)
+          && show_query == key.show_query
+          && group_bys.equals(key.group_bys);
+    }
+  }
+}
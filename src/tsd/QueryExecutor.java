@@ -43,6 +43,7 @@ import com.stumbleupon.async.DeferredGroupException;
 import net.opentsdb.core.DataPoint;
 import net.opentsdb.core.DataPoints;
 import net.opentsdb.core.QueryException;
+import net.opentsdb.core.QueryScheduler;
 import net.opentsdb.core.TSDB;
 import net.opentsdb.core.TSQuery;
 import net.opentsdb.core.TSSubQuery;
@@ -224,6 +225,8 @@ public class QueryExecutor {
     final QueryStats query_stats = 
         new QueryStats(query.getRemoteAddress(), ts_query, query.getHeaders());
     ts_query.setQueryStats(query_stats);
+    QueryRpc.cancelWhenAbandoned(tsdb, query, ts_query.getCancellation());
+    QueryRpc.holdMemoryUntilDone(query, ts_query);
     
     /**
      * Sends the serialized results to the caller. This should be the very
@@ -450,9 +453,35 @@ public class QueryExecutor {
     class BuildCB implements Callback<Deferred<Object>, net.opentsdb.core.Query[]> {
       @Override
       public Deferred<Object> call(final net.opentsdb.core.Query[] queries) {
+        final QueryScheduler scheduler = tsdb.getQueryScheduler();
+        if (scheduler == null) {
+          return run(queries, null);
+        }
+        
+        /** Runs the queries once they got a slot of their class */
+        class ScheduledCB implements 
+            Callback<Deferred<Object>, QueryScheduler.Ticket> {
+          @Override
+          public Deferred<Object> call(final QueryScheduler.Ticket ticket) {
+            return run(queries, ticket);
+          }
+        }
+        return scheduler.schedule(ts_query, queries, 
+            http_query.getRemoteAddress(), http_query.getHeaders())
+            .addCallbackDeferring(new ScheduledCB());
+      }
+      
+      /**
+       * Runs the queries
+       * @param queries The compiled sub queries
+       * @param ticket The scheduler ticket to release once the response was
+       * sent, null if the scheduler is disabled
+       */
+      private Deferred<Object> run(final net.opentsdb.core.Query[] queries, 
+          final QueryScheduler.Ticket ticket) {
+        QueryRpc.releaseWhenDone(http_query, null, ticket);
         final ArrayList<Deferred<DataPoints[]>> deferreds = 
             new ArrayList<Deferred<DataPoints[]>>(queries.length);
-        
         for (final net.opentsdb.core.Query query : queries) {
           deferreds.add(query.runAsync());
         }
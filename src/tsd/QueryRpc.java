@@ -25,6 +25,8 @@ import org.hbase.async.HBaseException;
 import org.hbase.async.RpcTimedOutException;
 import org.hbase.async.Bytes.ByteMap;
 import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.handler.codec.http.HttpMethod;
 import org.jboss.netty.handler.codec.http.HttpResponseStatus;
 import org.slf4j.Logger;
@@ -34,10 +36,14 @@ import com.stumbleupon.async.Callback;
 import com.stumbleupon.async.Deferred;
 import com.stumbleupon.async.DeferredGroupException;
 
+import net.opentsdb.core.CancellationToken;
 import net.opentsdb.core.DataPoints;
 import net.opentsdb.core.IncomingDataPoint;
 import net.opentsdb.core.Query;
+import net.opentsdb.core.QueryCostEstimator;
 import net.opentsdb.core.QueryException;
+import net.opentsdb.core.QueryResultCache;
+import net.opentsdb.core.QueryScheduler;
 import net.opentsdb.core.RateOptions;
 import net.opentsdb.core.TSDB;
 import net.opentsdb.core.TSQuery;
@@ -74,6 +80,9 @@ final class QueryRpc implements HttpRpc {
   static final AtomicLong query_exceptions = new AtomicLong();
   static final AtomicLong query_success = new AtomicLong();
   
+  /** Runs identical data queries in flight at the same time only once */
+  private final QueryCoalescer coalescer = new QueryCoalescer();
+  
   /**
    * Implements the /api/query endpoint to fetch data from OpenTSDB.
    * @param tsdb The TSDB to use for fetching data
@@ -163,6 +172,14 @@ final class QueryRpc implements HttpRpc {
             query.getPrintableHeaders());
     data_query.setQueryStats(query_stats);
     query.setStats(query_stats);
+    cancelWhenAbandoned(tsdb, query, data_query.getCancellation());
+    holdMemoryUntilDone(query, data_query);
+    
+    // identical queries in flight share the response of the first one
+    final QueryCoalescer.Flight flight = coalesce(tsdb, query, data_query) ? 
+        coalescer.join(query, data_query) : null;
+    final QueryCoalescer.Flight leading = 
+        flight != null && flight.leads(data_query) ? flight : null;
     
     final int nqueries = data_query.getQueries().size();
     final ArrayList<DataPoints[]> results = new ArrayList<DataPoints[]>(nqueries);
@@ -171,6 +188,9 @@ final class QueryRpc implements HttpRpc {
     /** This has to be attached to callbacks or we may never respond to clients */
     class ErrorCB implements Callback<Object, Exception> {
       public Object call(final Exception e) throws Exception {
+        if (leading != null) {
+          leading.fail(e);
+        }
         Throwable ex = e;
         try {
           LOG.error("Query exception: ", e);
@@ -248,17 +268,34 @@ final class QueryRpc implements HttpRpc {
         /** Simply returns the buffer once serialization is complete and logs it */
         class SendIt implements Callback<Object, ChannelBuffer> {
           public Object call(final ChannelBuffer buffer) throws Exception {
+            if (leading != null) {
+              leading.complete(buffer);
+            }
             query.sendReply(buffer);
             query_success.incrementAndGet();
             return null;
           }
         }
 
+        /** Counts the query once the results were sent to the client */
+        class StreamedIt implements Callback<Object, Object> {
+          public Object call(final Object ignored) throws Exception {
+            query_success.incrementAndGet();
+            return null;
+          }
+        }
+
         switch (query.apiVersion()) {
         case 0:
         case 1:
+          if (tsdb.getConfig().getBoolean("tsd.http.query.stream_responses")) {
+            query.serializer().formatQueryStreamV1(data_query, results, 
+                globals).addCallback(new StreamedIt())
+                .addErrback(new ErrorCB());
+          } else {
             query.serializer().formatQueryAsyncV1(data_query, results, 
                globals).addCallback(new SendIt()).addErrback(new ErrorCB());
+          }
           break;
         default: 
           query_invalid.incrementAndGet();
@@ -278,10 +315,60 @@ final class QueryRpc implements HttpRpc {
     class BuildCB implements Callback<Deferred<Object>, Query[]> {
       @Override
       public Deferred<Object> call(final Query[] queries) {
+        final QueryScheduler scheduler = tsdb.getQueryScheduler();
+        if (scheduler != null) {
+          
+          /** Runs the queries once they got a slot of their class */
+          class ScheduledCB implements 
+              Callback<Deferred<Object>, QueryScheduler.Ticket> {
+            @Override
+            public Deferred<Object> call(final QueryScheduler.Ticket ticket) {
+              return run(queries, null, ticket);
+            }
+          }
+          return scheduler.schedule(data_query, queries, 
+              query.getRemoteAddress(), query.getHeaders())
+              .addCallbackDeferring(new ScheduledCB());
+        }
+        
+        final QueryCostEstimator estimator = tsdb.getQueryCostEstimator();
+        if (estimator == null) {
+          return run(queries, null, null);
+        }
+        
+        /** Runs the queries once admitted, possibly after waiting */
+        class AdmitCB implements Callback<Deferred<Object>, Boolean> {
+          @Override
+          public Deferred<Object> call(final Boolean holds_slot) {
+            return run(queries, holds_slot ? estimator : null, null);
+          }
+        }
+        return estimator.admit(data_query, queries)
+            .addCallbackDeferring(new AdmitCB());
+      }
+      
+      /**
+       * Runs the queries
+       * @param queries The compiled sub queries
+       * @param estimator The estimator to return the slot of an expensive 
+       * query to once the response was sent, null if not holding one
+       * @param ticket The scheduler ticket to release once the response was
+       * sent, null if the scheduler is disabled
+       */
+      private Deferred<Object> run(final Query[] queries, 
+          final QueryCostEstimator estimator, 
+          final QueryScheduler.Ticket ticket) {
+        releaseWhenDone(query, estimator, ticket);
         final ArrayList<Deferred<DataPoints[]>> deferreds = 
             new ArrayList<Deferred<DataPoints[]>>(queries.length);
-        for (final Query query : queries) {
-          deferreds.add(query.runAsync());
+        final QueryResultCache cache = query.hasQueryStringParam("nocache") ?
+            null : tsdb.getQueryResultCache();
+        for (int i = 0; i < queries.length; i++) {
+          if (cache != null) {
+            deferreds.add(cache.runAsync(data_query, i, queries[i]));
+          } else {
+            deferreds.add(queries[i].runAsync());
+          }
         }
         return Deferred.groupInOrder(deferreds).addCallback(new QueriesCB());
       }
@@ -295,19 +382,60 @@ final class QueryRpc implements HttpRpc {
       }
     }
  
+    if (flight != null && leading == null) {
+      
+      /** Sends the response of the identical query this one followed */
+      class FollowCB implements Callback<Object, ChannelBuffer> {
+        public Object call(final ChannelBuffer buffer) throws Exception {
+          query_stats.markSerializationSuccessful();
+          query.sendReply(buffer);
+          query_success.incrementAndGet();
+          return null;
+        }
+      }
+      flight.response(data_query).addCallback(new FollowCB())
+        .addErrback(new ErrorCB());
+      return;
+    }
+    
     // if we the caller wants to search for global annotations, fire that off 
     // first then scan for the notes, then pass everything off to the formatter
     // when complete
-    if (!data_query.getNoAnnotations() && data_query.getGlobalAnnotations()) {
-      Annotation.getGlobalAnnotations(tsdb, 
-        data_query.startTime() / 1000, data_query.endTime() / 1000)
-          .addCallback(new GlobalCB()).addErrback(new ErrorCB());
-    } else {
-      data_query.buildQueriesAsync(tsdb).addCallback(new BuildCB())
-        .addErrback(new ErrorCB());
+    try {
+      if (!data_query.getNoAnnotations() && data_query.getGlobalAnnotations()) {
+        Annotation.getGlobalAnnotations(tsdb, 
+          data_query.startTime() / 1000, data_query.endTime() / 1000)
+            .addCallback(new GlobalCB()).addErrback(new ErrorCB());
+      } else {
+        data_query.buildQueriesAsync(tsdb).addCallback(new BuildCB())
+          .addErrback(new ErrorCB());
+      }
+    } catch (RuntimeException e) {
+      if (leading != null) {
+        leading.fail(e);
+      }
+      throw e;
     }
   }
   
+  /**
+   * Whether or not the data query may share the response of an identical
+   * query in flight. Responses that are streamed or that carry stats of their
+   * own query aren't shared, neither are deletions or queries asking to 
+   * bypass the caches.
+   * @param tsdb The TSDB we belong to
+   * @param query The HTTP query
+   * @param data_query The validated data query
+   * @return True if the query may be coalesced
+   */
+  private static boolean coalesce(final TSDB tsdb, final HttpQuery query, 
+      final TSQuery data_query) {
+    return tsdb.getConfig().getBoolean("tsd.query.coalesce.enable") && 
+        !tsdb.getConfig().getBoolean("tsd.http.query.stream_responses") && 
+        !data_query.getShowSummary() && !data_query.getShowStats() && 
+        !data_query.getDelete() && !query.hasQueryStringParam("nocache");
+  }
+  
   /**
    * Handles an expression query
    * @param tsdb The TSDB to which we belong
@@ -494,6 +622,105 @@ final class QueryRpc implements HttpRpc {
     }
   }
   
+  /**
+   * Cancels the data query once nobody waits for its results anymore, i.e.
+   * when it runs longer than "tsd.query.timeout" or when the client closes
+   * the connection. The token is completed once the response was sent.
+   * @param tsdb The TSDB we belong to
+   * @param query The HTTP query to watch
+   * @param cancellation The token of the data query
+   * @since 2.3
+   */
+  static void cancelWhenAbandoned(final TSDB tsdb, final HttpQuery query,
+      final CancellationToken cancellation) {
+    cancellation.cancelAfter(tsdb.getTimer(), 
+        tsdb.getConfig().getLong("tsd.query.timeout"));
+    final ChannelFuture close_future = query.channel().getCloseFuture();
+    
+    /** Cancels the query when the client disconnects */
+    class DisconnectCB implements ChannelFutureListener {
+      @Override
+      public void operationComplete(final ChannelFuture future) {
+        if (cancellation.abandon(CancellationToken.Reason.DISCONNECT)) {
+          LOG.info("Cancelled the query of " + query.channel() 
+              + " as the client disconnected");
+        }
+      }
+    }
+    final DisconnectCB disconnect_cb = new DisconnectCB();
+    if (close_future != null) {
+      close_future.addListener(disconnect_cb);
+    }
+    
+    /** Stops watching the query once the response was sent */
+    class DoneCB implements Callback<Object, Object> {
+      @Override
+      public Object call(final Object ignored) {
+        if (close_future != null) {
+          close_future.removeListener(disconnect_cb);
+        }
+        cancellation.complete();
+        return ignored;
+      }
+    }
+    query.getDeferred().addBoth(new DoneCB());
+  }
+  
+  /**
+   * Returns the slots held by a data query once the response was sent, so
+   * that the limits also cover aggregating and serializing the results.
+   * @param query The HTTP query to watch
+   * @param estimator The estimator to return the slot of an expensive query
+   * to, null if not holding one
+   * @param ticket The scheduler ticket to release, null if the scheduler is
+   * disabled
+   * @since 2.3
+   */
+  static void releaseWhenDone(final HttpQuery query, 
+      final QueryCostEstimator estimator, final QueryScheduler.Ticket ticket) {
+    if (estimator == null && ticket == null) {
+      return;
+    }
+    
+    /** Returns the slots once the response was sent */
+    class ReleaseCB implements Callback<Object, Object> {
+      @Override
+      public Object call(final Object ignored) {
+        if (estimator != null) {
+          estimator.release();
+        }
+        if (ticket != null) {
+          ticket.release();
+        }
+        return ignored;
+      }
+    }
+    query.getDeferred().addBoth(new ReleaseCB());
+  }
+  
+  /**
+   * Keeps the memory reserved by the scans of the data query until the
+   * response was sent, so that the memory budgets also cover the results
+   * while they're aggregated and serialized.
+   * @param query The HTTP query to watch
+   * @param data_query The data query
+   * @since 2.3
+   */
+  static void holdMemoryUntilDone(final HttpQuery query, 
+      final TSQuery data_query) {
+    data_query.holdMemory();
+    
+    /** Releases the memory once the response was sent */
+    class ReleaseMemoryCB implements Callback<Object, Object> {
+      @Override
+      public Object call(final Object ignored) {
+        data_query.releaseMemory();
+        return ignored;
+      }
+    }
+    query.getDeferred().addBoth(new ReleaseMemoryCB());
+  }
+  
   /**
    * Parses a query string legacy style query from the URI
    * @param tsdb The TSDB we belong to
@@ -814,6 +1041,9 @@ final class QueryRpc implements HttpRpc {
     collector.record("http.query.invalid_requests", query_invalid);
     collector.record("http.query.exceptions", query_exceptions);
     collector.record("http.query.success", query_success);
+    QueryResultCache.collectStats(collector);
+    CancellationToken.collectStats(collector);
+    QueryCoalescer.collectStats(collector);
   }
   
   public static class LastPointQuery {
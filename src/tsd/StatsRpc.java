@@ -72,8 +72,9 @@ public final class StatsRpc implements TelnetRpc, HttpRpc {
    * @param query The query to parse and respond to
    */
   public void execute(final TSDB tsdb, final HttpQuery query) {
-    // only accept GET/POST
-    if (query.method() != HttpMethod.GET && query.method() != HttpMethod.POST) {
+    // only accept GET/POST, and DELETE to cancel a running query
+    if (query.method() != HttpMethod.GET && query.method() != HttpMethod.POST &&
+        query.method() != HttpMethod.DELETE) {
       throw new BadRequestException(HttpResponseStatus.METHOD_NOT_ALLOWED, 
           "Method not allowed", "The HTTP method [" + query.method().getName() +
           "] is not permitted for this endpoint");
@@ -82,6 +83,11 @@ public final class StatsRpc implements TelnetRpc, HttpRpc {
     try {
       final String[] uri = query.explodeAPIPath();
       final String endpoint = uri.length > 1 ? uri[1].toLowerCase() : "";
+      if (query.method() == HttpMethod.DELETE && !"query".equals(endpoint)) {
+        throw new BadRequestException(HttpResponseStatus.METHOD_NOT_ALLOWED, 
+            "Method not allowed", "The HTTP method [" + query.method().getName()
+            + "] is not permitted for this endpoint");
+      }
 
       // Handle /threads and /regions.
       if ("threads".equals(endpoint)) {
@@ -91,7 +97,11 @@ public final class StatsRpc implements TelnetRpc, HttpRpc {
         printJVMStats(tsdb, query);
         return;
       } else if ("query".equals(endpoint)) {
-        printQueryStats(query);
+        if (query.method() == HttpMethod.DELETE) {
+          cancelQuery(query);
+        } else {
+          printQueryStats(query);
+        }
         return;
       } else if ("region_clients".equals(endpoint)) {
         printRegionClientStats(tsdb, query);
@@ -102,6 +112,12 @@ public final class StatsRpc implements TelnetRpc, HttpRpc {
       // compatibility with the /stats endpoint we can catch and continue here.
     }
     
+    if (query.method() == HttpMethod.DELETE) {
+      throw new BadRequestException(HttpResponseStatus.METHOD_NOT_ALLOWED, 
+          "Method not allowed", "The HTTP method [" + query.method().getName() +
+          "] is not permitted for this endpoint");
+    }
+    
     final boolean canonical = tsdb.getConfig().getBoolean("tsd.stats.canonical");
     
     // if we don't have an API request we need to respond with the 1.x version
@@ -340,6 +356,28 @@ public final class StatsRpc implements TelnetRpc, HttpRpc {
     }
   }
   
+  /**
+   * Cancels the running query with the hash given in the query string, as
+   * listed by the query stats. Its scanners are closed right away.
+   * @param query The query to respond to
+   * @throws BadRequestException if the hash is missing or invalid or if no
+   * such query is running
+   */
+  private void cancelQuery(final HttpQuery query) {
+    final String hash = query.getRequiredQueryStringParam("hash");
+    final int parsed;
+    try {
+      parsed = Integer.parseInt(hash);
+    } catch (NumberFormatException e) {
+      throw new BadRequestException("Invalid query hash: " + hash);
+    }
+    if (!QueryStats.cancelRunningQuery(parsed)) {
+      throw new BadRequestException(HttpResponseStatus.NOT_FOUND, 
+          "No such running query", "No running query with the hash " + hash);
+    }
+    query.sendStatusOnly(HttpResponseStatus.NO_CONTENT);
+  }
+  
   /**
    * Implements the StatsCollector with ASCII style output. Builds a string
    * buffer response to send to the caller
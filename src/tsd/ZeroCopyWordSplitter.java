@@ -0,0 +1,234 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.nio.charset.Charset;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.handler.codec.frame.FrameDecoder;
+import org.jboss.netty.handler.codec.frame.TooLongFrameException;
+
+/**
+ * Decodes telnet-style frames delimited by new-lines and splits them in
+ * space separated words in a single pass over the channel buffer.
+ * <p>
+ * This combines the work of {@link LineBasedFrameDecoder} and
+ * {@link WordSplitter} without copying each line into its own buffer,
+ * decoding it into a String and then splitting that String. Words are read
+ * straight out of the cumulation buffer using byte ranges and looked up in a
+ * small per-channel table of the words seen recently. Since a given client
+ * tends to write the same metrics and tags over and over, most words of a
+ * "put" are found in the table and no String is created for them. Strings are
+ * only materialized on a miss.
+ * <p>
+ * The output is the same as that of the two decoders it replaces, i.e. one
+ * {@code String[]} per line, including empty words for consecutive spaces.
+ * <p>
+ * This decoder is stateful and is thus <strong>NOT</strong> shareable.
+ * @since 2.3
+ */
+final class ZeroCopyWordSplitter extends FrameDecoder {
+
+  private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+  /** Number of slots in the table of recent words, must be a power of 2. */
+  static final int TABLE_SIZE = 1024;
+
+  /** Words longer than this are never stored in the table. */
+  static final int MAX_CACHED_WORD_LENGTH = 256;
+
+  /** Maximum length of a frame we're willing to decode.  */
+  private final int max_length;
+  /** True if we're discarding input because we're already over max_length.  */
+  private boolean discarding;
+
+  /** Direct mapped table of the words seen recently, indexed on their hash. */
+  private final String[] words = new String[TABLE_SIZE];
+
+  /** Number of words returned from the table. */
+  private long hits;
+  /** Number of words that had to be decoded. */
+  private long misses;
+
+  /**
+   * Creates a new decoder.
+   * @param max_length Maximum length of a frame we're willing to decode.
+   * If a frame is longer than that, a {@link TooLongFrameException} will
+   * be fired on the channel causing it.
+   */
+  public ZeroCopyWordSplitter(final int max_length) {
+    this.max_length = max_length;
+  }
+
+  @Override
+  protected Object decode(final ChannelHandlerContext ctx,
+                          final Channel channel,
+                          final ChannelBuffer buffer) throws Exception {
+    final int eol = findEndOfLine(buffer);
+    if (eol != -1) {
+      final String[] frame;
+      final int start = buffer.readerIndex();
+      final int length = eol - start;
+      assert length >= 0: "WTF?  length=" + length;
+      if (discarding) {
+        frame = null;
+      } else {
+        frame = split(buffer, start, eol);
+      }
+      buffer.skipBytes(length);
+      final byte delim = buffer.readByte();
+      if (delim == '\r') {
+        buffer.skipBytes(1);  // Skip the \n.
+      }
+      return frame;
+    }
+
+    final int buffered = buffer.readableBytes();
+    if (!discarding && buffered > max_length) {
+      discarding = true;
+      Channels.fireExceptionCaught(ctx.getChannel(),
+        new TooLongFrameException("Frame length exceeds " + max_length + " ("
+                                  + buffered + " bytes buffered already)"));
+    }
+    if (discarding) {
+      buffer.skipBytes(buffer.readableBytes());
+    }
+    return null;
+  }
+
+  /**
+   * Splits the bytes in the range {@code [start, end)} on spaces.
+   * @param buffer The buffer to read from, its indices are not modified
+   * @param start The index of the first byte of the line
+   * @param end The index right after the last byte of the line
+   * @return An array of words, same as {@link net.opentsdb.core.Tags#splitString}
+   */
+  String[] split(final ChannelBuffer buffer, final int start, final int end) {
+    final byte[] array;
+    final int from;
+    if (buffer.hasArray()) {
+      array = buffer.array();
+      from = buffer.arrayOffset() + start;
+    } else {
+      // direct buffers are not used by the NIO transport for reads, but just
+      // in case, copy the line so the rest of the code only deals with arrays
+      array = new byte[end - start];
+      buffer.getBytes(start, array);
+      from = 0;
+    }
+    final int to = from + (end - start);
+
+    int num_words = 1;
+    for (int i = from; i < to; i++) {
+      if (array[i] == ' ') {
+        num_words++;
+      }
+    }
+    final String[] result = new String[num_words];
+    int word_start = from;
+    int n = 0;
+    for (int i = from; i < to; i++) {
+      if (array[i] == ' ') {
+        result[n++] = word(array, word_start, i);
+        word_start = i + 1;
+      }
+    }
+    result[n] = word(array, word_start, to);
+    return result;
+  }
+
+  /**
+   * Returns the word in the range {@code [start, end)} from the table if it
+   * was seen recently, otherwise decodes it and stores it in the table.
+   * @param array The array to read from
+   * @param start The index of the first byte of the word
+   * @param end The index right after the last byte of the word
+   * @return The word
+   */
+  private String word(final byte[] array, final int start, final int end) {
+    final int length = end - start;
+    if (length == 0) {
+      return "";
+    }
+    if (length > MAX_CACHED_WORD_LENGTH) {
+      misses++;
+      return new String(array, start, length, CHARSET);
+    }
+    int hash = 0;
+    for (int i = start; i < end; i++) {
+      hash = 31 * hash + (array[i] & 0xFF);
+    }
+    final int slot = (hash ^ (hash >>> 16)) & (TABLE_SIZE - 1);
+    final String cached = words[slot];
+    if (cached != null && matches(cached, array, start, length)) {
+      hits++;
+      return cached;
+    }
+    misses++;
+    final String word = new String(array, start, length, CHARSET);
+    words[slot] = word;
+    return word;
+  }
+
+  /**
+   * Compares a String with a range of ISO-8859-1 encoded bytes.
+   * @param word The String to compare
+   * @param array The array to read from
+   * @param start The index of the first byte of the range
+   * @param length The number of bytes in the range
+   * @return True if the String is the same as the bytes
+   */
+  private static boolean matches(final String word, final byte[] array,
+                                 final int start, final int length) {
+    if (word.length() != length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (word.charAt(i) != (char) (array[start + i] & 0xFF)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** @return The number of words returned from the table of recent words */
+  long hits() {
+    return hits;
+  }
+
+  /** @return The number of words that had to be decoded */
+  long misses() {
+    return misses;
+  }
+
+  /**
+   * Returns the index in the buffer of the end of line found.
+   * Returns -1 if no end of line was found in the buffer.
+   */
+  private static int findEndOfLine(final ChannelBuffer buffer) {
+    final int n = buffer.writerIndex();
+    for (int i = buffer.readerIndex(); i < n; i ++) {
+      final byte b = buffer.getByte(i);
+      if (b == '\n') {
+        return i;
+      } else if (b == '\r' && i < n - 1 && buffer.getByte(i + 1) == '\n') {
+        return i;  // \r\n
+      }
+    }
+    return -1;  // Not found.
+  }
+
+}
@@ -12,12 +12,15 @@
 // see <http://www.gnu.org/licenses/>.
 package net.opentsdb.uid;
 
+import java.io.DataOutput;
+import java.io.IOException;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -97,16 +100,25 @@ public final class UniqueId implements UniqueIdInterface {
   /** Whether or not to randomize new IDs */
   private final boolean randomize_id;
 
-  /** Cache for forward mappings (name to ID). */
-  private final ConcurrentHashMap<String, byte[]> name_cache =
-    new ConcurrentHashMap<String, byte[]>();
-  /** Cache for backward mappings (ID to name).
-   * The ID in the key is a byte[] converted to a String to be Comparable. */
-  private final ConcurrentHashMap<String, String> id_cache =
-    new ConcurrentHashMap<String, String>();
+  /** Cache for the forward (name to ID) and backward (ID to name) mappings */
+  private final UniqueIdCache cache;
+  /** Optional in-memory index of the names answering suggest queries */
+  private volatile UniqueIdSuggestIndex suggest_index;
   /** Map of pending UID assignments */
   private final HashMap<String, Deferred<byte[]>> pending_assignments =
     new HashMap<String, Deferred<byte[]>>();
+  /** Map of ID lookups in flight to the deferreds waiting on them */
+  private final HashMap<String, ArrayList<Deferred<byte[]>>> pending_id_lookups =
+    new HashMap<String, ArrayList<Deferred<byte[]>>>();
+  /** Map of name lookups in flight to the deferreds waiting on them */
+  private final ByteMap<ArrayList<Deferred<String>>> pending_name_lookups =
+    new ByteMap<ArrayList<Deferred<String>>>();
+  /** Names not found in storage and when to forget it, null if disabled */
+  private volatile ConcurrentHashMap<String, Long> missing_names;
+  /** How long names not found in storage are remembered, in ms */
+  private volatile long missing_names_ttl;
+  /** The maximum number of names not found in storage to remember */
+  private volatile int missing_names_max;
   /** Set of UID rename */
   private final Set<String> renaming_id_names =
     Collections.synchronizedSet(new HashSet<String>());
@@ -120,6 +132,10 @@ public final class UniqueId implements UniqueIdInterface {
   private volatile int random_id_collisions;
   /** How many times assignments have been rejected by the UID filter */
   private volatile int rejected_assignments;
+  /** How many lookups waited on an identical one instead of reading HBase */
+  private volatile int lookups_coalesced;
+  /** How many times we knew a name was missing without reading HBase */
+  private volatile int negative_cache_hits;
   
   /** TSDB object used for filtering and/or meta generation. */
   private TSDB tsdb;
@@ -163,6 +179,7 @@ public final class UniqueId implements UniqueIdInterface {
     }
     this.id_width = (short) width;
     this.randomize_id = randomize_id;
+    cache = new UniqueIdCache(id_width, 0);
   }
   
   /**
@@ -178,6 +195,25 @@ public final class UniqueId implements UniqueIdInterface {
    */
   public UniqueId(final TSDB tsdb, final byte[] table, final String kind,
                   final int width, final boolean randomize_id) {
+    this(tsdb, table, kind, width, randomize_id, 0);
+  }
+  
+  /**
+   * Constructor.
+   * @param tsdb The TSDB this UID object belongs to
+   * @param table The name of the HBase table to use.
+   * @param kind The kind of Unique ID this instance will deal with.
+   * @param width The number of bytes on which Unique IDs should be encoded.
+   * @param Whether or not to randomize new UIDs
+   * @param cache_max_entries The maximum number of names and of IDs to keep
+   * in the cache, 0 for no limit.
+   * @throws IllegalArgumentException if width is negative or too small/large
+   * or if kind is an empty string or the cache max entries is negative.
+   * @since 2.3
+   */
+  public UniqueId(final TSDB tsdb, final byte[] table, final String kind,
+                  final int width, final boolean randomize_id, 
+                  final long cache_max_entries) {
     this.client = tsdb.getClient();
     this.tsdb = tsdb;
     this.table = table;
@@ -191,6 +227,7 @@ public final class UniqueId implements UniqueIdInterface {
     }
     this.id_width = (short) width;
     this.randomize_id = randomize_id;
+    cache = new UniqueIdCache(id_width, cache_max_entries);
   }
 
   /** The number of times we avoided reading from HBase thanks to the cache. */
@@ -205,7 +242,15 @@ public final class UniqueId implements UniqueIdInterface {
 
   /** Returns the number of elements stored in the internal cache. */
   public int cacheSize() {
-    return name_cache.size() + id_cache.size();
+    return cache.names() + cache.ids();
+  }
+
+  /** 
+   * Returns the number of names and IDs evicted from the cache.
+   * @since 2.3
+   */
+  public long cacheEvictions() {
+    return cache.evictions();
   }
 
   /** Returns the number of random UID collisions */
@@ -213,6 +258,18 @@ public final class UniqueId implements UniqueIdInterface {
     return random_id_collisions;
   }
   
+  /** @return The number of lookups that waited on an identical one in flight
+   * @since 2.3 */
+  public int lookupsCoalesced() {
+    return lookups_coalesced;
+  }
+
+  /** @return The number of lookups of missing names answered without HBase
+   * @since 2.3 */
+  public int negativeCacheHits() {
+    return negative_cache_hits;
+  }
+
   /** Returns the number of UID assignments rejected by the filter */
   public int rejectedAssignments() {
     return rejected_assignments;
@@ -226,6 +283,21 @@ public final class UniqueId implements UniqueIdInterface {
     return id_width;
   }
 
+  /** @return Whether or not new IDs are randomized */
+  boolean randomizeId() {
+    return randomize_id;
+  }
+
+  /**
+   * Writes the cached mappings for a {@link UniqueIdSnapshot}
+   * @param out The output to write to
+   * @return The number of mappings written
+   * @throws IOException if the output couldn't be written
+   */
+  int writeCache(final DataOutput out) throws IOException {
+    return cache.write(out);
+  }
+
   /** @param tsdb Whether or not to track new UIDMeta objects */
   public void setTSDB(final TSDB tsdb) {
     this.tsdb = tsdb;
@@ -244,8 +316,34 @@ public final class UniqueId implements UniqueIdInterface {
    * @since 1.1
    */
   public void dropCaches() {
-    name_cache.clear();
-    id_cache.clear();
+    cache.clear();
+    final ConcurrentHashMap<String, Long> missing = missing_names;
+    if (missing != null) {
+      missing.clear();
+    }
+  }
+
+  /**
+   * Remembers the names not found in storage for a while, so that lookups of
+   * names that don't exist, e.g. typos in queries or names rejected by the UID
+   * filter, fail without reading HBase every time. A name assigned by another
+   * TSD is only seen once its entry expires.
+   * @param ttl_ms How long to remember a missing name, in milliseconds
+   * @param max_entries The maximum number of missing names to remember
+   * @throws IllegalArgumentException if the TTL or max entries is not positive
+   * @since 2.3
+   */
+  public void enableNegativeCache(final long ttl_ms, final int max_entries) {
+    if (ttl_ms < 1) {
+      throw new IllegalArgumentException("Invalid TTL: " + ttl_ms);
+    }
+    if (max_entries < 1) {
+      throw new IllegalArgumentException("Invalid max entries: " 
+          + max_entries);
+    }
+    missing_names_ttl = ttl_ms;
+    missing_names_max = max_entries;
+    missing_names = new ConcurrentHashMap<String, Long>();
   }
 
   /**
@@ -294,22 +392,33 @@ public final class UniqueId implements UniqueIdInterface {
       cache_hits++;
       return Deferred.fromResult(name);
     }
+    final Deferred<String> follower = joinLookup(pending_name_lookups, id);
+    if (follower != null) {
+      lookups_coalesced++;
+      return follower;
+    }
     cache_misses++;
     class GetNameCB implements Callback<String, String> {
       public String call(final String name) {
         if (name == null) {
           throw new NoSuchUniqueId(kind(), id);
         }
-        addNameToCache(id, name);
-        addIdToCache(name, id);        
+        cacheMapping(name, id);
         return name;
       }
     }
-    return getNameFromHBase(id).addCallback(new GetNameCB());
+    try {
+      return getNameFromHBase(id).addCallback(new GetNameCB())
+        .addBoth(new LookupDoneCB<byte[], String>(pending_name_lookups, id));
+    } catch (RuntimeException e) {
+      // the lookup never started, don't leave the followers hanging
+      finishLookup(pending_name_lookups, id, e);
+      throw e;
+    }
   }
 
   private String getNameFromCache(final byte[] id) {
-    return id_cache.get(fromBytes(id));
+    return cache.getName(id);
   }
 
   private Deferred<String> getNameFromHBase(final byte[] id) {
@@ -321,18 +430,6 @@ public final class UniqueId implements UniqueIdInterface {
     return hbaseGet(id, NAME_FAMILY).addCallback(new NameFromHBaseCB());
   }
 
-  private void addNameToCache(final byte[] id, final String name) {
-    final String key = fromBytes(id);
-    String found = id_cache.get(key);
-    if (found == null) {
-      found = id_cache.putIfAbsent(key, name);
-    }
-    if (found != null && !found.equals(name)) {
-      throw new IllegalStateException("id=" + Arrays.toString(id) + " => name="
-          + name + ", already mapped to " + found);
-    }
-  }
-
   public byte[] getId(final String name) throws NoSuchUniqueName, HBaseException {
     try {
       return getIdAsync(name).joinUninterruptibly();
@@ -349,10 +446,20 @@ public final class UniqueId implements UniqueIdInterface {
       cache_hits++;
       return Deferred.fromResult(id);
     }
+    if (isMissing(name)) {
+      negative_cache_hits++;
+      return Deferred.fromError(new NoSuchUniqueName(kind(), name));
+    }
+    final Deferred<byte[]> follower = joinLookup(pending_id_lookups, name);
+    if (follower != null) {
+      lookups_coalesced++;
+      return follower;
+    }
     cache_misses++;
     class GetIdCB implements Callback<byte[], byte[]> {
       public byte[] call(final byte[] id) {
         if (id == null) {
+          addMissing(name);
           throw new NoSuchUniqueName(kind(), name);
         }
         if (id.length != id_width) {
@@ -360,39 +467,138 @@ public final class UniqueId implements UniqueIdInterface {
                                           + " which is != " + id_width
                                           + " required for '" + kind() + '\'');
         }
-        addIdToCache(name, id);
-        addNameToCache(id, name);
+        cacheMapping(name, id);
         return id;
       }
     }
-    Deferred<byte[]> d = getIdFromHBase(name).addCallback(new GetIdCB());
-    return d;
+    try {
+      return getIdFromHBase(name).addCallback(new GetIdCB())
+        .addBoth(new LookupDoneCB<String, byte[]>(pending_id_lookups, name));
+    } catch (RuntimeException e) {
+      // the lookup never started, don't leave the followers hanging
+      finishLookup(pending_id_lookups, name, e);
+      throw e;
+    }
   }
 
   private byte[] getIdFromCache(final String name) {
-    return name_cache.get(name);
+    return cache.getId(name);
   }
 
-  private Deferred<byte[]> getIdFromHBase(final String name) {
-    return hbaseGet(toBytes(name), ID_FAMILY);
+  /**
+   * Joins the lookup of the key if one is in flight, otherwise records that
+   * the caller is starting it.
+   * @param pending The lookups in flight
+   * @param key The name or ID looked up
+   * @return A deferred called back with the result of the lookup in flight,
+   * or null if the caller has to start the lookup
+   */
+  private static <K, V> Deferred<V> joinLookup(
+      final Map<K, ArrayList<Deferred<V>>> pending, final K key) {
+    synchronized (pending) {
+      final ArrayList<Deferred<V>> followers = pending.get(key);
+      if (followers == null) {
+        pending.put(key, new ArrayList<Deferred<V>>(1));
+        return null;
+      }
+      final Deferred<V> follower = new Deferred<V>();
+      followers.add(follower);
+      return follower;
+    }
   }
 
-  private void addIdToCache(final String name, final byte[] id) {
-    byte[] found = name_cache.get(name);
-    if (found == null) {
-      found = name_cache.putIfAbsent(name,
-                                    // Must make a defensive copy to be immune
-                                    // to any changes the caller may do on the
-                                    // array later on.
-                                    Arrays.copyOf(id, id.length));
+  /**
+   * Hands the result of a lookup, or its exception, to every deferred that
+   * joined it.
+   * @param pending The lookups in flight
+   * @param key The name or ID looked up
+   * @param result The result or exception of the lookup
+   */
+  private static <K, V> void finishLookup(
+      final Map<K, ArrayList<Deferred<V>>> pending, final K key, 
+      final Object result) {
+    final ArrayList<Deferred<V>> followers;
+    synchronized (pending) {
+      followers = pending.remove(key);
     }
-    if (found != null && !Arrays.equals(found, id)) {
-      throw new IllegalStateException("name=" + name + " => id="
-          + Arrays.toString(id) + ", already mapped to "
-          + Arrays.toString(found));
+    for (final Deferred<V> follower : followers) {
+      follower.callback(result);
     }
   }
 
+  /** Finishes a lookup once HBase answered and passes the result along */
+  private static final class LookupDoneCB<K, V> implements Callback<V, V> {
+    private final Map<K, ArrayList<Deferred<V>>> pending;
+    private final K key;
+
+    LookupDoneCB(final Map<K, ArrayList<Deferred<V>>> pending, final K key) {
+      this.pending = pending;
+      this.key = key;
+    }
+
+    @Override
+    public V call(final V result) {
+      finishLookup(pending, key, result);
+      return result;
+    }
+
+    @Override
+    public String toString() {
+      return "LookupDoneCB";
+    }
+  }
+
+  /** @return True if the name was recently found missing from storage */
+  private boolean isMissing(final String name) {
+    final ConcurrentHashMap<String, Long> missing = missing_names;
+    if (missing == null) {
+      return false;
+    }
+    final Long expires = missing.get(name);
+    if (expires == null) {
+      return false;
+    }
+    if (expires > System.currentTimeMillis()) {
+      return true;
+    }
+    missing.remove(name, expires);
+    return false;
+  }
+
+  /** Remembers that the name is missing from storage if enabled */
+  private void addMissing(final String name) {
+    final ConcurrentHashMap<String, Long> missing = missing_names;
+    if (missing == null) {
+      return;
+    }
+    final long now = System.currentTimeMillis();
+    if (missing.size() >= missing_names_max) {
+      final Iterator<Map.Entry<String, Long>> it = missing.entrySet().iterator();
+      while (it.hasNext()) {
+        if (it.next().getValue() <= now) {
+          it.remove();
+        }
+      }
+      // still full of live entries, start over rather than scan on each miss
+      if (missing.size() >= missing_names_max) {
+        missing.clear();
+      }
+    }
+    missing.put(name, now + missing_names_ttl);
+  }
+
+  /** Forgets that the name was missing from storage */
+  private void removeMissing(final String name) {
+    final ConcurrentHashMap<String, Long> missing = missing_names;
+    if (missing != null) {
+      missing.remove(name);
+    }
+  }
+
+  private Deferred<byte[]> getIdFromHBase(final String name) {
+    return hbaseGet(toBytes(name), ID_FAMILY);
+  }
+
   /**
    * Implements the process to allocate a new UID.
    * This callback is re-used multiple times in a four step process:
@@ -624,6 +830,8 @@ public final class UniqueId implements UniqueIdInterface {
             return null;
           }
         }
+        // the name exists now, whatever our earlier lookup found
+        removeMissing(name);
         getIdAsync(name).addCallback(new GetIdCB());
         return assignment;
       }
@@ -649,9 +857,13 @@ public final class UniqueId implements UniqueIdInterface {
   }
 
   /** Adds the bidirectional mapping in the cache. */
-  private void cacheMapping(final String name, final byte[] id) {
-    addIdToCache(name, id);
-    addNameToCache(id, name);
+  void cacheMapping(final String name, final byte[] id) {
+    cache.put(name, id);
+    removeMissing(name);
+    final UniqueIdSuggestIndex index = suggest_index;
+    if (index != null) {
+      index.add(name);
+    }
   } 
   
   /**
@@ -901,9 +1113,77 @@ public final class UniqueId implements UniqueIdInterface {
    */
   public Deferred<List<String>> suggestAsync(final String search, 
       final int max_results) {
+    final UniqueIdSuggestIndex index = suggest_index;
+    if (index != null && index.isComplete()) {
+      return Deferred.fromResult(index.suggest(search, max_results));
+    }
     return new SuggestCB(search, max_results).search();
   }
 
+  /**
+   * Enables the in-memory suggest index. It tracks the names cached, assigned
+   * renamed or deleted from then on but only answers suggest queries once
+   * {@link #buildSuggestIndex} loaded every name.
+   * @since 2.3
+   */
+  public void enableSuggestIndex() {
+    if (suggest_index == null) {
+      suggest_index = new UniqueIdSuggestIndex();
+    }
+  }
+
+  /**
+   * Scans every name of this kind from the UID table into the suggest index,
+   * after which suggest queries are answered from memory.
+   * @return A deferred called back with the number of names scanned once
+   * the index is complete or with the exception if the scan failed
+   * @throws IllegalStateException if the index wasn't enabled
+   * @since 2.3
+   */
+  public Deferred<Object> buildSuggestIndex() {
+    final UniqueIdSuggestIndex index = suggest_index;
+    if (index == null) {
+      throw new IllegalStateException("The suggest index is not enabled");
+    }
+    final Scanner scanner = client.newScanner(table);
+    // skip the row of the max IDs
+    scanner.setStartKey(new byte[] { 1 });
+    scanner.setFamily(ID_FAMILY);
+    scanner.setQualifier(kind);
+    final ArrayList<byte[]> names = new ArrayList<byte[]>();
+
+    /** Collects the names in the order of the table */
+    final class ScanCB implements Callback<Object, 
+        ArrayList<ArrayList<KeyValue>>> {
+      @Override
+      public Object call(final ArrayList<ArrayList<KeyValue>> rows) {
+        if (rows == null) {
+          index.load(names);
+          LOG.info("Loaded " + names.size() + " names of kind " + kind() 
+              + " in the suggest index");
+          return names.size();
+        }
+        for (final ArrayList<KeyValue> row : rows) {
+          for (final KeyValue kv : row) {
+            names.add(kv.key());
+          }
+        }
+        return scanner.nextRows().addCallback(this);
+      }
+    }
+    
+    /** Queries keep going to HBase */
+    final class ErrCB implements Callback<Object, Exception> {
+      @Override
+      public Object call(final Exception e) throws Exception {
+        LOG.error("Failed to build the suggest index of kind " + kind(), e);
+        return e;
+      }
+    }
+    return scanner.nextRows().addCallback(new ScanCB())
+        .addErrback(new ErrCB());
+  }
+
   /**
    * Helper callback to asynchronously scan HBase for suggestions.
    */
@@ -939,7 +1219,7 @@ public final class UniqueId implements UniqueIdInterface {
         final byte[] key = row.get(0).key();
         final String name = fromBytes(key);
         final byte[] id = row.get(0).value();
-        final byte[] cached_id = name_cache.get(name);
+        final byte[] cached_id = cache.getId(name);
         if (cached_id == null) {
           cacheMapping(name, id); 
         } else if (!Arrays.equals(id, cached_id)) {
@@ -983,6 +1263,8 @@ public final class UniqueId implements UniqueIdInterface {
     final byte[] row = getId(oldname);
     final String row_string = fromBytes(row);
     {
+      // make sure the new name is really missing from storage
+      removeMissing(newname);
       byte[] id = null;
       try {
         id = getId(newname);
@@ -1041,9 +1323,12 @@ public final class UniqueId implements UniqueIdInterface {
     }
 
     // Update cache.
-    addIdToCache(newname, row);            // add     new name -> ID
-    id_cache.put(fromBytes(row), newname);  // update  ID -> new name
-    name_cache.remove(oldname);             // remove  old name -> ID
+    cache.rename(oldname, newname, row);
+    final UniqueIdSuggestIndex index = suggest_index;
+    if (index != null) {
+      index.remove(oldname);
+      index.add(newname);
+    }
 
     // Delete the old forward mapping.
     try {
@@ -1103,8 +1388,7 @@ public final class UniqueId implements UniqueIdInterface {
     class ErrCB implements Callback<Object, Exception> {
       @Override
       public Object call(final Exception ex) throws Exception {
-        name_cache.remove(name);
-        id_cache.remove(fromBytes(uid));
+        cache.remove(name, uid);
         LOG.error("Failed to delete " + fromBytes(kind) + " UID " + name 
             + " but still cleared the cache", ex);
         return ex;
@@ -1116,8 +1400,11 @@ public final class UniqueId implements UniqueIdInterface {
       @Override
       public Deferred<Object> call(final ArrayList<Object> response) 
           throws Exception {
-        name_cache.remove(name);
-        id_cache.remove(fromBytes(uid));
+        cache.remove(name, uid);
+        final UniqueIdSuggestIndex index = suggest_index;
+        if (index != null) {
+          index.remove(name);
+        }
         LOG.info("Successfully deleted " + fromBytes(kind) + " UID " + name);
         return Deferred.fromResult(null);
       }
@@ -1146,7 +1433,7 @@ public final class UniqueId implements UniqueIdInterface {
       }
     }
     
-    final byte[] cached_uid = name_cache.get(name);
+    final byte[] cached_uid = cache.getId(name);
     if (cached_uid == null) {
       return getIdFromHBase(name).addCallbackDeferring(new LookupCB())
           .addErrback(new ErrCB());
@@ -1663,8 +1950,8 @@ public final class UniqueId implements UniqueIdInterface {
       for (UniqueId unique_id_table : uid_cache_map.values()) {
         LOG.info("After preloading, uid cache '{}' has {} ids and {} names.",
                  unique_id_table.kind(),
-                 unique_id_table.id_cache.size(),
-                 unique_id_table.name_cache.size());
+                 unique_id_table.cache.ids(),
+                 unique_id_table.cache.names());
       }
     } catch (Exception e) {
       if (e instanceof HBaseException) {
@@ -0,0 +1,592 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.uid;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * A compact and optionally bounded cache of the mappings between the names
+ * and the IDs of a {@link UniqueId}, in both directions.
+ * <p>
+ * IDs are at most 8 bytes wide so they're kept as primitive longs, and names
+ * are kept as their ISO-8859-1 bytes, the way they're stored in the UID
+ * table, instead of Strings and arrays wrapped in hash map entries. Each
+ * direction is a set of open addressing hash tables split in segments, each
+ * with its own lock, and both directions share the name bytes.
+ * <p>
+ * When bounded, each direction holds at most the configured number of
+ * mappings and evicts with a generalized CLOCK policy: every lookup bumps a
+ * small frequency counter of the mapping, and the clock hand decrements the
+ * counters it passes until it finds a mapping whose counter reached zero.
+ * Names looked up often thus survive a burst of names seen only once, such as
+ * short lived tag values.
+ * @since 2.3
+ */
+final class UniqueIdCache {
+  /** Charset of the names, the same as the UID table */
+  private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+  /** How many segments large caches are split into, a power of 2 */
+  private static final int SEGMENTS = 16;
+
+  /** The initial number of entries of a segment */
+  private static final int INITIAL_ENTRIES = 64;
+
+  /** The highest value of the frequency counter of an entry */
+  private static final byte MAX_FREQUENCY = 3;
+
+  /** The width of the IDs in bytes */
+  private final short width;
+
+  /** The segments of the name to ID mappings */
+  private final Segment[] forward;
+
+  /** The segments of the ID to name mappings */
+  private final Segment[] reverse;
+
+  /**
+   * Default ctor
+   * @param width The width of the IDs in bytes
+   * @param max_entries The maximum number of mappings in each direction, 0
+   * for no limit
+   * @throws IllegalArgumentException if the max entries is negative
+   */
+  UniqueIdCache(final short width, final long max_entries) {
+    if (max_entries < 0) {
+      throw new IllegalArgumentException("Max entries cannot be negative");
+    }
+    this.width = width;
+    final int count = max_entries == 0 ||
+        max_entries >= SEGMENTS * INITIAL_ENTRIES ? SEGMENTS : 1;
+    final int segment_entries =
+        (int) Math.min(max_entries / count, Integer.MAX_VALUE / 4);
+    forward = new Segment[count];
+    reverse = new Segment[count];
+    for (int i = 0; i < count; i++) {
+      forward[i] = new Segment(true, segment_entries);
+      reverse[i] = new Segment(false, segment_entries);
+    }
+  }
+
+  /**
+   * @param name The name to look up
+   * @return The ID of the name, null if not cached
+   */
+  byte[] getId(final String name) {
+    final int hash = hash(name);
+    final Segment segment = segment(forward, hash);
+    synchronized (segment) {
+      final int entry = segment.get(0, name, hash);
+      return entry < 0 ? null : toId(segment.ids[entry]);
+    }
+  }
+
+  /**
+   * @param id The ID to look up
+   * @return The name of the ID, null if not cached
+   * @throws IllegalArgumentException if the ID has the wrong width
+   */
+  String getName(final byte[] id) {
+    final long key = UniqueId.uidToLong(id, width);
+    final int hash = hash(key);
+    final Segment segment = segment(reverse, hash);
+    final byte[] name;
+    synchronized (segment) {
+      final int entry = segment.get(key, null, hash);
+      if (entry < 0) {
+        return null;
+      }
+      name = segment.names[entry];
+    }
+    return new String(name, CHARSET);
+  }
+
+  /**
+   * Caches both directions of a mapping.
+   * @param name The name
+   * @param id The ID of the name
+   * @throws IllegalStateException if the name or the ID is already cached
+   * with a different mapping
+   * @throws IllegalArgumentException if the ID has the wrong width
+   */
+  void put(final String name, final byte[] id) {
+    final long key = UniqueId.uidToLong(id, width);
+    final byte[] name_bytes = name.getBytes(CHARSET);
+    putForward(name, name_bytes, key);
+
+    final int hash = hash(key);
+    final Segment segment = segment(reverse, hash);
+    final byte[] found;
+    synchronized (segment) {
+      final int entry = segment.lookup(key, null, hash);
+      if (entry < 0) {
+        segment.insert(key, name_bytes, hash);
+        return;
+      }
+      found = segment.names[entry];
+    }
+    if (!Arrays.equals(found, name_bytes)) {
+      throw new IllegalStateException("id=" + Arrays.toString(id)
+          + " => name=" + name + ", already mapped to "
+          + new String(found, CHARSET));
+    }
+  }
+
+  /**
+   * Maps the ID to its new name and forgets the old name
+   * @param oldname The former name of the ID
+   * @param newname The new name of the ID
+   * @param id The ID
+   * @throws IllegalStateException if the new name is already cached with a
+   * different ID
+   */
+  void rename(final String oldname, final String newname, final byte[] id) {
+    final long key = UniqueId.uidToLong(id, width);
+    final byte[] name_bytes = newname.getBytes(CHARSET);
+    putForward(newname, name_bytes, key);
+
+    final int hash = hash(key);
+    final Segment segment = segment(reverse, hash);
+    synchronized (segment) {
+      final int entry = segment.lookup(key, null, hash);
+      if (entry < 0) {
+        segment.insert(key, name_bytes, hash);
+      } else {
+        segment.names[entry] = name_bytes;
+      }
+    }
+    removeForward(oldname);
+  }
+
+  /**
+   * Forgets both directions of a mapping
+   * @param name The name to forget
+   * @param id The ID to forget
+   */
+  void remove(final String name, final byte[] id) {
+    removeForward(name);
+    final long key = UniqueId.uidToLong(id, width);
+    final int hash = hash(key);
+    final Segment segment = segment(reverse, hash);
+    synchronized (segment) {
+      segment.remove(key, null, hash);
+    }
+  }
+
+  /** Forgets every mapping */
+  void clear() {
+    for (final Segment segment : forward) {
+      synchronized (segment) {
+        segment.reset();
+      }
+    }
+    for (final Segment segment : reverse) {
+      synchronized (segment) {
+        segment.reset();
+      }
+    }
+  }
+
+  /** @return The number of names cached */
+  int names() {
+    return size(forward);
+  }
+
+  /** @return The number of IDs cached */
+  int ids() {
+    return size(reverse);
+  }
+
+  /**
+   * Writes every ID to name mapping as the length of the name on 2 bytes,
+   * the name and the ID. The segments are copied one at a time so that
+   * lookups aren't blocked on the output.
+   * @param out The output to write to
+   * @return The number of mappings written
+   * @throws IOException if the output couldn't be written
+   */
+  int write(final DataOutput out) throws IOException {
+    int written = 0;
+    for (final Segment segment : reverse) {
+      final long[] ids;
+      final byte[][] names;
+      synchronized (segment) {
+        ids = Arrays.copyOf(segment.ids, segment.used);
+        names = Arrays.copyOf(segment.names, segment.used);
+      }
+      for (int i = 0; i < ids.length; i++) {
+        if (names[i] == null || names[i].length > 0xFFFF) {
+          continue;
+        }
+        out.writeShort(names[i].length);
+        out.write(names[i]);
+        out.write(toId(ids[i]));
+        ++written;
+      }
+    }
+    return written;
+  }
+
+  /** @return The number of mappings evicted in either direction */
+  long evictions() {
+    long evictions = 0;
+    for (final Segment segment : forward) {
+      synchronized (segment) {
+        evictions += segment.evictions;
+      }
+    }
+    for (final Segment segment : reverse) {
+      synchronized (segment) {
+        evictions += segment.evictions;
+      }
+    }
+    return evictions;
+  }
+
+  /**
+   * Caches the name to ID direction of a mapping
+   * @throws IllegalStateException if the name is cached with a different ID
+   */
+  private void putForward(final String name, final byte[] name_bytes,
+      final long key) {
+    final int hash = hash(name);
+    final Segment segment = segment(forward, hash);
+    final long found;
+    synchronized (segment) {
+      final int entry = segment.lookup(0, name, hash);
+      if (entry < 0) {
+        segment.insert(key, name_bytes, hash);
+        return;
+      }
+      found = segment.ids[entry];
+    }
+    if (found != key) {
+      throw new IllegalStateException("name=" + name + " => id="
+          + Arrays.toString(toId(key)) + ", already mapped to "
+          + Arrays.toString(toId(found)));
+    }
+  }
+
+  /** Forgets the name to ID direction of a mapping */
+  private void removeForward(final String name) {
+    final int hash = hash(name);
+    final Segment segment = segment(forward, hash);
+    synchronized (segment) {
+      segment.remove(0, name, hash);
+    }
+  }
+
+  /** @return The ID as an array of the configured width */
+  private byte[] toId(long key) {
+    final byte[] id = new byte[width];
+    for (int i = width - 1; i >= 0; i--) {
+      id[i] = (byte) key;
+      key >>>= 8;
+    }
+    return id;
+  }
+
+  /** @return The number of entries of the segments */
+  private static int size(final Segment[] segments) {
+    int size = 0;
+    for (final Segment segment : segments) {
+      synchronized (segment) {
+        size += segment.size;
+      }
+    }
+    return size;
+  }
+
+  /** @return The segment of the hash */
+  private static Segment segment(final Segment[] segments, final int hash) {
+    return segments[(hash >>> 28) & (segments.length - 1)];
+  }
+
+  /** @return The hash of the ISO-8859-1 bytes of the name */
+  private static int hash(final String name) {
+    // same as Arrays.hashCode() on the bytes without encoding the name
+    int hash = 1;
+    for (int i = 0; i < name.length(); i++) {
+      final char c = name.charAt(i);
+      if (c > 0xFF) {
+        return mix(Arrays.hashCode(name.getBytes(CHARSET)));
+      }
+      hash = 31 * hash + (byte) c;
+    }
+    return mix(hash);
+  }
+
+  /** @return The hash of the ID */
+  private static int hash(final long key) {
+    return mix((int) (key ^ (key >>> 32)));
+  }
+
+  /** @return The hash with its bits spread for the segment and the slot */
+  private static int mix(int hash) {
+    hash ^= (hash >>> 16);
+    hash *= 0x85ebca6b;
+    hash ^= (hash >>> 13);
+    hash *= 0xc2b2ae35;
+    hash ^= (hash >>> 16);
+    return hash;
+  }
+
+  /** @return True if the name encodes to the bytes */
+  private static boolean matches(final byte[] bytes, final String name) {
+    if (bytes.length != name.length()) {
+      // non ISO-8859-1 surrogate pairs encode to a single byte
+      return Arrays.equals(bytes, name.getBytes(CHARSET));
+    }
+    for (int i = 0; i < bytes.length; i++) {
+      final char c = name.charAt(i);
+      if (c > 0xFF) {
+        return Arrays.equals(bytes, name.getBytes(CHARSET));
+      }
+      if (bytes[i] != (byte) c) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * An open addressing table with linear probing over arrays of entries,
+   * keyed either on the name or on the ID of the entries. The callers must
+   * synchronize on the segment.
+   */
+  private static final class Segment {
+    /** Whether the entries are keyed on the name or on the ID */
+    private final boolean by_name;
+
+    /** The maximum number of entries, 0 for no limit */
+    private final int max_entries;
+
+    /** The ID of each entry */
+    private long[] ids;
+
+    /** The name of each entry, null if the entry is free */
+    private byte[][] names;
+
+    /** The hash of the key of each entry */
+    private int[] hashes;
+
+    /** The frequency counter of each entry */
+    private byte[] frequencies;
+
+    /** The free entries below the used mark */
+    private int[] free;
+
+    /** The number of free entries */
+    private int free_count;
+
+    /** The entry index plus 1 of each slot, 0 if empty */
+    private int[] slots;
+
+    /** How many entries were ever allocated */
+    private int used;
+
+    /** The number of entries */
+    private int size;
+
+    /** The clock hand */
+    private int hand;
+
+    /** How many entries were evicted */
+    private long evictions;
+
+    Segment(final boolean by_name, final int max_entries) {
+      this.by_name = by_name;
+      this.max_entries = max_entries;
+      reset();
+    }
+
+    /** Drops every entry */
+    void reset() {
+      final int entries = max_entries == 0 ?
+          INITIAL_ENTRIES : Math.min(INITIAL_ENTRIES, max_entries);
+      ids = new long[entries];
+      names = new byte[entries][];
+      hashes = new int[entries];
+      frequencies = new byte[entries];
+      free = new int[entries];
+      slots = new int[slotsFor(entries)];
+      free_count = 0;
+      used = 0;
+      size = 0;
+      hand = 0;
+    }
+
+    /** @return The entry of the key, -1 if not found */
+    int lookup(final long id, final String name, final int hash) {
+      return slots[find(id, name, hash)] - 1;
+    }
+
+    /** @return The entry of the key after counting the access, -1 if not
+     * found */
+    int get(final long id, final String name, final int hash) {
+      final int entry = lookup(id, name, hash);
+      if (entry >= 0 && frequencies[entry] < MAX_FREQUENCY) {
+        frequencies[entry]++;
+      }
+      return entry;
+    }
+
+    /**
+     * Adds an entry whose key isn't in the segment, evicting another one if
+     * the segment is full
+     */
+    void insert(final long id, final byte[] name, final int hash) {
+      final int entry = allocate();
+      ids[entry] = id;
+      names[entry] = name;
+      hashes[entry] = hash;
+      frequencies[entry] = 1;
+      final int mask = slots.length - 1;
+      int slot = hash & mask;
+      while (slots[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      slots[slot] = entry + 1;
+      ++size;
+    }
+
+    /** @return True if the entry of the key was found and removed */
+    boolean remove(final long id, final String name, final int hash) {
+      final int slot = find(id, name, hash);
+      if (slots[slot] == 0) {
+        return false;
+      }
+      final int entry = slots[slot] - 1;
+      clearSlot(slot);
+      names[entry] = null;
+      free[free_count++] = entry;
+      --size;
+      return true;
+    }
+
+    /** @return The slot holding the key or the empty slot where it belongs */
+    private int find(final long id, final String name, final int hash) {
+      final int mask = slots.length - 1;
+      int slot = hash & mask;
+      while (slots[slot] != 0) {
+        final int entry = slots[slot] - 1;
+        if (by_name ? hashes[entry] == hash && matches(names[entry], name)
+            : ids[entry] == id) {
+          break;
+        }
+        slot = (slot + 1) & mask;
+      }
+      return slot;
+    }
+
+    /** @return A free entry, growing the segment or evicting if needed */
+    private int allocate() {
+      if (free_count > 0) {
+        return free[--free_count];
+      }
+      if (used < ids.length) {
+        return used++;
+      }
+      if (max_entries == 0 || ids.length < max_entries) {
+        grow();
+        return used++;
+      }
+      return evict();
+    }
+
+    /** Doubles the entries, up to the maximum, and rebuilds the slots */
+    private void grow() {
+      final int entries = max_entries == 0 ?
+          ids.length * 2 : Math.min(ids.length * 2, max_entries);
+      ids = Arrays.copyOf(ids, entries);
+      names = Arrays.copyOf(names, entries);
+      hashes = Arrays.copyOf(hashes, entries);
+      frequencies = Arrays.copyOf(frequencies, entries);
+      free = Arrays.copyOf(free, entries);
+      slots = new int[slotsFor(entries)];
+      final int mask = slots.length - 1;
+      for (int entry = 0; entry < used; entry++) {
+        if (names[entry] == null) {
+          continue;
+        }
+        int slot = hashes[entry] & mask;
+        while (slots[slot] != 0) {
+          slot = (slot + 1) & mask;
+        }
+        slots[slot] = entry + 1;
+      }
+    }
+
+    /**
+     * Moves the clock hand to the first entry whose frequency counter is 0,
+     * decrementing the counters on the way, and frees that entry.
+     * @return The evicted entry
+     */
+    private int evict() {
+      while (true) {
+        final int entry = hand;
+        hand = (hand + 1) % used;
+        if (names[entry] == null) {
+          continue;
+        }
+        if (frequencies[entry] > 0) {
+          frequencies[entry]--;
+          continue;
+        }
+        final int mask = slots.length - 1;
+        int slot = hashes[entry] & mask;
+        while (slots[slot] != entry + 1) {
+          slot = (slot + 1) & mask;
+        }
+        clearSlot(slot);
+        names[entry] = null;
+        --size;
+        ++evictions;
+        return entry;
+      }
+    }
+
+    /** Empties the slot, shifting back the following slots of its cluster */
+    private void clearSlot(int hole) {
+      final int mask = slots.length - 1;
+      slots[hole] = 0;
+      int slot = hole;
+      while (true) {
+        slot = (slot + 1) & mask;
+        final int value = slots[slot];
+        if (value == 0) {
+          return;
+        }
+        final int home = hashes[value - 1] & mask;
+        // move the entry unless its home lies between the hole and the slot
+        if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+          slots[hole] = value;
+          slots[slot] = 0;
+          hole = slot;
+        }
+      }
+    }
+
+    /** @return The number of slots for the entries, at most half full */
+    private static int slotsFor(final int entries) {
+      int slots = 1;
+      while (slots < entries * 2) {
+        slots <<= 1;
+      }
+      return slots;
+    }
+  }
+}
@@ -0,0 +1,424 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.uid;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hbase.async.Bytes.ByteMap;
+import org.hbase.async.KeyValue;
+import org.hbase.async.Scanner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.core.Internal;
+import net.opentsdb.core.TSDB;
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * An on-disk snapshot of the UID caches so that a TSD can warm its caches on
+ * startup from a local file instead of scanning the whole UID table.
+ * <p>
+ * The file starts with a magic number, a version and the time it was written,
+ * followed by a section per kind of UID with the kind, the width of its IDs
+ * and every cached mapping as the length of the name on 2 bytes, the name and
+ * the ID. Names are never empty so a zero length ends a section, and an empty
+ * kind ends the file. The snapshot is written to a temporary file renamed
+ * over the previous one, so a crash never leaves a partial snapshot behind,
+ * and it's decoded straight from a memory mapped buffer.
+ * <p>
+ * Once loaded, the IDs assigned since the snapshot was written, i.e. above
+ * the highest ID of each kind in the snapshot, are scanned from the UID table
+ * in the background and added to the caches. Kinds with random IDs are
+ * scanned entirely. Like the caches themselves, the snapshot doesn't learn
+ * about renames or deletions made by other processes.
+ * @since 2.3
+ */
+public final class UniqueIdSnapshot {
+  private static final Logger LOG =
+      LoggerFactory.getLogger(UniqueIdSnapshot.class);
+
+  /** Starts every snapshot, "UIDS" */
+  static final int MAGIC = 0x55494453;
+
+  /** The version of the format */
+  static final int VERSION = 1;
+
+  /** Charset of the kinds and the names, the same as the UID table */
+  private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+  /** The family of the ID to name mappings in the UID table */
+  private static final byte[] NAME_FAMILY = "name".getBytes(CHARSET);
+
+  /** The TSDB to reconcile with */
+  private final TSDB tsdb;
+
+  /** The UIDs to snapshot, keyed on their kind */
+  private final ByteMap<UniqueId> uids;
+
+  /** The snapshot file */
+  private final File file;
+
+  /** The highest ID loaded for each kind */
+  private final ByteMap<Long> max_ids = new ByteMap<Long>();
+
+  /** The thread writing the snapshot periodically, null if not started */
+  private Thrd thread;
+
+  /** How long loading the snapshot took in milliseconds */
+  private volatile long load_time;
+
+  /** How many mappings were loaded */
+  private volatile long entries_loaded;
+
+  /** How many mappings were written by the last snapshot */
+  private volatile long entries_written;
+
+  /** How long reconciling with the UID table took in milliseconds */
+  private volatile long reconcile_time;
+
+  /** How many mappings were read from the UID table while reconciling */
+  private final AtomicLong entries_reconciled = new AtomicLong();
+
+  /** How many snapshots were written and failed */
+  private final AtomicLong writes = new AtomicLong();
+  private final AtomicLong write_failures = new AtomicLong();
+
+  /**
+   * Default ctor
+   * @param tsdb The TSDB to reconcile with
+   * @param uids The UIDs to snapshot, keyed on their kind
+   * @param path The path of the snapshot file
+   * @throws IllegalArgumentException if the path is null or empty
+   */
+  public UniqueIdSnapshot(final TSDB tsdb, final ByteMap<UniqueId> uids,
+      final String path) {
+    if (path == null || path.isEmpty()) {
+      throw new IllegalArgumentException("The UID snapshot path is empty");
+    }
+    this.tsdb = tsdb;
+    this.uids = uids;
+    file = new File(path);
+  }
+
+  /**
+   * Loads the snapshot into the UID caches. Sections whose kind is unknown
+   * or whose width changed are skipped. If the snapshot is corrupted, the
+   * caches are dropped.
+   * @return True if the snapshot was loaded, false if it didn't exist or
+   * couldn't be read
+   */
+  public boolean load() {
+    if (!file.exists()) {
+      LOG.info("No UID snapshot found at " + file);
+      return false;
+    }
+    final long start = System.currentTimeMillis();
+    RandomAccessFile raf = null;
+    try {
+      raf = new RandomAccessFile(file, "r");
+      final MappedByteBuffer buffer = raf.getChannel().map(
+          FileChannel.MapMode.READ_ONLY, 0, raf.length());
+      if (buffer.getInt() != MAGIC) {
+        throw new IllegalStateException("Not a UID snapshot");
+      }
+      final int version = buffer.getInt();
+      if (version != VERSION) {
+        throw new IllegalStateException("Unsupported version " + version);
+      }
+      final long written = buffer.getLong();
+      long loaded = 0;
+      while (true) {
+        final byte[] kind = new byte[buffer.getShort() & 0xFFFF];
+        if (kind.length == 0) {
+          break;
+        }
+        buffer.get(kind);
+        final short width = buffer.get();
+        final UniqueId uid = uids.get(kind);
+        final boolean usable = uid != null && uid.width() == width;
+        if (!usable) {
+          LOG.warn("Skipping the UID snapshot of kind "
+              + new String(kind, CHARSET) + " with a width of " + width);
+        }
+        long max_id = 0;
+        while (true) {
+          final int length = buffer.getShort() & 0xFFFF;
+          if (length == 0) {
+            break;
+          }
+          final byte[] name = new byte[length];
+          buffer.get(name);
+          final byte[] id = new byte[width];
+          buffer.get(id);
+          if (usable) {
+            uid.cacheMapping(new String(name, CHARSET), id);
+            max_id = Math.max(max_id, UniqueId.uidToLong(id, width));
+            ++loaded;
+          }
+        }
+        if (usable) {
+          max_ids.put(kind, max_id);
+        }
+      }
+      entries_loaded = loaded;
+      load_time = System.currentTimeMillis() - start;
+      LOG.info("Loaded " + loaded + " UIDs from the snapshot written at "
+          + written + " in " + load_time + "ms");
+      return true;
+    } catch (Exception e) {
+      LOG.error("Failed to load the UID snapshot " + file
+          + ", dropping the UID caches", e);
+      for (final UniqueId uid : uids.values()) {
+        uid.dropCaches();
+      }
+      max_ids.clear();
+      return false;
+    } finally {
+      if (raf != null) {
+        try {
+          raf.close();
+        } catch (IOException e) {
+          LOG.warn("Failed to close the UID snapshot " + file, e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Adds the mappings assigned since the snapshot was written to the caches,
+   * scanning the UID table above the highest ID loaded for each kind.
+   * @return A deferred called back with the number of mappings read once
+   * every kind was scanned
+   */
+  public Deferred<Long> reconcile() {
+    final long start = System.currentTimeMillis();
+    final ArrayList<Deferred<Object>> deferreds =
+        new ArrayList<Deferred<Object>>(uids.size());
+    for (final Map.Entry<byte[], UniqueId> entry : uids.entrySet()) {
+      final UniqueId uid = entry.getValue();
+      final Long max_id = max_ids.get(entry.getKey());
+      final long start_id = uid.randomizeId() || max_id == null ?
+          1 : max_id + 1;
+      deferreds.add(reconcile(entry.getKey(), uid, start_id));
+    }
+
+    /** Records how long it took */
+    final class DoneCB implements Callback<Long, ArrayList<Object>> {
+      @Override
+      public Long call(final ArrayList<Object> ignored) {
+        reconcile_time = System.currentTimeMillis() - start;
+        LOG.info("Reconciled " + entries_reconciled.get()
+            + " UIDs with the UID table in " + reconcile_time + "ms");
+        return entries_reconciled.get();
+      }
+    }
+
+    /** Logs the failure, the caches will fill up on demand */
+    final class ErrCB implements Callback<Long, Exception> {
+      @Override
+      public Long call(final Exception e) {
+        LOG.error("Failed to reconcile the UID snapshot", e);
+        return entries_reconciled.get();
+      }
+    }
+    return Deferred.group(deferreds).addCallbacks(new DoneCB(), new ErrCB());
+  }
+
+  /**
+   * Writes the snapshot of the UID caches, replacing the previous one.
+   * @return The number of mappings written
+   * @throws IOException if the snapshot couldn't be written
+   */
+  public synchronized int write() throws IOException {
+    final File tmp = new File(file.getPath() + ".tmp");
+    if (file.getParentFile() != null) {
+      file.getParentFile().mkdirs();
+    }
+    final FileOutputStream stream = new FileOutputStream(tmp);
+    int written = 0;
+    try {
+      final DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(stream, 65536));
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(System.currentTimeMillis());
+      for (final Map.Entry<byte[], UniqueId> entry : uids.entrySet()) {
+        out.writeShort(entry.getKey().length);
+        out.write(entry.getKey());
+        out.writeByte(entry.getValue().width());
+        written += entry.getValue().writeCache(out);
+        out.writeShort(0);
+      }
+      out.writeShort(0);
+      out.flush();
+      stream.getFD().sync();
+    } catch (IOException e) {
+      write_failures.incrementAndGet();
+      throw e;
+    } finally {
+      stream.close();
+    }
+    if (!tmp.renameTo(file)) {
+      write_failures.incrementAndGet();
+      throw new IOException("Unable to rename " + tmp + " to " + file);
+    }
+    writes.incrementAndGet();
+    entries_written = written;
+    return written;
+  }
+
+  /**
+   * Starts writing the snapshot periodically in a background thread
+   * @param interval_ms How often to write the snapshot, 0 to only write it
+   * at shutdown
+   */
+  public synchronized void start(final long interval_ms) {
+    if (interval_ms <= 0 || thread != null) {
+      return;
+    }
+    thread = new Thrd(interval_ms);
+    thread.start();
+  }
+
+  /**
+   * Stops the background thread and writes the snapshot a last time
+   * @return A deferred called back once the snapshot was written, with null
+   * even if it failed as the failure is logged
+   */
+  public Deferred<Object> shutdown() {
+    synchronized (this) {
+      if (thread != null) {
+        thread.interrupt();
+        thread = null;
+      }
+    }
+    try {
+      final int written = write();
+      LOG.info("Wrote " + written + " UIDs to the snapshot " + file);
+    } catch (IOException e) {
+      LOG.error("Failed to write the UID snapshot " + file, e);
+    }
+    return Deferred.fromResult(null);
+  }
+
+  /**
+   * Collects the stats of the snapshot
+   * @param collector The collector to use
+   */
+  public void collectStats(final StatsCollector collector) {
+    collector.record("uid.snapshot.load_time", load_time);
+    collector.record("uid.snapshot.entries_loaded", entries_loaded);
+    collector.record("uid.snapshot.reconcile_time", reconcile_time);
+    collector.record("uid.snapshot.entries_reconciled",
+        entries_reconciled.get());
+    collector.record("uid.snapshot.writes", writes.get());
+    collector.record("uid.snapshot.write_failures", write_failures.get());
+    collector.record("uid.snapshot.entries_written", entries_written);
+  }
+
+  /**
+   * Scans the ID to name mappings of a kind from the given ID up
+   * @param kind The kind of the UIDs
+   * @param uid The UID whose cache to fill
+   * @param start_id The first ID to scan
+   * @return A deferred called back once the scan is done
+   */
+  private Deferred<Object> reconcile(final byte[] kind, final UniqueId uid,
+      final long start_id) {
+    final short width = uid.width();
+    if (start_id > Internal.getMaxUnsignedValueOnBytes(width)) {
+      return Deferred.fromResult(null);
+    }
+    final Scanner scanner = tsdb.getClient().newScanner(tsdb.uidTable());
+    scanner.setStartKey(UniqueId.longToUID(start_id, width));
+    // one byte longer than the highest ID so the stop key includes it
+    final byte[] stop_key = new byte[width + 1];
+    Arrays.fill(stop_key, 0, width, (byte) 0xFF);
+    scanner.setStopKey(stop_key);
+    scanner.setFamily(NAME_FAMILY);
+    scanner.setQualifier(kind);
+
+    final class ScanCB implements Callback<Object,
+        ArrayList<ArrayList<KeyValue>>> {
+      @Override
+      public Object call(final ArrayList<ArrayList<KeyValue>> rows) {
+        if (rows == null) {
+          return null;
+        }
+        for (final ArrayList<KeyValue> row : rows) {
+          for (final KeyValue kv : row) {
+            // names may sort between IDs, skip them
+            if (kv.key().length != width) {
+              continue;
+            }
+            try {
+              uid.cacheMapping(new String(kv.value(), CHARSET), kv.key());
+              entries_reconciled.incrementAndGet();
+            } catch (IllegalStateException e) {
+              LOG.warn("The UID snapshot disagrees with the UID table: "
+                  + e.getMessage());
+            }
+          }
+        }
+        return scanner.nextRows().addCallback(this);
+      }
+    }
+    return scanner.nextRows().addCallback(new ScanCB());
+  }
+
+  /** Writes the snapshot periodically until interrupted */
+  private final class Thrd extends Thread {
+    /** How often to write the snapshot */
+    private final long interval_ms;
+
+    Thrd(final long interval_ms) {
+      super("UidSnapshotThread");
+      this.interval_ms = interval_ms;
+      setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      while (true) {
+        try {
+          Thread.sleep(interval_ms);
+        } catch (InterruptedException e) {
+          return;
+        }
+        try {
+          final long start = System.currentTimeMillis();
+          final int written = write();
+          LOG.info("Wrote " + written + " UIDs to the snapshot " + file
+              + " in " + (System.currentTimeMillis() - start) + "ms");
+        } catch (Exception e) {
+          LOG.error("Failed to write the UID snapshot " + file, e);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,230 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.uid;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import org.hbase.async.Bytes;
+
+/**
+ * An in-memory index of the names of a kind of UID that answers suggest
+ * queries without scanning the UID table.
+ * <p>
+ * The names are kept as their ISO-8859-1 bytes in an array sorted the same
+ * way as the rows of the UID table and searched by binary search. Names
+ * added or removed since the array was built are kept in concurrent sorted
+ * sets that are merged into a new array once they grow past an eighth of it,
+ * so writes stay cheap and queries never see the array change under them.
+ * <p>
+ * The index only answers queries once it's complete, that is once every name
+ * of the kind was loaded from the UID table.
+ * @since 2.3
+ */
+final class UniqueIdSuggestIndex {
+  /** Charset of the names, the same as the UID table */
+  private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+  /** The fewest pending changes that trigger a merge */
+  private static final int MIN_MERGE = 4096;
+
+  /** Empty searches return names from this one, as with the UID table scan */
+  private static final byte[] START = new byte[] { '!' };
+
+  /** Empty searches return names sorting before this one */
+  private static final byte[] END = new byte[] { '~' };
+
+  /** The sorted names, replaced on merges */
+  private volatile byte[][] names = new byte[0][];
+
+  /** Names added and not in the array yet, guarded by this for writes */
+  private final ConcurrentSkipListSet<byte[]> added =
+      new ConcurrentSkipListSet<byte[]>(Bytes.MEMCMP);
+
+  /** Names of the array that were removed, guarded by this for writes */
+  private final ConcurrentSkipListSet<byte[]> removed =
+      new ConcurrentSkipListSet<byte[]>(Bytes.MEMCMP);
+
+  /** Whether every name of the kind was loaded */
+  private volatile boolean complete;
+
+  /** @param name A name to add to the index */
+  synchronized void add(final String name) {
+    final byte[] bytes = name.getBytes(CHARSET);
+    if (removed.remove(bytes) || indexOf(names, bytes) >= 0) {
+      return;
+    }
+    added.add(bytes);
+    if (added.size() + removed.size() > Math.max(MIN_MERGE, names.length / 8)) {
+      merge(new ArrayList<byte[]>(0));
+    }
+  }
+
+  /** @param name A name to remove from the index */
+  synchronized void remove(final String name) {
+    final byte[] bytes = name.getBytes(CHARSET);
+    if (added.remove(bytes) || indexOf(names, bytes) < 0) {
+      return;
+    }
+    removed.add(bytes);
+    if (added.size() + removed.size() > Math.max(MIN_MERGE, names.length / 8)) {
+      merge(new ArrayList<byte[]>(0));
+    }
+  }
+
+  /**
+   * Adds every name of the kind at once and marks the index complete
+   * @param sorted The names sorted in the order of the UID table
+   */
+  synchronized void load(final List<byte[]> sorted) {
+    merge(sorted);
+    complete = true;
+  }
+
+  /** @return Whether the index can answer queries */
+  boolean isComplete() {
+    return complete;
+  }
+
+  /** @return The number of names in the index */
+  int size() {
+    return names.length + added.size() - removed.size();
+  }
+
+  /**
+   * Finds the names starting with the search term, in the order of the UID
+   * table.
+   * @param search The search term, may be empty
+   * @param max_results The maximum number of names to return
+   * @return The names found, possibly none
+   */
+  List<String> suggest(final String search, final int max_results) {
+    final byte[] prefix = search.getBytes(CHARSET);
+    final byte[] start = prefix.length == 0 ? START : prefix;
+    final byte[][] base = names;
+    int index = lowerBound(base, start);
+    final Iterator<byte[]> recent = added.tailSet(start).iterator();
+    byte[] next_recent = recent.hasNext() ? recent.next() : null;
+
+    final List<String> suggestions = new ArrayList<String>(
+        Math.min(max_results, 32));
+    byte[] last = null;
+    while (suggestions.size() < max_results) {
+      final byte[] name;
+      if (next_recent == null || (index < base.length
+          && Bytes.memcmp(base[index], next_recent) <= 0)) {
+        if (index >= base.length) {
+          break;
+        }
+        name = base[index++];
+      } else {
+        name = next_recent;
+        next_recent = recent.hasNext() ? recent.next() : null;
+      }
+      if (!matches(name, prefix)) {
+        break;
+      }
+      // a name merged while we read may be in both the array and the set
+      if (last != null && Arrays.equals(last, name)) {
+        continue;
+      }
+      last = name;
+      if (!removed.contains(name)) {
+        suggestions.add(new String(name, CHARSET));
+      }
+    }
+    return suggestions;
+  }
+
+  /**
+   * Replaces the array with its names, the pending changes and the extra
+   * names. Must be called while synchronized on this.
+   * @param extra More sorted names to add
+   */
+  private void merge(final List<byte[]> extra) {
+    final List<byte[]> pending_adds = new ArrayList<byte[]>(added);
+    final List<byte[]> pending_removes = new ArrayList<byte[]>(removed);
+    final List<byte[]> merged = union(Arrays.asList(names),
+        union(pending_adds, extra));
+    names = merged.toArray(new byte[merged.size()][]);
+    added.removeAll(pending_adds);
+    removed.removeAll(pending_removes);
+  }
+
+  /**
+   * @return The sorted union of the sorted lists without duplicates or
+   * removed names
+   */
+  private List<byte[]> union(final List<byte[]> a, final List<byte[]> b) {
+    final List<byte[]> union = new ArrayList<byte[]>(a.size() + b.size());
+    int i = 0;
+    int j = 0;
+    while (i < a.size() || j < b.size()) {
+      final byte[] name;
+      if (j >= b.size() ||
+          (i < a.size() && Bytes.memcmp(a.get(i), b.get(j)) <= 0)) {
+        name = a.get(i++);
+      } else {
+        name = b.get(j++);
+      }
+      if ((union.isEmpty() ||
+          !Arrays.equals(union.get(union.size() - 1), name))
+          && !removed.contains(name)) {
+        union.add(name);
+      }
+    }
+    return union;
+  }
+
+  /** @return True if the name matches the prefix of the search */
+  private static boolean matches(final byte[] name, final byte[] prefix) {
+    if (prefix.length == 0) {
+      return Bytes.memcmp(name, END) < 0;
+    }
+    if (name.length < prefix.length) {
+      return false;
+    }
+    for (int i = 0; i < prefix.length; i++) {
+      if (name[i] != prefix[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** @return The index of the name in the sorted array, negative if absent */
+  private static int indexOf(final byte[][] sorted, final byte[] name) {
+    final int index = lowerBound(sorted, name);
+    return index < sorted.length && Arrays.equals(sorted[index], name) ?
+        index : -1;
+  }
+
+  /** @return The index of the first name not less than the key */
+  private static int lowerBound(final byte[][] sorted, final byte[] key) {
+    int low = 0;
+    int high = sorted.length;
+    while (low < high) {
+      final int mid = (low + high) >>> 1;
+      if (Bytes.memcmp(sorted[mid], key) < 0) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+}
@@ -484,6 +484,7 @@ public class Config {
     default_map.put("tsd.network.tcp_no_delay", "true");
     default_map.put("tsd.network.keep_alive", "true");
     default_map.put("tsd.network.reuse_address", "true");
+    default_map.put("tsd.network.telnet.zero_copy_decoder", "false");
     default_map.put("tsd.core.auto_create_metrics", "false");
     default_map.put("tsd.core.auto_create_tagks", "true");
     default_map.put("tsd.core.auto_create_tagvs", "true");
@@ -500,12 +501,49 @@ public class Config {
     default_map.put("tsd.core.tree.enable_processing", "false");
     default_map.put("tsd.core.preload_uid_cache", "false");
     default_map.put("tsd.core.preload_uid_cache.max_entries", "300000");
+    default_map.put("tsd.core.row_key_cache.enable", "false");
+    default_map.put("tsd.core.row_key_cache.max_entries", "1000000");
     default_map.put("tsd.core.storage_exception_handler.enable", "false");
+    default_map.put("tsd.core.uid.cache.max_entries.metric", "0");
+    default_map.put("tsd.core.uid.cache.max_entries.tagk", "0");
+    default_map.put("tsd.core.uid.cache.max_entries.tagv", "0");
+    default_map.put("tsd.core.uid.negative_cache.max_entries", "65536");
+    default_map.put("tsd.core.uid.negative_cache.ttl", "0");
     default_map.put("tsd.core.uid.random_metrics", "false");
+    default_map.put("tsd.core.uid.suggest_index.enable", "false");
+    default_map.put("tsd.core.uid_snapshot.enable", "false");
+    default_map.put("tsd.core.uid_snapshot.path", "");
+    default_map.put("tsd.core.uid_snapshot.interval", "3600000");
+    default_map.put("tsd.query.cache.enable", "false");
+    default_map.put("tsd.query.cache.grace_period", "60000");
+    default_map.put("tsd.query.cache.max_bytes", "134217728");
+    default_map.put("tsd.query.fragment_cache.enable", "false");
+    default_map.put("tsd.query.fragment_cache.max_bytes", "134217728");
+    default_map.put("tsd.query.memory.max_bytes", "0");
+    default_map.put("tsd.query.memory.global_max_bytes", "0");
+    default_map.put("tsd.query.cost.enable", "false");
+    default_map.put("tsd.query.cost.max_rows", "0");
+    default_map.put("tsd.query.cost.expensive_rows", "0");
+    default_map.put("tsd.query.cost.expensive_concurrency", "2");
+    default_map.put("tsd.query.cost.stats_ttl", "600");
+    default_map.put("tsd.query.scheduler.enable", "false");
+    default_map.put("tsd.query.scheduler.classes", "default:16");
+    default_map.put("tsd.query.scheduler.default_class", "default");
+    default_map.put("tsd.query.scheduler.expensive_class", "");
+    default_map.put("tsd.query.scheduler.expensive_rows", "0");
+    default_map.put("tsd.query.scheduler.class_header",
+        "X-OpenTSDB-Query-Class");
+    default_map.put("tsd.query.scheduler.user_header", "X-OpenTSDB-User");
+    default_map.put("tsd.query.scheduler.user_classes", "");
+    default_map.put("tsd.query.coalesce.enable", "false");
+    default_map.put("tsd.query.last_value_index.enable", "false");
+    default_map.put("tsd.query.last_value_index.max_bytes", "67108864");
     default_map.put("tsd.query.filter.expansion_limit", "4096");
     default_map.put("tsd.query.skip_unresolved_tagvs", "false");
     default_map.put("tsd.query.allow_simultaneous_duplicates", "true");
     default_map.put("tsd.query.enable_fuzzy_filter", "true");
+    default_map.put("tsd.query.columnar_spans", "false");
+    default_map.put("tsd.query.downsample_pushdown", "false");
     default_map.put("tsd.rtpublisher.enable", "false");
     default_map.put("tsd.rtpublisher.plugin", "");
     default_map.put("tsd.search.enable", "false");
@@ -530,11 +568,20 @@ public class Config {
     default_map.put("tsd.storage.compaction.min_flush_threshold", "100");
     default_map.put("tsd.storage.compaction.max_concurrent_flushes", "10000");
     default_map.put("tsd.storage.compaction.flush_speed", "2");
+    default_map.put("tsd.storage.compaction.precompact", "false");
+    default_map.put("tsd.storage.compaction.precompact.max_cells", "1000000");
+    default_map.put("tsd.storage.compaction.adaptive", "false");
+    default_map.put("tsd.storage.compaction.compress", "false");
+    default_map.put("tsd.storage.compaction.adaptive.target_latency", "50");
+    default_map.put("tsd.storage.write_buffer.enable", "false");
+    default_map.put("tsd.storage.write_buffer.flush_interval", "1000");
+    default_map.put("tsd.storage.write_buffer.max_points_per_row", "3600");
     default_map.put("tsd.timeseriesfilter.enable", "false");
     default_map.put("tsd.uidfilter.enable", "false");
     default_map.put("tsd.core.stats_with_port", "false");    
     default_map.put("tsd.http.show_stack_trace", "true");
     default_map.put("tsd.http.query.allow_delete", "false");
+    default_map.put("tsd.http.query.stream_responses", "false");
     default_map.put("tsd.http.request.enable_chunked", "false");
     default_map.put("tsd.http.request.max_chunk", "4096");
     default_map.put("tsd.http.request.cors_domains", "");
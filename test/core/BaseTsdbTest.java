@@ -16,6 +16,8 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.when;
 import static org.powermock.api.mockito.PowerMockito.mock;
 
@@ -135,6 +137,9 @@ public class BaseTsdbTest {
     setupMetricMaps();
     setupTagkMaps();
     setupTagvMaps();
+    setupGetOrCreateIdAsync(metrics);
+    setupGetOrCreateIdAsync(tag_names);
+    setupGetOrCreateIdAsync(tag_values);
     
     when(metrics.width()).thenReturn((short)3);
     when(tag_names.width()).thenReturn((short)3);
@@ -143,6 +148,45 @@ public class BaseTsdbTest {
     tags.put(TAGK_STRING, TAGV_STRING);
   }
   
+  /** Routes the async UID lookups and assignments to the synchronous 
+   * {@code getId()} and {@code getOrCreateId()} mocks for tests that only
+   * stub those. */
+  public static void setupAsyncIds(final UniqueId uid) {
+    when(uid.getIdAsync(anyString()))
+      .thenAnswer(new Answer<Deferred<byte[]>>() {
+          @Override
+          public Deferred<byte[]> answer(InvocationOnMock invocation)
+              throws Throwable {
+            try {
+              return Deferred.fromResult(
+                  uid.getId((String) invocation.getArguments()[0]));
+            } catch (Exception e) {
+              return Deferred.fromError(e);
+            }
+          }
+      });
+    setupGetOrCreateIdAsync(uid);
+  }
+  
+  /** Routes the async, filtered UID assignment calls to the synchronous 
+   * {@code getOrCreateId()} mock so tests only have to stub one of them. */
+  static void setupGetOrCreateIdAsync(final UniqueId uid) {
+    when(uid.getOrCreateIdAsync(anyString(), anyString(), 
+        anyMapOf(String.class, String.class)))
+      .thenAnswer(new Answer<Deferred<byte[]>>() {
+          @Override
+          public Deferred<byte[]> answer(InvocationOnMock invocation)
+              throws Throwable {
+            try {
+              return Deferred.fromResult(
+                  uid.getOrCreateId((String) invocation.getArguments()[0]));
+            } catch (Exception e) {
+              return Deferred.fromError(e);
+            }
+          }
+      });
+  }
+  
   /** Adds the static UIDs to the metrics UID mock object */
   void setupMetricMaps() {
     when(metrics.getId(METRIC_STRING)).thenReturn(METRIC_BYTES);
@@ -0,0 +1,211 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mock;
+
+import java.util.Collections;
+import java.util.Random;
+
+import net.opentsdb.uid.UniqueId;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.KeyValue;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+
+/**
+ * Compares the memory used and the iteration speed of the compacted
+ * {@link RowSeq} representation of a span with the decoded
+ * {@link ColumnarDataPoints}.
+ * <p>
+ * It is not run with the unit tests and the defaults keep it short. For
+ * meaningful numbers, run it on its own with larger sizes, e.g.:
+ * <pre>
+ * java -Dbenchmark.series=1000 -Dbenchmark.iterations=50 \
+ *   org.junit.runner.JUnitCore net.opentsdb.core.BenchmarkColumnarDataPoints
+ * </pre>
+ * Each series is one hour row with a data point per second, 3/4 integers of
+ * varying widths and 1/4 floats.
+ */
+@RunWith(PowerMockRunner.class)
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+               "ch.qos.*", "org.slf4j.*",
+               "com.sum.*", "org.xml.*"})
+@PrepareForTest({ TSDB.class, UniqueId.class })
+public final class BenchmarkColumnarDataPoints {
+  private static final int SERIES = Integer.getInteger("benchmark.series", 20);
+  private static final int ITERATIONS =
+      Integer.getInteger("benchmark.iterations", 5);
+  private static final int POINTS = Const.MAX_TIMESPAN;
+  private static final byte[] FAMILY = { 't' };
+
+  /** Rough size of a RowSeq instance and the headers of its 3 arrays. */
+  private static final int ROWSEQ_OVERHEAD = 24 + 3 * 16;
+
+  private TSDB tsdb = mock(TSDB.class);
+  private UniqueId metrics = mock(UniqueId.class);
+
+  private RowSeq[] rows;
+  private ColumnarDataPoints[] columns;
+  private long row_bytes;
+  private long column_bytes;
+
+  @Before
+  public void before() throws Exception {
+    Whitebox.setInternalState(tsdb, "metrics", metrics);
+    when(tsdb.metrics.width()).thenReturn((short)3);
+
+    final Random random = new Random(42);
+    rows = new RowSeq[SERIES];
+    columns = new ColumnarDataPoints[SERIES];
+    for (int i = 0; i < SERIES; i++) {
+      final KeyValue kv = row(random, i);
+      rows[i] = new RowSeq(tsdb);
+      rows[i].setRow(kv);
+      row_bytes += ROWSEQ_OVERHEAD + kv.key().length + kv.qualifier().length
+          + kv.value().length;
+      columns[i] = ColumnarDataPoints.fromRows(Collections.singletonList(
+          rows[i]));
+      // the decoded span keeps the first row for its key
+      column_bytes += columns[i].sizeInBytes() + ROWSEQ_OVERHEAD
+          + kv.key().length;
+    }
+  }
+
+  @Test
+  public void benchmark() throws Exception {
+    final long points = (long) SERIES * POINTS;
+    System.out.println(String.format("%d series, %d points, %d iterations",
+        SERIES, points, ITERATIONS));
+    System.out.println(String.format("%-12s %12s %8s %14s %14s",
+        "", "bytes", "B/dp", "iterate ns/dp", "aggregate ns/dp"));
+
+    // warm up both code paths before measuring
+    for (int i = 0; i < 3; i++) {
+      assertEquals(iterate(rowIterators()), iterate(columnIterators()),
+          0.0001);
+      assertEquals(aggregate(rowIterators()), aggregate(columnIterators()),
+          0.0001);
+    }
+
+    long iterate_rows = 0;
+    long iterate_columns = 0;
+    long aggregate_rows = 0;
+    long aggregate_columns = 0;
+    for (int i = 0; i < ITERATIONS; i++) {
+      long start = System.nanoTime();
+      iterate(rowIterators());
+      iterate_rows += System.nanoTime() - start;
+      start = System.nanoTime();
+      iterate(columnIterators());
+      iterate_columns += System.nanoTime() - start;
+      start = System.nanoTime();
+      aggregate(rowIterators());
+      aggregate_rows += System.nanoTime() - start;
+      start = System.nanoTime();
+      aggregate(columnIterators());
+      aggregate_columns += System.nanoTime() - start;
+    }
+    print("RowSeq", row_bytes, points, iterate_rows, aggregate_rows);
+    print("Columnar", column_bytes, points, iterate_columns,
+        aggregate_columns);
+  }
+
+  /** Walks every series on its own, like the raw "none" aggregator. */
+  private static double iterate(final SeekableView[] iterators) {
+    double sum = 0;
+    for (final SeekableView it : iterators) {
+      while (it.hasNext()) {
+        final DataPoint dp = it.next();
+        sum += dp.toDouble() + dp.timestamp();
+      }
+    }
+    return sum;
+  }
+
+  /** Sums all of the series together like a SpanGroup would. */
+  private static double aggregate(final SeekableView[] iterators) {
+    final AggregationIterator it = new AggregationIterator(iterators,
+        1356998400000L, 1357002000000L, Aggregators.SUM,
+        Aggregators.Interpolation.LERP, false);
+    double sum = 0;
+    while (it.hasNext()) {
+      sum += it.next().toDouble();
+    }
+    return sum;
+  }
+
+  private SeekableView[] rowIterators() {
+    final SeekableView[] iterators = new SeekableView[SERIES];
+    for (int i = 0; i < SERIES; i++) {
+      iterators[i] = rows[i].internalIterator();
+    }
+    return iterators;
+  }
+
+  private SeekableView[] columnIterators() {
+    final SeekableView[] iterators = new SeekableView[SERIES];
+    for (int i = 0; i < SERIES; i++) {
+      iterators[i] = columns[i].iterator();
+    }
+    return iterators;
+  }
+
+  private static void print(final String name, final long bytes,
+      final long points, final long iterate_ns, final long aggregate_ns) {
+    System.out.println(String.format("%-12s %12d %8.2f %14.2f %14.2f", name,
+        bytes, (double) bytes / points,
+        (double) iterate_ns / ITERATIONS / points,
+        (double) aggregate_ns / ITERATIONS / points));
+  }
+
+  /** @return a compacted row for the given series */
+  private static KeyValue row(final Random random, final int series) {
+    final byte[] key = { 0, 0, 1, 0x50, (byte)0xE2, 0x27, 0, 0, 0, 1,
+        0, 0, 0 };
+    Bytes.setShort(key, (short) series, key.length - 2);
+    final byte[] qualifiers = new byte[POINTS * 2];
+    final byte[] values = new byte[POINTS * 8 + 1];
+    int value_index = 0;
+    for (int i = 0; i < POINTS; i++) {
+      final short flags;
+      if (random.nextInt(4) == 0) {
+        flags = Const.FLAG_FLOAT | 0x3;
+        Bytes.setInt(values, Float.floatToRawIntBits(random.nextFloat()),
+            value_index);
+        value_index += 4;
+      } else {
+        final long value = random.nextInt(100000);
+        final byte[] encoded = value <= Byte.MAX_VALUE ?
+            new byte[] { (byte) value } : value <= Short.MAX_VALUE ?
+                Bytes.fromShort((short) value) : Bytes.fromInt((int) value);
+        flags = (short) (encoded.length - 1);
+        System.arraycopy(encoded, 0, values, value_index, encoded.length);
+        value_index += encoded.length;
+      }
+      Bytes.setShort(qualifiers, (short) (i << Const.FLAG_BITS | flags),
+          i * 2);
+    }
+    final byte[] value = new byte[value_index + 1];
+    System.arraycopy(values, 0, value, 0, value_index);
+    return new KeyValue(key, FAMILY, qualifiers, value);
+  }
+}
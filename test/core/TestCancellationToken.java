@@ -0,0 +1,181 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.Scanner;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ Scanner.class, Const.class })
+public class TestCancellationToken extends BaseTsdbTest {
+
+  @Test
+  public void cancel() throws Exception {
+    final CancellationToken token = new CancellationToken();
+    final ArrayList<String> ran = new ArrayList<String>();
+    token.addListener(listener(ran, "first"));
+    assertFalse(token.isCancelled());
+    assertNull(token.exception());
+    token.check();
+
+    assertTrue(token.cancel(CancellationToken.Reason.ADMIN));
+    assertTrue(token.isCancelled());
+    assertEquals(CancellationToken.Reason.ADMIN, token.reason());
+    assertEquals(Arrays.asList("first"), ran);
+    // only the first reason counts
+    assertFalse(token.cancel(CancellationToken.Reason.TIMEOUT));
+    assertEquals(CancellationToken.Reason.ADMIN, token.reason());
+
+    // late listeners run right away
+    token.addListener(listener(ran, "late"));
+    assertEquals(Arrays.asList("first", "late"), ran);
+    try {
+      token.check();
+      fail("Expected a QueryException");
+    } catch (QueryException e) {
+      assertEquals(HttpResponseStatus.SERVICE_UNAVAILABLE, e.getStatus());
+    }
+  }
+
+  @Test
+  public void completeBeforeCancel() throws Exception {
+    final CancellationToken token = new CancellationToken();
+    final ArrayList<String> ran = new ArrayList<String>();
+    token.addListener(listener(ran, "first"));
+    token.complete();
+    assertFalse(token.cancel(CancellationToken.Reason.DISCONNECT));
+    assertFalse(token.isCancelled());
+    assertTrue(ran.isEmpty());
+    token.check();
+  }
+
+  @Test
+  public void cancelAfter() throws Exception {
+    final Timer timer = mock(Timer.class);
+    final Timeout timeout = mock(Timeout.class);
+    when(timer.newTimeout(any(TimerTask.class), anyLong(),
+        any(TimeUnit.class))).thenReturn(timeout);
+    final CancellationToken token = new CancellationToken();
+    token.cancelAfter(timer, 0);
+    token.cancelAfter(timer, 1000);
+
+    final ArgumentCaptor<TimerTask> task =
+        ArgumentCaptor.forClass(TimerTask.class);
+    verify(timer).newTimeout(task.capture(), eq(1000L),
+        eq(TimeUnit.MILLISECONDS));
+    task.getValue().run(timeout);
+    assertEquals(CancellationToken.Reason.TIMEOUT, token.reason());
+    assertEquals(HttpResponseStatus.REQUEST_TIMEOUT,
+        token.exception().getStatus());
+  }
+
+  @Test
+  public void completeCancelsTimeout() throws Exception {
+    final Timer timer = mock(Timer.class);
+    final Timeout timeout = mock(Timeout.class);
+    when(timer.newTimeout(any(TimerTask.class), anyLong(),
+        any(TimeUnit.class))).thenReturn(timeout);
+    final CancellationToken token = new CancellationToken();
+    token.cancelAfter(timer, 1000);
+    token.complete();
+    verify(timeout).cancel();
+  }
+
+  @Test
+  public void scannerClosed() throws Exception {
+    // 2 rows over the first 2 hours with 4 hours left to scan
+    final byte[] first = new byte[] { 0, 0, 1, 0, 0, 0, 0 };
+    final byte[] last = new byte[] { 0, 0, 1, 0, 0, 0, 0 };
+    System.arraycopy(Bytes.fromInt(1356998400), 0, first, 3, 4);
+    System.arraycopy(Bytes.fromInt(1357002000), 0, last, 3, 4);
+    assertEquals(4, CancellationToken.scannerClosed(first, last, 2,
+        1357016400));
+    assertEquals(0, CancellationToken.scannerClosed(null, null, 0,
+        1357020000));
+  }
+
+  @Test
+  public void queryCancelled() throws Exception {
+    storeLongTimeSeriesSeconds(false, false);
+    assertQueryCancelled();
+  }
+
+  @Test
+  public void queryCancelledSalted() throws Exception {
+    PowerMockito.mockStatic(Const.class);
+    PowerMockito.when(Const.SALT_WIDTH()).thenReturn(1);
+    PowerMockito.when(Const.SALT_BUCKETS()).thenReturn(2);
+    PowerMockito.when(Const.MAX_NUM_TAGS()).thenReturn((short) 8);
+    storeLongTimeSeriesSeconds(false, false);
+    assertQueryCancelled();
+  }
+
+  /** Runs a query over the stored data after cancelling it */
+  private void assertQueryCancelled() throws Exception {
+    final TSSubQuery sub = new TSSubQuery();
+    sub.setMetric(METRIC_STRING);
+    sub.setAggregator("sum");
+    final TSQuery data_query = new TSQuery();
+    data_query.setStart("1356998400");
+    data_query.setEnd("1357041600");
+    data_query.setQueries(new ArrayList<TSSubQuery>(Arrays.asList(sub)));
+    data_query.validateAndSetQuery();
+    final Query query = data_query.buildQueries(tsdb)[0];
+    assertEquals(300, query.run()[0].size());
+
+    data_query.getCancellation().cancel(CancellationToken.Reason.DISCONNECT);
+    try {
+      query.run();
+      fail("Expected a QueryException");
+    } catch (QueryException e) {
+      assertEquals(499, e.getStatus().getCode());
+    }
+  }
+
+  /** @return a listener appending the name to the list when run */
+  private static Runnable listener(final ArrayList<String> ran,
+      final String name) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        ran.add(name);
+      }
+    };
+  }
+}
@@ -0,0 +1,227 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mock;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import net.opentsdb.storage.MockBase;
+import net.opentsdb.uid.UniqueId;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.KeyValue;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+
+@RunWith(PowerMockRunner.class)
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+               "ch.qos.*", "org.slf4j.*",
+               "com.sum.*", "org.xml.*"})
+@PrepareForTest({ TSDB.class, UniqueId.class })
+public final class TestColumnarDataPoints {
+  private TSDB tsdb = mock(TSDB.class);
+  private UniqueId metrics = mock(UniqueId.class);
+  private static final byte[] HOUR1 =
+    { 0, 0, 1, 0x50, (byte)0xE2, 0x27, 0, 0, 0, 1, 0, 0, 2 };
+  private static final byte[] HOUR2 =
+    { 0, 0, 1, 0x50, (byte)0xE2, 0x35, 0x10, 0, 0, 1, 0, 0, 2 };
+  private static final byte[] FAMILY = { 't' };
+  private static final byte[] ZERO = { 0 };
+
+  private ColumnarDataPoints columns;
+
+  @Before
+  public void before() throws Exception {
+    Whitebox.setInternalState(tsdb, "metrics", metrics);
+    when(tsdb.metrics.width()).thenReturn((short)3);
+
+    // an integer and a float in the first hour, a ms integer in the second
+    final byte[] qual1 = { 0x00, 0x07 };
+    final byte[] val1 = Bytes.fromLong(4L);
+    final byte[] qual2 = { 0x00, 0x2B };
+    final byte[] val2 = Bytes.fromInt(Float.floatToRawIntBits(5.5F));
+    final byte[] qual3 = { (byte) 0xF0, 0x00, 0x02, 0x07 };
+    final byte[] val3 = Bytes.fromLong(-6L);
+    columns = ColumnarDataPoints.fromRows(Arrays.asList(
+        row(HOUR1, MockBase.concatByteArrays(qual1, qual2),
+            MockBase.concatByteArrays(val1, val2, ZERO)),
+        row(HOUR2, qual3, val3)));
+  }
+
+  @Test
+  public void fromRows() throws Exception {
+    assertEquals(3, columns.size());
+    assertEquals(1356998400000L, columns.timestamp(0));
+    assertTrue(columns.isInteger(0));
+    assertEquals(4, columns.longValue(0));
+    assertEquals(1356998402000L, columns.timestamp(1));
+    assertFalse(columns.isInteger(1));
+    assertEquals(5.5, columns.doubleValue(1), 0.0001);
+    assertEquals(Double.doubleToRawLongBits(5.5), columns.rawValue(1));
+    assertEquals(1357002000008L, columns.timestamp(2));
+    assertTrue(columns.isInteger(2));
+    assertEquals(-6, columns.longValue(2));
+  }
+
+  @Test
+  public void fromRowsManyFloats() throws Exception {
+    // more than 64 data points to span several words of the bitmap
+    final byte[] qual = new byte[200 * 2];
+    final byte[] val = new byte[200 * 8 + 1];
+    for (int i = 0; i < 200; i++) {
+      final boolean is_float = i % 3 == 0;
+      Bytes.setShort(qual, (short) (i << Const.FLAG_BITS |
+          (is_float ? Const.FLAG_FLOAT | 0x7 : 0x7)), i * 2);
+      Bytes.setLong(val, is_float ? Double.doubleToRawLongBits(i + 0.5) : i,
+          i * 8);
+    }
+    final ColumnarDataPoints columns = ColumnarDataPoints.fromRows(
+        Arrays.asList(row(HOUR1, qual, val)));
+    assertEquals(200, columns.size());
+    for (int i = 0; i < 200; i++) {
+      assertEquals(1356998400000L + i * 1000, columns.timestamp(i));
+      if (i % 3 == 0) {
+        assertFalse(columns.isInteger(i));
+        assertEquals(i + 0.5, columns.doubleValue(i), 0.0001);
+      } else {
+        assertTrue(columns.isInteger(i));
+        assertEquals(i, columns.longValue(i));
+      }
+    }
+  }
+
+  @Test (expected = ClassCastException.class)
+  public void longValueFloat() throws Exception {
+    columns.longValue(1);
+  }
+
+  @Test (expected = ClassCastException.class)
+  public void doubleValueInteger() throws Exception {
+    columns.doubleValue(0);
+  }
+
+  @Test (expected = IndexOutOfBoundsException.class)
+  public void isIntegerOutOfBounds() throws Exception {
+    columns.isInteger(3);
+  }
+
+  @Test (expected = IndexOutOfBoundsException.class)
+  public void timestampOutOfBounds() throws Exception {
+    columns.timestamp(3);
+  }
+
+  @Test
+  public void indexOf() throws Exception {
+    assertEquals(0, columns.indexOf(0));
+    assertEquals(0, columns.indexOf(1356998400000L));
+    assertEquals(1, columns.indexOf(1356998400001L));
+    assertEquals(2, columns.indexOf(1357002000000L));
+    assertEquals(2, columns.indexOf(1357002000008L));
+    assertEquals(3, columns.indexOf(1357002000009L));
+  }
+
+  @Test
+  public void sizeInBytes() throws Exception {
+    // 3 timestamps, 3 values and a bitmap of one long
+    assertEquals(48 + 7 * 8, columns.sizeInBytes());
+  }
+
+  @Test
+  public void iterator() throws Exception {
+    final SeekableView it = columns.iterator();
+    final List<Double> values = new ArrayList<Double>();
+    while (it.hasNext()) {
+      values.add(it.next().toDouble());
+    }
+    assertEquals(Arrays.asList(4.0, 5.5, -6.0), values);
+  }
+
+  @Test (expected = NoSuchElementException.class)
+  public void iteratorPastEnd() throws Exception {
+    final SeekableView it = columns.iterator();
+    while (it.hasNext()) {
+      it.next();
+    }
+    it.next();
+  }
+
+  @Test
+  public void iteratorSeek() throws Exception {
+    final SeekableView it = columns.iterator();
+    it.seek(1356998400001L);
+    DataPoint dp = it.next();
+    assertEquals(1356998402000L, dp.timestamp());
+    assertEquals(5.5, dp.doubleValue(), 0.0001);
+
+    // seek backwards
+    it.seek(1356998400000L);
+    dp = it.next();
+    assertEquals(1356998400000L, dp.timestamp());
+    assertEquals(4, dp.longValue());
+
+    it.seek(1357002000009L);
+    assertFalse(it.hasNext());
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void iteratorSeekNegative() throws Exception {
+    columns.iterator().seek(-1);
+  }
+
+  @Test
+  public void iteratorRawValue() throws Exception {
+    final ColumnarDataPoints.Iterator it = columns.iterator();
+    it.next();
+    assertEquals(4, it.rawValue());
+    it.next();
+    assertEquals(Double.doubleToRawLongBits(5.5), it.rawValue());
+  }
+
+  @Test
+  public void aggregationIterator() throws Exception {
+    final SeekableView[] iterators = new SeekableView[] {
+        columns.iterator(), columns.iterator() };
+    final AggregationIterator it = new AggregationIterator(iterators,
+        1356998400000L, 1357002000008L, Aggregators.SUM,
+        Aggregators.Interpolation.LERP, false);
+    DataPoint dp = it.next();
+    assertEquals(1356998400000L, dp.timestamp());
+    assertEquals(8, dp.toDouble(), 0.0001);
+    dp = it.next();
+    assertEquals(1356998402000L, dp.timestamp());
+    assertEquals(11, dp.toDouble(), 0.0001);
+    dp = it.next();
+    assertEquals(1357002000008L, dp.timestamp());
+    assertEquals(-12, dp.toDouble(), 0.0001);
+    assertFalse(it.hasNext());
+  }
+
+  private RowSeq row(final byte[] key, final byte[] qual, final byte[] val) {
+    final RowSeq row = new RowSeq(tsdb);
+    row.setRow(new KeyValue(key, FAMILY, qual, val));
+    return row;
+  }
+}
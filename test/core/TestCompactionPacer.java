@@ -0,0 +1,158 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import net.opentsdb.stats.StatsCollector;
+
+public final class TestCompactionPacer {
+  // 1h window / speed 2 = 1800s to compact a backlog, 180 runs of 10s
+  private static final long NOW = 1356998400000L;
+  private CompactionPacer pacer;
+
+  @Before
+  public void before() {
+    pacer = new CompactionPacer(100, 10, 10, 2, 50);
+  }
+
+  @Test
+  public void ctor() {
+    assertEquals(1, pacer.concurrency());
+    assertEquals(-1, pacer.latency(), 0.0001);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorZeroConcurrency() {
+    new CompactionPacer(0, 10, 10, 2, 50);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorZeroInterval() {
+    new CompactionPacer(100, 10, 0, 2, 50);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorZeroSpeed() {
+    new CompactionPacer(100, 10, 10, 0, 50);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorZeroLatency() {
+    new CompactionPacer(100, 10, 10, 2, 0);
+  }
+
+  @Test
+  public void maxFlushesSpreadsBacklog() {
+    assertEquals(20, pacer.maxFlushes(3600, NOW));
+    // same deadline, 179 runs left
+    assertEquals(20, pacer.maxFlushes(3580, NOW + 10000));
+    // half way through we still pace to finish on time
+    assertEquals(20, pacer.maxFlushes(1800, NOW + 900000));
+  }
+
+  @Test
+  public void maxFlushesNewBacklog() {
+    assertEquals(20, pacer.maxFlushes(3600, NOW));
+    // a new hour of rows became eligible, the deadline moves out
+    assertEquals(40, pacer.maxFlushes(7200, NOW + 900000));
+  }
+
+  @Test
+  public void maxFlushesMissedDeadline() {
+    assertEquals(20, pacer.maxFlushes(3600, NOW));
+    assertEquals(10, pacer.maxFlushes(1800, NOW + 1800000));
+  }
+
+  @Test
+  public void maxFlushesMinThreshold() {
+    assertEquals(10, pacer.maxFlushes(100, NOW));
+  }
+
+  @Test
+  public void maxFlushesSmallBacklog() {
+    assertEquals(5, pacer.maxFlushes(5, NOW));
+  }
+
+  @Test
+  public void maxFlushesEmpty() {
+    assertEquals(0, pacer.maxFlushes(0, NOW));
+  }
+
+  @Test
+  public void concurrencyNoLatency() {
+    pacer.maxFlushes(3600, NOW);
+    pacer.maxFlushes(3600, NOW + 10000);
+    assertEquals(1, pacer.concurrency());
+  }
+
+  @Test
+  public void concurrencyFast() {
+    pacer.record(10);
+    pacer.maxFlushes(3600, NOW);
+    assertEquals(2, pacer.concurrency());
+    pacer.maxFlushes(3600, NOW + 10000);
+    assertEquals(4, pacer.concurrency());
+    for (int i = 0; i < 10; i++) {
+      pacer.maxFlushes(3600, NOW + 10000);
+    }
+    assertEquals(100, pacer.concurrency());
+  }
+
+  @Test
+  public void concurrencyNearTarget() {
+    pacer.record(40);
+    pacer.maxFlushes(3600, NOW);
+    assertEquals(2, pacer.concurrency());
+    pacer.maxFlushes(3600, NOW + 10000);
+    assertEquals(3, pacer.concurrency());
+  }
+
+  @Test
+  public void concurrencySlow() {
+    pacer.record(10);
+    for (int i = 0; i < 5; i++) {
+      pacer.maxFlushes(3600, NOW);
+    }
+    assertEquals(32, pacer.concurrency());
+    pacer.record(1000);
+    assertEquals(109, pacer.latency(), 0.0001);
+    pacer.maxFlushes(3600, NOW + 10000);
+    assertEquals(16, pacer.concurrency());
+    for (int i = 0; i < 10; i++) {
+      pacer.maxFlushes(3600, NOW + 10000);
+    }
+    assertEquals(1, pacer.concurrency());
+  }
+
+  @Test
+  public void collectStats() {
+    pacer.maxFlushes(3600, NOW);
+    for (int i = 0; i < 20; i++) {
+      pacer.record(10);
+    }
+    pacer.maxFlushes(3580, NOW + 10000);
+    final StatsCollector collector = mock(StatsCollector.class);
+    pacer.collectStats(collector);
+    verify(collector).record("compaction.pacer.concurrency", 2);
+    verify(collector).record("compaction.pacer.latency", 10L);
+    verify(collector).record("compaction.pacer.rate", 2L);
+    verify(collector).record("compaction.pacer.backlog", 3580L);
+    verify(collector).record("compaction.pacer.eta", 1790L);
+  }
+}
@@ -15,6 +15,7 @@ package net.opentsdb.core;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import java.nio.charset.Charset;
 import java.util.ArrayList;
@@ -25,12 +26,14 @@ import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
 import org.hbase.async.Bytes;
+import org.hbase.async.HBaseClient;
 import org.hbase.async.KeyValue;
 
 import net.opentsdb.meta.Annotation;
 import net.opentsdb.storage.MockBase;
 import net.opentsdb.uid.UniqueId;
 import net.opentsdb.utils.Config;
+import net.opentsdb.utils.DateTime;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -62,7 +65,8 @@ import static org.powermock.api.mockito.PowerMockito.mock;
                   "ch.qos.*", "org.slf4j.*",
                   "com.sum.*", "org.xml.*"})
 @PrepareForTest({ CompactionQueue.class, CompactionQueue.Thrd.class,
-                  TSDB.class, UniqueId.class, Config.class })
+                  TSDB.class, UniqueId.class, Config.class, DateTime.class,
+                  HBaseClient.class })
 public final class TestCompactionQueue {
 
   private TSDB tsdb = mock(TSDB.class);
@@ -100,6 +104,16 @@ public final class TestCompactionQueue {
       .thenAnswer(newDeferred());
     when(tsdb.delete(anyBytes(), any(byte[][].class)))
       .thenAnswer(newDeferred());
+    when(tsdb.get(anyBytes())).thenAnswer(
+        new Answer<Deferred<ArrayList<KeyValue>>>() {
+      @Override
+      public Deferred<ArrayList<KeyValue>> answer(
+          final InvocationOnMock invocation) {
+        return Deferred.fromResult(new ArrayList<KeyValue>());
+      }
+    });
+    when(config.getInt("tsd.storage.compaction.max_concurrent_flushes"))
+      .thenReturn(10000);
   }
 
   @Test
@@ -701,6 +715,133 @@ public final class TestCompactionQueue {
     verify(tsdb, times(1)).delete(eq(KEY), eqAnyOrder(new byte[][] { qual1, qual2 }));
   }
 
+  @Test
+  public void twoCellRowCompressed() throws Exception {
+    when(config.getBoolean("tsd.storage.compaction.compress")).thenReturn(true);
+    compactionq = new CompactionQueue(tsdb);
+    ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(2);
+    ArrayList<Annotation> annotations = new ArrayList<Annotation>(0);
+    final byte[] qual1 = { 0x00, 0x07 };
+    final byte[] val1 = Bytes.fromLong(4L);
+    kvs.add(makekv(qual1, val1));
+    final byte[] qual2 = { 0x00, 0x17 };
+    final byte[] val2 = Bytes.fromLong(5L);
+    kvs.add(makekv(qual2, val2));
+
+    // callers still get the regular format
+    final KeyValue kv = compactionq.compact(kvs, annotations);
+    assertArrayEquals(MockBase.concatByteArrays(qual1, qual2), kv.qualifier());
+    assertArrayEquals(MockBase.concatByteArrays(val1, val2, ZERO), kv.value());
+    
+    final byte[] compressed = CompressedDataPoints.encode(kv.qualifier(), 
+        kv.value());
+    verify(tsdb, times(1)).put(KEY, 
+        CompressedDataPoints.COMPRESSED_COLUMN_QUALIFIER, compressed);
+    verify(tsdb, times(1)).delete(eq(KEY), 
+        eqAnyOrder(new byte[][] { qual1, qual2 }));
+  }
+  
+  @Test
+  public void compressedOnly() throws Exception {
+    when(config.getBoolean("tsd.storage.compaction.compress")).thenReturn(true);
+    compactionq = new CompactionQueue(tsdb);
+    ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(1);
+    ArrayList<Annotation> annotations = new ArrayList<Annotation>(0);
+    final byte[] qual = MockBase.concatByteArrays(new byte[] { 0x00, 0x07 }, 
+        new byte[] { 0x00, 0x17 });
+    final byte[] val = MockBase.concatByteArrays(Bytes.fromLong(4L), 
+        Bytes.fromLong(5L), ZERO);
+    kvs.add(makekv(CompressedDataPoints.COMPRESSED_COLUMN_QUALIFIER, 
+        CompressedDataPoints.encode(qual, val)));
+
+    final KeyValue kv = compactionq.compact(kvs, annotations);
+    assertArrayEquals(qual, kv.qualifier());
+    assertArrayEquals(val, kv.value());
+    
+    // The compressed column is already what we would write
+    verify(tsdb, never()).put(anyBytes(), anyBytes(), anyBytes());
+    verify(tsdb, never()).delete(anyBytes(), any(byte[][].class));
+  }
+  
+  @Test
+  public void compressedOnlySinglePoint() throws Exception {
+    ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(1);
+    ArrayList<Annotation> annotations = new ArrayList<Annotation>(0);
+    final byte[] qual = { 0x00, 0x07 };
+    final byte[] val = Bytes.fromLong(4L);
+    kvs.add(makekv(CompressedDataPoints.COMPRESSED_COLUMN_QUALIFIER, 
+        CompressedDataPoints.encode(qual, val)));
+
+    final KeyValue kv = compactionq.compact(kvs, annotations);
+    assertArrayEquals(qual, kv.qualifier());
+    assertArrayEquals(val, kv.value());
+    
+    // compression is disabled so we write the regular format
+    verify(tsdb, times(1)).put(KEY, qual, val);
+    verify(tsdb, times(1)).delete(eq(KEY), eqAnyOrder(new byte[][] { 
+        CompressedDataPoints.COMPRESSED_COLUMN_QUALIFIER }));
+  }
+  
+  @Test
+  public void compressedAndCell() throws Exception {
+    when(config.getBoolean("tsd.storage.compaction.compress")).thenReturn(true);
+    compactionq = new CompactionQueue(tsdb);
+    ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(2);
+    ArrayList<Annotation> annotations = new ArrayList<Annotation>(0);
+    final byte[] qual1 = { 0x00, 0x07 };
+    final byte[] val1 = Bytes.fromLong(4L);
+    final byte[] qual2 = { 0x00, 0x17 };
+    final byte[] val2 = Bytes.fromLong(5L);
+    kvs.add(makekv(CompressedDataPoints.COMPRESSED_COLUMN_QUALIFIER, 
+        CompressedDataPoints.encode(MockBase.concatByteArrays(qual1, qual2), 
+            MockBase.concatByteArrays(val1, val2, ZERO))));
+    final byte[] qual3 = { 0x00, 0x23 };
+    final byte[] val3 = Bytes.fromInt(6);
+    kvs.add(makekv(qual3, val3));
+
+    final KeyValue kv = compactionq.compact(kvs, annotations);
+    final byte[] qual = MockBase.concatByteArrays(qual1, qual2, qual3);
+    final byte[] val = MockBase.concatByteArrays(val1, val2, val3, ZERO);
+    assertArrayEquals(qual, kv.qualifier());
+    assertArrayEquals(val, kv.value());
+    
+    // overwrite the compressed column and only delete the new cell
+    verify(tsdb, times(1)).put(KEY, 
+        CompressedDataPoints.COMPRESSED_COLUMN_QUALIFIER, 
+        CompressedDataPoints.encode(qual, val));
+    verify(tsdb, times(1)).delete(eq(KEY), 
+        eqAnyOrder(new byte[][] { qual3 }));
+  }
+  
+  @Test
+  public void compressedAndCompacted() throws Exception {
+    ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(2);
+    ArrayList<Annotation> annotations = new ArrayList<Annotation>(0);
+    final byte[] qual1 = { 0x00, 0x07 };
+    final byte[] val1 = Bytes.fromLong(4L);
+    final byte[] qual2 = { 0x00, 0x17 };
+    final byte[] val2 = Bytes.fromLong(5L);
+    kvs.add(makekv(CompressedDataPoints.COMPRESSED_COLUMN_QUALIFIER, 
+        CompressedDataPoints.encode(MockBase.concatByteArrays(qual1, qual2), 
+            MockBase.concatByteArrays(val1, val2, ZERO))));
+    final byte[] qual3 = { 0x00, 0x27 };
+    final byte[] val3 = Bytes.fromLong(6L);
+    final byte[] qual4 = { 0x00, 0x37 };
+    final byte[] val4 = Bytes.fromLong(7L);
+    final byte[] qual34 = MockBase.concatByteArrays(qual3, qual4);
+    kvs.add(makekv(qual34, MockBase.concatByteArrays(val3, val4, ZERO)));
+
+    // both formats are read together
+    final KeyValue kv = compactionq.compact(kvs, annotations);
+    final byte[] qual = MockBase.concatByteArrays(qual1, qual2, qual3, qual4);
+    final byte[] val = MockBase.concatByteArrays(val1, val2, val3, val4, ZERO);
+    assertArrayEquals(qual, kv.qualifier());
+    assertArrayEquals(val, kv.value());
+    verify(tsdb, times(1)).put(KEY, qual, val);
+    verify(tsdb, times(1)).delete(eq(KEY), eqAnyOrder(new byte[][] { 
+        CompressedDataPoints.COMPRESSED_COLUMN_QUALIFIER, qual34 }));
+  }
+  
   @Test
   public void annotationOnly() throws Exception {
     ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(1);
@@ -1402,8 +1543,8 @@ public final class TestCompactionQueue {
     final byte[] val4 = Bytes.fromLong(2L);
     kvs.add(makekv(AppendDataPoints.APPEND_COLUMN_QUALIFIER, 
         MockBase.concatByteArrays(qual, val, qual2, val2)));
-    kvs.add(makekv(MockBase.concatByteArrays(qual3, qual4), 
-        MockBase.concatByteArrays(val3, val4, ZERO)));
+    final byte[] qual34 = MockBase.concatByteArrays(qual3, qual4);
+    kvs.add(makekv(qual34, MockBase.concatByteArrays(val3, val4, ZERO)));
     final KeyValue kv = compactionq.compact(kvs, annotations);
     assertArrayEquals(MockBase.concatByteArrays(qual, qual2, qual3, qual4), 
         kv.qualifier());
@@ -1435,8 +1576,8 @@ public final class TestCompactionQueue {
     final byte[] val6 = Bytes.fromLong(0L);
     kvs.add(makekv(AppendDataPoints.APPEND_COLUMN_QUALIFIER, 
         MockBase.concatByteArrays(qual, val, qual2, val2)));
-    kvs.add(makekv(MockBase.concatByteArrays(qual3, qual4), 
-        MockBase.concatByteArrays(val3, val4, ZERO)));
+    final byte[] qual34 = MockBase.concatByteArrays(qual3, qual4);
+    kvs.add(makekv(qual34, MockBase.concatByteArrays(val3, val4, ZERO)));
     kvs.add(makekv(qual5, val5));
     kvs.add(makekv(qual6, val6));
     final KeyValue kv = compactionq.compact(kvs, annotations);
@@ -1498,10 +1639,273 @@ public final class TestCompactionQueue {
     verify(tsdb, never()).delete(anyBytes(), any(byte[][].class));
   }
   
+  @Test
+  public void flushOnlyOldRows() throws Exception {
+    final UniqueId metrics = Whitebox.getInternalState(tsdb, "metrics");
+    when(metrics.width()).thenReturn((short) 3);
+    final CompactionQueue queue = new CompactionQueue(tsdb);
+    final long now = System.currentTimeMillis() / 1000;
+    final byte[] current = Arrays.copyOf(PRECOMPACT_KEY, PRECOMPACT_KEY.length);
+    Bytes.setInt(current, (int) (now - (now % Const.MAX_TIMESPAN)), 3);
+    queue.add(PRECOMPACT_KEY);
+    queue.add(current);
+    queue.add(PRECOMPACT_KEY);
+    assertEquals(2, queue.size());
+
+    queue.flush().joinUninterruptibly();
+    assertEquals(1, queue.size());
+    verify(tsdb, times(1)).get(PRECOMPACT_KEY);
+    verify(tsdb, never()).get(current);
+  }
+
+  @Test
+  public void flushMaxConcurrentFlushes() throws Exception {
+    final UniqueId metrics = Whitebox.getInternalState(tsdb, "metrics");
+    when(metrics.width()).thenReturn((short) 3);
+    when(config.getInt("tsd.storage.compaction.max_concurrent_flushes"))
+      .thenReturn(2);
+    when(tsdb.getClient()).thenReturn(mock(HBaseClient.class));
+    final CompactionQueue queue = new CompactionQueue(tsdb);
+    for (int i = 0; i < 5; i++) {
+      final byte[] row = Arrays.copyOf(PRECOMPACT_KEY, PRECOMPACT_KEY.length);
+      row[row.length - 1] = (byte) i;
+      // spread the rows over two hours
+      Bytes.setInt(row, (int) (PRECOMPACT_BASE + (i % 2) * Const.MAX_TIMESPAN),
+          3);
+      queue.add(row);
+    }
+    assertEquals(5, queue.size());
+
+    queue.flush().joinUninterruptibly();
+    assertEquals(0, queue.size());
+    verify(tsdb, times(5)).get(anyBytes());
+  }
+
+  @Test
+  public void flushAdaptive() throws Exception {
+    final UniqueId metrics = Whitebox.getInternalState(tsdb, "metrics");
+    when(metrics.width()).thenReturn((short) 3);
+    when(config.getBoolean("tsd.storage.compaction.adaptive")).thenReturn(true);
+    when(config.getInt("tsd.storage.compaction.flush_interval")).thenReturn(10);
+    when(config.getInt("tsd.storage.compaction.flush_speed")).thenReturn(2);
+    when(config.getInt("tsd.storage.compaction.adaptive.target_latency"))
+      .thenReturn(50);
+    final HBaseClient client = mock(HBaseClient.class);
+    when(tsdb.getClient()).thenReturn(client);
+    final CompactionQueue queue = new CompactionQueue(tsdb);
+    final CompactionPacer pacer = Whitebox.getInternalState(queue, "pacer");
+    for (int i = 0; i < 5; i++) {
+      final byte[] row = Arrays.copyOf(PRECOMPACT_KEY, PRECOMPACT_KEY.length);
+      row[row.length - 1] = (byte) i;
+      queue.add(row);
+    }
+
+    queue.flush().joinUninterruptibly();
+    assertEquals(0, queue.size());
+    verify(tsdb, times(5)).get(anyBytes());
+    // the pacer starts with a single compaction at a time
+    verify(client, times(4)).flush();
+    assertTrue(pacer.latency() >= 0);
+  }
+
+  @Test
+  public void addAfterFlush() throws Exception {
+    final UniqueId metrics = Whitebox.getInternalState(tsdb, "metrics");
+    when(metrics.width()).thenReturn((short) 3);
+    final CompactionQueue queue = new CompactionQueue(tsdb);
+    queue.add(PRECOMPACT_KEY);
+    queue.flush().joinUninterruptibly();
+    assertEquals(0, queue.size());
+
+    // the bucket was closed, make sure the row goes in a new one
+    queue.add(PRECOMPACT_KEY);
+    assertEquals(1, queue.size());
+    queue.flush().joinUninterruptibly();
+    assertEquals(0, queue.size());
+    verify(tsdb, times(2)).get(PRECOMPACT_KEY);
+  }
+
+  @Test (timeout = 10000)
+  public void addLateRowAfterDrain() throws Exception {
+    final UniqueId metrics = Whitebox.getInternalState(tsdb, "metrics");
+    when(metrics.width()).thenReturn((short) 3);
+    final CompactionQueue queue = new CompactionQueue(tsdb);
+    final byte[] next_hour = Arrays.copyOf(PRECOMPACT_KEY, 
+        PRECOMPACT_KEY.length);
+    Bytes.setInt(next_hour, (int) (PRECOMPACT_BASE + Const.MAX_TIMESPAN), 3);
+    queue.add(next_hour);
+    // the last row added is in the oldest hour, which gets drained first
+    queue.add(PRECOMPACT_KEY);
+    queue.flush().joinUninterruptibly();
+    assertEquals(0, queue.size());
+
+    // a late point for the drained hour must go in a new bucket
+    queue.add(PRECOMPACT_KEY);
+    assertEquals(1, queue.size());
+    queue.flush().joinUninterruptibly();
+    assertEquals(0, queue.size());
+    verify(tsdb, times(2)).get(PRECOMPACT_KEY);
+  }
+
+  @Test
+  public void precompact() throws Exception {
+    final CompactionQueue queue = precompactQueue(PRECOMPACT_BASE - 10);
+    final byte[] qual1 = { 0x00, 0x07 };
+    final byte[] val1 = Bytes.fromLong(4L);
+    final byte[] qual2 = { 0x00, 0x27 };
+    final byte[] val2 = Bytes.fromLong(5L);
+    setNow(PRECOMPACT_BASE + 10);
+    queue.add(PRECOMPACT_KEY, qual1, val1, Deferred.<Object>fromResult(null));
+    queue.add(PRECOMPACT_KEY, qual2, val2, Deferred.<Object>fromResult(null));
+    assertEquals(1, queue.size());
+
+    queue.flush().joinUninterruptibly();
+    assertEquals(0, queue.size());
+    // the row was never read back
+    verify(tsdb, never()).get(anyBytes());
+    verify(tsdb, times(1)).put(PRECOMPACT_KEY, 
+        MockBase.concatByteArrays(qual1, qual2), 
+        MockBase.concatByteArrays(val1, val2, ZERO));
+    verify(tsdb, times(1)).delete(eq(PRECOMPACT_KEY), 
+        eqAnyOrder(new byte[][] { qual1, qual2 }));
+  }
+
+  @Test
+  public void precompactSingleCell() throws Exception {
+    final CompactionQueue queue = precompactQueue(PRECOMPACT_BASE - 10);
+    setNow(PRECOMPACT_BASE + 10);
+    queue.add(PRECOMPACT_KEY, new byte[] { 0x00, 0x07 }, Bytes.fromLong(4L), 
+        Deferred.<Object>fromResult(null));
+
+    queue.flush().joinUninterruptibly();
+    // the cell is already compacted
+    verify(tsdb, never()).get(anyBytes());
+    verify(tsdb, never()).put(anyBytes(), anyBytes(), anyBytes());
+    verify(tsdb, never()).delete(anyBytes(), any(byte[][].class));
+  }
+
+  @Test
+  public void precompactDisabled() throws Exception {
+    final UniqueId metrics = Whitebox.getInternalState(tsdb, "metrics");
+    when(metrics.width()).thenReturn((short) 3);
+    setNow(PRECOMPACT_BASE - 10);
+    final CompactionQueue queue = new CompactionQueue(tsdb);
+    setNow(PRECOMPACT_BASE + 10);
+    queue.add(PRECOMPACT_KEY, new byte[] { 0x00, 0x07 }, Bytes.fromLong(4L), 
+        Deferred.<Object>fromResult(null));
+
+    queue.flush().joinUninterruptibly();
+    verify(tsdb, times(1)).get(PRECOMPACT_KEY);
+  }
+
+  @Test
+  public void precompactFallbackOtherWrite() throws Exception {
+    final CompactionQueue queue = precompactQueue(PRECOMPACT_BASE - 10);
+    setNow(PRECOMPACT_BASE + 10);
+    queue.add(PRECOMPACT_KEY, new byte[] { 0x00, 0x07 }, Bytes.fromLong(4L), 
+        Deferred.<Object>fromResult(null));
+    // e.g. through IncomingDataPoints
+    queue.add(PRECOMPACT_KEY);
+    queue.add(PRECOMPACT_KEY, new byte[] { 0x00, 0x27 }, Bytes.fromLong(5L), 
+        Deferred.<Object>fromResult(null));
+
+    queue.flush().joinUninterruptibly();
+    verify(tsdb, times(1)).get(PRECOMPACT_KEY);
+  }
+
+  @Test
+  public void precompactFallbackFailedPut() throws Exception {
+    final CompactionQueue queue = precompactQueue(PRECOMPACT_BASE - 10);
+    setNow(PRECOMPACT_BASE + 10);
+    queue.add(PRECOMPACT_KEY, new byte[] { 0x00, 0x07 }, Bytes.fromLong(4L), 
+        Deferred.<Object>fromResult(null));
+    final Deferred<Object> put = queue.add(PRECOMPACT_KEY, 
+        new byte[] { 0x00, 0x27 }, Bytes.fromLong(5L), 
+        Deferred.<Object>fromError(new RuntimeException("Boo!")));
+    try {
+      put.join();
+    } catch (RuntimeException e) { }
+
+    queue.flush().joinUninterruptibly();
+    verify(tsdb, times(1)).get(PRECOMPACT_KEY);
+  }
+
+  @Test
+  public void precompactFallbackHourStartedBefore() throws Exception {
+    // we started in the middle of the hour
+    final CompactionQueue queue = precompactQueue(PRECOMPACT_BASE + 10);
+    setNow(PRECOMPACT_BASE + 20);
+    queue.add(PRECOMPACT_KEY, new byte[] { 0x00, 0x07 }, Bytes.fromLong(4L), 
+        Deferred.<Object>fromResult(null));
+    queue.add(PRECOMPACT_KEY, new byte[] { 0x00, 0x27 }, Bytes.fromLong(5L), 
+        Deferred.<Object>fromResult(null));
+
+    queue.flush().joinUninterruptibly();
+    verify(tsdb, times(1)).get(PRECOMPACT_KEY);
+  }
+
+  @Test
+  public void precompactFallbackLateWrite() throws Exception {
+    final CompactionQueue queue = precompactQueue(PRECOMPACT_BASE - 10);
+    setNow(PRECOMPACT_BASE + 10);
+    queue.add(PRECOMPACT_KEY, new byte[] { 0x00, 0x07 }, Bytes.fromLong(4L), 
+        Deferred.<Object>fromResult(null));
+    // the hour is over
+    setNow(PRECOMPACT_BASE + Const.MAX_TIMESPAN + 10);
+    queue.add(PRECOMPACT_KEY, new byte[] { 0x00, 0x27 }, Bytes.fromLong(5L), 
+        Deferred.<Object>fromResult(null));
+
+    queue.flush().joinUninterruptibly();
+    verify(tsdb, times(1)).get(PRECOMPACT_KEY);
+  }
+
+  @Test
+  public void precompactFallbackMaxCells() throws Exception {
+    when(config.getInt("tsd.storage.compaction.precompact.max_cells"))
+      .thenReturn(1);
+    final CompactionQueue queue = precompactQueue(PRECOMPACT_BASE - 10);
+    setNow(PRECOMPACT_BASE + 10);
+    queue.add(PRECOMPACT_KEY, new byte[] { 0x00, 0x07 }, Bytes.fromLong(4L), 
+        Deferred.<Object>fromResult(null));
+    queue.add(PRECOMPACT_KEY, new byte[] { 0x00, 0x27 }, Bytes.fromLong(5L), 
+        Deferred.<Object>fromResult(null));
+
+    queue.flush().joinUninterruptibly();
+    verify(tsdb, times(1)).get(PRECOMPACT_KEY);
+  }
+
   // ----------------- //
   // Helper functions. //
   // ----------------- //
 
+  /** Row key for 1356998400 with a 3 byte metric width. */
+  private static final byte[] PRECOMPACT_KEY = 
+    { 0, 0, 1, 0x50, (byte) 0xE2, 0x27, 0, 0, 0, 1, 0, 0, 2 };
+  private static final long PRECOMPACT_BASE = 1356998400L;
+
+  /**
+   * Creates a queue with pre-compaction enabled.
+   * @param now The time in seconds at which the queue is created.
+   */
+  private CompactionQueue precompactQueue(final long now) {
+    final UniqueId metrics = Whitebox.getInternalState(tsdb, "metrics");
+    when(metrics.width()).thenReturn((short) 3);
+    when(config.getBoolean("tsd.storage.compaction.precompact"))
+      .thenReturn(true);
+    if (config.getInt("tsd.storage.compaction.precompact.max_cells") == 0) {
+      when(config.getInt("tsd.storage.compaction.precompact.max_cells"))
+        .thenReturn(1000);
+    }
+    setNow(now);
+    return new CompactionQueue(tsdb);
+  }
+
+  /** Sets the time seen by the queue through DateTime. */
+  private static void setNow(final long seconds) {
+    PowerMockito.mockStatic(DateTime.class);
+    PowerMockito.when(DateTime.currentTimeMillis()).thenReturn(seconds * 1000);
+  }
+
   // fake timestamp is derived from the sequence number of new makekv calls
   private static long kvCount = 0;
 
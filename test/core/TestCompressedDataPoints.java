@@ -0,0 +1,270 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import net.opentsdb.core.Internal.Cell;
+import net.opentsdb.storage.MockBase;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.KeyValue;
+import org.junit.Test;
+
+public final class TestCompressedDataPoints {
+  private static final byte[] KEY =
+    { 0, 0, 1, 0x50, (byte) 0xE2, 0x27, 0, 0, 0, 1, 0, 0, 1 };
+  private static final byte[] FAMILY = { 't' };
+  private static final byte[] ZERO = { 0 };
+
+  @Test
+  public void isCompressedDataPoints() {
+    assertTrue(CompressedDataPoints.isCompressedDataPoints(
+        CompressedDataPoints.COMPRESSED_COLUMN_QUALIFIER));
+    assertFalse(CompressedDataPoints.isCompressedDataPoints(
+        AppendDataPoints.APPEND_COLUMN_QUALIFIER));
+    assertFalse(CompressedDataPoints.isCompressedDataPoints(
+        new byte[] { 0x07, 0 }));
+    assertFalse(CompressedDataPoints.isCompressedDataPoints(null));
+  }
+
+  @Test
+  public void roundTripSeconds() {
+    final byte[] qual = MockBase.concatByteArrays(
+        new byte[] { 0x00, 0x07 }, new byte[] { 0x00, (byte) 0xA7 },
+        new byte[] { 0x01, 0x47 }, new byte[] { 0x01, (byte) 0xE7 });
+    final byte[] val = MockBase.concatByteArrays(Bytes.fromLong(42),
+        Bytes.fromLong(43), Bytes.fromLong(-5), Bytes.fromLong(Long.MAX_VALUE),
+        ZERO);
+    roundTrip(qual, val);
+  }
+
+  @Test
+  public void roundTripIntegerLengths() {
+    final byte[] qual = MockBase.concatByteArrays(
+        new byte[] { 0x00, 0x00 }, new byte[] { 0x00, 0x11 },
+        new byte[] { 0x00, 0x23 }, new byte[] { 0x00, 0x37 });
+    final byte[] val = MockBase.concatByteArrays(new byte[] { -1 },
+        Bytes.fromShort((short) 512), Bytes.fromInt(Integer.MIN_VALUE),
+        Bytes.fromLong(Long.MIN_VALUE), ZERO);
+    roundTrip(qual, val);
+  }
+
+  @Test
+  public void roundTripFloats() {
+    final byte[] qual = MockBase.concatByteArrays(
+        new byte[] { 0x00, 0x0B }, new byte[] { 0x00, 0x1B },
+        new byte[] { 0x00, 0x2F }, new byte[] { 0x00, 0x3F },
+        new byte[] { 0x00, 0x4B });
+    final byte[] val = MockBase.concatByteArrays(
+        Bytes.fromInt(Float.floatToRawIntBits(1.5F)),
+        Bytes.fromInt(Float.floatToRawIntBits(1.5F)),
+        Bytes.fromLong(Double.doubleToRawLongBits(42.42)),
+        Bytes.fromLong(Double.doubleToRawLongBits(Double.NaN)),
+        Bytes.fromInt(Float.floatToRawIntBits(-0.0F)), ZERO);
+    roundTrip(qual, val);
+  }
+
+  @Test
+  public void roundTripMilliseconds() {
+    final byte[] qual = MockBase.concatByteArrays(
+        new byte[] { (byte) 0xF0, 0x00, 0x00, 0x07 },
+        new byte[] { (byte) 0xF0, 0x00, 0x01, 0x07 },
+        new byte[] { (byte) 0xF0, 0x00, 0x02, 0x0B },
+        new byte[] { (byte) 0xFD, (byte) 0xBB, (byte) 0x9F, (byte) 0xC7 });
+    final byte[] val = MockBase.concatByteArrays(Bytes.fromLong(4L),
+        Bytes.fromLong(5L), Bytes.fromInt(Float.floatToRawIntBits(6.5F)),
+        Bytes.fromLong(7L), ZERO);
+    roundTrip(qual, val);
+  }
+
+  @Test
+  public void roundTripMixed() {
+    final byte[] qual = MockBase.concatByteArrays(
+        new byte[] { 0x00, 0x07 },
+        new byte[] { (byte) 0xF0, 0x00, 0x02, 0x07 },
+        new byte[] { 0x00, 0x27 });
+    final byte[] val = MockBase.concatByteArrays(Bytes.fromLong(4L),
+        Bytes.fromLong(5L), Bytes.fromLong(6L), new byte[] { 1 });
+    roundTrip(qual, val);
+  }
+
+  @Test
+  public void roundTripSinglePoint() {
+    final byte[] qual = { 0x00, 0x07 };
+    final byte[] val = Bytes.fromLong(42);
+    roundTrip(qual, val);
+  }
+
+  @Test
+  public void roundTripRandom() {
+    final Random rnd = new Random(42);
+    for (int run = 0; run < 100; run++) {
+      final int max = 1 + rnd.nextInt(200);
+      final byte[] qual = new byte[max * 4];
+      final byte[] val = new byte[max * 8 + 1];
+      int q = 0;
+      int v = 0;
+      int num = 0;
+      int last = -1;
+      boolean has_s = false;
+      boolean has_ms = false;
+      for (int i = 0; i < max; i++) {
+        int offset = last + 1 + rnd.nextInt(5000);
+        final boolean seconds = rnd.nextInt(3) == 0;
+        if (seconds) {
+          offset = (offset + 999) / 1000 * 1000;
+        }
+        if (offset >= Const.MAX_TIMESPAN * 1000) {
+          break;
+        }
+        last = offset;
+        final int flags = rnd.nextBoolean() ? 
+            Const.FLAG_FLOAT | (rnd.nextBoolean() ? 3 : 7) : 
+            (1 << rnd.nextInt(4)) - 1;
+        if (seconds) {
+          Bytes.setShort(qual, (short) ((offset / 1000) << 4 | flags), q);
+          q += 2;
+          has_s = true;
+        } else {
+          Bytes.setInt(qual, Const.MS_FLAG | (offset << 6) | flags, q);
+          q += 4;
+          has_ms = true;
+        }
+        final int vlen = (flags & Const.LENGTH_MASK) + 1;
+        for (int j = 0; j < vlen; j++) {
+          val[v++] = (byte) rnd.nextInt();
+        }
+        num++;
+      }
+      if (num > 1) {
+        val[v++] = (byte) (has_s && has_ms ? Const.MS_MIXED_COMPACT : 0);
+      }
+      roundTrip(Arrays.copyOf(qual, q), Arrays.copyOf(val, v));
+    }
+  }
+
+  @Test
+  public void encodeSmaller() {
+    // a typical integer series written every 15 seconds for an hour
+    final int num = 240;
+    final byte[] qual = new byte[num * 2];
+    final byte[] val = new byte[num * 2 + 1];
+    for (int i = 0; i < num; i++) {
+      Bytes.setShort(qual, (short) ((i * 15) << 4 | 1), i * 2);
+      Bytes.setShort(val, (short) (1000 + i % 7), i * 2);
+    }
+    final byte[] compressed = CompressedDataPoints.encode(qual, val);
+    // about one byte for the timestamp and one for the value instead of 4
+    assertTrue(compressed.length + " > " + (num * 2 + 8),
+        compressed.length <= num * 2 + 8);
+    roundTrip(qual, val);
+  }
+
+  @Test
+  public void encodeBadFloatLength() {
+    final byte[] qual = MockBase.concatByteArrays(
+        new byte[] { 0x00, 0x09 }, new byte[] { 0x00, 0x1B });
+    final byte[] val = MockBase.concatByteArrays(new byte[] { 1, 2 },
+        Bytes.fromInt(1), ZERO);
+    assertNull(CompressedDataPoints.encode(qual, val));
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void encodeEmpty() {
+    CompressedDataPoints.encode(new byte[0], new byte[0]);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void decodeNotCompressed() {
+    CompressedDataPoints.decode(new KeyValue(KEY, FAMILY,
+        new byte[] { 0, 7 }, Bytes.fromLong(42)));
+  }
+
+  @Test (expected = IllegalDataException.class)
+  public void decodeBadVersion() {
+    final byte[] value = CompressedDataPoints.encode(new byte[] { 0, 7 },
+        Bytes.fromLong(42));
+    value[0] = 42;
+    CompressedDataPoints.decode(compressed(value));
+  }
+
+  @Test (expected = IllegalDataException.class)
+  public void decodeTruncated() {
+    final byte[] value = CompressedDataPoints.encode(
+        MockBase.concatByteArrays(new byte[] { 0, 7 }, new byte[] { 0, 0x17 }),
+        MockBase.concatByteArrays(Bytes.fromLong(42), Bytes.fromLong(1 << 30),
+            ZERO));
+    CompressedDataPoints.decode(compressed(
+        Arrays.copyOf(value, value.length - 1)));
+  }
+
+  @Test (expected = IllegalDataException.class)
+  public void decodeExtraBytes() {
+    final byte[] value = CompressedDataPoints.encode(new byte[] { 0, 7 },
+        Bytes.fromLong(42));
+    CompressedDataPoints.decode(compressed(
+        MockBase.concatByteArrays(value, ZERO)));
+  }
+
+  @Test
+  public void numDataPoints() {
+    final byte[] value = CompressedDataPoints.encode(
+        MockBase.concatByteArrays(new byte[] { 0, 7 }, new byte[] { 0, 0x17 }),
+        MockBase.concatByteArrays(Bytes.fromLong(42), Bytes.fromLong(43),
+            ZERO));
+    assertEquals(2, CompressedDataPoints.numDataPoints(value));
+    assertEquals(0, CompressedDataPoints.numDataPoints(new byte[] { 42, 2 }));
+    assertEquals(0, CompressedDataPoints.numDataPoints(new byte[0]));
+  }
+
+  @Test
+  public void extractDataPoints() {
+    final byte[] qual = MockBase.concatByteArrays(
+        new byte[] { 0x00, 0x07 }, new byte[] { 0x00, 0x17 });
+    final byte[] val = MockBase.concatByteArrays(Bytes.fromLong(4L),
+        Bytes.fromLong(5L), ZERO);
+    final ArrayList<Cell> cells = Internal.extractDataPoints(
+        compressed(CompressedDataPoints.encode(qual, val)));
+    assertEquals(2, cells.size());
+    assertArrayEquals(new byte[] { 0x00, 0x07 }, cells.get(0).qualifier());
+    assertEquals(4L, cells.get(0).parseValue());
+    assertArrayEquals(new byte[] { 0x00, 0x17 }, cells.get(1).qualifier());
+    assertEquals(5L, cells.get(1).parseValue());
+  }
+
+  /**
+   * Compresses the data points and makes sure we get the exact same bytes
+   * back when decoding.
+   */
+  private static void roundTrip(final byte[] qual, final byte[] val) {
+    final byte[] value = CompressedDataPoints.encode(qual, val);
+    final KeyValue decoded = CompressedDataPoints.decode(compressed(value));
+    assertArrayEquals(KEY, decoded.key());
+    assertArrayEquals(qual, decoded.qualifier());
+    assertArrayEquals(val, decoded.value());
+  }
+
+  private static KeyValue compressed(final byte[] value) {
+    return new KeyValue(KEY, FAMILY,
+        CompressedDataPoints.COMPRESSED_COLUMN_QUALIFIER, value);
+  }
+}
@@ -0,0 +1,301 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.NoSuchElementException;
+
+import org.junit.Test;
+
+public final class TestDownsampleBuckets {
+  private static final long BASE_TIME = 1356998400000L;
+
+  /** Data points every 15 seconds over 2 minutes with a NaN */
+  private static final double[] VALUES =
+    { 1, 5, Double.NaN, 3, 2, 8, 4, 6 };
+
+  @Test
+  public void supports() throws Exception {
+    assertTrue(DownsampleBuckets.supports(
+        new DownsamplingSpecification("1m-sum")));
+    assertTrue(DownsampleBuckets.supports(
+        new DownsamplingSpecification("1h-avg-zero")));
+    assertTrue(DownsampleBuckets.supports(
+        new DownsamplingSpecification("10s-last")));
+    assertFalse(DownsampleBuckets.supports(null));
+    assertFalse(DownsampleBuckets.supports(
+        DownsamplingSpecification.NO_DOWNSAMPLER));
+    assertFalse(DownsampleBuckets.supports(
+        new DownsamplingSpecification("1m-dev")));
+    assertFalse(DownsampleBuckets.supports(
+        new DownsamplingSpecification("1m-p99")));
+    assertFalse(DownsampleBuckets.supports(
+        new DownsamplingSpecification("1dc-sum")));
+    assertFalse(DownsampleBuckets.supports(
+        new DownsamplingSpecification("0all-sum")));
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorNotSupported() throws Exception {
+    new DownsampleBuckets(new DownsamplingSpecification("1m-dev"));
+  }
+
+  @Test
+  public void sum() throws Exception {
+    final DownsampleBuckets buckets = fill("1m-sum");
+    assertEquals(2, buckets.size());
+    assertEquals(BASE_TIME, buckets.timestamp(0));
+    assertEquals(9, buckets.value(0), 0.0001);
+    assertEquals(BASE_TIME + 60000, buckets.timestamp(1));
+    assertEquals(20, buckets.value(1), 0.0001);
+  }
+
+  @Test
+  public void min() throws Exception {
+    final DownsampleBuckets buckets = fill("1m-min");
+    assertEquals(1, buckets.value(0), 0.0001);
+    assertEquals(2, buckets.value(1), 0.0001);
+  }
+
+  @Test
+  public void max() throws Exception {
+    final DownsampleBuckets buckets = fill("1m-mimmax");
+    assertEquals(5, buckets.value(0), 0.0001);
+    assertEquals(8, buckets.value(1), 0.0001);
+  }
+
+  @Test
+  public void avg() throws Exception {
+    final DownsampleBuckets buckets = fill("1m-avg");
+    assertEquals(3, buckets.value(0), 0.0001);
+    assertEquals(5, buckets.value(1), 0.0001);
+  }
+
+  @Test
+  public void count() throws Exception {
+    final DownsampleBuckets buckets = fill("1m-count");
+    assertEquals(3, buckets.value(0), 0.0001);
+    assertEquals(4, buckets.value(1), 0.0001);
+  }
+
+  @Test
+  public void first() throws Exception {
+    final DownsampleBuckets buckets = fill("30s-first");
+    assertEquals(4, buckets.size());
+    assertEquals(1, buckets.value(0), 0.0001);
+    assertTrue(Double.isNaN(buckets.value(1)));
+    assertEquals(2, buckets.value(2), 0.0001);
+  }
+
+  @Test
+  public void last() throws Exception {
+    final DownsampleBuckets buckets = fill("30s-last");
+    assertEquals(5, buckets.value(0), 0.0001);
+    assertEquals(3, buckets.value(1), 0.0001);
+    assertEquals(6, buckets.value(3), 0.0001);
+  }
+
+  @Test
+  public void allNaN() throws Exception {
+    final DownsampleBuckets buckets = new DownsampleBuckets(
+        new DownsamplingSpecification("1m-sum"));
+    buckets.add(BASE_TIME, Double.NaN);
+    assertEquals(1, buckets.size());
+    assertTrue(Double.isNaN(buckets.value(0)));
+  }
+
+  @Test
+  public void outOfOrder() throws Exception {
+    final DownsampleBuckets buckets = new DownsampleBuckets(
+        new DownsamplingSpecification("1m-last"));
+    buckets.add(BASE_TIME + 120000, 3);
+    buckets.add(BASE_TIME + 10000, 2);
+    buckets.add(BASE_TIME, 1);
+    buckets.add(BASE_TIME + 130000, 4);
+    assertEquals(2, buckets.size());
+    assertEquals(BASE_TIME, buckets.timestamp(0));
+    assertEquals(2, buckets.value(0), 0.0001);
+    assertEquals(BASE_TIME + 120000, buckets.timestamp(1));
+    assertEquals(4, buckets.value(1), 0.0001);
+  }
+
+  @Test
+  public void merge() throws Exception {
+    for (final String function : new String[] { "sum", "min", "max", "avg",
+        "count", "first", "last" }) {
+      final DownsamplingSpecification specification =
+          new DownsamplingSpecification("30s-" + function);
+      // split the data points between two sets of buckets
+      final DownsampleBuckets even = new DownsampleBuckets(specification);
+      final DownsampleBuckets odd = new DownsampleBuckets(specification);
+      final DataPoint[] dps = dataPoints();
+      for (int i = 0; i < dps.length; i++) {
+        (i % 2 == 0 ? even : odd).add(dps[i].timestamp(), dps[i].toDouble());
+      }
+      odd.merge(even);
+      final DownsampleBuckets expected = fill("30s-" + function);
+      assertEquals(function, expected.size(), odd.size());
+      for (int i = 0; i < expected.size(); i++) {
+        assertEquals(function, expected.timestamp(i), odd.timestamp(i));
+        assertEquals(function, expected.value(i), odd.value(i), 0.0001);
+      }
+    }
+  }
+
+  @Test
+  public void addPartial() throws Exception {
+    for (final String function : new String[] { "sum", "min", "max", "avg",
+        "count" }) {
+      // fold 30 second partials into 1 minute buckets
+      final DownsampleBuckets partials = new DownsampleBuckets(
+          new DownsamplingSpecification("30s-sum"));
+      final DownsampleBuckets mins = new DownsampleBuckets(
+          new DownsamplingSpecification("30s-min"));
+      final DownsampleBuckets maxs = new DownsampleBuckets(
+          new DownsamplingSpecification("30s-max"));
+      final DownsampleBuckets counts = new DownsampleBuckets(
+          new DownsamplingSpecification("30s-count"));
+      for (final DataPoint dp : dataPoints()) {
+        partials.add(dp.timestamp(), dp.toDouble());
+        mins.add(dp.timestamp(), dp.toDouble());
+        maxs.add(dp.timestamp(), dp.toDouble());
+        counts.add(dp.timestamp(), dp.toDouble());
+      }
+      final DownsampleBuckets buckets = new DownsampleBuckets(
+          new DownsamplingSpecification("1m-" + function));
+      for (int i = 0; i < partials.size(); i++) {
+        buckets.addPartial(partials.timestamp(i), partials.value(i),
+            mins.value(i), maxs.value(i), (int) counts.value(i));
+      }
+      final DownsampleBuckets expected = fill("1m-" + function);
+      assertEquals(function, expected.size(), buckets.size());
+      for (int i = 0; i < expected.size(); i++) {
+        assertEquals(function, expected.timestamp(i), buckets.timestamp(i));
+        assertEquals(function, expected.value(i), buckets.value(i), 0.0001);
+      }
+    }
+  }
+
+  @Test
+  public void addPartialAllNaN() throws Exception {
+    final DownsampleBuckets buckets = new DownsampleBuckets(
+        new DownsamplingSpecification("1m-sum"));
+    buckets.addPartial(BASE_TIME + 30000, Double.NaN, Double.NaN,
+        Double.NaN, 0);
+    assertEquals(1, buckets.size());
+    assertEquals(BASE_TIME, buckets.timestamp(0));
+    assertTrue(Double.isNaN(buckets.value(0)));
+  }
+
+  @Test (expected = UnsupportedOperationException.class)
+  public void addPartialLast() throws Exception {
+    new DownsampleBuckets(new DownsamplingSpecification("1m-last"))
+      .addPartial(BASE_TIME, 1, 1, 1, 1);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void mergeDifferentSpecification() throws Exception {
+    fill("1m-sum").merge(fill("1m-max"));
+  }
+
+  @Test
+  public void grow() throws Exception {
+    final DownsampleBuckets buckets = new DownsampleBuckets(
+        new DownsamplingSpecification("1s-sum"));
+    for (int i = 0; i < 100; i++) {
+      buckets.add(BASE_TIME + i * 1000, i);
+    }
+    assertEquals(100, buckets.size());
+    for (int i = 0; i < 100; i++) {
+      assertEquals(BASE_TIME + i * 1000, buckets.timestamp(i));
+      assertEquals(i, buckets.value(i), 0.0001);
+    }
+  }
+
+  @Test (expected = IndexOutOfBoundsException.class)
+  public void valueOutOfBounds() throws Exception {
+    fill("1m-sum").value(2);
+  }
+
+  @Test
+  public void iterator() throws Exception {
+    final SeekableView it = fill("1m-sum").iterator();
+    DataPoint dp = it.next();
+    assertEquals(BASE_TIME, dp.timestamp());
+    assertFalse(dp.isInteger());
+    assertEquals(9, dp.doubleValue(), 0.0001);
+    dp = it.next();
+    assertEquals(BASE_TIME + 60000, dp.timestamp());
+    assertEquals(20, dp.toDouble(), 0.0001);
+    assertFalse(it.hasNext());
+  }
+
+  @Test (expected = NoSuchElementException.class)
+  public void iteratorPastEnd() throws Exception {
+    final SeekableView it = fill("2m-sum").iterator();
+    it.next();
+    it.next();
+  }
+
+  @Test
+  public void iteratorSeek() throws Exception {
+    final SeekableView it = fill("1m-sum").iterator();
+    it.seek(BASE_TIME + 1);
+    assertEquals(BASE_TIME + 60000, it.next().timestamp());
+    it.seek(BASE_TIME);
+    assertEquals(BASE_TIME, it.next().timestamp());
+    it.seek(BASE_TIME + 60001);
+    assertFalse(it.hasNext());
+  }
+
+  @Test
+  public void matchesDownsampler() throws Exception {
+    for (final String function : new String[] { "sum", "zimsum", "min",
+        "mimmin", "max", "mimmax", "avg", "count", "first", "last" }) {
+      final DownsamplingSpecification specification =
+          new DownsamplingSpecification("30s-" + function);
+      final DownsampleBuckets buckets = fill("30s-" + function);
+      final Downsampler downsampler = new Downsampler(
+          SeekableViewsForTest.fromArray(dataPoints()), specification, 0, 0);
+      int i = 0;
+      while (downsampler.hasNext()) {
+        final DataPoint dp = downsampler.next();
+        assertEquals(function, dp.timestamp(), buckets.timestamp(i));
+        assertEquals(function, dp.toDouble(), buckets.value(i), 0.0001);
+        i++;
+      }
+      assertEquals(function, i, buckets.size());
+    }
+  }
+
+  private static DownsampleBuckets fill(final String specification) {
+    final DownsampleBuckets buckets = new DownsampleBuckets(
+        new DownsamplingSpecification(specification));
+    for (final DataPoint dp : dataPoints()) {
+      buckets.add(dp.timestamp(), dp.toDouble());
+    }
+    return buckets;
+  }
+
+  private static DataPoint[] dataPoints() {
+    final DataPoint[] dps = new DataPoint[VALUES.length];
+    for (int i = 0; i < VALUES.length; i++) {
+      dps[i] = MutableDataPoint.ofDoubleValue(BASE_TIME + i * 15000L,
+          VALUES[i]);
+    }
+    return dps;
+  }
+}
@@ -0,0 +1,190 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import net.opentsdb.storage.MockBase;
+
+import org.hbase.async.Scanner;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+
+import com.stumbleupon.async.Deferred;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ Scanner.class })
+public class TestFragmentCache extends BaseTsdbTest {
+  private FragmentCache cache;
+
+  @Before
+  public void beforeLocal() throws Exception {
+    config.overrideConfig("tsd.query.downsample_pushdown", "true");
+    cache = new FragmentCache(1024 * 1024);
+    Whitebox.setInternalState(tsdb, "fragment_cache", cache);
+    storeLongTimeSeriesSeconds(false, false);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorZeroBytes() throws Exception {
+    new FragmentCache(0);
+  }
+
+  @Test
+  public void supports() throws Exception {
+    assertTrue(FragmentCache.supports(Aggregators.SUM));
+    assertTrue(FragmentCache.supports(Aggregators.AVG));
+    assertTrue(FragmentCache.supports(Aggregators.COUNT));
+    assertTrue(FragmentCache.supports(Aggregators.MIMMAX));
+    assertFalse(FragmentCache.supports(Aggregators.FIRST));
+    assertFalse(FragmentCache.supports(Aggregators.LAST));
+    assertFalse(FragmentCache.supports(Aggregators.DEV));
+  }
+
+  @Test
+  public void cachesPastHours() throws Exception {
+    final List<String> expected = runWithoutCache("10m-avg");
+    assertEquals(expected, run("10m-avg"));
+    // 2 series over 3 hours
+    assertEquals(6, cache.size());
+    assertEquals(0, cache.hits());
+    assertEquals(6, cache.misses());
+
+    assertEquals(expected, run("10m-avg"));
+    assertEquals(6, cache.hits());
+  }
+
+  @Test
+  public void compatibleInterval() throws Exception {
+    run("10m-sum");
+    assertEquals(runWithoutCache("30m-max"), run("30m-max"));
+    assertEquals(6, cache.hits());
+  }
+
+  @Test
+  public void incompatibleInterval() throws Exception {
+    run("10m-sum");
+    assertEquals(runWithoutCache("15m-sum"), run("15m-sum"));
+    assertEquals(0, cache.hits());
+  }
+
+  @Test
+  public void notSupported() throws Exception {
+    assertEquals(runWithoutCache("10m-last"), run("10m-last"));
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void lateData() throws Exception {
+    run("10m-sum");
+    assertEquals(6, cache.size());
+    tsdb.addPoint(METRIC_STRING, 1356998405, 42, tags).joinUninterruptibly();
+    assertEquals(5, cache.size());
+    assertEquals(runWithoutCache("10m-sum"), run("10m-sum"));
+  }
+
+  @Test
+  public void lateDataDuringScan() throws Exception {
+    run("10m-sum");
+    final byte[] key = MockBase.stringToBytes("00000150E22700000001000001");
+    final FragmentCache.Fragment fragment = cache.get(key, 600000);
+    final long generation = cache.generation();
+    // written after a scan read the row but before it cached the fragment
+    tsdb.addPoint(METRIC_STRING, 1356998405, 42, tags).joinUninterruptibly();
+    assertNull(cache.get(key, 600000));
+    cache.put(key, fragment, generation);
+    assertNull(cache.get(key, 600000));
+
+    // later scans may cache it again
+    cache.put(key, fragment, cache.generation());
+    assertSame(fragment, cache.get(key, 600000));
+  }
+
+  @Test
+  public void lateDataBuffered() throws Exception {
+    final WriteBuffer buffer = new WriteBuffer(tsdb);
+    Whitebox.setInternalState(tsdb, "write_buffer", buffer);
+    run("10m-sum");
+    final Deferred<Object> put =
+        tsdb.addPoint(METRIC_STRING, 1356998405, 42, tags);
+    // scanned while the point is still buffered
+    run("10m-sum");
+    assertEquals(6, cache.size());
+    buffer.flush().joinUninterruptibly();
+    put.joinUninterruptibly();
+    assertEquals(5, cache.size());
+    assertEquals(runWithoutCache("10m-sum"), run("10m-sum"));
+  }
+
+  @Test
+  public void currentHourNotCached() throws Exception {
+    final long now = System.currentTimeMillis() / 1000;
+    tsdb.addPoint(METRIC_STRING, now, 42, tags).joinUninterruptibly();
+    final TsdbQuery query = new TsdbQuery(tsdb);
+    query.setStartTime(now - 60);
+    query.setEndTime(now + 60);
+    query.setTimeSeries(METRIC_STRING, tags, Aggregators.SUM, false);
+    query.downsample(60000, Aggregators.SUM);
+    assertEquals(1, query.run()[0].size());
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void invalidateAll() throws Exception {
+    run("10m-sum");
+    tsdb.dropCaches();
+    assertEquals(0, cache.size());
+  }
+
+  /** @return the results of a downsampled query over the data points */
+  private List<String> run(final String downsample) throws Exception {
+    final TsdbQuery query = new TsdbQuery(tsdb);
+    query.setStartTime(1356998400);
+    query.setEndTime(1357009200);
+    query.setTimeSeries(METRIC_STRING, new HashMap<String, String>(),
+        Aggregators.ZIMSUM, false);
+    final DownsamplingSpecification specification =
+        new DownsamplingSpecification(downsample);
+    query.downsample(specification.getInterval(), specification.getFunction());
+    final List<String> results = new ArrayList<String>();
+    final SeekableView it = query.run()[0].iterator();
+    while (it.hasNext()) {
+      final DataPoint dp = it.next();
+      results.add(dp.timestamp() + "=" + dp.toDouble());
+    }
+    return results;
+  }
+
+  /** @return the results of the query computed without the cache */
+  private List<String> runWithoutCache(final String downsample)
+      throws Exception {
+    Whitebox.setInternalState(tsdb, "fragment_cache", (FragmentCache) null);
+    try {
+      return run(downsample);
+    } finally {
+      Whitebox.setInternalState(tsdb, "fragment_cache", cache);
+    }
+  }
+}
@@ -0,0 +1,180 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import net.opentsdb.meta.TSUIDQuery;
+import net.opentsdb.storage.MockBase;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.GetRequest;
+import org.hbase.async.Scanner;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ Scanner.class })
+public class TestLastValueIndex extends BaseTsdbTest {
+  private static final byte[] TSUID = new byte[] { 0, 0, 1, 0, 0, 1, 0, 0, 1 };
+  /** The smallest index possible */
+  private static final long MIN_BYTES =
+      (64 * LastValueIndex.SLOT_BYTES + 1024) * LastValueIndex.SEGMENTS;
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorTooSmall() throws Exception {
+    new LastValueIndex(MIN_BYTES - 1);
+  }
+
+  @Test
+  public void updateInteger() throws Exception {
+    final LastValueIndex index = new LastValueIndex(MIN_BYTES);
+    index.update(TSUID, 1356998400, new byte[] { 42 }, (short) 0);
+    final IncomingDataPoint dp = index.getLastPoint(TSUID);
+    assertEquals("000001000001000001", dp.getTSUID());
+    assertEquals(1356998400000L, dp.getTimestamp());
+    assertEquals("42", dp.getValue());
+    assertEquals(1, index.size());
+  }
+
+  @Test
+  public void updateFloat() throws Exception {
+    final LastValueIndex index = new LastValueIndex(MIN_BYTES);
+    index.update(TSUID, 1356998400500L,
+        Bytes.fromInt(Float.floatToRawIntBits(42.5F)),
+        (short) (Const.FLAG_FLOAT | 0x3));
+    final IncomingDataPoint dp = index.getLastPoint(TSUID);
+    assertEquals(1356998400500L, dp.getTimestamp());
+    assertEquals("42.5", dp.getValue());
+  }
+
+  @Test
+  public void updateOlderIgnored() throws Exception {
+    final LastValueIndex index = new LastValueIndex(MIN_BYTES);
+    index.update(TSUID, 1356998460, new byte[] { 2 }, (short) 0);
+    index.update(TSUID, 1356998400, new byte[] { 1 }, (short) 0);
+    assertEquals("2", index.getLastPoint(TSUID).getValue());
+    index.update(TSUID, 1356998520, Bytes.fromLong(3), (short) 0x7);
+    assertEquals("3", index.getLastPoint(TSUID).getValue());
+    assertEquals(1, index.size());
+  }
+
+  @Test
+  public void getMiss() throws Exception {
+    final LastValueIndex index = new LastValueIndex(MIN_BYTES);
+    assertNull(index.getLastPoint(TSUID));
+  }
+
+  @Test
+  public void grows() throws Exception {
+    final LastValueIndex index = new LastValueIndex(64 * 1024 * 1024);
+    for (int i = 0; i < 10000; i++) {
+      index.update(tsuid(i), 1356998400, Bytes.fromInt(i), (short) 0x3);
+    }
+    assertEquals(10000, index.size());
+    for (int i = 0; i < 10000; i++) {
+      assertEquals(Integer.toString(i),
+          index.getLastPoint(tsuid(i)).getValue());
+    }
+  }
+
+  @Test
+  public void capped() throws Exception {
+    final LastValueIndex index = new LastValueIndex(MIN_BYTES);
+    for (int i = 0; i < 10000; i++) {
+      index.update(tsuid(i), 1356998400, Bytes.fromInt(i), (short) 0x3);
+    }
+    assertTrue(index.size() < 10000);
+    assertTrue(index.bytes() <= MIN_BYTES);
+    // indexed series are still updated
+    index.update(tsuid(0), 1356998460, Bytes.fromInt(-1), (short) 0x3);
+    assertEquals("-1", index.getLastPoint(tsuid(0)).getValue());
+  }
+
+  @Test
+  public void servesLastPointQueries() throws Exception {
+    setDataPointStorage();
+    Whitebox.setInternalState(tsdb, "last_value_index",
+        new LastValueIndex(MIN_BYTES));
+    tsdb.addPoint(METRIC_STRING, 1356998400, 42, tags).joinUninterruptibly();
+    tsdb.addPoint(METRIC_STRING, 1356998460, 24, tags).joinUninterruptibly();
+
+    final IncomingDataPoint dp = new TSUIDQuery(tsdb, TSUID)
+        .getLastPoint(false, 0).joinUninterruptibly();
+    assertEquals(1356998460000L, dp.getTimestamp());
+    assertEquals("24", dp.getValue());
+    verify(client, never()).get(any(GetRequest.class));
+  }
+
+  @Test
+  public void lastPointOutsideBackScan() throws Exception {
+    setDataPointStorage();
+    Whitebox.setInternalState(tsdb, "last_value_index",
+        new LastValueIndex(MIN_BYTES));
+    // far older than the hours scanned back from now
+    tsdb.addPoint(METRIC_STRING, 1356998400, 42, tags).joinUninterruptibly();
+    assertNull(new TSUIDQuery(tsdb, TSUID)
+        .getLastPoint(false, 24).joinUninterruptibly());
+    verify(client, times(25)).get(any(GetRequest.class));
+
+    final long now = System.currentTimeMillis() / 1000;
+    tsdb.addPoint(METRIC_STRING, now - 3600, 24, tags).joinUninterruptibly();
+    final IncomingDataPoint dp = new TSUIDQuery(tsdb, TSUID)
+        .getLastPoint(false, 24).joinUninterruptibly();
+    assertEquals((now - 3600) * 1000, dp.getTimestamp());
+    assertEquals("24", dp.getValue());
+    verify(client, times(25)).get(any(GetRequest.class));
+  }
+
+  @Test
+  public void failedPutNotIndexed() throws Exception {
+    setDataPointStorage();
+    Whitebox.setInternalState(tsdb, "last_value_index",
+        new LastValueIndex(MIN_BYTES));
+    final RuntimeException ex = new RuntimeException("Boo!");
+    storage.throwException(MockBase.stringToBytes(
+        "00000150E23510000001000001"), ex, true);
+    tsdb.addPoint(METRIC_STRING, 1356998400, 42, tags).joinUninterruptibly();
+    try {
+      tsdb.addPoint(METRIC_STRING, 1357002000, 24, tags).joinUninterruptibly();
+      fail("Expected a RuntimeException");
+    } catch (RuntimeException e) {
+      assertSame(ex, e);
+    }
+
+    final IncomingDataPoint dp = new TSUIDQuery(tsdb, TSUID)
+        .getLastPoint(false, 0).joinUninterruptibly();
+    assertEquals(1356998400000L, dp.getTimestamp());
+    assertEquals("42", dp.getValue());
+  }
+
+  /** @return a TSUID with the tag value set to the number */
+  private static byte[] tsuid(final int i) {
+    final byte[] tsuid = new byte[] { 0, 0, 1, 0, 0, 1, 0, 0, 0 };
+    tsuid[6] = (byte) (i >>> 16);
+    tsuid[7] = (byte) (i >>> 8);
+    tsuid[8] = (byte) i;
+    return tsuid;
+  }
+}
@@ -0,0 +1,221 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.opentsdb.meta.TSMeta;
+import net.opentsdb.query.filter.TagVFilter;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.Scanner;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ Scanner.class })
+public class TestQueryCostEstimator extends BaseTsdbTest {
+
+  @Before
+  public void beforeLocal() throws Exception {
+    setDataPointStorage();
+    final List<byte[]> families = new ArrayList<byte[]>(1);
+    families.add(TSMeta.FAMILY());
+    storage.addTable(tsdb.metaTable(), families);
+    trackSeries(TAGV_BYTES);
+    trackSeries(TAGV_B_BYTES);
+  }
+
+  @Test
+  public void estimateAllSeries() throws Exception {
+    final QueryCostEstimator estimator = new QueryCostEstimator(tsdb);
+    // 2 series over the 4 hours scanned, the end is inclusive
+    assertEquals(8, estimate(estimator, getQuery(null)));
+    assertEquals(1, estimator.size());
+  }
+
+  @Test
+  public void estimateLiteral() throws Exception {
+    final QueryCostEstimator estimator = new QueryCostEstimator(tsdb);
+    assertEquals(4, estimate(estimator,
+        getQuery(filter("literal_or", TAGK_STRING, TAGV_STRING))));
+  }
+
+  @Test
+  public void estimateGroupBy() throws Exception {
+    final QueryCostEstimator estimator = new QueryCostEstimator(tsdb);
+    assertEquals(8, estimate(estimator,
+        getQuery(filter("wildcard", TAGK_STRING, "*"))));
+  }
+
+  @Test
+  public void estimateMissingTagKey() throws Exception {
+    final QueryCostEstimator estimator = new QueryCostEstimator(tsdb);
+    assertEquals(0, estimate(estimator,
+        getQuery(filter("wildcard", TAGK_B_STRING, "*"))));
+  }
+
+  @Test
+  public void estimateUntrackedMetric() throws Exception {
+    storage.flushStorage(tsdb.metaTable());
+    final QueryCostEstimator estimator = new QueryCostEstimator(tsdb);
+    assertEquals(0, estimate(estimator, getQuery(null)));
+  }
+
+  @Test
+  public void admitCheap() throws Exception {
+    config.overrideConfig("tsd.query.cost.max_rows", "8");
+    config.overrideConfig("tsd.query.cost.expensive_rows", "8");
+    final QueryCostEstimator estimator = new QueryCostEstimator(tsdb);
+    assertFalse(admit(estimator, getQuery(null)).joinUninterruptibly());
+  }
+
+  @Test
+  public void admitRejected() throws Exception {
+    config.overrideConfig("tsd.query.cost.max_rows", "7");
+    final QueryCostEstimator estimator = new QueryCostEstimator(tsdb);
+    try {
+      admit(estimator, getQuery(null)).joinUninterruptibly();
+      fail("Expected a QueryException");
+    } catch (QueryException e) {
+      assertEquals(HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE, e.getStatus());
+    }
+  }
+
+  @Test
+  public void admitQueued() throws Exception {
+    config.overrideConfig("tsd.query.cost.expensive_rows", "7");
+    config.overrideConfig("tsd.query.cost.expensive_concurrency", "1");
+    final QueryCostEstimator estimator = new QueryCostEstimator(tsdb);
+    assertTrue(admit(estimator, getQuery(null)).joinUninterruptibly());
+
+    final ArrayList<Boolean> queued = new ArrayList<Boolean>();
+    admit(estimator, getQuery(null)).addCallback(
+        new Callback<Object, Boolean>() {
+          @Override
+          public Object call(final Boolean holds_slot) {
+            queued.add(holds_slot);
+            return null;
+          }
+        });
+    final Deferred<Boolean> cheap = admit(estimator,
+        getQuery(filter("literal_or", TAGK_STRING, TAGV_STRING)));
+    assertFalse(cheap.joinUninterruptibly());
+    assertTrue(queued.isEmpty());
+
+    estimator.release();
+    assertEquals(Arrays.asList(true), queued);
+    estimator.release();
+    // the slot is free again
+    assertTrue(admit(estimator, getQuery(null)).joinUninterruptibly());
+  }
+
+  @Test (timeout = 10000)
+  public void admitCancelledWhileQueued() throws Exception {
+    config.overrideConfig("tsd.query.cost.expensive_rows", "7");
+    config.overrideConfig("tsd.query.cost.expensive_concurrency", "1");
+    final QueryCostEstimator estimator = new QueryCostEstimator(tsdb);
+    assertTrue(admit(estimator, getQuery(null)).joinUninterruptibly());
+
+    final TSQuery data_query = getQuery(null);
+    final Deferred<Boolean> cancelled = admit(estimator, data_query);
+    final Deferred<Boolean> queued = admit(estimator, getQuery(null));
+    data_query.getCancellation().cancel(CancellationToken.Reason.ADMIN);
+    try {
+      cancelled.joinUninterruptibly();
+      fail("Expected a QueryException");
+    } catch (QueryException e) {
+      assertEquals(HttpResponseStatus.SERVICE_UNAVAILABLE, e.getStatus());
+    }
+
+    // the slot goes to the next query still waiting
+    estimator.release();
+    assertTrue(queued.joinUninterruptibly());
+    estimator.release();
+    assertTrue(admit(estimator, getQuery(null)).joinUninterruptibly());
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorZeroConcurrency() throws Exception {
+    config.overrideConfig("tsd.query.cost.expensive_concurrency", "0");
+    new QueryCostEstimator(tsdb);
+  }
+
+  @Test
+  public void invalidateAll() throws Exception {
+    final QueryCostEstimator estimator = new QueryCostEstimator(tsdb);
+    estimate(estimator, getQuery(null));
+    estimator.invalidateAll();
+    assertEquals(0, estimator.size());
+  }
+
+  /** Writes the counter of a series of the metric to the meta table */
+  private void trackSeries(final byte[] tagv) {
+    final byte[] tsuid = new byte[9];
+    System.arraycopy(METRIC_BYTES, 0, tsuid, 0, 3);
+    System.arraycopy(TAGK_BYTES, 0, tsuid, 3, 3);
+    System.arraycopy(tagv, 0, tsuid, 6, 3);
+    storage.addColumn(tsdb.metaTable(), tsuid, TSMeta.FAMILY(),
+        TSMeta.COUNTER_QUALIFIER(), Bytes.fromLong(300));
+  }
+
+  /** @return a validated query with an optional filter */
+  private static TSQuery getQuery(final TagVFilter filter) {
+    final TSSubQuery sub = new TSSubQuery();
+    sub.setMetric(METRIC_STRING);
+    sub.setAggregator("sum");
+    if (filter != null) {
+      sub.setFilters(new ArrayList<TagVFilter>(Arrays.asList(filter)));
+    }
+    final TSQuery data_query = new TSQuery();
+    data_query.setStart("1356998400");
+    data_query.setEnd("1357009199");
+    data_query.setQueries(new ArrayList<TSSubQuery>(Arrays.asList(sub)));
+    data_query.validateAndSetQuery();
+    return data_query;
+  }
+
+  /** @return a group by filter */
+  private static TagVFilter filter(final String type, final String tagk,
+      final String filter) {
+    return TagVFilter.Builder().setType(type).setTagk(tagk).setFilter(filter)
+        .setGroupBy(true).build();
+  }
+
+  /** @return the estimated rows of the first sub query */
+  private long estimate(final QueryCostEstimator estimator,
+      final TSQuery data_query) throws Exception {
+    return estimator.estimateRows(data_query.buildQueries(tsdb)[0])
+        .joinUninterruptibly();
+  }
+
+  /** @return the admission of the query */
+  private Deferred<Boolean> admit(final QueryCostEstimator estimator,
+      final TSQuery data_query) throws Exception {
+    return estimator.admit(data_query, data_query.buildQueries(tsdb));
+  }
+}
@@ -0,0 +1,221 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.hbase.async.KeyValue;
+import org.hbase.async.Scanner;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ Scanner.class })
+public class TestQueryMemoryBudget extends BaseTsdbTest {
+  private static final byte[] FAMILY = { 't' };
+
+  @Test
+  public void reserveAndRelease() throws Exception {
+    final QueryMemoryBudget budget = new QueryMemoryBudget(tsdb);
+    budget.reserve(1024);
+    budget.reserve(512);
+    assertEquals(1536, budget.reserved());
+    assertEquals(1536, tsdb.query_bytes_in_flight.get());
+
+    budget.release();
+    assertEquals(0, budget.reserved());
+    assertEquals(1536, budget.peak());
+    assertEquals(0, tsdb.query_bytes_in_flight.get());
+
+    // only released once and nothing reserved once released
+    budget.release();
+    budget.reserve(1024);
+    assertEquals(0, tsdb.query_bytes_in_flight.get());
+  }
+
+  @Test
+  public void reserveRow() throws Exception {
+    final ArrayList<KeyValue> row = new ArrayList<KeyValue>(2);
+    row.add(new KeyValue(new byte[10], FAMILY, new byte[2], new byte[8]));
+    row.add(new KeyValue(new byte[10], FAMILY, new byte[4], new byte[1]));
+    final QueryMemoryBudget budget = new QueryMemoryBudget(tsdb);
+    budget.reserve(row);
+    assertEquals(2 * QueryMemoryBudget.KEY_VALUE_OVERHEAD + 35,
+        budget.reserved());
+  }
+
+  @Test
+  public void overQueryBudget() throws Exception {
+    config.overrideConfig("tsd.query.memory.max_bytes", "1024");
+    final QueryMemoryBudget budget = new QueryMemoryBudget(tsdb);
+    budget.reserve(1024);
+    try {
+      budget.reserve(1);
+      fail("Expected a QueryException");
+    } catch (QueryException e) {
+      assertEquals(HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE, e.getStatus());
+    }
+    assertEquals(1, tsdb.query_memory_rejections.get());
+    budget.release();
+    assertEquals(0, tsdb.query_bytes_in_flight.get());
+  }
+
+  @Test
+  public void overGlobalBudget() throws Exception {
+    config.overrideConfig("tsd.query.memory.global_max_bytes", "1024");
+    final QueryMemoryBudget first = new QueryMemoryBudget(tsdb);
+    first.reserve(1000);
+    final QueryMemoryBudget second = new QueryMemoryBudget(tsdb);
+    try {
+      second.reserve(100);
+      fail("Expected a QueryException");
+    } catch (QueryException e) {
+      assertEquals(HttpResponseStatus.SERVICE_UNAVAILABLE, e.getStatus());
+    }
+    second.release();
+    // the other query keeps going
+    first.reserve(24);
+    first.release();
+    assertEquals(0, tsdb.query_bytes_in_flight.get());
+  }
+
+  @Test
+  public void queryWithinBudget() throws Exception {
+    storeLongTimeSeriesSeconds(false, false);
+    config.overrideConfig("tsd.query.memory.max_bytes", "1048576");
+    assertEquals(300, runQuery()[0].size());
+    assertEquals(0, tsdb.query_bytes_in_flight.get());
+    assertEquals(0, tsdb.query_memory_rejections.get());
+  }
+
+  @Test
+  public void queryOverBudget() throws Exception {
+    storeLongTimeSeriesSeconds(false, false);
+    assertQueryRejected();
+  }
+
+  @Test
+  public void queryOverBudgetSalted() throws Exception {
+    PowerMockito.mockStatic(Const.class);
+    PowerMockito.when(Const.SALT_WIDTH()).thenReturn(1);
+    PowerMockito.when(Const.SALT_BUCKETS()).thenReturn(2);
+    PowerMockito.when(Const.MAX_NUM_TAGS()).thenReturn((short) 8);
+    storeLongTimeSeriesSeconds(false, false);
+    assertQueryRejected();
+  }
+
+  @Test
+  public void dataQueryHeldUntilReleased() throws Exception {
+    storeLongTimeSeriesSeconds(false, false);
+    final TSQuery data_query = newDataQuery();
+    assertEquals(300, data_query.buildQueries(tsdb)[0].run()[0].size());
+    assertEquals(0, tsdb.query_bytes_in_flight.get());
+
+    data_query.holdMemory();
+    final Query query = data_query.buildQueries(tsdb)[0];
+    assertEquals(300, query.run()[0].size());
+    assertTrue(tsdb.query_bytes_in_flight.get() > 0);
+    data_query.releaseMemory();
+    assertEquals(0, tsdb.query_bytes_in_flight.get());
+
+    // sub queries returning after the release aren't held
+    assertEquals(300, data_query.buildQueries(tsdb)[0].run()[0].size());
+    assertEquals(0, tsdb.query_bytes_in_flight.get());
+  }
+
+  @Test
+  public void downsamplePushdown() throws Exception {
+    storeLongTimeSeriesSeconds(false, false);
+    config.overrideConfig("tsd.query.downsample_pushdown", "true");
+    // only the first row of each series is kept, i.e. 119 data points
+    // with 1 byte values for web01 and 2 byte values for web02
+    assertEquals(119 * (QueryMemoryBudget.KEY_VALUE_OVERHEAD + 13 + 2 + 1)
+        + 119 * (QueryMemoryBudget.KEY_VALUE_OVERHEAD + 13 + 2 + 2),
+        downsampledPeak());
+  }
+
+  @Test
+  public void downsamplePushdownSalted() throws Exception {
+    PowerMockito.mockStatic(Const.class);
+    PowerMockito.when(Const.SALT_WIDTH()).thenReturn(1);
+    PowerMockito.when(Const.SALT_BUCKETS()).thenReturn(2);
+    PowerMockito.when(Const.MAX_NUM_TAGS()).thenReturn((short) 8);
+    storeLongTimeSeriesSeconds(false, false);
+    config.overrideConfig("tsd.query.downsample_pushdown", "true");
+    assertEquals(119 * (QueryMemoryBudget.KEY_VALUE_OVERHEAD + 14 + 2 + 1)
+        + 119 * (QueryMemoryBudget.KEY_VALUE_OVERHEAD + 14 + 2 + 2),
+        downsampledPeak());
+  }
+
+  /** @return the peak bytes reserved by a downsampled query */
+  private long downsampledPeak() throws Exception {
+    final TsdbQuery query = new TsdbQuery(tsdb);
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries(METRIC_STRING, new HashMap<String, String>(),
+        Aggregators.SUM, false);
+    query.downsample(600000, Aggregators.SUM);
+    assertEquals(16, query.run()[0].size());
+    assertEquals(0, tsdb.query_bytes_in_flight.get());
+    return ((QueryMemoryBudget) Whitebox.getInternalState(query,
+        "memory_budget")).peak();
+  }
+
+  /** @return a validated data query on the metric over the stored data */
+  private TSQuery newDataQuery() {
+    final TSSubQuery sub = new TSSubQuery();
+    sub.setMetric(METRIC_STRING);
+    sub.setAggregator("sum");
+    final TSQuery data_query = new TSQuery();
+    data_query.setStart("1356998400");
+    data_query.setEnd("1357041600");
+    data_query.setQueries(new ArrayList<TSSubQuery>(Arrays.asList(sub)));
+    data_query.validateAndSetQuery();
+    return data_query;
+  }
+
+  /** Runs a query over a budget smaller than the data it fetches */
+  private void assertQueryRejected() throws Exception {
+    config.overrideConfig("tsd.query.memory.max_bytes", "4096");
+    try {
+      runQuery();
+      fail("Expected a QueryException");
+    } catch (QueryException e) {
+      assertEquals(HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE, e.getStatus());
+      assertTrue(e.getMessage().contains("4096"));
+    }
+    assertEquals(0, tsdb.query_bytes_in_flight.get());
+    assertEquals(1, tsdb.query_memory_rejections.get());
+  }
+
+  /** @return the results of a query on the metric over the stored data */
+  private DataPoints[] runQuery() throws Exception {
+    final TsdbQuery query = new TsdbQuery(tsdb);
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries(METRIC_STRING, new HashMap<String, String>(),
+        Aggregators.SUM, false);
+    return query.run();
+  }
+}
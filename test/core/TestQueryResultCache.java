@@ -0,0 +1,287 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.opentsdb.query.filter.TagVFilter;
+import net.opentsdb.storage.MockBase;
+import net.opentsdb.utils.DateTime;
+
+import org.hbase.async.Scanner;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ Scanner.class, DateTime.class })
+public class TestQueryResultCache extends BaseTsdbTest {
+  private QueryResultCache cache;
+
+  @Before
+  public void beforeLocal() throws Exception {
+    config.overrideConfig("tsd.query.cache.max_bytes", "1048576");
+    config.overrideConfig("tsd.query.cache.grace_period", "0");
+    cache = new QueryResultCache(tsdb);
+    storeLongTimeSeriesSeconds(false, false);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorZeroBytes() throws Exception {
+    config.overrideConfig("tsd.query.cache.max_bytes", "0");
+    new QueryResultCache(tsdb);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorNegativeGracePeriod() throws Exception {
+    config.overrideConfig("tsd.query.cache.grace_period", "-1");
+    new QueryResultCache(tsdb);
+  }
+
+  @Test
+  public void isCacheable() throws Exception {
+    assertTrue(QueryResultCache.isCacheable(
+        getQuery(1356998400, 1357005600, "zimsum", "10m-sum"), 0));
+    assertTrue(QueryResultCache.isCacheable(
+        getQuery(1356998400, 1357005600, "sum", "10m-sum-zero"), 0));
+    // interpolation may look past the cached range
+    assertFalse(QueryResultCache.isCacheable(
+        getQuery(1356998400, 1357005600, "sum", "10m-sum"), 0));
+    assertFalse(QueryResultCache.isCacheable(
+        getQuery(1356998400, 1357005600, "zimsum", null), 0));
+    assertFalse(QueryResultCache.isCacheable(
+        getQuery(1356998400, 1357005600, "zimsum", "10mc-sum"), 0));
+    assertFalse(QueryResultCache.isCacheable(
+        getQuery(1356998400, 1357005600, "zimsum", "0all-sum"), 0));
+
+    final TSQuery rate = getQuery(1356998400, 1357005600, "zimsum", "10m-sum");
+    rate.getQueries().get(0).setRate(true);
+    assertFalse(QueryResultCache.isCacheable(rate, 0));
+  }
+
+  @Test
+  public void miss() throws Exception {
+    final TSQuery data_query =
+        getQuery(1356998400, 1357005600, "zimsum", "10m-sum");
+    final DataPoints[] results = run(data_query);
+    assertEquals(1, cache.size());
+    assertSameResults(data_query, results);
+  }
+
+  @Test
+  public void hitScansTheTail() throws Exception {
+    run(getQuery(1356998400, 1357005600, "zimsum", "10m-sum"));
+
+    // slide the window by 10 minutes and a bit
+    final TSQuery data_query =
+        getQuery(1356999030, 1357006230, "zimsum", "10m-sum");
+    final Query[] queries = data_query.buildQueries(tsdb);
+    final DataPoints[] results = cache.runAsync(data_query, 0, queries[0])
+        .joinUninterruptibly();
+    assertEquals(1357005600000L, queries[0].getStartTime());
+    assertEquals(1, cache.size());
+    assertSameResults(data_query, results);
+  }
+
+  @Test
+  public void hitGroupBy() throws Exception {
+    final TSQuery first = getQuery(1356998400, 1357005600, "zimsum", "10m-sum");
+    groupByHost(first);
+    run(first);
+
+    final TSQuery data_query =
+        getQuery(1357000200, 1357007400, "zimsum", "10m-sum");
+    groupByHost(data_query);
+    final DataPoints[] results = run(data_query);
+    assertEquals(2, results.length);
+    assertSameResults(data_query, results);
+  }
+
+  @Test
+  public void hitFilled() throws Exception {
+    run(getQuery(1356998400, 1357005600, "sum", "10m-sum-zero"));
+
+    final TSQuery data_query =
+        getQuery(1357000200, 1357009200, "sum", "10m-sum-zero");
+    assertSameResults(data_query, run(data_query));
+  }
+
+  @Test
+  public void startBeforeCachedRange() throws Exception {
+    run(getQuery(1357000200, 1357005600, "zimsum", "10m-sum"));
+
+    final TSQuery data_query =
+        getQuery(1356998400, 1357007400, "zimsum", "10m-sum");
+    assertSameResults(data_query, run(data_query));
+  }
+
+  @Test
+  public void endWithinCachedRange() throws Exception {
+    run(getQuery(1356998400, 1357007400, "zimsum", "10m-sum"));
+
+    final TSQuery data_query =
+        getQuery(1356998400, 1357003800, "zimsum", "10m-sum");
+    assertSameResults(data_query, run(data_query));
+  }
+
+  @Test
+  public void notCacheable() throws Exception {
+    final TSQuery data_query =
+        getQuery(1356998400, 1357005600, "sum", "10m-sum");
+    assertSameResults(data_query, run(data_query));
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void evicted() throws Exception {
+    config.overrideConfig("tsd.query.cache.max_bytes", "1");
+    cache = new QueryResultCache(tsdb);
+    final TSQuery data_query =
+        getQuery(1356998400, 1357005600, "zimsum", "10m-sum");
+    assertSameResults(data_query, run(data_query));
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void gracePeriodNotCached() throws Exception {
+    PowerMockito.spy(DateTime.class);
+    PowerMockito.when(DateTime.currentTimeMillis()).thenReturn(1357005660000L);
+    run(getQuery(1356998400, 1357005600, "zimsum", "10m-sum"));
+
+    // a late point in the last bucket, that ended a minute ago
+    tsdb.addPoint(METRIC_STRING, 1357005015, 1000, tags).joinUninterruptibly();
+    final TSQuery data_query =
+        getQuery(1356998400, 1357005600, "zimsum", "10m-sum");
+    final Query[] queries = data_query.buildQueries(tsdb);
+    final DataPoints[] results = cache.runAsync(data_query, 0, queries[0])
+        .joinUninterruptibly();
+    // the last interval wasn't cached, it's scanned again
+    assertEquals(1357005000000L, queries[0].getStartTime());
+    assertSameResults(data_query, results);
+  }
+
+  @Test
+  public void gracePeriodConfigured() throws Exception {
+    PowerMockito.spy(DateTime.class);
+    PowerMockito.when(DateTime.currentTimeMillis()).thenReturn(1357005660000L);
+    config.overrideConfig("tsd.query.cache.grace_period", "1800000");
+    cache = new QueryResultCache(tsdb);
+    run(getQuery(1356998400, 1357005600, "zimsum", "10m-sum"));
+
+    final TSQuery data_query =
+        getQuery(1356998400, 1357005600, "zimsum", "10m-sum");
+    final Query[] queries = data_query.buildQueries(tsdb);
+    assertSameResults(data_query, cache.runAsync(data_query, 0, queries[0])
+        .joinUninterruptibly());
+    assertEquals(1357003800000L, queries[0].getStartTime());
+  }
+
+  @Test
+  public void hitDropsEmptySeries() throws Exception {
+    // web02 only has data in the first hour
+    storage.flushRow(MockBase.stringToBytes("00000150E23510000001000002"));
+    storage.flushRow(MockBase.stringToBytes("00000150E24320000001000002"));
+    final TSQuery first = getQuery(1356998400, 1357005600, "zimsum", "10m-sum");
+    groupByHost(first);
+    assertEquals(2, run(first).length);
+
+    final TSQuery data_query =
+        getQuery(1357002600, 1357007400, "zimsum", "10m-sum");
+    groupByHost(data_query);
+    final DataPoints[] results = run(data_query);
+    assertEquals(1, results.length);
+    assertEquals(TAGV_STRING, results[0].getTags().get(TAGK_STRING));
+    assertSameResults(data_query, results);
+  }
+
+  @Test
+  public void invalidateAll() throws Exception {
+    run(getQuery(1356998400, 1357005600, "zimsum", "10m-sum"));
+    assertEquals(1, cache.size());
+    cache.invalidateAll();
+    assertEquals(0, cache.size());
+  }
+
+  /** @return a validated query on the metric for the given range */
+  private static TSQuery getQuery(final long start, final long end,
+      final String aggregator, final String downsample) {
+    final TSSubQuery sub = new TSSubQuery();
+    sub.setMetric(METRIC_STRING);
+    sub.setAggregator(aggregator);
+    sub.setDownsample(downsample);
+    final TSQuery data_query = new TSQuery();
+    data_query.setStart(Long.toString(start));
+    data_query.setEnd(Long.toString(end));
+    data_query.setQueries(new ArrayList<TSSubQuery>(Arrays.asList(sub)));
+    data_query.validateAndSetQuery();
+    return data_query;
+  }
+
+  /** Groups the results of the query by host */
+  private static void groupByHost(final TSQuery data_query) {
+    final TSSubQuery sub = data_query.getQueries().get(0);
+    sub.setFilters(new ArrayList<TagVFilter>(Arrays.asList(
+        TagVFilter.Builder().setType("wildcard").setTagk(TAGK_STRING)
+          .setFilter("*").setGroupBy(true).build())));
+    data_query.validateAndSetQuery();
+  }
+
+  /** @return the results of the first sub query run through the cache */
+  private DataPoints[] run(final TSQuery data_query) throws Exception {
+    final Query[] queries = data_query.buildQueries(tsdb);
+    return cache.runAsync(data_query, 0, queries[0]).joinUninterruptibly();
+  }
+
+  /**
+   * Compares the results of a query with the same query run without the cache
+   * within the range a serializer would write.
+   */
+  private void assertSameResults(final TSQuery data_query,
+      final DataPoints[] results) throws Exception {
+    final DataPoints[] expected = data_query.buildQueries(tsdb)[0].run();
+    assertEquals(expected.length, results.length);
+    for (int i = 0; i < expected.length; i++) {
+      assertEquals(expected[i].getTags(), results[i].getTags());
+      assertEquals(expected[i].getAggregatedTags(),
+          results[i].getAggregatedTags());
+      assertEquals(0, results[i].getQueryIndex());
+      final List<String> dps = toList(data_query, expected[i]);
+      assertFalse(dps.isEmpty());
+      assertEquals(dps, toList(data_query, results[i]));
+    }
+  }
+
+  /** @return the data points of a series within the range of the query */
+  private static List<String> toList(final TSQuery data_query,
+      final DataPoints dps) {
+    final List<String> list = new ArrayList<String>();
+    final SeekableView it = dps.iterator();
+    while (it.hasNext()) {
+      final DataPoint dp = it.next();
+      if (dp.timestamp() >= data_query.startTime() &&
+          dp.timestamp() <= data_query.endTime()) {
+        list.add(dp.timestamp() + "=" + dp.toDouble());
+      }
+    }
+    return list;
+  }
+}
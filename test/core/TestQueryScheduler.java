@@ -0,0 +1,241 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.opentsdb.stats.QueryStats;
+import net.opentsdb.stats.QueryStats.QueryStat;
+
+import org.hbase.async.Scanner;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ Scanner.class })
+public class TestQueryScheduler extends BaseTsdbTest {
+
+  /** The tickets of the queued queries, by name, once they run */
+  private final Map<String, QueryScheduler.Ticket> tickets =
+      new HashMap<String, QueryScheduler.Ticket>();
+
+  @Before
+  public void beforeLocal() throws Exception {
+    config.overrideConfig("tsd.query.scheduler.classes",
+        "default:4, dashboard:8, adhoc:1");
+    config.overrideConfig("tsd.query.scheduler.expensive_class", "adhoc");
+    config.overrideConfig("tsd.query.scheduler.expensive_rows", "100");
+    config.overrideConfig("tsd.query.scheduler.user_classes",
+        "grafana:dashboard");
+  }
+
+  @Test
+  public void classifyDefault() throws Exception {
+    final QueryScheduler scheduler = new QueryScheduler(tsdb);
+    assertEquals("default", scheduler.classify(null, null, 0));
+    assertEquals("default", scheduler.classify(null, "bob", 100));
+  }
+
+  @Test
+  public void classifyHeader() throws Exception {
+    final QueryScheduler scheduler = new QueryScheduler(tsdb);
+    assertEquals("dashboard", scheduler.classify(
+        headers("x-opentsdb-query-class", "dashboard"), null, 0));
+    // unknown classes fall back
+    assertEquals("default", scheduler.classify(
+        headers("X-OpenTSDB-Query-Class", "nosuchclass"), null, 0));
+  }
+
+  @Test
+  public void classifyUser() throws Exception {
+    final QueryScheduler scheduler = new QueryScheduler(tsdb);
+    assertEquals("dashboard", scheduler.classify(null, "grafana", 0));
+    // the header wins over the user
+    assertEquals("default", scheduler.classify(
+        headers("X-OpenTSDB-Query-Class", "default"), "grafana", 0));
+  }
+
+  @Test
+  public void classifyExpensive() throws Exception {
+    final QueryScheduler scheduler = new QueryScheduler(tsdb);
+    assertEquals("adhoc", scheduler.classify(
+        headers("X-OpenTSDB-Query-Class", "dashboard"), "grafana", 101));
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorZeroConcurrency() throws Exception {
+    config.overrideConfig("tsd.query.scheduler.classes", "default:0");
+    new QueryScheduler(tsdb);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorBadConcurrency() throws Exception {
+    config.overrideConfig("tsd.query.scheduler.classes", "default:lots");
+    new QueryScheduler(tsdb);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorUnknownDefaultClass() throws Exception {
+    config.overrideConfig("tsd.query.scheduler.default_class", "nosuchclass");
+    new QueryScheduler(tsdb);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorUnknownUserClass() throws Exception {
+    config.overrideConfig("tsd.query.scheduler.user_classes",
+        "grafana:nosuchclass");
+    new QueryScheduler(tsdb);
+  }
+
+  @Test
+  public void acquireFairQueuing() throws Exception {
+    final QueryScheduler scheduler = new QueryScheduler(tsdb);
+    final List<String> ran = new ArrayList<String>();
+    final QueryScheduler.Ticket first =
+        scheduler.acquire("adhoc", "alice", null).joinUninterruptibly();
+    acquire(scheduler, "alice", "alice-2", ran);
+    acquire(scheduler, "alice", "alice-3", ran);
+    acquire(scheduler, "bob", "bob-1", ran);
+    assertEquals(1, scheduler.running("adhoc"));
+    assertEquals(3, scheduler.waiting("adhoc"));
+    assertTrue(ran.isEmpty());
+
+    // other classes aren't affected
+    scheduler.acquire("default", "alice", null).joinUninterruptibly()
+        .release();
+
+    first.release();
+    assertEquals(Arrays.asList("alice-2"), ran);
+    ran.clear();
+    release("alice-2");
+    assertEquals(Arrays.asList("bob-1"), ran);
+    ran.clear();
+    release("bob-1");
+    assertEquals(Arrays.asList("alice-3"), ran);
+    release("alice-3");
+    assertEquals(0, scheduler.running("adhoc"));
+    assertEquals(0, scheduler.waiting("adhoc"));
+  }
+
+  @Test
+  public void releaseTwice() throws Exception {
+    final QueryScheduler scheduler = new QueryScheduler(tsdb);
+    final QueryScheduler.Ticket ticket =
+        scheduler.acquire("default", "alice", null).joinUninterruptibly();
+    scheduler.acquire("default", "alice", null).joinUninterruptibly();
+    assertEquals(2, scheduler.running("default"));
+    ticket.release();
+    ticket.release();
+    assertEquals(1, scheduler.running("default"));
+  }
+
+  @Test
+  public void scheduleRecordsStats() throws Exception {
+    final QueryScheduler scheduler = new QueryScheduler(tsdb);
+    final QueryStats stats = mock(QueryStats.class);
+    final TSQuery data_query = new TSQuery();
+    data_query.setQueryStats(stats);
+
+    final QueryScheduler.Ticket ticket = scheduler.schedule(data_query,
+        new Query[0], "/127.0.0.1:4242",
+        headers("X-OpenTSDB-User", "grafana")).joinUninterruptibly();
+    assertEquals("dashboard", ticket.queryClass());
+    assertEquals(1, scheduler.running("dashboard"));
+    verify(stats).setUser("grafana");
+    verify(stats).addStat(eq(QueryStat.QUEUE_TIME), anyLong());
+    ticket.release();
+    assertEquals(0, scheduler.running("dashboard"));
+  }
+
+  @Test (timeout = 10000)
+  public void scheduleCancelledWhileQueued() throws Exception {
+    final QueryScheduler scheduler = new QueryScheduler(tsdb);
+    final List<String> ran = new ArrayList<String>();
+    final QueryScheduler.Ticket first =
+        scheduler.acquire("adhoc", "alice", null).joinUninterruptibly();
+    final TSQuery data_query = new TSQuery();
+    final Deferred<QueryScheduler.Ticket> cancelled =
+        scheduler.schedule(data_query, new Query[0], "/127.0.0.1:4242",
+            headers("X-OpenTSDB-Query-Class", "adhoc"));
+    acquire(scheduler, "bob", "bob-1", ran);
+    assertEquals(2, scheduler.waiting("adhoc"));
+
+    data_query.getCancellation().cancel(CancellationToken.Reason.TIMEOUT);
+    assertEquals(1, scheduler.waiting("adhoc"));
+    try {
+      cancelled.joinUninterruptibly();
+      fail("Expected a QueryException");
+    } catch (QueryException e) {
+      assertEquals(HttpResponseStatus.REQUEST_TIMEOUT, e.getStatus());
+    }
+
+    // the slot goes to the next query still waiting
+    first.release();
+    assertEquals(Arrays.asList("bob-1"), ran);
+    release("bob-1");
+    assertEquals(0, scheduler.running("adhoc"));
+    assertEquals(0, scheduler.waiting("adhoc"));
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void acquireUnknownClass() throws Exception {
+    new QueryScheduler(tsdb).acquire("nosuchclass", "alice", null);
+  }
+
+  /** Queues an adhoc query that appends its name to the list once it runs */
+  private void acquire(final QueryScheduler scheduler, final String tenant,
+      final String name, final List<String> ran) {
+    final Deferred<QueryScheduler.Ticket> deferred =
+        scheduler.acquire("adhoc", tenant, null);
+    deferred.addCallback(new Callback<Object, QueryScheduler.Ticket>() {
+      @Override
+      public Object call(final QueryScheduler.Ticket ticket) {
+        tickets.put(name, ticket);
+        ran.add(name);
+        return null;
+      }
+    });
+  }
+
+  /** Releases the ticket of a queued query that ran */
+  private void release(final String name) {
+    tickets.get(name).release();
+  }
+
+  /** @return a map with a single header */
+  private static Map<String, String> headers(final String name,
+      final String value) {
+    final Map<String, String> headers = new HashMap<String, String>(1);
+    headers.put(name, value);
+    return headers;
+  }
+}
@@ -0,0 +1,130 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class TestRowKeyCache {
+  private static final byte[] TEMPLATE =
+      new byte[] { 0, 0, 1, 0, 0, 0, 0, 0, 0, 1, 0, 0, 1 };
+  private static final Map<String, String> TAGS = 
+      Collections.singletonMap("host", "web01");
+  private static final RowKeyCache.Key KEY = 
+      RowKeyCache.cacheKey("sys.cpu.user", TAGS);
+
+  @Test
+  public void ctor() throws Exception {
+    final RowKeyCache cache = new RowKeyCache(10);
+    assertEquals(0, cache.size());
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorZeroEntries() throws Exception {
+    new RowKeyCache(0);
+  }
+
+  @Test
+  public void cacheKeyTagOrder() throws Exception {
+    final Map<String, String> tags = new LinkedHashMap<String, String>(2);
+    tags.put("host", "web01");
+    tags.put("dc", "lga");
+    final Map<String, String> reversed = new LinkedHashMap<String, String>(2);
+    reversed.put("dc", "lga");
+    reversed.put("host", "web01");
+    assertEquals(RowKeyCache.cacheKey("sys.cpu.user", tags),
+        RowKeyCache.cacheKey("sys.cpu.user", reversed));
+  }
+
+  @Test
+  public void cacheKeyDifferentSeries() throws Exception {
+    final Map<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    final Map<String, String> other = new HashMap<String, String>(1);
+    other.put("host", "web02");
+    assertFalse(RowKeyCache.cacheKey("sys.cpu.user", tags).equals(
+        RowKeyCache.cacheKey("sys.cpu.user", other)));
+    assertFalse(RowKeyCache.cacheKey("sys.cpu.user", tags).equals(
+        RowKeyCache.cacheKey("sys.cpu.system", tags)));
+
+    // make sure concatenating names doesn't lead to collisions
+    final Map<String, String> split = new HashMap<String, String>(1);
+    split.put("hos", "tweb01");
+    assertFalse(RowKeyCache.cacheKey("sys.cpu.user", tags).equals(
+        RowKeyCache.cacheKey("sys.cpu.user", split)));
+  }
+
+  @Test
+  public void putAndGet() throws Exception {
+    final RowKeyCache cache = new RowKeyCache(10);
+    final byte[] row = TEMPLATE.clone();
+    cache.put(KEY, row);
+    // modifying the caller's array must not change the cache
+    row[2] = 42;
+
+    final RowKeyCache.Entry entry = cache.get(KEY);
+    assertNotNull(entry);
+    final byte[] copy = entry.newRowKey();
+    assertArrayEquals(TEMPLATE, copy);
+    assertNotSame(copy, entry.newRowKey());
+    assertArrayEquals(new byte[] { 0, 0, 1, 0, 0, 1, 0, 0, 1 }, entry.tsuid());
+    assertEquals(1, cache.stats().hitCount());
+  }
+
+  @Test
+  public void putCopiesTags() throws Exception {
+    final RowKeyCache cache = new RowKeyCache(10);
+    final Map<String, String> tags = new HashMap<String, String>(TAGS);
+    cache.put(RowKeyCache.cacheKey("sys.cpu.user", tags).copy(), TEMPLATE);
+    // the caller may reuse its map for another series
+    tags.put("host", "web02");
+    assertNotNull(cache.get(KEY));
+    assertNull(cache.get(RowKeyCache.cacheKey("sys.cpu.user", tags)));
+  }
+
+  @Test
+  public void getMiss() throws Exception {
+    final RowKeyCache cache = new RowKeyCache(10);
+    assertNull(cache.get(KEY));
+    assertEquals(1, cache.stats().missCount());
+  }
+
+  @Test
+  public void eviction() throws Exception {
+    final RowKeyCache cache = new RowKeyCache(1);
+    cache.put(KEY, TEMPLATE);
+    cache.put(RowKeyCache.cacheKey("sys.cpu.system", TAGS), TEMPLATE);
+    assertEquals(1, cache.size());
+    assertEquals(1, cache.stats().evictionCount());
+  }
+
+  @Test
+  public void invalidateAll() throws Exception {
+    final RowKeyCache cache = new RowKeyCache(10);
+    cache.put(KEY, TEMPLATE);
+    cache.invalidateAll();
+    assertEquals(0, cache.size());
+    assertNull(cache.get(KEY));
+  }
+}
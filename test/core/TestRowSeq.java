@@ -87,6 +87,53 @@ public final class TestRowSeq {
     assertEquals(2, rs.size());
   }
   
+  @Test
+  public void setRowCompressed() throws Exception {
+    final byte[] qual1 = { 0x00, 0x07 };
+    final byte[] val1 = Bytes.fromLong(4L);
+    final byte[] qual2 = { 0x00, 0x27 };
+    final byte[] val2 = Bytes.fromLong(5L);
+    final byte[] qual12 = MockBase.concatByteArrays(qual1, qual2);
+    final KeyValue kv = makekv(KEY, 
+        CompressedDataPoints.COMPRESSED_COLUMN_QUALIFIER, 
+        CompressedDataPoints.encode(qual12, 
+            MockBase.concatByteArrays(val1, val2, ZERO)));
+    
+    final RowSeq rs = new RowSeq(tsdb);
+    rs.setRow(kv);
+    assertEquals(2, rs.size());
+    assertEquals(1356998400000L, rs.timestamp(0));
+    assertEquals(4, rs.longValue(0));
+    assertEquals(1356998402000L, rs.timestamp(1));
+    assertEquals(5, rs.longValue(1));
+  }
+  
+  @Test
+  public void addRowCompressed() throws Exception {
+    final byte[] qual1 = { 0x00, 0x07 };
+    final byte[] val1 = Bytes.fromLong(4L);
+    final byte[] qual2 = { 0x00, 0x27 };
+    final byte[] val2 = Bytes.fromLong(5L);
+    final byte[] qual12 = MockBase.concatByteArrays(qual1, qual2);
+    final RowSeq rs = new RowSeq(tsdb);
+    rs.setRow(makekv(KEY, qual12, MockBase.concatByteArrays(val1, val2, ZERO)));
+    
+    final byte[] qual3 = { 0x00, 0x37 };
+    final byte[] val3 = Bytes.fromLong(6L);
+    final byte[] qual4 = { 0x00, 0x47 };
+    final byte[] val4 = Bytes.fromLong(7L);
+    final byte[] qual34 = MockBase.concatByteArrays(qual3, qual4);
+    rs.addRow(makekv(KEY, CompressedDataPoints.COMPRESSED_COLUMN_QUALIFIER, 
+        CompressedDataPoints.encode(qual34, 
+            MockBase.concatByteArrays(val3, val4, ZERO))));
+    
+    assertEquals(4, rs.size());
+    assertEquals(1356998403000L, rs.timestamp(2));
+    assertEquals(6, rs.longValue(2));
+    assertEquals(1356998404000L, rs.timestamp(3));
+    assertEquals(7, rs.longValue(3));
+  }
+  
   @Test
   public void setRowSalted() throws Exception {
     setupSalt();
@@ -17,6 +17,8 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.atLeast;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
@@ -31,6 +33,8 @@ import java.util.List;
 import java.util.TreeMap;
 
 import net.opentsdb.query.filter.TagVFilter;
+import net.opentsdb.stats.QueryStats;
+import net.opentsdb.stats.QueryStats.QueryStat;
 import net.opentsdb.uid.UniqueId;
 
 import org.hbase.async.KeyValue;
@@ -185,6 +189,60 @@ public class TestSaltScanner extends BaseTsdbTest {
     verify(tag_values, never()).getNameAsync(TAGV_B_BYTES);
   }
   
+  @Test
+  public void scanDownsampled() throws Exception {
+    setupMockScanners(false);
+    final SaltScanner scanner = new SaltScanner(tsdb, METRIC_BYTES, scanners,
+        spans, filters, false, null, 0, new DownsamplingSpecification("1h-sum"));
+    assertTrue(spans == scanner.scan().joinUninterruptibly());
+    assertEquals(3, spans.size());
+
+    // the rows of A and C are spread over both buckets and merged
+    Span span = spans.get(KEY_A);
+    assertTrue(span.isDownsampled());
+    assertEquals(1, span.size());
+    assertEquals(1356998400000L, span.timestamp(0));
+    assertEquals(VALUE_LONG * 2, span.doubleValue(0), 0.0001);
+    assertEquals(1, span.getAnnotations().size());
+
+    span = spans.get(KEY_B);
+    assertEquals(1, span.size());
+    assertEquals(1356998400000L, span.timestamp(0));
+    assertEquals(VALUE_LONG, span.doubleValue(0), 0.0001);
+    assertEquals(0, span.getAnnotations().size());
+    
+    span = spans.get(KEY_C);
+    assertEquals(1, span.size());
+    assertEquals(1359680400000L, span.timestamp(0));
+    assertEquals(VALUE_LONG * 2, span.doubleValue(0), 0.0001);
+    assertEquals(0, span.getAnnotations().size());
+  }
+
+  @Test
+  public void scanQueryStats() throws Exception {
+    setupMockScanners(false);
+    final QueryStats query_stats = mock(QueryStats.class);
+    final SaltScanner scanner = new SaltScanner(tsdb, METRIC_BYTES, scanners,
+        spans, filters, false, query_stats, 0);
+    assertTrue(spans == scanner.scan().joinUninterruptibly());
+    assertEquals(3, spans.size());
+    assertEquals(2, spans.get(KEY_A).size());
+    
+    // each scanner merges its own spans as it completes
+    verify(query_stats).addScannerStat(eq(0), eq(0), 
+        eq(QueryStat.SPAN_MERGE_TIME), anyLong());
+    verify(query_stats).addScannerStat(eq(0), eq(1), 
+        eq(QueryStat.SPAN_MERGE_TIME), anyLong());
+    verify(query_stats).addStat(eq(0), eq(QueryStat.SCANNER_MERGE_TIME), 
+        anyLong());
+  }
+  
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorDownsamplerNotSupported() {
+    new SaltScanner(tsdb, METRIC_BYTES, scanners, spans, filters, false, null,
+        0, new DownsamplingSpecification("1h-dev"));
+  }
+
   @Test
   public void scanWithFilter() throws Exception {
     setupMockScanners(false);
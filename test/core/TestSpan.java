@@ -19,6 +19,7 @@ import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.when;
 import static org.powermock.api.mockito.PowerMockito.mock;
 
+import java.util.Arrays;
 import java.util.List;
 
 import net.opentsdb.storage.MockBase;
@@ -384,6 +385,223 @@ public final class TestSpan {
     assertEquals(1357007000000L, timestamps_in_millis.get(4).longValue());
   }
 
+  @Test
+  public void decode() throws Exception {
+    final byte[] qual1 = { 0x00, 0x07 };
+    final byte[] val1 = Bytes.fromLong(4L);
+    final byte[] qual2 = { 0x00, 0x2B };
+    final byte[] val2 = Bytes.fromInt(Float.floatToRawIntBits(5.5F));
+    final byte[] qual12 = MockBase.concatByteArrays(qual1, qual2);
+    
+    final Span span = new Span(tsdb);
+    // out of order to make sure we sort before decoding
+    span.addRow(new KeyValue(HOUR2, FAMILY, qual12, 
+        MockBase.concatByteArrays(val1, val2, ZERO)));
+    span.addRow(new KeyValue(HOUR1, FAMILY, qual12, 
+        MockBase.concatByteArrays(val1, val2, ZERO)));
+    span.decode();
+    
+    assertTrue(span.isDecoded());
+    assertEquals(4, span.size());
+    assertEquals(1356998400000L, span.timestamp(0));
+    assertTrue(span.isInteger(0));
+    assertEquals(4, span.longValue(0));
+    assertEquals(1356998402000L, span.timestamp(1));
+    assertFalse(span.isInteger(1));
+    assertEquals(5.5, span.doubleValue(1), 0.0001);
+    assertEquals(1357002000000L, span.timestamp(2));
+    assertEquals(1357002002000L, span.timestamp(3));
+    // only the first row is kept for the key
+    final List<RowSeq> rows = Whitebox.getInternalState(span, "rows");
+    assertEquals(1, rows.size());
+    assertArrayEquals(HOUR1, rows.get(0).key);
+    
+    final SeekableView it = span.iterator();
+    it.seek(1357002000000L);
+    DataPoint dp = it.next();
+    assertEquals(1357002000000L, dp.timestamp());
+    assertEquals(4, dp.longValue());
+    dp = it.next();
+    assertEquals(1357002002000L, dp.timestamp());
+    assertEquals(5.5, dp.doubleValue(), 0.0001);
+    assertFalse(it.hasNext());
+  }
+  
+  @Test
+  public void decodeEmpty() throws Exception {
+    final Span span = new Span(tsdb);
+    span.decode();
+    assertFalse(span.isDecoded());
+    assertEquals(0, span.size());
+  }
+  
+  @Test (expected = IllegalStateException.class)
+  public void decodeThenAddRow() throws Exception {
+    final byte[] qual1 = { 0x00, 0x07 };
+    final byte[] val1 = Bytes.fromLong(4L);
+    
+    final Span span = new Span(tsdb);
+    span.addRow(new KeyValue(HOUR1, FAMILY, qual1, val1));
+    span.decode();
+    span.addRow(new KeyValue(HOUR2, FAMILY, qual1, val1));
+  }
+  
+  @Test
+  public void decodeDownsampler() throws Exception {
+    final byte[] val40 = Bytes.fromLong(40L);
+    final byte[] val50 = Bytes.fromLong(50L);
+    final byte[] qual0 = { 0x00, 0x07 };
+    final byte[] qual5 = { 0x00, 0x57 };
+    final byte[] qual2000 = { 0x7D, 0x07 };
+    final byte[] qual02000 = MockBase.concatByteArrays(qual0, qual2000);
+    final byte[] qual05 = MockBase.concatByteArrays(qual0, qual5);
+
+    final Span span = new Span(tsdb);
+    span.addRow(new KeyValue(HOUR1, FAMILY, qual02000,
+        MockBase.concatByteArrays(val40, val50, ZERO)));
+    span.addRow(new KeyValue(HOUR2, FAMILY, qual05,
+        MockBase.concatByteArrays(val40, val50, ZERO)));
+    span.addRow(new KeyValue(HOUR3, FAMILY, qual02000,
+        MockBase.concatByteArrays(val40, val50, ZERO)));
+    span.decode();
+
+    final SeekableView it = span.downsampler(1356998000L, 1357007000L, 
+        1000000, Aggregators.get("avg"), FillPolicy.NONE);
+    List<Double> values = Lists.newArrayList();
+    while (it.hasNext()) {
+      values.add(it.next().doubleValue());
+    }
+    assertEquals(5, values.size());
+    assertEquals(40, values.get(0).longValue());
+    assertEquals(50, values.get(1).longValue());
+    assertEquals(45, values.get(2).longValue());
+    assertEquals(40, values.get(3).longValue());
+    assertEquals(50, values.get(4).longValue());
+  }
+
+  @Test
+  public void merge() throws Exception {
+    final byte[] qual1 = { 0x00, 0x07 };
+    final byte[] val1 = Bytes.fromLong(4L);
+    final byte[] qual2 = { 0x00, 0x27 };
+    final byte[] val2 = Bytes.fromLong(5L);
+
+    final Span span = new Span(tsdb);
+    span.addRow(new KeyValue(HOUR1, FAMILY, qual1, val1));
+    span.addRow(new KeyValue(HOUR3, FAMILY, qual1, val1));
+    final Span other = new Span(tsdb);
+    other.addRow(new KeyValue(HOUR1, FAMILY, qual2, val2));
+    other.addRow(new KeyValue(HOUR2, FAMILY, qual2, val2));
+    span.merge(other);
+
+    // the rows of the first hour are merged, the second hour is sorted in
+    final List<RowSeq> rows = Whitebox.getInternalState(span, "rows");
+    assertEquals(3, rows.size());
+    assertEquals(4, span.size());
+    assertEquals(1356998400000L, span.timestamp(0));
+    assertEquals(4, span.longValue(0));
+    assertEquals(1356998402000L, span.timestamp(1));
+    assertEquals(5, span.longValue(1));
+    assertEquals(1357002002000L, span.timestamp(2));
+    assertEquals(5, span.longValue(2));
+    assertEquals(1357005600000L, span.timestamp(3));
+    assertEquals(4, span.longValue(3));
+  }
+
+  @Test (expected = IllegalStateException.class)
+  public void mergeDownsampledIntoRaw() throws Exception {
+    new Span(tsdb).merge(
+        new Span(tsdb, new DownsamplingSpecification("1h-sum")));
+  }
+
+  @Test
+  public void downsampledAddRow() throws Exception {
+    final byte[] qual1 = { 0x00, 0x07 };
+    final byte[] val1 = Bytes.fromLong(4L);
+    final byte[] qual2 = { 0x00, 0x2B };
+    final byte[] val2 = Bytes.fromInt(Float.floatToRawIntBits(5.5F));
+    final byte[] qual12 = MockBase.concatByteArrays(qual1, qual2);
+
+    final Span span = new Span(tsdb, new DownsamplingSpecification("1h-sum"));
+    span.addRow(new KeyValue(HOUR1, FAMILY, qual12,
+        MockBase.concatByteArrays(val1, val2, ZERO)));
+    span.addRow(new KeyValue(HOUR2, FAMILY, qual1, val1));
+    span.decode();
+
+    assertTrue(span.isDownsampled());
+    assertFalse(span.isDecoded());
+    assertEquals(2, span.size());
+    assertEquals(1356998400000L, span.timestamp(0));
+    assertFalse(span.isInteger(0));
+    assertEquals(9.5, span.doubleValue(0), 0.0001);
+    assertEquals(1357002000000L, span.timestamp(1));
+    assertEquals(4, span.doubleValue(1), 0.0001);
+    // only the first row is kept for the key
+    final List<RowSeq> rows = Whitebox.getInternalState(span, "rows");
+    assertEquals(1, rows.size());
+    assertArrayEquals(HOUR1, rows.get(0).key);
+    assertArrayEquals(new byte[] { 0, 0, 1 }, span.metricUID());
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void downsampledAddRowDifferentSeries() throws Exception {
+    final byte[] qual1 = { 0x00, 0x07 };
+    final byte[] val1 = Bytes.fromLong(4L);
+    final byte[] key = Arrays.copyOf(HOUR2, HOUR2.length);
+    key[key.length - 1] = 3;
+
+    final Span span = new Span(tsdb, new DownsamplingSpecification("1h-sum"));
+    span.addRow(new KeyValue(HOUR1, FAMILY, qual1, val1));
+    span.addRow(new KeyValue(key, FAMILY, qual1, val1));
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void downsampledNotSupported() throws Exception {
+    new Span(tsdb, new DownsamplingSpecification("1h-dev"));
+  }
+
+  @Test
+  public void downsampledDownsampler() throws Exception {
+    final byte[] val40 = Bytes.fromLong(40L);
+    final byte[] val50 = Bytes.fromLong(50L);
+    final byte[] qual0 = { 0x00, 0x07 };
+    final byte[] qual5 = { 0x00, 0x57 };
+    final byte[] qual2000 = { 0x7D, 0x07 };
+    final byte[] qual02000 = MockBase.concatByteArrays(qual0, qual2000);
+    final byte[] qual05 = MockBase.concatByteArrays(qual0, qual5);
+
+    for (final String spec : new String[] { "1000s-avg", "1000s-count-zero" }) {
+      final DownsamplingSpecification downsampler =
+          new DownsamplingSpecification(spec);
+      final Span raw = new Span(tsdb);
+      final Span span = new Span(tsdb, downsampler);
+      for (final Span s : new Span[] { raw, span }) {
+        s.addRow(new KeyValue(HOUR1, FAMILY, qual02000,
+            MockBase.concatByteArrays(val40, val50, ZERO)));
+        s.addRow(new KeyValue(HOUR2, FAMILY, qual05,
+            MockBase.concatByteArrays(val40, val50, ZERO)));
+        s.addRow(new KeyValue(HOUR3, FAMILY, qual02000,
+            MockBase.concatByteArrays(val40, val50, ZERO)));
+      }
+
+      final SeekableView expected = raw.downsampler(1356998000000L,
+          1357007000000L, downsampler, 1356998000000L, 1357007000000L);
+      final SeekableView it = span.downsampler(1356998000000L,
+          1357007000000L, downsampler, 1356998000000L, 1357007000000L);
+      int count = 0;
+      while (expected.hasNext()) {
+        assertTrue(it.hasNext());
+        final DataPoint expected_dp = expected.next();
+        final DataPoint dp = it.next();
+        assertEquals(spec, expected_dp.timestamp(), dp.timestamp());
+        assertEquals(spec, expected_dp.toDouble(), dp.toDouble(), 0.0001);
+        count++;
+      }
+      assertFalse(it.hasNext());
+      assertTrue(count >= 5);
+    }
+  }
+
   @Test
   public void lastTimestampInRow() throws Exception {
     final byte[] qual1 = { 0x00, 0x07 };
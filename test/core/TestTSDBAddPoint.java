@@ -14,13 +14,16 @@ package net.opentsdb.core;
 
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyMapOf;
 import static org.mockito.Matchers.anyShort;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.fail;
+import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -191,7 +194,63 @@ public class TestTSDBAddPoint extends BaseTsdbTest {
   public void addPointNoAutoMetric() throws Exception {
     tsdb.addPoint(NSUN_METRIC, 1356998400, 42, tags).joinUninterruptibly();
   }
+  
+  @Test
+  public void addPointUidResolvedAsync() throws Exception {
+    final Deferred<byte[]> metric_uid = new Deferred<byte[]>();
+    doReturn(metric_uid).when(metrics).getOrCreateIdAsync(eq(METRIC_STRING), 
+        anyString(), anyMapOf(String.class, String.class));
+    
+    final Deferred<Object> deferred = 
+        tsdb.addPoint(METRIC_STRING, 1356998400, 42, tags);
+    final byte[] row = new byte[] { 0, 0, 1, 0x50, (byte) 0xE2, 0x27, 0, 
+        0, 0, 1, 0, 0, 1};
+    assertNull(storage.getColumn(row, new byte[] { 0, 0 }));
+    
+    metric_uid.callback(METRIC_BYTES);
+    deferred.joinUninterruptibly();
+    final byte[] value = storage.getColumn(row, new byte[] { 0, 0 });
+    assertNotNull(value);
+    assertEquals(42, value[0]);
+  }
 
+  @Test
+  public void addPointRowKeyCache() throws Exception {
+    final RowKeyCache cache = new RowKeyCache(10);
+    Whitebox.setInternalState(tsdb, "row_key_cache", cache);
+    
+    tsdb.addPoint(METRIC_STRING, 1356998400, 42, tags).joinUninterruptibly();
+    tsdb.addPoint(METRIC_STRING, 1357002000, 24, tags).joinUninterruptibly();
+    
+    byte[] row = new byte[] { 0, 0, 1, 0x50, (byte) 0xE2, 0x27, 0, 
+        0, 0, 1, 0, 0, 1};
+    byte[] value = storage.getColumn(row, new byte[] { 0, 0 });
+    assertNotNull(value);
+    assertEquals(42, value[0]);
+    row = new byte[] { 0, 0, 1, 0x50, (byte) 0xE2, 0x35, 0x10, 
+        0, 0, 1, 0, 0, 1};
+    value = storage.getColumn(row, new byte[] { 0, 0 });
+    assertNotNull(value);
+    assertEquals(24, value[0]);
+    
+    assertEquals(1, cache.size());
+    assertEquals(1, cache.stats().hitCount());
+    assertEquals(1, cache.stats().missCount());
+    verify(tag_values, times(1)).getOrCreateIdAsync(eq(TAGV_STRING), 
+        anyString(), anyMapOf(String.class, String.class));
+  }
+  
+  @Test
+  public void addPointRowKeyCacheDropped() throws Exception {
+    final RowKeyCache cache = new RowKeyCache(10);
+    Whitebox.setInternalState(tsdb, "row_key_cache", cache);
+    
+    tsdb.addPoint(METRIC_STRING, 1356998400, 42, tags).joinUninterruptibly();
+    assertEquals(1, cache.size());
+    tsdb.dropCaches();
+    assertEquals(0, cache.size());
+  }
+  
   @Test
   public void addPointSecondZero() throws Exception {
     // Thu, 01 Jan 1970 00:00:00 GMT
@@ -674,8 +733,10 @@ public class TestTSDBAddPoint extends BaseTsdbTest {
       .thenThrow(new UnitTestException("Boo!"));
     Whitebox.setInternalState(tsdb, "ts_filter", filter);
     
+    // the filter is called once the UIDs have been resolved so the exception
+    // is returned in the deferred.
     try {
-      tsdb.addPoint(METRIC_STRING, 1356998400, 42, tags);
+      tsdb.addPoint(METRIC_STRING, 1356998400, 42, tags).join();
       fail("Expected an UnitTestException");
     } catch (UnitTestException e) { };
     final byte[] row = new byte[] { 0, 0, 1, 0x50, (byte) 0xE2, 0x27, 0, 
@@ -773,6 +773,20 @@ public final class TestTags {
     assertArrayEquals(new byte[] { 0, 0, 1, 0, 0, 3}, uids.get(0));
   }
   
+  @Test (expected = DeferredGroupException.class)
+  public void resolveOrCreateAllAsyncTagvNotAllowedBlocked() throws Exception {
+    setupStorage();
+    config.overrideConfig("tsd.core.auto_create_tagvs", "false");
+    setupResolveAll();
+    when(tag_values.getIdAsync("invalidhost"))
+      .thenReturn(Deferred.<byte[]>fromError(
+          new NoSuchUniqueName("tagv", "invalidhost")));
+    
+    final Map<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "invalidhost");
+    Tags.resolveOrCreateAllAsync(tsdb, "metric", tags).join();
+  }
+  
   @Test (expected = DeferredGroupException.class)
   public void resolveOrCreateAllAsyncFilterBlocked() throws Exception {
     setupStorage();
@@ -854,6 +854,76 @@ public class TestTsdbQueryDownsample extends BaseTsdbTest {
       });
   }
 
+  @Test
+  public void runLongDownsamplePushdown() throws Exception {
+    storeLongTimeSeriesSeconds(true, false);
+    for (final String function : new String[] { "sum", "min", "max", "avg",
+        "count", "first", "last", "dev" }) {
+      assertPushdownMatches(Aggregators.get(function), FillPolicy.NONE, false);
+    }
+    assertPushdownMatches(Aggregators.SUM, FillPolicy.ZERO, false);
+    assertPushdownMatches(Aggregators.AVG, FillPolicy.NONE, true);
+  }
+
+  @Test
+  public void runMixedDownsamplePushdown() throws Exception {
+    storeMixedTimeSeriesSeconds();
+    for (final String function : new String[] { "sum", "max", "avg" }) {
+      assertPushdownMatches(Aggregators.get(function), FillPolicy.NONE, false);
+    }
+    assertPushdownMatches(Aggregators.MIN, FillPolicy.NOT_A_NUMBER, false);
+  }
+
+  /**
+   * Runs the same query with and without downsampling while scanning and
+   * verifies both return the same data points.
+   * Precondition: the time series have been stored.
+   */
+  private void assertPushdownMatches(final Aggregator downsampler,
+      final FillPolicy fill_policy, final boolean rate) throws Exception {
+    final DataPoints[] expected = runPushdownQuery(false, downsampler,
+        fill_policy, rate);
+    final DataPoints[] dps = runPushdownQuery(true, downsampler,
+        fill_policy, rate);
+    final String message = downsampler + " " + fill_policy + " " + rate;
+    assertEquals(message, expected.length, dps.length);
+    for (int i = 0; i < expected.length; i++) {
+      assertEquals(message, expected[i].metricName(), dps[i].metricName());
+      assertEquals(message, expected[i].getTags(), dps[i].getTags());
+      final SeekableView expected_it = expected[i].iterator();
+      final SeekableView it = dps[i].iterator();
+      int count = 0;
+      while (expected_it.hasNext()) {
+        assertTrue(message, it.hasNext());
+        final DataPoint expected_dp = expected_it.next();
+        final DataPoint dp = it.next();
+        assertEquals(message, expected_dp.timestamp(), dp.timestamp());
+        final double value = expected_dp.toDouble();
+        if (Double.isNaN(value)) {
+          assertTrue(message, Double.isNaN(dp.toDouble()));
+        } else {
+          assertEquals(message, value, dp.toDouble(), 0.0001);
+        }
+        count++;
+      }
+      assertFalse(message, it.hasNext());
+      assertTrue(message, count > 0);
+    }
+  }
+
+  private DataPoints[] runPushdownQuery(final boolean pushdown,
+      final Aggregator downsampler, final FillPolicy fill_policy,
+      final boolean rate) throws Exception {
+    tsdb.getConfig().overrideConfig("tsd.query.downsample_pushdown",
+        Boolean.toString(pushdown));
+    final TsdbQuery query = new TsdbQuery(tsdb);
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.downsample(60000, downsampler, fill_policy);
+    query.setTimeSeries(METRIC_STRING, tags, Aggregators.SUM, rate);
+    return query.run();
+  }
+
   /**
    * Precondition: the time series have been stored.
    */
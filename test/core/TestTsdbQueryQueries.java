@@ -140,6 +140,30 @@ public class TestTsdbQueryQueries extends BaseTsdbTest {
     assertEquals(300, dps[0].size());
   }
   
+  @Test
+  public void runLongTwoAggSumColumnar() throws Exception {
+    tsdb.getConfig().overrideConfig("tsd.query.columnar_spans", "true");
+    query = new TsdbQuery(tsdb);
+    storeLongTimeSeriesSeconds(true, false);
+    
+    tags.clear();
+    query.setStartTime(1356998400L);
+    query.setEndTime(1357041600L);
+    query.setTimeSeries(METRIC_STRING, tags, Aggregators.SUM, false);
+    
+    final DataPoints[] dps = query.run();
+    assertMeta(dps, 0, true);
+    
+    long timestamp = 1356998430000L;
+    for (DataPoint dp : dps[0]) {
+      assertEquals(301, dp.longValue());
+      assertEquals(timestamp, dp.timestamp());
+      timestamp += 30000;
+    }
+    assertEquals(300, dps[0].size());
+    assertEquals(600, dps[0].aggregatedSize());
+  }
+  
   @Test
   public void runLongTwoAggSumMs() throws Exception {
     storeLongTimeSeriesMs();
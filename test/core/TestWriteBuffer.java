@@ -0,0 +1,227 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import org.hbase.async.PutRequest;
+import org.junit.Before;
+import org.junit.Test;
+import org.powermock.reflect.Whitebox;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+public class TestWriteBuffer extends BaseTsdbTest {
+  private static final byte[] ROW = new byte[] { 0, 0, 1, 0x50, (byte) 0xE2,
+      0x27, 0, 0, 0, 1, 0, 0, 1};
+
+  @Before
+  public void beforeLocal() throws Exception {
+    setDataPointStorage();
+    // long enough that the periodic flush won't run during a test
+    config.overrideConfig("tsd.storage.write_buffer.flush_interval", "60000");
+    config.overrideConfig("tsd.storage.write_buffer.max_points_per_row", "3");
+  }
+
+  @Test
+  public void ctor() throws Exception {
+    final WriteBuffer buffer = new WriteBuffer(tsdb);
+    assertEquals(0, buffer.size());
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorZeroInterval() throws Exception {
+    config.overrideConfig("tsd.storage.write_buffer.flush_interval", "0");
+    new WriteBuffer(tsdb);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorZeroMaxPoints() throws Exception {
+    config.overrideConfig("tsd.storage.write_buffer.max_points_per_row", "0");
+    new WriteBuffer(tsdb);
+  }
+
+  @Test
+  public void addAndFlush() throws Exception {
+    final WriteBuffer buffer = new WriteBuffer(tsdb);
+    final Deferred<Object> d1 = buffer.add(ROW, new byte[] { 0, 0 },
+        new byte[] { 42 });
+    final Deferred<Object> d2 = buffer.add(ROW, new byte[] { 0, 0x10 },
+        new byte[] { 24 });
+    assertEquals(1, buffer.size());
+    assertNull(storage.getColumn(ROW, new byte[] { 0, 0 }));
+
+    buffer.flush().joinUninterruptibly();
+    assertEquals(0, buffer.size());
+    d1.joinUninterruptibly();
+    d2.joinUninterruptibly();
+    assertEquals(42, storage.getColumn(ROW, new byte[] { 0, 0 })[0]);
+    assertEquals(24, storage.getColumn(ROW, new byte[] { 0, 0x10 })[0]);
+    verify(client, times(1)).put(any(PutRequest.class));
+  }
+
+  @Test
+  public void addSeparateRows() throws Exception {
+    final WriteBuffer buffer = new WriteBuffer(tsdb);
+    final byte[] row2 = ROW.clone();
+    row2[row2.length - 1] = 2;
+    buffer.add(ROW, new byte[] { 0, 0 }, new byte[] { 42 });
+    buffer.add(row2, new byte[] { 0, 0 }, new byte[] { 24 });
+    assertEquals(2, buffer.size());
+
+    buffer.flush().joinUninterruptibly();
+    assertEquals(42, storage.getColumn(ROW, new byte[] { 0, 0 })[0]);
+    assertEquals(24, storage.getColumn(row2, new byte[] { 0, 0 })[0]);
+    verify(client, times(2)).put(any(PutRequest.class));
+  }
+
+  @Test
+  public void addFullRow() throws Exception {
+    final WriteBuffer buffer = new WriteBuffer(tsdb);
+    buffer.add(ROW, new byte[] { 0, 0 }, new byte[] { 1 });
+    buffer.add(ROW, new byte[] { 0, 0x10 }, new byte[] { 2 });
+    assertNull(storage.getColumn(ROW, new byte[] { 0, 0 }));
+    buffer.add(ROW, new byte[] { 0, 0x20 }, new byte[] { 3 })
+      .joinUninterruptibly();
+    assertEquals(0, buffer.size());
+    assertEquals(1, storage.getColumn(ROW, new byte[] { 0, 0 })[0]);
+    assertEquals(2, storage.getColumn(ROW, new byte[] { 0, 0x10 })[0]);
+    assertEquals(3, storage.getColumn(ROW, new byte[] { 0, 0x20 })[0]);
+
+    // the next point starts a new row
+    buffer.add(ROW, new byte[] { 0, 0x30 }, new byte[] { 4 });
+    assertEquals(1, buffer.size());
+    verify(client, times(1)).put(any(PutRequest.class));
+  }
+
+  @Test
+  public void addDuplicateQualifier() throws Exception {
+    final WriteBuffer buffer = new WriteBuffer(tsdb);
+    final Deferred<Object> d1 = buffer.add(ROW, new byte[] { 0, 0 },
+        new byte[] { 42 });
+    final Deferred<Object> d2 = buffer.add(ROW, new byte[] { 0, 0 },
+        new byte[] { 24 });
+    buffer.flush().joinUninterruptibly();
+    d1.joinUninterruptibly();
+    d2.joinUninterruptibly();
+    assertEquals(24, storage.getColumn(ROW, new byte[] { 0, 0 })[0]);
+    assertEquals(1, storage.numColumns(ROW));
+  }
+
+  @Test
+  public void putError() throws Exception {
+    final RuntimeException ex = new RuntimeException("Boo!");
+    storage.throwException(ROW, ex);
+    final WriteBuffer buffer = new WriteBuffer(tsdb);
+    final Deferred<Object> d1 = buffer.add(ROW, new byte[] { 0, 0 },
+        new byte[] { 42 });
+    final Deferred<Object> d2 = buffer.add(ROW, new byte[] { 0, 0x10 },
+        new byte[] { 24 });
+    buffer.flush();
+    try {
+      d1.joinUninterruptibly();
+      fail("Expected a RuntimeException");
+    } catch (RuntimeException e) {
+      assertSame(ex, e);
+    }
+    try {
+      d2.joinUninterruptibly();
+      fail("Expected a RuntimeException");
+    } catch (RuntimeException e) {
+      assertSame(ex, e);
+    }
+  }
+
+  @Test
+  public void flushEmpty() throws Exception {
+    final WriteBuffer buffer = new WriteBuffer(tsdb);
+    assertEquals(0, buffer.flush().joinUninterruptibly().size());
+  }
+
+  @Test
+  public void tsdbAddPoint() throws Exception {
+    config.overrideConfig("tsd.storage.write_buffer.enable", "true");
+    final TSDB tsdb = new TSDB(client, config);
+    setupTsdb(tsdb);
+    final Deferred<Object> d1 =
+        tsdb.addPoint(METRIC_STRING, 1356998400, 42, tags);
+    final Deferred<Object> d2 =
+        tsdb.addPoint(METRIC_STRING, 1356998401, 24, tags);
+    assertNull(storage.getColumn(ROW, new byte[] { 0, 0 }));
+
+    tsdb.flush().joinUninterruptibly();
+    d1.joinUninterruptibly();
+    d2.joinUninterruptibly();
+    assertNotNull(storage.getColumn(ROW, new byte[] { 0, 0 }));
+    assertNotNull(storage.getColumn(ROW, new byte[] { 0, 0x10 }));
+    verify(client, times(1)).put(any(PutRequest.class));
+  }
+
+  @Test
+  public void tsdbFlushPutError() throws Exception {
+    config.overrideConfig("tsd.storage.write_buffer.enable", "true");
+    config.overrideConfig("tsd.storage.enable_compaction", "true");
+    final TSDB tsdb = new TSDB(client, config);
+    setupTsdb(tsdb);
+    // an earlier point, so the failed row still has something to compact
+    storage.addColumn(ROW, new byte[] { 0, 0x10 }, new byte[] { 1 });
+    final RuntimeException ex = new RuntimeException("Boo!");
+    storage.throwException(ROW, ex);
+    final Deferred<Object> d1 =
+        tsdb.addPoint(METRIC_STRING, 1356998400, 42, tags);
+    // only the put fails, the compaction reads the row back
+    d1.addErrback(new Callback<Object, Exception>() {
+      @Override
+      public Object call(final Exception e) {
+        storage.clearExceptions();
+        return e;
+      }
+    });
+    tags.put(TAGK_STRING, TAGV_B_STRING);
+    final Deferred<Object> d2 =
+        tsdb.addPoint(METRIC_STRING, 1356998400, 24, tags);
+    final CompactionQueue compactionq =
+        Whitebox.getInternalState(tsdb, "compactionq");
+    assertEquals(2, compactionq.size());
+
+    // the failed row must not stop the compaction queue and client flushes
+    tsdb.flush().joinUninterruptibly();
+    assertEquals(0, compactionq.size());
+    verify(client, times(1)).flush();
+    try {
+      d1.joinUninterruptibly();
+      fail("Expected a RuntimeException");
+    } catch (RuntimeException e) {
+      assertSame(ex, e);
+    }
+    d2.joinUninterruptibly();
+    final byte[] row2 = ROW.clone();
+    row2[row2.length - 1] = 2;
+    assertEquals(24, storage.getColumn(row2, new byte[] { 0, 0 })[0]);
+  }
+
+  /** Swaps the UID mocks into a TSDB created by a test. */
+  private void setupTsdb(final TSDB tsdb) {
+    Whitebox.setInternalState(tsdb, "metrics", metrics);
+    Whitebox.setInternalState(tsdb, "tag_names", tag_names);
+    Whitebox.setInternalState(tsdb, "tag_values", tag_values);
+  }
+}
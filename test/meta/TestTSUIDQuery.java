@@ -481,7 +481,7 @@ public final class TestTSUIDQuery extends BaseTsdbTest {
     Whitebox.setInternalState(config, "enable_tsuid_incrementing", false);
     Whitebox.setInternalState(config, "enable_realtime_ts", false);
     storage.flushStorage();
-    tsdb.addPoint(NSUN_METRIC, 1356998400L, 42, tags);
+    tsdb.addPoint(NSUN_METRIC, 1356998400L, 42, tags).join();
     
     PowerMockito.mockStatic(DateTime.class);
     PowerMockito.when(DateTime.currentTimeMillis()).thenReturn(1356998400000L);
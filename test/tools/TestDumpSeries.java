@@ -24,6 +24,7 @@ import java.lang.reflect.Method;
 import java.util.HashMap;
 
 import net.opentsdb.core.AppendDataPoints;
+import net.opentsdb.core.BaseTsdbTest;
 import net.opentsdb.core.TSDB;
 import net.opentsdb.meta.Annotation;
 import net.opentsdb.storage.MockBase;
@@ -126,11 +127,15 @@ public class TestDumpSeries {
     when(tag_values.getId("web03"))
       .thenThrow(new NoSuchUniqueName("web03", "metric"));
     
+    BaseTsdbTest.setupAsyncIds(metrics);
+    BaseTsdbTest.setupAsyncIds(tag_names);
+    BaseTsdbTest.setupAsyncIds(tag_values);
+
     when(metrics.width()).thenReturn((short)3);
     when(tag_names.width()).thenReturn((short)3);
     when(tag_values.width()).thenReturn((short)3);
   }
-  
+
   @After
   public void after() {
     System.setOut(stdout);
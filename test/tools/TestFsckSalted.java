@@ -12,6 +12,7 @@ import org.powermock.core.classloader.annotations.PrepareForTest;
 
 import com.stumbleupon.async.Deferred;
 
+import net.opentsdb.core.BaseTsdbTest;
 import net.opentsdb.core.Const;
 import net.opentsdb.core.TSDB;
 import net.opentsdb.core.Tags;
@@ -87,9 +88,14 @@ public class TestFsckSalted extends TestFsck {
     when(tag_values.getId("web03"))
       .thenThrow(new NoSuchUniqueName("web03", "metric"));
 
-    PowerMockito.mockStatic(Tags.class);
-    when(Tags.resolveIds((TSDB)any(), (ArrayList<byte[]>)any()))
-      .thenReturn(null); // don't care
+    // the put path resolves the tags through the real Tags methods
+    PowerMockito.spy(Tags.class);
+    PowerMockito.doReturn(null).when(Tags.class); // don't care
+    Tags.resolveIds((TSDB)any(), (ArrayList<byte[]>)any());
+
+    BaseTsdbTest.setupAsyncIds(metrics);
+    BaseTsdbTest.setupAsyncIds(tag_names);
+    BaseTsdbTest.setupAsyncIds(tag_values);
 
     when(metrics.width()).thenReturn((short)3);
     when(tag_names.width()).thenReturn((short)3);
@@ -0,0 +1,146 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.Charset;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Compares the time taken and the bytes allocated by the line decoder and
+ * word splitter with the {@link ZeroCopyWordSplitter} on a stream of puts
+ * for a set of series.
+ * <p>
+ * Timings and allocations depend on the JVM and the machine so this is not
+ * part of the unit tests. Run it on its own, e.g.:
+ * <pre>
+ * java -Dbenchmark.lines=1000000 \
+ *   org.junit.runner.JUnitCore net.opentsdb.tsd.BenchmarkZeroCopyWordSplitter
+ * </pre>
+ * Allocated bytes are only reported when the JVM supports per thread
+ * allocation counters.
+ */
+public final class BenchmarkZeroCopyWordSplitter {
+  private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+  private static final int LINES = Integer.getInteger("benchmark.lines", 200000);
+
+  private ChannelHandlerContext ctx;
+  private Channel channel;
+
+  @Before
+  public void before() throws Exception {
+    ctx = mock(ChannelHandlerContext.class);
+    channel = mock(Channel.class);
+    when(ctx.getChannel()).thenReturn(channel);
+    when(channel.getPipeline()).thenReturn(mock(ChannelPipeline.class));
+  }
+
+  @Test
+  public void benchmark() throws Exception {
+    final StringBuilder buf = new StringBuilder();
+    for (int i = 0; i < LINES; i++) {
+      buf.append("put sys.cpu.user ")
+         .append(1356998400 + i)
+         .append(' ')
+         .append(i % 100)
+         .append(" host=web").append(i % 16)
+         .append(" dc=lga cpu=").append(i % 8)
+         .append('\n');
+    }
+    final byte[] data = buf.toString().getBytes(CHARSET);
+
+    // warm up both paths
+    runLineDecoder(data);
+    runZeroCopy(data);
+
+    long bytes = allocatedBytes();
+    long start = System.nanoTime();
+    final long line_checksum = runLineDecoder(data);
+    final double line_elapsed = (System.nanoTime() - start) / 1000000000.0;
+    final long line_bytes = allocatedBytes() - bytes;
+
+    bytes = allocatedBytes();
+    start = System.nanoTime();
+    final long zero_copy_checksum = runZeroCopy(data);
+    final double zero_copy_elapsed = (System.nanoTime() - start) / 1000000000.0;
+    final long zero_copy_bytes = allocatedBytes() - bytes;
+
+    System.out.println(String.format("Line decoder: %f seconds, %d bytes "
+        + "allocated. Zero copy decoder: %f seconds, %d bytes allocated "
+        + "for %d lines", line_elapsed, line_bytes, zero_copy_elapsed,
+        zero_copy_bytes, LINES));
+    assertEquals(line_checksum, zero_copy_checksum);
+  }
+
+  /** @return The bytes allocated by this thread so far or 0 if unsupported */
+  private static long allocatedBytes() {
+    final ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+    if (!(mx instanceof com.sun.management.ThreadMXBean)) {
+      return 0;
+    }
+    final com.sun.management.ThreadMXBean sun_mx =
+        (com.sun.management.ThreadMXBean) mx;
+    if (!sun_mx.isThreadAllocatedMemorySupported() ||
+        !sun_mx.isThreadAllocatedMemoryEnabled()) {
+      return 0;
+    }
+    return sun_mx.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  /**
+   * Runs the data through a new LineBasedFrameDecoder and WordSplitter
+   * @param data The data to decode
+   * @return A checksum of the decoded words
+   */
+  private long runLineDecoder(final byte[] data) throws Exception {
+    final LineBasedFrameDecoder framer = new LineBasedFrameDecoder(1024);
+    final WordSplitter words = new WordSplitter();
+    final ChannelBuffer buffer = ChannelBuffers.wrappedBuffer(data);
+    long checksum = 0;
+    Object frame;
+    while ((frame = framer.decode(ctx, channel, buffer)) != null) {
+      final String[] cmd = (String[]) words.decode(ctx, channel, frame);
+      checksum += cmd.length + cmd[1].length() + cmd[3].length();
+    }
+    return checksum;
+  }
+
+  /**
+   * Runs the data through a new ZeroCopyWordSplitter
+   * @param data The data to decode
+   * @return A checksum of the decoded words
+   */
+  private long runZeroCopy(final byte[] data) throws Exception {
+    final ZeroCopyWordSplitter splitter = new ZeroCopyWordSplitter(1024);
+    final ChannelBuffer buffer = ChannelBuffers.wrappedBuffer(data);
+    long checksum = 0;
+    Object frame;
+    while ((frame = splitter.decode(ctx, channel, buffer)) != null) {
+      final String[] cmd = (String[]) frame;
+      checksum += cmd.length + cmd[1].length() + cmd[3].length();
+    }
+    return checksum;
+  }
+}
@@ -0,0 +1,259 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.opentsdb.core.DataPoint;
+import net.opentsdb.core.DataPoints;
+import net.opentsdb.core.TSDB;
+import net.opentsdb.core.TSQuery;
+import net.opentsdb.core.TSSubQuery;
+import net.opentsdb.meta.Annotation;
+import net.opentsdb.stats.QueryStats;
+import net.opentsdb.storage.MockDataPoints;
+import net.opentsdb.utils.Config;
+import net.opentsdb.utils.DateTime;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import com.google.common.cache.CacheBuilder;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ HttpBinarySerializer.class, TSDB.class, Config.class,
+  HttpQuery.class, TSQuery.class, TSSubQuery.class, QueryStats.class,
+  DateTime.class })
+public final class TestHttpBinarySerializer {
+  private static String remote = "192.168.1.1:4242";
+  private static Field running_queries;
+  private static Field completed_queries;
+  static {
+    try {
+      running_queries = QueryStats.class.getDeclaredField("running_queries");
+      running_queries.setAccessible(true);
+      completed_queries = QueryStats.class.getDeclaredField("completed_queries");
+      completed_queries.setAccessible(true);
+    } catch (Exception e) {
+      throw new RuntimeException("Failed in static initializer", e);
+    }
+  }
+
+  private TSDB tsdb = null;
+  private HttpQuery query;
+  private HttpBinarySerializer serdes;
+  private TSQuery data_query;
+
+  @Before
+  public void before() throws Exception {
+    tsdb = NettyMocks.getMockedHTTPTSDB();
+    PowerMockito.mockStatic(DateTime.class);
+    PowerMockito.when(DateTime.parseDateTimeString(anyString(), anyString()))
+      .thenCallRealMethod();
+    running_queries.set(null, new ConcurrentHashMap<Integer, QueryStats>());
+    completed_queries.set(null, CacheBuilder.newBuilder().maximumSize(2).build());
+
+    query = NettyMocks.getQuery(tsdb, "/api/query?serializer=binary");
+    serdes = new HttpBinarySerializer(query);
+
+    data_query = new TSQuery();
+    data_query.setStart("1356998400");
+    data_query.setEnd("1388534400");
+    final TSSubQuery sub_query = new TSSubQuery();
+    sub_query.setMetric("sys.cpu.user");
+    sub_query.setAggregator("sum");
+    final ArrayList<TSSubQuery> sub_queries = new ArrayList<TSSubQuery>(1);
+    sub_queries.add(sub_query);
+    data_query.setQueries(sub_queries);
+    data_query.validateAndSetQuery();
+    data_query.setQueryStats(new QueryStats(remote, data_query, null));
+  }
+
+  @Test
+  public void names() throws Exception {
+    assertEquals("binary", serdes.shortName());
+    assertEquals(BinaryQueryReader.CONTENT_TYPE, serdes.requestContentType());
+    assertEquals("application/json; charset=UTF-8",
+        serdes.responseContentType());
+  }
+
+  @Test
+  public void formatQueryAsyncV1() throws Exception {
+    final List<DataPoints[]> results = new ArrayList<DataPoints[]>(1);
+    results.add(new DataPoints[] { new MockDataPoints().getMock() });
+
+    final List<BinaryQueryReader.Series> series =
+        BinaryQueryReader.read(format(results));
+    assertEquals(BinaryQueryReader.CONTENT_TYPE, serdes.responseContentType());
+    assertEquals(1, series.size());
+    final BinaryQueryReader.Series s = series.get(0);
+    assertEquals("system.cpu.user", s.getMetric());
+    assertEquals(1, s.getTags().size());
+    assertEquals("lga", s.getTags().get("dc"));
+    assertEquals(1, s.getAggregatedTags().size());
+    assertEquals("host", s.getAggregatedTags().get(0));
+    assertEquals(0, s.getQueryIndex());
+    assertEquals(401, s.size());
+    assertEquals(1356998700000L, s.timestamp(0));
+    assertTrue(s.isInteger(0));
+    assertEquals(1, s.longValue(0));
+    assertEquals(1357058700000L, s.timestamp(200));
+    assertEquals(201, s.longValue(200));
+    assertEquals(1357118700000L, s.timestamp(400));
+    assertEquals(401, s.longValue(400));
+  }
+
+  @Test
+  public void formatQueryAsyncV1Dictionary() throws Exception {
+    final List<DataPoints[]> results = new ArrayList<DataPoints[]>(2);
+    results.add(new DataPoints[] { new MockDataPoints().getMock() });
+    final int one_series = format(results).length;
+
+    results.clear();
+    results.add(new DataPoints[] { new MockDataPoints().getMock() });
+    results.add(new DataPoints[] { new MockDataPoints().getMock() });
+    final byte[] data = format(results);
+    final List<BinaryQueryReader.Series> series = BinaryQueryReader.read(data);
+    assertEquals(2, series.size());
+    assertEquals("system.cpu.user", series.get(1).getMetric());
+    assertEquals("lga", series.get(1).getTags().get("dc"));
+    assertEquals("host", series.get(1).getAggregatedTags().get(0));
+    // the second series only refers to the strings of the first one, the
+    // header is the magic, version and end marker
+    final int header = BinaryQueryReader.MAGIC.length + 2;
+    final int strings = "system.cpu.user".length() + "dc".length()
+        + "lga".length() + "host".length() + 4;
+    assertEquals(2 * (one_series - header) - strings + header, data.length);
+  }
+
+  @Test
+  public void formatQueryAsyncV1Floats() throws Exception {
+    final MockDataPoints mock = new MockDataPoints();
+    final List<DataPoints[]> results = new ArrayList<DataPoints[]>(1);
+    results.add(new DataPoints[] { mock.getMock() });
+    final DataPoint dp = mock.getMockDP();
+    when(dp.isInteger()).thenReturn(false);
+    when(dp.doubleValue()).thenAnswer(new Answer<Double>() {
+      @Override
+      public Double answer(final InvocationOnMock args) throws Throwable {
+        return dp.timestamp() / 1000 + 0.5;
+      }
+    });
+
+    final BinaryQueryReader.Series s =
+        BinaryQueryReader.read(format(results)).get(0);
+    assertEquals(401, s.size());
+    assertFalse(s.isInteger(0));
+    assertEquals(1356998700.5, s.doubleValue(0), 0.0001);
+    assertEquals(1357118700.5, s.toDouble(400), 0.0001);
+  }
+
+  @Test
+  public void formatQueryAsyncV1Mixed() throws Exception {
+    final MockDataPoints mock = new MockDataPoints();
+    final List<DataPoints[]> results = new ArrayList<DataPoints[]>(1);
+    results.add(new DataPoints[] { mock.getMock() });
+    final DataPoint dp = mock.getMockDP();
+    when(dp.isInteger()).thenAnswer(new Answer<Boolean>() {
+      @Override
+      public Boolean answer(final InvocationOnMock args) throws Throwable {
+        return dp.timestamp() % 600000 == 0;
+      }
+    });
+    when(dp.doubleValue()).thenReturn(Double.NaN);
+
+    final BinaryQueryReader.Series s =
+        BinaryQueryReader.read(format(results)).get(0);
+    assertEquals(401, s.size());
+    assertFalse(s.isInteger(0));
+    assertTrue(Double.isNaN(s.doubleValue(0)));
+    assertTrue(s.isInteger(1));
+    assertEquals(2, s.longValue(1));
+    assertFalse(s.isInteger(400));
+    assertEquals(1357118700000L, s.timestamp(400));
+  }
+
+  @Test
+  public void formatQueryAsyncV1NoResults() throws Exception {
+    assertTrue(BinaryQueryReader.read(
+        format(new ArrayList<DataPoints[]>(0))).isEmpty());
+  }
+
+  @Test (expected = ClassCastException.class)
+  public void readLongValueOfFloat() throws Exception {
+    final MockDataPoints mock = new MockDataPoints();
+    final List<DataPoints[]> results = new ArrayList<DataPoints[]>(1);
+    results.add(new DataPoints[] { mock.getMock() });
+    when(mock.getMockDP().isInteger()).thenReturn(false);
+    BinaryQueryReader.read(format(results)).get(0).longValue(0);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void readNotBinary() throws Exception {
+    BinaryQueryReader.read("[{\"metric\":\"sys.cpu.user\"}]".getBytes());
+  }
+
+  @Test (expected = EOFException.class)
+  public void readTruncated() throws Exception {
+    final List<DataPoints[]> results = new ArrayList<DataPoints[]>(1);
+    results.add(new DataPoints[] { new MockDataPoints().getMock() });
+    final byte[] data = format(results);
+    final byte[] truncated = new byte[data.length - 1];
+    System.arraycopy(data, 0, truncated, 0, truncated.length);
+    BinaryQueryReader.read(truncated);
+  }
+
+  @Test
+  public void varints() throws Exception {
+    for (final long value : new long[] { 0, 1, -1, 127, 128, 300000,
+        Long.MAX_VALUE, Long.MIN_VALUE }) {
+      final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      BinaryQueryReader.writeVarint(new DataOutputStream(bytes),
+          BinaryQueryReader.zigZag(value));
+      assertEquals(value, BinaryQueryReader.unZigZag(
+          BinaryQueryReader.readVarint(new DataInputStream(
+              new ByteArrayInputStream(bytes.toByteArray())))));
+    }
+  }
+
+  /** @return the bytes written by the serializer for the results */
+  private byte[] format(final List<DataPoints[]> results) throws Exception {
+    final ChannelBuffer buffer = serdes.formatQueryAsyncV1(data_query,
+        results, Collections.<Annotation> emptyList()).joinUninterruptibly();
+    final byte[] data = new byte[buffer.readableBytes()];
+    buffer.readBytes(data);
+    return data;
+  }
+}
@@ -15,7 +15,9 @@ package net.opentsdb.tsd;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.when;
 
@@ -41,6 +43,16 @@ import net.opentsdb.utils.Config;
 import net.opentsdb.utils.DateTime;
 
 import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.DefaultChannelFuture;
+import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -66,6 +78,7 @@ import com.stumbleupon.async.DeferredGroupException;
 public final class TestHttpJsonSerializer {
   private TSDB tsdb = null;
   private final List<Long> timestamp = new ArrayList<Long>(1);
+  private final List<ChannelFuture> futures = new ArrayList<ChannelFuture>();
   private static String remote = "192.168.1.1:4242";
   private static Field running_queries; 
   static {
@@ -403,6 +416,112 @@ public final class TestHttpJsonSerializer {
     assertTrue(json.contains("\"queryIdx_00\":"));
   }
   
+  @Test
+  public void formatQueryStreamV1() throws Exception {
+    setupFormatQuery();
+    final HttpQuery query = NettyMocks.getQuery(tsdb, "?jsonp=func");
+    final List<Object> writes = captureWrites(query, true);
+    final HttpJsonSerializer serdes = new HttpJsonSerializer(query);
+    final TSQuery data_query = getTestQuery(false);
+    validateTestQuery(data_query);
+    final List<DataPoints[]> results = new ArrayList<DataPoints[]>(1);
+    results.add(new DataPoints[] { new MockDataPoints().getMock(), 
+        new MockDataPoints().getMock() });
+
+    assertNull(serdes.formatQueryStreamV1(data_query, results, 
+        Collections.<Annotation> emptyList()).joinUninterruptibly());
+    
+    // headers, a chunk per series, the closing chunk and the last chunk
+    assertEquals(5, writes.size());
+    final HttpResponse response = (HttpResponse) writes.get(0);
+    assertTrue(response.isChunked());
+    assertTrue(HttpHeaders.isTransferEncodingChunked(response));
+    assertEquals(HttpResponseStatus.OK, response.getStatus());
+    assertEquals("application/json; charset=UTF-8", 
+        response.headers().get(HttpHeaders.Names.CONTENT_TYPE));
+    
+    final StringBuilder json = new StringBuilder();
+    for (int i = 1; i < 4; i++) {
+      final HttpChunk chunk = (HttpChunk) writes.get(i);
+      assertFalse(chunk.isLast());
+      json.append(chunk.getContent().toString(Charset.forName("UTF-8")));
+    }
+    assertTrue(((HttpChunk) writes.get(4)).isLast());
+    
+    final String first = ((HttpChunk) writes.get(1)).getContent()
+        .toString(Charset.forName("UTF-8"));
+    assertTrue(first.startsWith("func([{\"metric\":\"system.cpu.user\","));
+    assertTrue(first.contains("\"1357058700\":201"));
+    assertTrue(json.toString().endsWith("}])"));
+    assertEquals(2, json.toString().split("\"metric\"").length - 1);
+  }
+  
+  @Test
+  public void formatQueryStreamV1WaitsForWritable() throws Exception {
+    setupFormatQuery();
+    final HttpQuery query = NettyMocks.getQuery(tsdb, "");
+    final List<Object> writes = captureWrites(query, false);
+    when(query.channel().isWritable()).thenReturn(false);
+    final HttpJsonSerializer serdes = new HttpJsonSerializer(query);
+    final TSQuery data_query = getTestQuery(false);
+    validateTestQuery(data_query);
+    final List<DataPoints[]> results = new ArrayList<DataPoints[]>(1);
+    results.add(new DataPoints[] { new MockDataPoints().getMock(), 
+        new MockDataPoints().getMock() });
+
+    final Deferred<Object> deferred = serdes.formatQueryStreamV1(data_query, 
+        results, Collections.<Annotation> emptyList());
+    // the second series waits for the first one to be written
+    assertEquals(2, writes.size());
+    
+    futures.get(1).setSuccess();
+    assertEquals(3, writes.size());
+    futures.get(2).setSuccess();
+    assertNull(deferred.joinUninterruptibly());
+    assertEquals(5, writes.size());
+    assertTrue(((HttpChunk) writes.get(4)).isLast());
+  }
+  
+  @Test
+  public void formatQueryStreamV1NoResults() throws Exception {
+    setupFormatQuery();
+    final HttpQuery query = NettyMocks.getQuery(tsdb, "");
+    final List<Object> writes = captureWrites(query, true);
+    final HttpJsonSerializer serdes = new HttpJsonSerializer(query);
+    final TSQuery data_query = getTestQuery(false);
+    validateTestQuery(data_query);
+
+    assertNull(serdes.formatQueryStreamV1(data_query, 
+        new ArrayList<DataPoints[]>(0), Collections.<Annotation> emptyList())
+        .joinUninterruptibly());
+    assertEquals(1, writes.size());
+    final HttpResponse response = (HttpResponse) writes.get(0);
+    assertFalse(response.isChunked());
+    assertEquals("[]", response.getContent().toString(
+        Charset.forName("UTF-8")));
+  }
+  
+  @Test
+  public void formatQueryStreamV1Http10() throws Exception {
+    setupFormatQuery();
+    final HttpQuery query = new HttpQuery(tsdb, new DefaultHttpRequest(
+        HttpVersion.HTTP_1_0, HttpMethod.GET, ""), NettyMocks.fakeChannel());
+    final List<Object> writes = captureWrites(query, true);
+    final HttpJsonSerializer serdes = new HttpJsonSerializer(query);
+    final TSQuery data_query = getTestQuery(false);
+    validateTestQuery(data_query);
+    final List<DataPoints[]> results = new ArrayList<DataPoints[]>(1);
+    results.add(new DataPoints[] { new MockDataPoints().getMock() });
+
+    assertNull(serdes.formatQueryStreamV1(data_query, results, 
+        Collections.<Annotation> emptyList()).joinUninterruptibly());
+    assertEquals(1, writes.size());
+    final HttpResponse response = (HttpResponse) writes.get(0);
+    assertFalse(response.isChunked());
+    assertTrue(response.getContent().toString(Charset.forName("UTF-8"))
+        .contains("\"1357058700\":201"));
+  }
+  
   @Test
   public void formatQueryAsyncV1woStatsWoSummary() throws Exception {
     setupFormatQuery();
@@ -600,6 +719,45 @@ public final class TestHttpJsonSerializer {
    * Helper to reset the query stats and mock the time calls before each
    * data point query. 
    */
+  /**
+   * Stores the objects written to the channel of the query and the futures
+   * returned for each write in {@link #futures}.
+   * @param query The query to capture writes for
+   * @param succeed Whether or not the writes complete right away
+   * @return The list of written objects
+   */
+  private List<Object> captureWrites(final HttpQuery query, 
+      final boolean succeed) {
+    final List<Object> writes = new ArrayList<Object>();
+    when(query.channel().write(any())).thenAnswer(new Answer<ChannelFuture>() {
+      @Override
+      public ChannelFuture answer(final InvocationOnMock invocation) 
+          throws Throwable {
+        final Object message = invocation.getArguments()[0];
+        if (message instanceof HttpResponse) {
+          // copy the content as the response object is reused
+          final HttpResponse response = (HttpResponse) message;
+          final HttpResponse copy = new DefaultHttpResponse(
+              response.getProtocolVersion(), response.getStatus());
+          copy.headers().set(response.headers());
+          copy.setChunked(response.isChunked());
+          copy.setContent(response.getContent());
+          writes.add(copy);
+        } else {
+          writes.add(message);
+        }
+        final ChannelFuture future = 
+            new DefaultChannelFuture(query.channel(), false);
+        if (succeed) {
+          future.setSuccess();
+        }
+        futures.add(future);
+        return future;
+      }
+    });
+    return writes;
+  }
+  
   private void setupFormatQuery() throws Exception {
     mockTime();
     running_queries.set(null, new ConcurrentHashMap<Integer, QueryStats>());
@@ -20,6 +20,9 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 
 import java.lang.reflect.Method;
 import java.nio.charset.Charset;
@@ -35,6 +38,8 @@ import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
 import org.jboss.netty.handler.codec.http.HttpMethod;
 import org.jboss.netty.handler.codec.http.HttpRequest;
 import org.jboss.netty.handler.codec.http.HttpResponseStatus;
@@ -718,6 +723,15 @@ public final class TestHttpQuery {
         query.serializer().getClass().getCanonicalName());
   }
   
+  @Test
+  public void setSerializerBinaryQS() throws Exception {
+    HttpQuery.initializeSerializerMaps(null);
+    HttpQuery query = NettyMocks.getQuery(tsdb, "/api/query?serializer=binary");
+    query.setSerializer();
+    assertEquals(HttpBinarySerializer.class.getCanonicalName(), 
+        query.serializer().getClass().getCanonicalName());
+  }
+  
   @Test
   public void setSerializerDummyQS() throws Exception {
     PluginLoader.loadJAR("plugin_test.jar");
@@ -1055,6 +1069,46 @@ public final class TestHttpQuery {
     query.sendReply(HttpResponseStatus.CREATED, (byte[])null);
   }
   
+  @Test
+  public void sendChunked() throws Exception {
+    HttpQuery query = NettyMocks.getQuery(tsdb, "/");
+    assertTrue(query.canSendChunked());
+    query.sendChunkedHeader(HttpResponseStatus.OK, "text/plain");
+    assertTrue(query.response().isChunked());
+    assertTrue(HttpHeaders.isTransferEncodingChunked(query.response()));
+    query.sendChunk(ChannelBuffers.wrappedBuffer("Hello".getBytes()));
+    // empty chunks would end the response
+    query.sendChunk(ChannelBuffers.EMPTY_BUFFER);
+    query.sendLastChunk();
+    // the headers, the one chunk with data and the last chunk
+    verify(query.channel(), times(3)).write(any());
+    verify(query.channel()).write(query.response());
+    verify(query.channel()).write(HttpChunk.LAST_CHUNK);
+  }
+  
+  @Test
+  public void sendChunkedHttp10() throws Exception {
+    HttpQuery query = new HttpQuery(tsdb, new DefaultHttpRequest(
+        HttpVersion.HTTP_1_0, HttpMethod.GET, "/"), NettyMocks.fakeChannel());
+    assertFalse(query.canSendChunked());
+  }
+  
+  @Test (expected = IllegalStateException.class)
+  public void sendChunkNoHeader() throws Exception {
+    HttpQuery query = NettyMocks.getQuery(tsdb, "/");
+    query.sendChunk(ChannelBuffers.wrappedBuffer("Hello".getBytes()));
+  }
+  
+  @Test
+  public void sendReplyAfterChunkedHeader() throws Exception {
+    HttpQuery query = NettyMocks.getQuery(tsdb, "/");
+    query.sendChunkedHeader(HttpResponseStatus.OK, "text/plain");
+    query.sendReply(HttpResponseStatus.BAD_REQUEST, "Oops".getBytes());
+    // the status was already sent so all we can do is hang up
+    assertEquals(HttpResponseStatus.OK, query.response().getStatus());
+    verify(query.channel()).close();
+  }
+  
   @Test
   public void sendReplySB() throws Exception {
     HttpQuery query = NettyMocks.getQuery(tsdb, "/");
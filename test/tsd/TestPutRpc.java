@@ -13,7 +13,9 @@
 package net.opentsdb.tsd;
 
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyFloat;
 import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyMapOf;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
@@ -42,11 +44,14 @@ import org.jboss.netty.handler.codec.http.HttpResponseStatus;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.powermock.core.classloader.annotations.PowerMockIgnore;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 import org.powermock.reflect.Whitebox;
 
+import com.stumbleupon.async.Callback;
 import com.stumbleupon.async.Deferred;
 
 @RunWith(PowerMockRunner.class)
@@ -119,6 +124,29 @@ public final class TestPutRpc {
     handler = mock(StorageExceptionHandler.class);
     when(tsdb.getStorageExceptionHandler()).thenReturn(handler);
     when(tsdb.getTimer()).thenReturn(timer);
+    
+    // the HTTP path passes a deferred for the UID resolution, answer it with
+    // the stubs above
+    when(tsdb.addPoint(anyString(), anyLong(), anyLong(), 
+        anyMapOf(String.class, String.class), any(Deferred.class)))
+      .thenAnswer(new Answer<Deferred<Object>>() {
+        @Override
+        public Deferred<Object> answer(final InvocationOnMock invocation) {
+          final Object[] args = invocation.getArguments();
+          return resolve(tsdb.addPoint((String) args[0], (Long) args[1], 
+              (Long) args[2], tags(args[3])), args[4]);
+        }
+      });
+    when(tsdb.addPoint(anyString(), anyLong(), anyFloat(), 
+        anyMapOf(String.class, String.class), any(Deferred.class)))
+      .thenAnswer(new Answer<Deferred<Object>>() {
+        @Override
+        public Deferred<Object> answer(final InvocationOnMock invocation) {
+          final Object[] args = invocation.getArguments();
+          return resolve(tsdb.addPoint((String) args[0], (Long) args[1], 
+              (Float) args[2], tags(args[3])), args[4]);
+        }
+      });
   }
   
   @Test
@@ -717,6 +745,49 @@ public final class TestPutRpc {
     verify(tsdb, never()).getStorageExceptionHandler();
   }
 
+  @Test
+  public void noSuchUniqueNameAsync() throws Exception {
+    when(tsdb.addPoint("unknown.metric", 1365465600, 42, TAGS))
+      .thenReturn(Deferred.fromError(
+          new NoSuchUniqueName("metric", "unknown.metric")));
+    HttpQuery query = NettyMocks.postQuery(tsdb, "/api/put?details", 
+        "{\"metric\":\"unknown.metric\",\"timestamp\":1365465600,\"value\""
+        +":42,\"tags\":{\"host\":\"web01\"}}");
+    PutDataPointRpc put = new PutDataPointRpc();
+    put.execute(tsdb, query);
+    assertEquals(HttpResponseStatus.BAD_REQUEST, query.response().getStatus());
+    final String response = 
+      query.response().getContent().toString(Charset.forName("UTF-8"));
+    assertTrue(response.contains("\"error\":\"Unknown metric\""));
+    assertTrue(response.contains("\"failed\":1"));
+    assertTrue(response.contains("\"success\":0"));
+    assertEquals(1, unknown_metrics.get());
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void replyOnceResolvedWithoutWaitingOnWrite() throws Exception {
+    when(tsdb.addPoint(anyString(), anyLong(), anyLong(), 
+        anyMapOf(String.class, String.class), any(Deferred.class)))
+      .thenAnswer(new Answer<Deferred<Object>>() {
+        @Override
+        public Deferred<Object> answer(final InvocationOnMock invocation) {
+          ((Deferred<Object>) invocation.getArguments()[4]).callback(null);
+          return new Deferred<Object>();  // the write never completes
+        }
+      });
+    HttpQuery query = NettyMocks.postQuery(tsdb, "/api/put?summary", 
+        "{\"metric\":\"sys.cpu.nice\",\"timestamp\":1365465600,\"value\""
+        +":42,\"tags\":{\"host\":\"web01\"}}");
+    PutDataPointRpc put = new PutDataPointRpc();
+    put.execute(tsdb, query);
+    assertEquals(HttpResponseStatus.OK, query.response().getStatus());
+    final String response = 
+      query.response().getContent().toString(Charset.forName("UTF-8"));
+    assertTrue(response.contains("\"failed\":0"));
+    assertTrue(response.contains("\"success\":1"));
+  }
+
   @Test
   public void missingMetric() throws Exception {
     HttpQuery query = NettyMocks.postQuery(tsdb, "/api/put?details", 
@@ -1454,4 +1525,36 @@ public final class TestPutRpc {
     verify(tsdb, times(1)).getStorageExceptionHandler();
     verify(timer.timeout, never()).cancel();
   }
+
+  @SuppressWarnings("unchecked")
+  private static Map<String, String> tags(final Object tags) {
+    return (Map<String, String>) tags;
+  }
+
+  /**
+   * Calls back the resolution deferred once the stubbed put completes. Only
+   * unknown names fail the resolution, other errors come from the write.
+   */
+  @SuppressWarnings("unchecked")
+  private static Deferred<Object> resolve(final Deferred<Object> put, 
+      final Object deferred) {
+    if (deferred == null) {
+      return put;
+    }
+    final Deferred<Object> resolved = (Deferred<Object>) deferred;
+    put.addCallbacks(new Callback<Object, Object>() {
+      @Override
+      public Object call(final Object result) {
+        resolved.callback(null);
+        return result;
+      }
+    }, new Callback<Object, Exception>() {
+      @Override
+      public Object call(final Exception e) {
+        resolved.callback(e instanceof NoSuchUniqueName ? e : null);
+        return e;
+      }
+    });
+    return put;
+  }
 }
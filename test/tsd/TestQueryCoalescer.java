@@ -0,0 +1,162 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import net.opentsdb.core.CancellationToken;
+import net.opentsdb.core.QueryException;
+import net.opentsdb.core.TSDB;
+import net.opentsdb.core.TSQuery;
+import net.opentsdb.core.TSSubQuery;
+import net.opentsdb.query.filter.TagVFilter;
+import net.opentsdb.utils.Config;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ TSDB.class, Config.class, HttpQuery.class })
+public class TestQueryCoalescer {
+  private static final String URI = "/api/query?start=1h-ago&m=sum:sys.cpu";
+  private TSDB tsdb;
+  private QueryCoalescer coalescer;
+
+  @Before
+  public void before() throws Exception {
+    tsdb = NettyMocks.getMockedHTTPTSDB();
+    coalescer = new QueryCoalescer();
+  }
+
+  @Test
+  public void followAndComplete() throws Exception {
+    final TSQuery leader = getQuery(false);
+    final TSQuery follower = getQuery(false);
+    final QueryCoalescer.Flight flight = join(URI, leader);
+    assertTrue(flight.leads(leader));
+    final QueryCoalescer.Flight followed = join(URI, follower);
+    assertSame(flight, followed);
+    assertFalse(followed.leads(follower));
+    assertEquals(1, coalescer.size());
+
+    final ChannelBuffer buffer =
+        ChannelBuffers.copiedBuffer("[]", Charset.forName("UTF-8"));
+    flight.complete(buffer);
+    final ChannelBuffer response =
+        followed.response(follower).joinUninterruptibly();
+    assertNotSame(buffer, response);
+    assertEquals("[]", response.toString(Charset.forName("UTF-8")));
+    assertEquals(0, coalescer.size());
+
+    // the next identical query runs again
+    final TSQuery next = getQuery(false);
+    assertTrue(join(URI, next).leads(next));
+  }
+
+  @Test
+  public void failFlight() throws Exception {
+    final QueryCoalescer.Flight flight = join(URI, getQuery(false));
+    final TSQuery follower = getQuery(false);
+    join(URI, follower);
+    flight.fail(new IllegalStateException("Boo!"));
+    try {
+      flight.response(follower).joinUninterruptibly();
+      fail("Expected an IllegalStateException");
+    } catch (IllegalStateException e) { }
+    assertEquals(0, coalescer.size());
+  }
+
+  @Test
+  public void differentQueries() throws Exception {
+    final TSQuery leader = getQuery(false);
+    join(URI, leader);
+    // the filter groups by
+    final TSQuery group_by = getQuery(true);
+    assertTrue(join(URI, group_by).leads(group_by));
+    // different serializer options
+    final TSQuery arrays = getQuery(false);
+    assertTrue(join(URI + "&arrays", arrays).leads(arrays));
+    assertEquals(3, coalescer.size());
+  }
+
+  @Test
+  public void leaderDisconnects() throws Exception {
+    final TSQuery leader = getQuery(false);
+    final QueryCoalescer.Flight flight = join(URI, leader);
+    join(URI, getQuery(false));
+    // the follower still waits on the query
+    assertFalse(leader.getCancellation().abandon(
+        CancellationToken.Reason.DISCONNECT));
+    assertFalse(leader.getCancellation().isCancelled());
+    flight.complete(ChannelBuffers.EMPTY_BUFFER);
+  }
+
+  @Test
+  public void followerCancelled() throws Exception {
+    final TSQuery leader = getQuery(false);
+    final QueryCoalescer.Flight flight = join(URI, leader);
+    final TSQuery follower = getQuery(false);
+    join(URI, follower);
+    follower.getCancellation().cancel(CancellationToken.Reason.TIMEOUT);
+    try {
+      flight.response(follower).joinUninterruptibly();
+      fail("Expected a QueryException");
+    } catch (QueryException e) { }
+
+    // nobody else waits on the query now
+    assertTrue(leader.getCancellation().abandon(
+        CancellationToken.Reason.DISCONNECT));
+  }
+
+  @Test
+  public void joinCancelled() throws Exception {
+    final TSQuery leader = getQuery(false);
+    join(URI, leader);
+    leader.getCancellation().cancel(CancellationToken.Reason.ADMIN);
+    final TSQuery next = getQuery(false);
+    assertTrue(join(URI, next).leads(next));
+  }
+
+  /** @return the flight of the query sent with a GET on the URI */
+  private QueryCoalescer.Flight join(final String uri, final TSQuery query) {
+    return coalescer.join(NettyMocks.getQuery(tsdb, uri), query);
+  }
+
+  /** @return a query with a filter on the host */
+  private TSQuery getQuery(final boolean group_by) {
+    final TSSubQuery sub = new TSSubQuery();
+    sub.setMetric("sys.cpu");
+    sub.setAggregator("sum");
+    sub.setFilters(new ArrayList<TagVFilter>(Arrays.asList(
+        TagVFilter.Builder().setType("literal_or").setTagk("host")
+          .setFilter("web01").setGroupBy(group_by).build())));
+    final TSQuery query = new TSQuery();
+    query.setStart("1h-ago");
+    query.setQueries(new ArrayList<TSSubQuery>(Arrays.asList(sub)));
+    return query;
+  }
+}
@@ -18,6 +18,9 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.powermock.api.mockito.PowerMockito.mock;
 
@@ -27,6 +30,7 @@ import java.util.List;
 
 import net.opentsdb.core.DataPoints;
 import net.opentsdb.core.Query;
+import net.opentsdb.core.QueryScheduler;
 import net.opentsdb.core.TSDB;
 import net.opentsdb.core.TSQuery;
 import net.opentsdb.core.TSSubQuery;
@@ -38,6 +42,7 @@ import net.opentsdb.storage.MockDataPoints;
 import net.opentsdb.utils.Config;
 import net.opentsdb.utils.DateTime;
 
+import org.jboss.netty.handler.codec.http.HttpChunk;
 import org.jboss.netty.handler.codec.http.HttpResponseStatus;
 import org.junit.Before;
 import org.junit.Test;
@@ -496,6 +501,80 @@ public final class TestQueryRpc {
     assertEquals(HttpResponseStatus.OK, query.response().getStatus());
   }
 
+  @Test
+  public void postQueryCoalesced() throws Exception {
+    when(tsdb.getConfig().getBoolean("tsd.query.coalesce.enable"))
+      .thenReturn(true);
+    final Deferred<DataPoints[]> results = new Deferred<DataPoints[]>();
+    when(query_result.runAsync()).thenReturn(results);
+    
+    final String json = "{\"start\":1425440315306,\"queries\":" +
+        "[{\"metric\":\"somemetric\",\"aggregator\":\"sum\"}]}";
+    HttpQuery leader = NettyMocks.postQuery(tsdb, "/api/query", json);
+    NettyMocks.mockChannelFuture(leader);
+    HttpQuery follower = NettyMocks.postQuery(tsdb, "/api/query", json);
+    NettyMocks.mockChannelFuture(follower);
+    rpc.execute(tsdb, leader);
+    rpc.execute(tsdb, follower);
+    
+    final DataPoints[] datapoints = new DataPoints[1];
+    datapoints[0] = new MockDataPoints().getMock();
+    results.callback(datapoints);
+    verify(query_result, times(1)).runAsync();
+    assertEquals(HttpResponseStatus.OK, leader.response().getStatus());
+    assertEquals(HttpResponseStatus.OK, follower.response().getStatus());
+    assertEquals(
+        leader.response().getContent().toString(Charset.forName("UTF-8")),
+        follower.response().getContent().toString(Charset.forName("UTF-8")));
+  }
+
+  @Test
+  public void postQueryStreamed() throws Exception {
+    when(tsdb.getConfig().getBoolean("tsd.http.query.stream_responses"))
+      .thenReturn(true);
+    final DataPoints[] datapoints = new DataPoints[1];
+    datapoints[0] = new MockDataPoints().getMock();
+    when(query_result.runAsync()).thenReturn(
+        Deferred.fromResult(datapoints));
+    
+    HttpQuery query = NettyMocks.postQuery(tsdb, "/api/query",
+        "{\"start\":1425440315306,\"queries\":" +
+          "[{\"metric\":\"somemetric\",\"aggregator\":\"sum\"}]}");
+    NettyMocks.mockChannelFuture(query);
+    rpc.execute(tsdb, query);
+    assertEquals(HttpResponseStatus.OK, query.response().getStatus());
+    assertTrue(query.response().isChunked());
+    verify(query.channel()).write(HttpChunk.LAST_CHUNK);
+  }
+
+  @Test
+  public void holdMemoryUntilDone() throws Exception {
+    final HttpQuery query = NettyMocks.getQuery(tsdb, "/api/query");
+    final TSQuery data_query = mock(TSQuery.class);
+    QueryRpc.holdMemoryUntilDone(query, data_query);
+    verify(data_query).holdMemory();
+    verify(data_query, never()).releaseMemory();
+    
+    query.sendReply("OK");
+    verify(data_query).releaseMemory();
+  }
+  
+  @Test
+  public void releaseWhenDone() throws Exception {
+    final TSDB scheduler_tsdb = mock(TSDB.class);
+    when(scheduler_tsdb.getConfig()).thenReturn(new Config(false));
+    final QueryScheduler scheduler = new QueryScheduler(scheduler_tsdb);
+    final QueryScheduler.Ticket ticket = 
+        scheduler.acquire("default", "alice", null).joinUninterruptibly();
+    final HttpQuery query = NettyMocks.getQuery(tsdb, "/api/query");
+    QueryRpc.releaseWhenDone(query, null, ticket);
+    assertEquals(1, scheduler.running("default"));
+    
+    // the slot covers serializing the results
+    query.sendReply("OK");
+    assertEquals(0, scheduler.running("default"));
+  }
+  
   @Test
   public void postQueryNoMetricBadRequest() throws Exception {
     final DeferredGroupException dge = mock(DeferredGroupException.class);
@@ -16,6 +16,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
@@ -106,5 +107,37 @@ public class TestStatsRpc {
     assertTrue(json.contains("\"pools\":{"));
     assertTrue(json.contains("\"memory\":{"));
   }
+  
+  @Test
+  public void cancelQueryNotRunning() throws Exception {
+    final StatsRpc rpc = new StatsRpc();
+    HttpQuery query = NettyMocks.deleteQuery(tsdb, 
+        "/api/stats/query?hash=42", null);
+    try {
+      rpc.execute(tsdb, query);
+      fail("Expected a BadRequestException");
+    } catch (BadRequestException e) {
+      assertEquals(HttpResponseStatus.NOT_FOUND, e.getStatus());
+    }
+  }
+  
+  @Test (expected = BadRequestException.class)
+  public void cancelQueryBadHash() throws Exception {
+    final StatsRpc rpc = new StatsRpc();
+    HttpQuery query = NettyMocks.deleteQuery(tsdb, 
+        "/api/stats/query?hash=foo", null);
+    rpc.execute(tsdb, query);
+  }
+  
+  @Test
+  public void deleteNotAllowed() throws Exception {
+    final StatsRpc rpc = new StatsRpc();
+    HttpQuery query = NettyMocks.deleteQuery(tsdb, "/api/stats/jvm", null);
+    try {
+      rpc.execute(tsdb, query);
+      fail("Expected a BadRequestException");
+    } catch (BadRequestException e) {
+      assertEquals(HttpResponseStatus.METHOD_NOT_ALLOWED, e.getStatus());
+    }
+  }
 }
-
@@ -0,0 +1,149 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.nio.charset.Charset;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.opentsdb.core.Tags;
+
+public final class TestZeroCopyWordSplitter {
+  private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+  private ChannelHandlerContext ctx;
+  private Channel channel;
+  private ChannelPipeline pipeline;
+  private ZeroCopyWordSplitter splitter;
+
+  @Before
+  public void before() throws Exception {
+    ctx = mock(ChannelHandlerContext.class);
+    channel = mock(Channel.class);
+    pipeline = mock(ChannelPipeline.class);
+    when(ctx.getChannel()).thenReturn(channel);
+    when(channel.getPipeline()).thenReturn(pipeline);
+    splitter = new ZeroCopyWordSplitter(1024);
+  }
+
+  @Test
+  public void decode() throws Exception {
+    final ChannelBuffer buffer = buffer("put sys.cpu.user 1356998400 42 "
+        + "host=web01\n");
+    final String[] words = decode(buffer);
+    assertArrayEquals(new String[] { "put", "sys.cpu.user", "1356998400",
+        "42", "host=web01" }, words);
+    assertEquals(0, buffer.readableBytes());
+  }
+
+  @Test
+  public void decodeCRLF() throws Exception {
+    final ChannelBuffer buffer = buffer("version\r\nstats\r\n");
+    assertArrayEquals(new String[] { "version" }, decode(buffer));
+    assertArrayEquals(new String[] { "stats" }, decode(buffer));
+    assertEquals(0, buffer.readableBytes());
+  }
+
+  @Test
+  public void decodeIncompleteLine() throws Exception {
+    final ChannelBuffer buffer = buffer("put sys.cpu.user 1356998400");
+    assertNull(decode(buffer));
+    assertEquals(27, buffer.readableBytes());
+  }
+
+  @Test
+  public void decodeEmptyLine() throws Exception {
+    assertArrayEquals(new String[] { "" }, decode(buffer("\n")));
+  }
+
+  @Test
+  public void decodeSameAsWordSplitter() throws Exception {
+    final String[] lines = new String[] {
+        "put sys.cpu.user 1356998400 42 host=web01 dc=lga",
+        "put  sys.cpu.user 1356998400 42  host=web01 ",
+        " ",
+        "  ",
+        "put",
+        "put sys.cpu.user 1356998400 42.5 host=w\u00e9b01",
+        "diediedie"
+    };
+    for (final String line : lines) {
+      assertArrayEquals(line, Tags.splitString(line, ' '),
+          decode(buffer(line + "\n")));
+    }
+  }
+
+  @Test
+  public void decodeReusesWords() throws Exception {
+    final ChannelBuffer buffer = buffer(
+        "put sys.cpu.user 1356998400 42 host=web01\n" +
+        "put sys.cpu.user 1356998401 24 host=web01\n");
+    final String[] first = decode(buffer);
+    final String[] second = decode(buffer);
+    assertSame(first[0], second[0]);
+    assertSame(first[1], second[1]);
+    assertSame(first[4], second[4]);
+    assertEquals("1356998401", second[2]);
+    assertEquals("24", second[3]);
+    assertEquals(3, splitter.hits());
+    assertEquals(7, splitter.misses());
+  }
+
+  @Test
+  public void decodeLongWord() throws Exception {
+    final StringBuilder buf = new StringBuilder("put ");
+    for (int i = 0; i < ZeroCopyWordSplitter.MAX_CACHED_WORD_LENGTH + 1; i++) {
+      buf.append('a');
+    }
+    final String line = buf.toString();
+    final ChannelBuffer buffer = buffer(line + "\n" + line + "\n");
+    final String[] first = decode(buffer);
+    final String[] second = decode(buffer);
+    assertEquals(first[1], second[1]);
+    assertTrue(first[1] != second[1]);
+  }
+
+  @Test
+  public void decodeTooLong() throws Exception {
+    splitter = new ZeroCopyWordSplitter(8);
+    final ChannelBuffer buffer = buffer("put sys.cpu.user");
+    assertNull(decode(buffer));
+    assertEquals(0, buffer.readableBytes());
+    verify(pipeline).sendUpstream(any(ChannelEvent.class));
+  }
+
+  private String[] decode(final ChannelBuffer buffer) throws Exception {
+    return (String[]) splitter.decode(ctx, channel, buffer);
+  }
+
+  private static ChannelBuffer buffer(final String data) {
+    return ChannelBuffers.wrappedBuffer(data.getBytes(CHARSET));
+  }
+}
@@ -243,6 +243,143 @@ public final class TestUniqueId {
     uid.getId("foo");
   }
 
+  @Test
+  public void getIdCoalesced() throws Exception {
+    uid = new UniqueId(client, table, METRIC, 3);
+    final byte[] id = { 0, 'a', 0x42 };
+    final byte[] byte_name = { 'f', 'o', 'o' };
+
+    final Deferred<ArrayList<KeyValue>> get = 
+        new Deferred<ArrayList<KeyValue>>();
+    when(client.get(anyGet())).thenReturn(get);
+
+    final Deferred<byte[]> first = uid.getIdAsync("foo");
+    final Deferred<byte[]> second = uid.getIdAsync("foo");
+    ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(1);
+    kvs.add(new KeyValue(byte_name, ID, METRIC_ARRAY, id));
+    get.callback(kvs);
+
+    assertArrayEquals(id, first.joinUninterruptibly());
+    assertArrayEquals(id, second.joinUninterruptibly());
+    assertEquals(1, uid.cacheMisses());
+    assertEquals(1, uid.lookupsCoalesced());
+    verify(client).get(anyGet());
+    
+    // the next lookups start over
+    assertArrayEquals(id, uid.getId("foo"));
+    assertEquals(1, uid.cacheHits());
+  }
+
+  @Test
+  public void getIdCoalescedNonexistentName() throws Exception {
+    uid = new UniqueId(client, table, METRIC, 3);
+
+    final Deferred<ArrayList<KeyValue>> get = 
+        new Deferred<ArrayList<KeyValue>>();
+    when(client.get(anyGet())).thenReturn(get)
+      .thenReturn(Deferred.<ArrayList<KeyValue>>fromResult(null));
+
+    final Deferred<byte[]> first = uid.getIdAsync("foo");
+    final Deferred<byte[]> second = uid.getIdAsync("foo");
+    get.callback(null);
+    for (final Deferred<byte[]> lookup : Arrays.asList(first, second)) {
+      try {
+        lookup.joinUninterruptibly();
+        fail("Expected a NoSuchUniqueName");
+      } catch (NoSuchUniqueName e) { }
+    }
+    assertEquals(1, uid.lookupsCoalesced());
+    verify(client).get(anyGet());
+
+    // without the negative cache we ask HBase again
+    try {
+      uid.getId("foo");
+      fail("Expected a NoSuchUniqueName");
+    } catch (NoSuchUniqueName e) { }
+    verify(client, times(2)).get(anyGet());
+  }
+
+  @Test
+  public void getNameCoalesced() throws Exception {
+    uid = new UniqueId(client, table, METRIC, 3);
+    final byte[] id = { 0, 'a', 0x42 };
+    final byte[] byte_name = { 'f', 'o', 'o' };
+
+    final Deferred<ArrayList<KeyValue>> get = 
+        new Deferred<ArrayList<KeyValue>>();
+    when(client.get(anyGet())).thenReturn(get);
+
+    final Deferred<String> first = uid.getNameAsync(id);
+    final Deferred<String> second = uid.getNameAsync(
+        new byte[] { 0, 'a', 0x42 });
+    ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(1);
+    kvs.add(new KeyValue(id, NAME, METRIC_ARRAY, byte_name));
+    get.callback(kvs);
+
+    assertEquals("foo", first.joinUninterruptibly());
+    assertEquals("foo", second.joinUninterruptibly());
+    assertEquals(1, uid.cacheMisses());
+    assertEquals(1, uid.lookupsCoalesced());
+    verify(client).get(anyGet());
+  }
+
+  @Test
+  public void getIdNegativeCache() {
+    uid = new UniqueId(client, table, METRIC, 3);
+    uid.enableNegativeCache(60000, 16);
+
+    when(client.get(anyGet()))
+      .thenReturn(Deferred.<ArrayList<KeyValue>>fromResult(null));
+
+    for (int i = 0; i < 3; i++) {
+      try {
+        uid.getId("foo");
+        fail("Expected a NoSuchUniqueName");
+      } catch (NoSuchUniqueName e) { }
+    }
+    assertEquals(1, uid.cacheMisses());
+    assertEquals(2, uid.negativeCacheHits());
+    verify(client).get(anyGet());
+
+    // assigning the name makes it visible right away
+    uid.cacheMapping("foo", UID);
+    assertArrayEquals(UID, uid.getId("foo"));
+  }
+
+  @Test
+  public void getIdNegativeCacheFull() {
+    uid = new UniqueId(client, table, METRIC, 3);
+    uid.enableNegativeCache(60000, 2);
+
+    // a fresh deferred for each Get as their callback chains differ
+    when(client.get(anyGet()))
+      .thenReturn(Deferred.<ArrayList<KeyValue>>fromResult(null))
+      .thenReturn(Deferred.<ArrayList<KeyValue>>fromResult(null))
+      .thenReturn(Deferred.<ArrayList<KeyValue>>fromResult(null))
+      .thenReturn(Deferred.<ArrayList<KeyValue>>fromResult(null));
+
+    for (final String name : new String[] { "foo", "bar", "baz", "baz" }) {
+      try {
+        uid.getId(name);
+        fail("Expected a NoSuchUniqueName");
+      } catch (NoSuchUniqueName e) { }
+    }
+    assertEquals(1, uid.negativeCacheHits());
+    // the full cache was cleared to make room for "baz"
+    try {
+      uid.getId("foo");
+      fail("Expected a NoSuchUniqueName");
+    } catch (NoSuchUniqueName e) { }
+    assertEquals(1, uid.negativeCacheHits());
+    verify(client, times(4)).get(anyGet());
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void enableNegativeCacheZeroTTL() {
+    uid = new UniqueId(client, table, METRIC, 3);
+    uid.enableNegativeCache(0, 16);
+  }
+
   @Test
   public void getOrCreateIdWithExistingId() {
     uid = new UniqueId(client, table, METRIC, 3);
@@ -0,0 +1,175 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.uid;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public final class TestUniqueIdCache {
+  private static final short WIDTH = 3;
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorNegative() throws Exception {
+    new UniqueIdCache(WIDTH, -1);
+  }
+
+  @Test
+  public void put() throws Exception {
+    final UniqueIdCache cache = new UniqueIdCache(WIDTH, 0);
+    assertNull(cache.getId("web01"));
+    assertNull(cache.getName(id(1)));
+    cache.put("web01", id(1));
+    assertArrayEquals(id(1), cache.getId("web01"));
+    assertEquals("web01", cache.getName(id(1)));
+    // the same mapping again is fine
+    cache.put("web01", id(1));
+    assertEquals(1, cache.names());
+    assertEquals(1, cache.ids());
+  }
+
+  @Test
+  public void putWideId() throws Exception {
+    final UniqueIdCache cache = new UniqueIdCache((short) 8, 0);
+    final byte[] id = new byte[] { (byte) 0xFF, 0, 0, 0, 0, 0, 0, 1 };
+    cache.put("web01", id);
+    assertArrayEquals(id, cache.getId("web01"));
+    assertEquals("web01", cache.getName(id));
+  }
+
+  @Test
+  public void putNonAscii() throws Exception {
+    final UniqueIdCache cache = new UniqueIdCache(WIDTH, 0);
+    cache.put("café", id(1));
+    assertArrayEquals(id(1), cache.getId("café"));
+    assertEquals("café", cache.getName(id(1)));
+    assertNull(cache.getId("cafe"));
+  }
+
+  @Test (expected = IllegalStateException.class)
+  public void putNameConflict() throws Exception {
+    final UniqueIdCache cache = new UniqueIdCache(WIDTH, 0);
+    cache.put("web01", id(1));
+    cache.put("web01", id(2));
+  }
+
+  @Test (expected = IllegalStateException.class)
+  public void putIdConflict() throws Exception {
+    final UniqueIdCache cache = new UniqueIdCache(WIDTH, 0);
+    cache.put("web01", id(1));
+    cache.put("web02", id(1));
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void putWrongWidth() throws Exception {
+    new UniqueIdCache(WIDTH, 0).put("web01", new byte[] { 1 });
+  }
+
+  @Test
+  public void rename() throws Exception {
+    final UniqueIdCache cache = new UniqueIdCache(WIDTH, 0);
+    cache.put("web01", id(1));
+    cache.rename("web01", "web02", id(1));
+    assertNull(cache.getId("web01"));
+    assertArrayEquals(id(1), cache.getId("web02"));
+    assertEquals("web02", cache.getName(id(1)));
+  }
+
+  @Test
+  public void remove() throws Exception {
+    final UniqueIdCache cache = new UniqueIdCache(WIDTH, 0);
+    for (int i = 0; i < 1000; i++) {
+      cache.put("web" + i, id(i));
+    }
+    for (int i = 0; i < 1000; i += 2) {
+      cache.remove("web" + i, id(i));
+    }
+    assertEquals(500, cache.names());
+    assertEquals(500, cache.ids());
+    for (int i = 0; i < 1000; i++) {
+      if (i % 2 == 0) {
+        assertNull(cache.getId("web" + i));
+        assertNull(cache.getName(id(i)));
+      } else {
+        assertArrayEquals(id(i), cache.getId("web" + i));
+        assertEquals("web" + i, cache.getName(id(i)));
+      }
+    }
+  }
+
+  @Test
+  public void clear() throws Exception {
+    final UniqueIdCache cache = new UniqueIdCache(WIDTH, 0);
+    cache.put("web01", id(1));
+    cache.clear();
+    assertNull(cache.getId("web01"));
+    assertNull(cache.getName(id(1)));
+    assertEquals(0, cache.names());
+    cache.put("web01", id(2));
+    assertArrayEquals(id(2), cache.getId("web01"));
+  }
+
+  @Test
+  public void unbounded() throws Exception {
+    final UniqueIdCache cache = new UniqueIdCache(WIDTH, 0);
+    for (int i = 0; i < 100000; i++) {
+      cache.put("web" + i, id(i));
+    }
+    assertEquals(100000, cache.names());
+    assertEquals(100000, cache.ids());
+    assertEquals(0, cache.evictions());
+    for (int i = 0; i < 100000; i++) {
+      assertArrayEquals(id(i), cache.getId("web" + i));
+      assertEquals("web" + i, cache.getName(id(i)));
+    }
+  }
+
+  @Test
+  public void bounded() throws Exception {
+    final UniqueIdCache cache = new UniqueIdCache(WIDTH, 4096);
+    for (int i = 0; i < 100000; i++) {
+      cache.put("web" + i, id(i));
+    }
+    assertTrue(cache.names() <= 4096);
+    assertTrue(cache.ids() <= 4096);
+    assertEquals(2 * 100000 - cache.names() - cache.ids(), cache.evictions());
+    // the last one can't have been evicted yet
+    assertArrayEquals(id(99999), cache.getId("web99999"));
+  }
+
+  @Test
+  public void keepsFrequentMappings() throws Exception {
+    final UniqueIdCache cache = new UniqueIdCache(WIDTH, 64);
+    for (int i = 0; i < 32; i++) {
+      cache.put("hot" + i, id(i));
+    }
+    // a stream of names seen once while the hot names keep being looked up
+    for (int i = 0; i < 10000; i++) {
+      cache.put("cold" + i, id(1000 + i));
+      cache.getId("hot" + (2 * i % 32));
+      cache.getId("hot" + ((2 * i + 1) % 32));
+    }
+    assertEquals(64, cache.names());
+    for (int i = 0; i < 32; i++) {
+      assertArrayEquals(id(i), cache.getId("hot" + i));
+    }
+  }
+
+  /** @return the number as an ID of the test width */
+  private static byte[] id(final int i) {
+    return UniqueId.longToUID(i, WIDTH);
+  }
+}
@@ -0,0 +1,181 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.uid;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mock;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.opentsdb.core.TSDB;
+import net.opentsdb.storage.MockBase;
+import net.opentsdb.utils.Config;
+
+import org.hbase.async.Bytes.ByteMap;
+import org.hbase.async.GetRequest;
+import org.hbase.async.HBaseClient;
+import org.hbase.async.Scanner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+@RunWith(PowerMockRunner.class)
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+  "ch.qos.*", "org.slf4j.*",
+  "com.sum.*", "org.xml.*"})
+@PrepareForTest({ HBaseClient.class, TSDB.class, Config.class, Scanner.class })
+public final class TestUniqueIdSnapshot {
+  private static final byte[] TABLE = "tsdb-uid".getBytes(MockBase.ASCII());
+  private static final byte[] NAME = "name".getBytes(MockBase.ASCII());
+  private static final byte[] METRICS = "metrics".getBytes(MockBase.ASCII());
+  private static final byte[] TAGK = "tagk".getBytes(MockBase.ASCII());
+  private TSDB tsdb = mock(TSDB.class);
+  private HBaseClient client = mock(HBaseClient.class);
+  private MockBase storage;
+  private File file;
+
+  @Before
+  public void before() throws Exception {
+    when(tsdb.getConfig()).thenReturn(mock(Config.class));
+    when(tsdb.getClient()).thenReturn(client);
+    when(tsdb.uidTable()).thenReturn(TABLE);
+    storage = new MockBase(tsdb, client, true, true, true, true);
+    final List<byte[]> families = new ArrayList<byte[]>();
+    families.add("id".getBytes(MockBase.ASCII()));
+    families.add(NAME);
+    storage.addTable(TABLE, families);
+    file = File.createTempFile("uid", ".snapshot");
+    file.delete();
+  }
+
+  @After
+  public void after() throws Exception {
+    file.delete();
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorEmptyPath() throws Exception {
+    new UniqueIdSnapshot(tsdb, uids(3), "");
+  }
+
+  @Test
+  public void writeAndLoad() throws Exception {
+    final ByteMap<UniqueId> written = uids(3);
+    written.get(METRICS).cacheMapping("sys.cpu.user", id(1, 3));
+    written.get(METRICS).cacheMapping("sys.cpu.nice", id(2, 3));
+    written.get(TAGK).cacheMapping("host", id(1, 3));
+    assertEquals(3, snapshot(written).write());
+    assertTrue(file.exists());
+    assertFalse(new File(file.getPath() + ".tmp").exists());
+
+    final ByteMap<UniqueId> loaded = uids(3);
+    assertTrue(snapshot(loaded).load());
+    assertEquals("sys.cpu.user", loaded.get(METRICS).getName(id(1, 3)));
+    assertArrayEquals(id(2, 3), loaded.get(METRICS).getId("sys.cpu.nice"));
+    assertEquals("host", loaded.get(TAGK).getName(id(1, 3)));
+    assertEquals(0, loaded.get(METRICS).cacheMisses());
+    verify(client, never()).get(any(GetRequest.class));
+  }
+
+  @Test
+  public void loadMissing() throws Exception {
+    assertFalse(snapshot(uids(3)).load());
+  }
+
+  @Test
+  public void loadCorrupted() throws Exception {
+    final ByteMap<UniqueId> written = uids(3);
+    written.get(METRICS).cacheMapping("sys.cpu.user", id(1, 3));
+    snapshot(written).write();
+    // truncate the snapshot in the middle of the mapping
+    final byte[] truncated = new byte[(int) file.length() - 4];
+    final FileInputStream in = new FileInputStream(file);
+    in.read(truncated);
+    in.close();
+    final FileOutputStream out = new FileOutputStream(file);
+    out.write(truncated);
+    out.close();
+
+    final ByteMap<UniqueId> loaded = uids(3);
+    assertFalse(snapshot(loaded).load());
+    assertEquals(0, loaded.get(METRICS).cacheSize());
+  }
+
+  @Test
+  public void loadWidthChanged() throws Exception {
+    final ByteMap<UniqueId> written = uids(3);
+    written.get(METRICS).cacheMapping("sys.cpu.user", id(1, 3));
+    snapshot(written).write();
+
+    final ByteMap<UniqueId> loaded = uids(4);
+    assertTrue(snapshot(loaded).load());
+    assertEquals(0, loaded.get(METRICS).cacheSize());
+  }
+
+  @Test
+  public void reconcile() throws Exception {
+    storage.addColumn(TABLE, id(1, 3), NAME, METRICS, bytes("sys.cpu.user"));
+    storage.addColumn(TABLE, id(2, 3), NAME, METRICS, bytes("sys.cpu.nice"));
+    storage.addColumn(TABLE, id(3, 3), NAME, METRICS, bytes("sys.cpu.idle"));
+    storage.addColumn(TABLE, id(1, 3), NAME, TAGK, bytes("host"));
+    final ByteMap<UniqueId> written = uids(3);
+    written.get(METRICS).cacheMapping("sys.cpu.user", id(1, 3));
+    written.get(TAGK).cacheMapping("host", id(1, 3));
+    snapshot(written).write();
+
+    final ByteMap<UniqueId> loaded = uids(3);
+    final UniqueIdSnapshot snapshot = snapshot(loaded);
+    assertTrue(snapshot.load());
+    // only the metrics assigned after the snapshot are read
+    assertEquals(2L, (long) snapshot.reconcile().joinUninterruptibly());
+    assertEquals("sys.cpu.nice", loaded.get(METRICS).getName(id(2, 3)));
+    assertEquals("sys.cpu.idle", loaded.get(METRICS).getName(id(3, 3)));
+    verify(client, never()).get(any(GetRequest.class));
+  }
+
+  /** @return UIDs for metrics and tag names with the given width */
+  private ByteMap<UniqueId> uids(final int width) {
+    final ByteMap<UniqueId> uids = new ByteMap<UniqueId>();
+    uids.put(METRICS, new UniqueId(client, TABLE, "metrics", width));
+    uids.put(TAGK, new UniqueId(client, TABLE, "tagk", width));
+    return uids;
+  }
+
+  /** @return a snapshot of the UIDs in the test file */
+  private UniqueIdSnapshot snapshot(final ByteMap<UniqueId> uids) {
+    return new UniqueIdSnapshot(tsdb, uids, file.getPath());
+  }
+
+  private static byte[] id(final long id, final int width) {
+    return UniqueId.longToUID(id, (short) width);
+  }
+
+  private static byte[] bytes(final String name) {
+    return name.getBytes(MockBase.ASCII());
+  }
+}
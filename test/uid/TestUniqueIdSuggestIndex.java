@@ -0,0 +1,158 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.uid;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mock;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import net.opentsdb.core.TSDB;
+import net.opentsdb.storage.MockBase;
+import net.opentsdb.utils.Config;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.HBaseClient;
+import org.hbase.async.Scanner;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+@RunWith(PowerMockRunner.class)
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+  "ch.qos.*", "org.slf4j.*",
+  "com.sum.*", "org.xml.*"})
+@PrepareForTest({ HBaseClient.class, TSDB.class, Config.class, Scanner.class })
+public final class TestUniqueIdSuggestIndex {
+  private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+  @Test
+  public void suggest() throws Exception {
+    final UniqueIdSuggestIndex index = load("web01", "sys.cpu.user",
+        "sys.mem.free", "sys.cpu.idle");
+    assertEquals(Arrays.asList("sys.cpu.idle", "sys.cpu.user"),
+        index.suggest("sys.cpu", 25));
+    assertEquals(Arrays.asList("sys.cpu.idle"), index.suggest("sys.cpu", 1));
+    assertEquals(Arrays.asList("web01"), index.suggest("web01", 25));
+    assertTrue(index.suggest("web02", 25).isEmpty());
+    assertEquals(4, index.size());
+  }
+
+  @Test
+  public void suggestEmpty() throws Exception {
+    // empty searches cover the same range as the UID table scan
+    final UniqueIdSuggestIndex index = load("web01", "été",
+        "sys.cpu.user");
+    assertEquals(Arrays.asList("sys.cpu.user", "web01"),
+        index.suggest("", 25));
+    assertEquals(Arrays.asList("été"), index.suggest("é", 25));
+  }
+
+  @Test
+  public void notComplete() throws Exception {
+    final UniqueIdSuggestIndex index = new UniqueIdSuggestIndex();
+    index.add("sys.cpu.user");
+    assertFalse(index.isComplete());
+    index.load(new ArrayList<byte[]>());
+    assertTrue(index.isComplete());
+    assertEquals(Arrays.asList("sys.cpu.user"), index.suggest("sys", 25));
+  }
+
+  @Test
+  public void addAndRemove() throws Exception {
+    final UniqueIdSuggestIndex index = load("sys.cpu.user", "sys.cpu.idle");
+    index.add("sys.cpu.nice");
+    index.add("sys.cpu.idle");
+    index.remove("sys.cpu.user");
+    assertEquals(Arrays.asList("sys.cpu.idle", "sys.cpu.nice"),
+        index.suggest("sys", 25));
+    assertEquals(2, index.size());
+
+    index.add("sys.cpu.user");
+    index.remove("sys.cpu.nice");
+    index.remove("sys.cpu.steal");
+    assertEquals(Arrays.asList("sys.cpu.idle", "sys.cpu.user"),
+        index.suggest("sys", 25));
+  }
+
+  @Test
+  public void merges() throws Exception {
+    final UniqueIdSuggestIndex index = load("host");
+    for (int i = 9999; i >= 0; i--) {
+      index.add(String.format("web%05d", i));
+    }
+    for (int i = 0; i < 10000; i += 2) {
+      index.remove(String.format("web%05d", i));
+    }
+    assertEquals(5001, index.size());
+    final List<String> suggestions = index.suggest("web", 10000);
+    assertEquals(5000, suggestions.size());
+    for (int i = 0; i < 5000; i++) {
+      assertEquals(String.format("web%05d", i * 2 + 1), suggestions.get(i));
+    }
+  }
+
+  @Test
+  public void suggestFromUniqueId() throws Exception {
+    final byte[] table = "tsdb-uid".getBytes(CHARSET);
+    final byte[] id = "id".getBytes(CHARSET);
+    final byte[] metrics = "metrics".getBytes(CHARSET);
+    final TSDB tsdb = mock(TSDB.class);
+    final HBaseClient client = mock(HBaseClient.class);
+    when(tsdb.getConfig()).thenReturn(mock(Config.class));
+    when(tsdb.getClient()).thenReturn(client);
+    final MockBase storage = new MockBase(tsdb, client, true, true, true, true);
+    storage.addTable(table, new ArrayList<byte[]>(Arrays.asList(id,
+        "name".getBytes(CHARSET))));
+    storage.addColumn(table, new byte[] { 0 }, id, metrics, Bytes.fromLong(2));
+    storage.addColumn(table, "sys.cpu.user".getBytes(CHARSET), id, metrics,
+        new byte[] { 0, 0, 1 });
+    storage.addColumn(table, "sys.cpu.idle".getBytes(CHARSET), id, metrics,
+        new byte[] { 0, 0, 2 });
+    storage.addColumn(table, "host".getBytes(CHARSET), id,
+        "tagk".getBytes(CHARSET), new byte[] { 0, 0, 1 });
+
+    final UniqueId uid = new UniqueId(client, table, "metrics", 3);
+    uid.enableSuggestIndex();
+    assertEquals(2, uid.buildSuggestIndex().joinUninterruptibly());
+    uid.cacheMapping("sys.cpu.nice", new byte[] { 0, 0, 3 });
+    assertEquals(Arrays.asList("sys.cpu.idle", "sys.cpu.nice", "sys.cpu.user"),
+        uid.suggest("sys"));
+    assertTrue(uid.suggest("host").isEmpty());
+    // only the scan building the index
+    verify(client, times(1)).newScanner(table);
+  }
+
+  /** @return a complete index with the names */
+  private static UniqueIdSuggestIndex load(final String... names) {
+    final List<byte[]> sorted = new ArrayList<byte[]>();
+    for (final String name : names) {
+      sorted.add(name.getBytes(CHARSET));
+    }
+    Collections.sort(sorted, Bytes.MEMCMP);
+    final UniqueIdSuggestIndex index = new UniqueIdSuggestIndex();
+    index.load(sorted);
+    return index;
+  }
+}